@@ -1,20 +1,38 @@
 package one.cax.textractor;
 
+import one.cax.textractor.datamodel.DocumentFormat;
 import one.cax.textractor.datamodel.FileProcessing;
+import one.cax.textractor.datamodel.OcrMode;
 import one.cax.textractor.datamodel.ProcessingStatus;
+import one.cax.textractor.datamodel.StoredFile;
+import one.cax.textractor.datamodel.XDoc;
+import one.cax.textractor.datamodel.XPage;
+import one.cax.textractor.db.AppProfile;
 import one.cax.textractor.db.ProcessedFiles;
 import one.cax.textractor.llm.OpenAIService;
+import one.cax.textractor.messaging.RedisStreamWorkQueue;
 import one.cax.textractor.ocr.AbbyyEngine;
 import one.cax.textractor.service.AppProfileService;
 import one.cax.textractor.service.ProcessedFilesService;
+import one.cax.textractor.text.DocumentExtractionException;
+import one.cax.textractor.text.DocumentExtractorRegistry;
 import one.cax.textractor.text.ExtractorEngine;
+import one.cax.textractor.text.PageCoverage;
+import one.cax.textractor.text.TextLayerTriage;
+import one.cax.textractor.text.XDocPageSink;
+import one.cax.textractor.utilities.NameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.dao.DataAccessException;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -29,7 +47,11 @@ public class Orchestrator {
     @Value("${textractor.redis.llm.topic:llm-processing-topic}")
     private String llmTopic;
 
-    private final RedisTemplate<String, String> redisTemplate;
+    /** The LLM structures the text of the OCR or of the text layer, instead of reading the file itself */
+    @Value("${textractor.llm.input.text-first:false}")
+    private boolean llmTextFirst = false;
+
+    private final RedisStreamWorkQueue workQueue;
 
     /** Abbyy OCR engine */
     private AbbyyEngine abbyyEngine;
@@ -45,15 +67,21 @@ public class Orchestrator {
 
     private ExtractorEngine extractorEngine;
 
+    /** Decides which PDF pages need OCR */
+    private TextLayerTriage textLayerTriage;
+
+    /** Detects file formats and reads the formats that have their own text */
+    private DocumentExtractorRegistry documentExtractorRegistry;
+
     /**
      * Constructor for Orchestrator
      * 
-     * @param redisTemplate Redis template for messaging
+     * @param workQueue Redis Streams work queue for the processing stages
      * @param abbyyEngine Abbyy OCR engine
      * @throws Exception if initialization fails
      */
-    public Orchestrator(RedisTemplate<String, String> redisTemplate, @Autowired AbbyyEngine abbyyEngine, @Autowired OpenAIService openAIService, @Autowired ExtractorEngine extractorEngine) throws Exception {
-        this.redisTemplate = redisTemplate;
+    public Orchestrator(RedisStreamWorkQueue workQueue, @Autowired AbbyyEngine abbyyEngine, @Autowired OpenAIService openAIService, @Autowired ExtractorEngine extractorEngine) throws Exception {
+        this.workQueue = workQueue;
         this.abbyyEngine = abbyyEngine;
         this.extractorEngine = extractorEngine;
         this.abbyyEngine.initialize();
@@ -76,6 +104,26 @@ public class Orchestrator {
         this.openAIService = openAIService;
     }
     
+    /**
+     * Set the text layer triage
+     *
+     * @param textLayerTriage Decides which PDF pages need OCR
+     */
+    @Autowired
+    public void setTextLayerTriage(TextLayerTriage textLayerTriage) {
+        this.textLayerTriage = textLayerTriage;
+    }
+
+    /**
+     * Set the document extractor registry
+     *
+     * @param documentExtractorRegistry Detects file formats and reads the formats that have their own text
+     */
+    @Autowired
+    public void setDocumentExtractorRegistry(DocumentExtractorRegistry documentExtractorRegistry) {
+        this.documentExtractorRegistry = documentExtractorRegistry;
+    }
+
     /**
      * Set the ProcessedFiles service
      * 
@@ -86,6 +134,27 @@ public class Orchestrator {
         this.processedFilesService = processedFilesService;
     }
 
+    /**
+     * Store an uploaded file in the filestore
+     *
+     * @param content File content stream
+     * @return Reference to the stored file, with its hash and size
+     * @throws IOException if the file cannot be stored
+     */
+    public StoredFile storeFile(InputStream content) throws IOException {
+        return processedFilesService.storeFile(content);
+    }
+
+    /**
+     * Tell whether an upload may need OCR, before it is stored
+     *
+     * @param content File content stream, only its first bytes are read
+     * @return True unless the upload is a document with its own text
+     */
+    public boolean mayNeedOcr(InputStream content) {
+        return documentExtractorRegistry == null || documentExtractorRegistry.mayNeedOcr(content);
+    }
+
     /**
      * Process a file using both OCR and LLM
      * 
@@ -96,18 +165,144 @@ public class Orchestrator {
         var fileId = fileProcessing.initialize();
         logger.info("Starting processing for file {}", fileId);
         
-        // Send to OCR processing
-        redisTemplate.convertAndSend(ocrTopic, fileProcessing);
-        
-        // Send to LLM processing
-        redisTemplate.convertAndSend(llmTopic, fileProcessing);
-        
-        // Create a new ProcessedFiles record
+        // Create a new ProcessedFiles record before any stage can pick the file up
         createProcessedFileRecord(fileProcessing);
+
+        // Route by the format found in the file content, not by its name or declared type
+        DocumentFormat format = detectFormat(fileProcessing);
+
+        // Only the file reference goes through Redis, the stages read the bytes from the filestore
+        // Send to OCR processing, unless the text can be read from the document itself
+        boolean needsOcr;
+        if (format == DocumentFormat.PDF) {
+            // unless the PDF text layer already covers every page
+            needsOcr = triageTextLayer(fileProcessing);
+        } else if (documentExtractorRegistry != null && documentExtractorRegistry.find(format).isPresent()) {
+            needsOcr = !extractText(fileProcessing, format);
+        } else {
+            // images and unknown files
+            needsOcr = true;
+        }
+        // Send to LLM processing, for the formats the model takes as input
+        boolean needsLlm = format.isLlmMedia();
+        // in text-first mode the LLM waits for the text: the OCR stage requests it once the text is saved
+        fileProcessing.setLlmTextFirst(needsLlm && llmTextFirst);
+        if (needsOcr) {
+            fileProcessing.setOcrMode(findOcrMode(fileProcessing.getAppId()));
+            workQueue.publish(ocrTopic, fileProcessing);
+        }
+        if (needsLlm && !(fileProcessing.isLlmTextFirst() && needsOcr)) {
+            workQueue.publish(llmTopic, fileProcessing);
+        }
+
+        if (!needsOcr && !needsLlm) {
+            processedFilesService.updateProcessingStatus(fileId.toString(), ProcessingStatus.PROCESSED.name());
+        }
         
         return fileId;
     }
+
+    /**
+     * Detect the format of the stored file and record it on the request.
+     *
+     * @param fileProcessing File processing request
+     * @return The detected format
+     */
+    private DocumentFormat detectFormat(FileProcessing fileProcessing) {
+        DocumentFormat format = documentExtractorRegistry != null
+                ? documentExtractorRegistry.detect(Path.of(fileProcessing.getFilePath()))
+                : DocumentFormat.UNKNOWN;
+        if (format == DocumentFormat.UNKNOWN && isPdf(fileProcessing)) {
+            // detection unavailable: trust the declared type
+            format = DocumentFormat.PDF;
+        }
+        fileProcessing.setDocumentFormat(format);
+        logger.info("File {} detected as {}", fileProcessing.getFileId(), format);
+        return format;
+    }
+
+    /**
+     * Read the text of a document that has its own text (office formats) and store it
+     * as the OCR content, so the document skips OCR.
+     *
+     * @param fileProcessing File processing request
+     * @param format The detected format
+     * @return True if the text was extracted
+     */
+    private boolean extractText(FileProcessing fileProcessing, DocumentFormat format) {
+        try {
+            XDocPageSink sink = new XDocPageSink();
+            documentExtractorRegistry.extract(Path.of(fileProcessing.getFilePath()), format, sink);
+            XDoc xDoc = sink.getXDoc();
+            xDoc.setId(fileProcessing.getFileId());
+            xDoc.setFilename(fileProcessing.getFileName());
+            processedFilesService.mergeOcrOutput(fileProcessing.getFileId().toString(), xDoc);
+            logger.info("Extracted {} pages of file {} without OCR", xDoc.getPages().size(), fileProcessing.getFileId());
+            return true;
+        } catch (DocumentExtractionException e) {
+            // unreadable document: let OCR try
+            logger.warn("Text extraction failed for file {}: {}", fileProcessing.getFileId(), e.getMessage());
+            return false;
+        }
+    }
     
+    /**
+     * Take the text of PDF pages from their text layer when it is usable, and restrict
+     * OCR to the remaining pages. The text layer pages are stored as OCR content and
+     * the OCR stage merges its pages into them.
+     *
+     * @param fileProcessing File processing request
+     * @return True if some pages still need OCR
+     */
+    private boolean triageTextLayer(FileProcessing fileProcessing) {
+        if (textLayerTriage == null || !textLayerTriage.isEnabled() || !isPdf(fileProcessing)) {
+            return true;
+        }
+        try {
+            List<PageCoverage> coverage = extractorEngine.analyzeTextLayer(fileProcessing.getFilePath());
+            List<Integer> ocrPages = textLayerTriage.pagesNeedingOcr(coverage);
+
+            List<XPage> textLayerPages = new ArrayList<>();
+            for (PageCoverage page : coverage) {
+                if (!ocrPages.contains(page.getPageNumber())) {
+                    XPage xPage = new XPage();
+                    xPage.setPageNumber(page.getPageNumber());
+                    xPage.setText(page.getText());
+                    textLayerPages.add(xPage);
+                }
+            }
+            if (!textLayerPages.isEmpty()) {
+                XDoc textLayer = new XDoc();
+                textLayer.setId(fileProcessing.getFileId());
+                textLayer.setFilename(fileProcessing.getFileName());
+                textLayer.setPages(textLayerPages);
+                processedFilesService.mergeOcrOutput(fileProcessing.getFileId().toString(), textLayer);
+            }
+            logger.info("Text layer triage for file {}: {} of {} pages need OCR", fileProcessing.getFileId(),
+                    ocrPages.size(), coverage.size());
+
+            if (ocrPages.isEmpty()) {
+                return false;
+            }
+            // even when it is every page: the page count lets the OCR stage split large documents across engines
+            fileProcessing.setOcrPages(ocrPages);
+            return true;
+        } catch (DocumentExtractionException e) {
+            // unreadable text layer: OCR the whole file
+            logger.warn("Text layer triage failed for file {}: {}", fileProcessing.getFileId(), e.getMessage());
+            return true;
+        }
+    }
+
+    private boolean isPdf(FileProcessing fileProcessing) {
+        if (fileProcessing.getDocumentFormat() != null && fileProcessing.getDocumentFormat() != DocumentFormat.UNKNOWN) {
+            return fileProcessing.getDocumentFormat() == DocumentFormat.PDF;
+        }
+        String fileName = fileProcessing.getFileName();
+        return NameUtils.APPLICATION_PDF.equals(fileProcessing.getContentType())
+                || (fileName != null && fileName.toLowerCase().endsWith(".pdf"));
+    }
+
     /**
      * Create a new ProcessedFiles record
      * 
@@ -121,10 +316,7 @@ public class Orchestrator {
             processedFile.setFileSize(fileProcessing.getFileSize());
             processedFile.setFileHash(fileProcessing.getFileHash());
             processedFile.setProcessingStatus("PROCESSING");
-            
-            // Save file content to disk
-            String filePath = processedFilesService.saveFile(fileProcessing.getFileContent());
-            processedFile.setFilePath(filePath);
+            processedFile.setFilePath(fileProcessing.getFilePath());
             
             // Save the app ID
             if (fileProcessing.getAppId() != null) {
@@ -138,6 +330,26 @@ public class Orchestrator {
         }
     }
 
+    /**
+     * Find the OCR speed/accuracy trade-off chosen by an application
+     *
+     * @param appId App ID
+     * @return The OCR mode of the app profile, or null for the default
+     */
+    private OcrMode findOcrMode(String appId) {
+        if (appProfileService == null || appId == null) {
+            return null;
+        }
+        try {
+            AppProfile appProfile = appProfileService.findByAppId(appId);
+            return appProfile != null ? appProfile.getOcrMode() : null;
+        } catch (DataAccessException e) {
+            // the default mode rather than no OCR
+            logger.warn("Cannot read the OCR mode of app {}: {}", appId, e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Check if an app ID is valid
      * 
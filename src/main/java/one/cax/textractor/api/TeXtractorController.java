@@ -5,15 +5,19 @@ import one.cax.textractor.api.dto.ApiResponse;
 import one.cax.textractor.api.dto.ResponseEntityUtil;
 import one.cax.textractor.datamodel.FileProcessing;
 import one.cax.textractor.datamodel.ProcessingStatus;
+import one.cax.textractor.ocr.OcrBackpressure;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
 
 @RestController
 public class TeXtractorController {
@@ -23,12 +27,17 @@ public class TeXtractorController {
     /** Orchestrates the files processing */
     private final Orchestrator orchestrator;
 
+    /** Refuses new files while the OCR backlog is full */
+    private final OcrBackpressure ocrBackpressure;
+
     /**
      *
      * @param orchestrator orchestrates the files processing
+     * @param ocrBackpressure admission control on the OCR backlog
      */
-    public TeXtractorController(@Autowired Orchestrator orchestrator) {
+    public TeXtractorController(@Autowired Orchestrator orchestrator, @Autowired OcrBackpressure ocrBackpressure) {
         this.orchestrator = orchestrator;
+        this.ocrBackpressure = ocrBackpressure;
     }
 
 
@@ -36,7 +45,7 @@ public class TeXtractorController {
      * Process the file uploaded.
      * @param appId application Id
      * @param file file to be processed
-     * @return
+     * @return the file id, or 429 with a Retry-After header while the OCR backlog is full and the file may need OCR
      */
     @PostMapping("/process/{appId}")
     public ResponseEntity<ApiResponse<String>> process(@PathVariable String appId, @RequestParam("file") MultipartFile file) {
@@ -55,6 +64,20 @@ public class TeXtractorController {
             );
         }
 
+        // refuse before the upload is stored, so a burst does not fill the filestore either;
+        // office documents have their own text and are not held back by the OCR backlog
+        var retryAfter = mayNeedOcr(file) ? ocrBackpressure.admit() : Optional.<Duration>empty();
+        if (retryAfter.isPresent()) {
+            var headers = new HttpHeaders();
+            headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter.get().toSeconds()));
+            return ResponseEntityUtil.failedResponse(
+                    "OCR queue is full, retry later",
+                    "OCR_QUEUE_FULL",
+                    HttpStatus.TOO_MANY_REQUESTS,
+                    headers
+            );
+        }
+
         try {
 
             var fileId = orchestrator.process(initialSetup(file, appId));
@@ -85,14 +108,25 @@ public class TeXtractorController {
         }
     }
 
+    private boolean mayNeedOcr(MultipartFile file) {
+        try (var inputStream = file.getInputStream()) {
+            return orchestrator.mayNeedOcr(inputStream);
+        } catch (IOException e) {
+            // storing it will fail too
+            return true;
+        }
+    }
+
     private FileProcessing initialSetup(MultipartFile file, String appId) throws IOException {
 
         var contentType =  file.getContentType();
         var fileName = file.getOriginalFilename();
-        var fileSize = file.getSize();
-        var fileContent = file.getBytes();
 
-        return new FileProcessing(fileName, fileSize, contentType, fileContent, appId);
+        // stream the upload into the filestore; the hash is computed on the way
+        try (var inputStream = file.getInputStream()) {
+            var storedFile = orchestrator.storeFile(inputStream);
+            return new FileProcessing(fileName, contentType, storedFile, appId);
+        }
 
     }
 }
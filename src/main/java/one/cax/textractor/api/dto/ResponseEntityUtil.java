@@ -1,5 +1,6 @@
 package one.cax.textractor.api.dto;
 
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 
@@ -16,4 +17,10 @@ public class ResponseEntityUtil {
         ApiResponse<T> response = new ApiResponse<>(message, errorCode);
         return new ResponseEntity<>(response, status);
     }
+
+    public static <T> ResponseEntity<ApiResponse<T>> failedResponse(String message, String errorCode, HttpStatus status,
+                                                                    HttpHeaders headers) {
+        ApiResponse<T> response = new ApiResponse<>(message, errorCode);
+        return new ResponseEntity<>(response, headers, status);
+    }
 }
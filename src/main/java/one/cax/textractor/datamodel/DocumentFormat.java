@@ -0,0 +1,44 @@
+package one.cax.textractor.datamodel;
+
+/**
+ * Format of a stored file, detected from its content rather than its name.
+ */
+public enum DocumentFormat {
+    PDF("application/pdf"),
+    DOCX("application/vnd.openxmlformats-officedocument.wordprocessingml.document"),
+    XLSX("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"),
+    PPTX("application/vnd.openxmlformats-officedocument.presentationml.presentation"),
+    DOC("application/msword"),
+    XLS("application/vnd.ms-excel"),
+    PPT("application/vnd.ms-powerpoint"),
+    PNG("image/png"),
+    JPEG("image/jpeg"),
+    GIF("image/gif"),
+    TIFF("image/tiff"),
+    BMP("image/bmp"),
+    UNKNOWN("application/octet-stream");
+
+    private final String mimeType;
+
+    DocumentFormat(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return true for raster images, which have no text and go straight to OCR
+     */
+    public boolean isImage() {
+        return mimeType.startsWith("image/");
+    }
+
+    /**
+     * @return true for the formats the LLM stage can be given as a file: PDF and images
+     */
+    public boolean isLlmMedia() {
+        return this == PDF || isImage();
+    }
+}
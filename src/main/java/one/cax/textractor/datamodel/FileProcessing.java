@@ -1,34 +1,75 @@
 package one.cax.textractor.datamodel;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.UUID;
 
 /**
  *  File processing entity.
+ *  The content is not held in memory: it lives in the filestore at {@code filePath}
+ *  and is read on demand by the stages that need it.
+ *  This is also the claim-check message published to the OCR and LLM topics, so it
+ *  only carries the file reference and its metadata, never the file bytes.
  * Created by Carlos Queiroz on 2025-03-01
  */
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class FileProcessing {
     private Logger logger = LoggerFactory.getLogger(this.getClass());
     private final UUID fileId;
     private final long fileSize;
     private final String fileName;
     private final String contentType;
-    private final byte[] fileContent;
+    private final String filePath;
+    private final String fileHash;
     private final String appId;
     private ProcessingStatus status;
     private String message;
-    private String fileHash;
-
-    public FileProcessing(String fileName, long fileSize, String contentType, byte[] fileContent, String appId) {
-        this.fileId = UUID.randomUUID();
+    /** 1-based numbers of the pages to OCR; null or empty means the whole file */
+    private List<Integer> ocrPages;
+    /** Format detected from the file content; null until detected */
+    private DocumentFormat documentFormat;
+    /** OCR speed/accuracy trade-off of the application; null for the default */
+    private OcrMode ocrMode;
+    /** Pre-processed image to OCR instead of the stored file; local to the OCR node, null if none */
+    private String ocrFilePath;
+    /** The LLM structures the OCR or text layer text instead of reading the file, and is requested once that text is saved */
+    private boolean llmTextFirst;
+
+    public FileProcessing(String fileName, String contentType, StoredFile storedFile, String appId) {
+        this(fileName, storedFile.getFileSize(), contentType, storedFile.getFilePath(), storedFile.getFileHash(), appId);
+    }
+
+    public FileProcessing(String fileName, long fileSize, String contentType, String filePath, String fileHash, String appId) {
+        this(UUID.randomUUID(), fileName, fileSize, contentType, filePath, fileHash, appId);
+    }
+
+    /**
+     * Rebuilds a file processing request received from a topic, keeping its file id.
+     */
+    @JsonCreator
+    public FileProcessing(@JsonProperty("fileId") UUID fileId,
+                          @JsonProperty("fileName") String fileName,
+                          @JsonProperty("fileSize") long fileSize,
+                          @JsonProperty("contentType") String contentType,
+                          @JsonProperty("filePath") String filePath,
+                          @JsonProperty("fileHash") String fileHash,
+                          @JsonProperty("appId") String appId) {
+        this.fileId = fileId;
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.contentType = contentType;
-        this.fileContent = fileContent;
+        this.filePath = filePath;
+        this.fileHash = fileHash;
         this.appId = appId;
     }
 
@@ -36,13 +77,30 @@ public class FileProcessing {
         logger.info("Initializing file processing for file {}", fileName);
         this.status = ProcessingStatus.PROCESSING;
         this.message = "File started to being processed";
-        this.fileHash = calculateHash(fileContent);
         return fileId;
     }
 
+    /**
+     * Opens a stream over the stored file content.
+     * @return input stream, to be closed by the caller
+     * @throws IOException if the file cannot be opened
+     */
+    public InputStream openFileContent() throws IOException {
+        return Files.newInputStream(Path.of(filePath));
+    }
 
-    public byte[] getFileContent() {
-        return fileContent;
+    /**
+     * Reads the whole stored file content into memory.
+     * Only for consumers that cannot work from a stream or a path.
+     * @return file content
+     * @throws IOException if the file cannot be read
+     */
+    public byte[] readFileContent() throws IOException {
+        return Files.readAllBytes(Path.of(filePath));
+    }
+
+    public String getFilePath() {
+        return filePath;
     }
 
     public String getFileName() {
@@ -85,27 +143,48 @@ public class FileProcessing {
         return fileHash;
     }
 
+    public DocumentFormat getDocumentFormat() {
+        return documentFormat;
+    }
+
+    public void setDocumentFormat(DocumentFormat documentFormat) {
+        this.documentFormat = documentFormat;
+    }
+
+    public OcrMode getOcrMode() {
+        return ocrMode;
+    }
+
+    public void setOcrMode(OcrMode ocrMode) {
+        this.ocrMode = ocrMode;
+    }
+
+    /**
+     * @return path of the file to OCR: the pre-processed image if any, otherwise the stored file
+     */
+    @JsonIgnore
+    public String getOcrFilePath() {
+        return ocrFilePath != null ? ocrFilePath : filePath;
+    }
+
+    public void setOcrFilePath(String ocrFilePath) {
+        this.ocrFilePath = ocrFilePath;
+    }
+
+    public boolean isLlmTextFirst() {
+        return llmTextFirst;
+    }
+
+    public void setLlmTextFirst(boolean llmTextFirst) {
+        this.llmTextFirst = llmTextFirst;
+    }
 
-    private String calculateHash(byte[] fileContent) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] encodedHash = digest.digest(fileContent);
-            return bytesToHex(encodedHash);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Failed to calculate hash", e);
-        }
+    public List<Integer> getOcrPages() {
+        return ocrPages;
     }
 
-    private String bytesToHex(byte[] hash) {
-        StringBuilder hexString = new StringBuilder(2 * hash.length);
-        for (byte b : hash) {
-            String hex = Integer.toHexString(0xff & b);
-            if (hex.length() == 1) {
-                hexString.append('0');
-            }
-            hexString.append(hex);
-        }
-        return hexString.toString();
+    public void setOcrPages(List<Integer> ocrPages) {
+        this.ocrPages = ocrPages;
     }
 
 
@@ -115,6 +194,7 @@ public class FileProcessing {
                 ", fileSize=" + fileSize +
                 ", fileName='" + fileName + '\'' +
                 ", contentType='" + contentType + '\'' +
+                ", filePath='" + filePath + '\'' +
                 ", appId='" + appId + '\'' +
                 ", status=" + status +
                 ", message='" + message + '\'' +
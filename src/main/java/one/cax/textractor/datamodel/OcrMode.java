@@ -0,0 +1,13 @@
+package one.cax.textractor.datamodel;
+
+/**
+ * Trade-off between OCR speed and accuracy, chosen per application.
+ */
+public enum OcrMode {
+    /** Speed profile only */
+    FAST,
+    /** Accuracy profile only */
+    ACCURATE,
+    /** Speed profile, then accuracy profile for the pages recognized with low confidence */
+    ADAPTIVE
+}
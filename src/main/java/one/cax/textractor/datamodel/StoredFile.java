@@ -0,0 +1,40 @@
+package one.cax.textractor.datamodel;
+
+/**
+ * Reference to a file persisted in the filestore.
+ * Carries the SHA-256 hash and the size computed while the file was written,
+ * so callers never need to hold or re-read the content to know them.
+ */
+public class StoredFile {
+
+    private final String filePath;
+    private final String fileHash;
+    private final long fileSize;
+
+    public StoredFile(String filePath, String fileHash, long fileSize) {
+        this.filePath = filePath;
+        this.fileHash = fileHash;
+        this.fileSize = fileSize;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public String toString() {
+        return "StoredFile{" +
+                "filePath='" + filePath + '\'' +
+                ", fileHash='" + fileHash + '\'' +
+                ", fileSize=" + fileSize +
+                '}';
+    }
+}
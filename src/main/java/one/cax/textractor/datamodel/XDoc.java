@@ -1,6 +1,7 @@
 package one.cax.textractor.datamodel;
 
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
@@ -13,6 +14,7 @@ import org.json.JSONObject;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TreeMap;
 import java.util.UUID;
 
 import java.util.concurrent.atomic.AtomicReference;
@@ -21,6 +23,7 @@ import java.util.concurrent.atomic.AtomicReference;
 @Getter
 @ToString
 @EqualsAndHashCode
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class XDoc {
 
 
@@ -78,6 +81,25 @@ public class XDoc {
         this.pages.set(pagesList != null ? new ArrayList<>(pagesList) : new ArrayList<>());
     }
 
+    /**
+     * Merge pages into the document, keeping page order.
+     * A merged page replaces the page with the same number.
+     *
+     * @param pagesList pages to merge
+     */
+    public void mergePages(List<XPage> pagesList) {
+        var byNumber = new TreeMap<Integer, XPage>();
+        for (XPage page : this.pages.get()) {
+            byNumber.put(page.getPageNumber(), page);
+        }
+        if (pagesList != null) {
+            for (XPage page : pagesList) {
+                byNumber.put(page.getPageNumber(), page);
+            }
+        }
+        this.pages.set(new ArrayList<>(byNumber.values()));
+    }
+
     /**
      * returns the number of pages in the document.
      *
@@ -21,6 +21,7 @@ import java.util.List;
  * - pageNumber: The number of the page within the document
  * - text: The textual content of the page
  * - vector: A float array representing the vector embedding of the page content (optional)
+ * - confidence: The mean character confidence of the OCR, 0 to 100 (optional, only for OCRed pages)
  */
 @Getter
 @Setter
@@ -35,6 +36,8 @@ public class XPage {
 
     private float[] vector;
 
+    private Double confidence;
+
     /**
      * @param pagJsonObject - JSON object of a page
      * @return XPage object
@@ -53,6 +56,9 @@ public class XPage {
                 }
                 xPage.setVector(vector);
             }
+            if (pagJsonObject.has(NameUtils.PAGE_CONFIDENCE)) {
+                xPage.setConfidence(pagJsonObject.getDouble(NameUtils.PAGE_CONFIDENCE));
+            }
 
         } catch (JSONException e) {
             throw new JSONException("Error parsing JSON string: " + e.getMessage());
@@ -94,6 +100,9 @@ public class XPage {
                 }
                 json.put(NameUtils.PAGE_VECTOR, vectorArray);
             }
+            if (this.confidence != null) {
+                json.put(NameUtils.PAGE_CONFIDENCE, this.confidence.doubleValue());
+            }
 
             return json;
         } catch (JSONException e) {
@@ -1,6 +1,8 @@
 package one.cax.textractor.db;
 
 import jakarta.persistence.*;
+import one.cax.textractor.datamodel.OcrMode;
+
 import java.util.UUID;
 
 @Entity
@@ -17,6 +19,11 @@ public class AppProfile {
     @Column(name = "profile_description")
     private String profileDescription;
 
+    /** OCR speed/accuracy trade-off of the application; null for the default */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "ocr_mode")
+    private OcrMode ocrMode;
+
     public UUID getId() {
         return id;
     }
@@ -41,6 +48,14 @@ public class AppProfile {
         this.profileDescription = profileDescription;
     }
 
+    public OcrMode getOcrMode() {
+        return ocrMode;
+    }
+
+    public void setOcrMode(OcrMode ocrMode) {
+        this.ocrMode = ocrMode;
+    }
+
     public String getAppId() {
         return id.toString().replace("-", "").substring(0, 6);
     }
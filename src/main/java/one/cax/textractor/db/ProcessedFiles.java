@@ -38,6 +38,10 @@ public class ProcessedFiles {
     @Column(name = "processing_status", nullable = false)
     private String processingStatus;
 
+    /** Why the processing failed, when the status is FAILED */
+    @Column(name = "failure_reason", length = 1000)
+    private String failureReason;
+
     @Column(name = "created_at", nullable = false)
     private LocalDateTime createdAt;
 
@@ -49,6 +53,10 @@ public class ProcessedFiles {
     @Column(name = "llm_content", columnDefinition = "jsonb")
     private XDoc llmContent;
 
+    /** Pages of the LLM content, saved as the LLM extracts them */
+    @Column(name = "llm_pages")
+    private Integer llmPages;
+
 
     /**
      * Default constructor
@@ -125,6 +133,14 @@ public class ProcessedFiles {
         this.processingStatus = processingStatus;
     }
 
+    public String getFailureReason() {
+        return failureReason;
+    }
+
+    public void setFailureReason(String failureReason) {
+        this.failureReason = failureReason;
+    }
+
     public LocalDateTime getCreatedAt() {
         return createdAt;
     }
@@ -148,4 +164,12 @@ public class ProcessedFiles {
     public void setLlmContent(XDoc llmContent) {
         this.llmContent = llmContent;
     }
+
+    public Integer getLlmPages() {
+        return llmPages;
+    }
+
+    public void setLlmPages(Integer llmPages) {
+        this.llmPages = llmPages;
+    }
 }
@@ -1,14 +1,22 @@
 package one.cax.textractor.db;
 
+import one.cax.textractor.datamodel.XDoc;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
 /**
- * Repository for accessing processed files in the database
+ * Repository for accessing processed files in the database.
+ * The stages of a file write their own columns only, with the update queries: the OCR and
+ * the LLM of a file run concurrently, and saving the whole row would overwrite the column
+ * of the other stage with what it was when read.
  */
 @Repository
 public interface ProcessedFilesRepository extends JpaRepository<ProcessedFiles, UUID> {
@@ -26,4 +34,52 @@ public interface ProcessedFilesRepository extends JpaRepository<ProcessedFiles,
      * @return all processed files for the app
      */
     List<ProcessedFiles> findByAppId(UUID appId);
+
+    /**
+     * Set the processing status of a file
+     * @param fileId the ID of the file
+     * @param status the status to set
+     * @return number of files updated
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE ProcessedFiles f SET f.processingStatus = :status WHERE f.fileId = :fileId")
+    int updateProcessingStatus(@Param("fileId") UUID fileId, @Param("status") String status);
+
+    /**
+     * Set the processing status of a file, with the reason of a failure
+     * @param fileId the ID of the file
+     * @param status the status to set
+     * @param failureReason why the processing failed
+     * @return number of files updated
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE ProcessedFiles f SET f.processingStatus = :status, f.failureReason = :failureReason WHERE f.fileId = :fileId")
+    int updateFailure(@Param("fileId") UUID fileId, @Param("status") String status,
+                      @Param("failureReason") String failureReason);
+
+    /**
+     * Set the OCR content of a file
+     * @param fileId the ID of the file
+     * @param ocrContent the OCR content to set
+     * @return number of files updated
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE ProcessedFiles f SET f.ocrContent = :ocrContent WHERE f.fileId = :fileId")
+    int updateOcrContent(@Param("fileId") UUID fileId, @Param("ocrContent") XDoc ocrContent);
+
+    /**
+     * Set the LLM content of a file, with its number of pages
+     * @param fileId the ID of the file
+     * @param llmContent the LLM content to set
+     * @param llmPages the number of pages of the LLM content
+     * @return number of files updated
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE ProcessedFiles f SET f.llmContent = :llmContent, f.llmPages = :llmPages WHERE f.fileId = :fileId")
+    int updateLlmContent(@Param("fileId") UUID fileId, @Param("llmContent") XDoc llmContent,
+                         @Param("llmPages") int llmPages);
 }
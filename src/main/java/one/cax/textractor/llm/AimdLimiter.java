@@ -0,0 +1,124 @@
+package one.cax.textractor.llm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrency limit of the LLM requests, adjusted by additive increase and multiplicative
+ * decrease (AIMD).
+ * <p>
+ * The provider does not tell how many requests it takes at a time: it answers 429, or
+ * slows down until requests time out. Each request completed within the latency target
+ * while the limit is in use raises the limit by 1/limit, about one more request per round
+ * trip of the whole window; a request throttled or timed out cuts it by the backoff
+ * ratio, once per window: the requests sent before the last cut were sent under the higher
+ * limit, and their drops are the same overload, already answered. The limit stays between
+ * its minimum and maximum.
+ */
+public class AimdLimiter {
+
+    /** How a request ended, for the limit */
+    public enum Outcome {
+        /** Completed: the limit may grow if the latency was healthy */
+        SUCCESS,
+        /** Throttled (429) or timed out: the limit backs off */
+        DROPPED,
+        /** Failed for another reason, which says nothing of the provider load */
+        IGNORED
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long latencyTargetMillis;
+    private double limit;
+    private int inFlight;
+    /** Whether the limit was ever cut, and when, from {@link System#nanoTime()} */
+    private boolean decreased;
+    private long lastDecreaseNanos;
+
+    /**
+     * @param initialLimit Limit to start with
+     * @param minLimit Lowest limit
+     * @param maxLimit Highest limit
+     * @param backoffRatio Factor applied to the limit on a dropped request, between 0 and 1
+     * @param latencyTargetMillis Latency up to which a completed request raises the limit
+     */
+    public AimdLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long latencyTargetMillis) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits: " + minLimit + " to " + maxLimit);
+        }
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("Backoff ratio must be between 0 and 1: " + backoffRatio);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyTargetMillis = latencyTargetMillis;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Wait until a request can be sent under the limit.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Take a request slot if one is free under the limit.
+     * @return true if the request can be sent
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Give back the slot of a request, and adjust the limit to how it ended. A request
+     * dropped that was sent before the last cut of the limit does not cut it again.
+     * @param outcome How the request ended
+     * @param latencyMillis Time the request took, since it was sent
+     */
+    public synchronized void release(Outcome outcome, long latencyMillis) {
+        // only probe upward while the limit is in use: an idle window proves nothing
+        boolean saturated = inFlight >= (int) limit;
+        inFlight--;
+        if (outcome == Outcome.DROPPED) {
+            long now = System.nanoTime();
+            long sentAt = now - TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+            if (!decreased || sentAt - lastDecreaseNanos >= 0) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                decreased = true;
+                lastDecreaseNanos = now;
+            }
+        } else if (outcome == Outcome.SUCCESS && saturated && latencyMillis <= latencyTargetMillis) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return number of requests that can be in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return number of requests in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+}
@@ -0,0 +1,26 @@
+package one.cax.textractor.llm;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+/**
+ * Concurrency of the LLM requests: the requests in flight against the limit adapted to the
+ * provider.
+ */
+@Component
+public class LlmConcurrencyMetrics {
+
+    /**
+     * @param openAIService LLM service of this node
+     * @param meterRegistry The meter registry to register metrics with
+     */
+    public LlmConcurrencyMetrics(OpenAIService openAIService, MeterRegistry meterRegistry) {
+        Gauge.builder("llmRequestsInFlight", openAIService, OpenAIService::getInFlight)
+                .description("Number of LLM requests sent and not yet answered")
+                .register(meterRegistry);
+        Gauge.builder("llmConcurrencyLimit", openAIService, OpenAIService::getConcurrencyLimit)
+                .description("Number of LLM requests allowed in flight, adapted to throttling and timeouts")
+                .register(meterRegistry);
+    }
+}
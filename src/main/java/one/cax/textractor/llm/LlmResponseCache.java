@@ -0,0 +1,213 @@
+package one.cax.textractor.llm;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import one.cax.textractor.datamodel.XDoc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the documents extracted by the LLM, keyed by the content of the file, the model
+ * and the version of the prompt, so that a re-uploaded file does not pay for the LLM again.
+ * <p>
+ * Two tiers: a least recently used map in this node, bounded by the size of the cached
+ * JSON, in front of Redis, shared by the nodes. Both expire entries after the time to
+ * live. A Redis failure is a miss, never an error.
+ */
+@Service
+public class LlmResponseCache {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String KEY_PREFIX = "textractor:llm:";
+
+    @Value("${textractor.llm.cache.enabled:true}")
+    private boolean enabled = true;
+
+    /** Size of the JSON held in memory, in MB; 0 for no in-process tier */
+    @Value("${textractor.llm.cache.memory-mb:64}")
+    private int memoryMb = 64;
+
+    @Value("${textractor.llm.cache.ttl-hours:168}")
+    private long ttlHours = 168;
+
+    @Value("${textractor.llm.cache.redis-enabled:true}")
+    private boolean redisEnabled = true;
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final ObjectMapper objectMapper;
+
+    /** In-process tier, in access order */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Characters of JSON held by the in-process tier */
+    private long memoryChars;
+
+    private final Counter memoryHits;
+    private final Counter redisHits;
+    private final Counter misses;
+
+    /**
+     * @param redisTemplate Redis template of the shared tier
+     * @param objectMapper Serializes the cached documents
+     * @param meterRegistry The meter registry to register metrics with
+     */
+    public LlmResponseCache(StringRedisTemplate redisTemplate, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.objectMapper = objectMapper;
+        this.memoryHits = Counter.builder("llmCache")
+                .tag("result", "hit").tag("tier", "memory")
+                .description("Number of LLM extractions found in the cache")
+                .register(meterRegistry);
+        this.redisHits = Counter.builder("llmCache")
+                .tag("result", "hit").tag("tier", "redis")
+                .description("Number of LLM extractions found in the cache")
+                .register(meterRegistry);
+        this.misses = Counter.builder("llmCache")
+                .tag("result", "miss").tag("tier", "none")
+                .description("Number of LLM extractions not found in the cache")
+                .register(meterRegistry);
+        Gauge.builder("llmCacheMemory", this, LlmResponseCache::getMemoryBytes)
+                .baseUnit("bytes")
+                .description("Size of the LLM extractions cached in this node")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the cache key of a file content, model and prompt version
+     */
+    static String key(String fileHash, String model, String promptVersion) {
+        return KEY_PREFIX + fileHash + ":" + model + ":" + promptVersion;
+    }
+
+    /**
+     * Find the document extracted from the same content, with the same model and prompt.
+     * @param key Cache key, from {@link #key}
+     * @return A copy of the cached document, or null on a miss
+     */
+    public XDoc get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        String json = getFromMemory(key);
+        XDoc xDoc = json != null ? read(key, json) : null;
+        if (xDoc != null) {
+            memoryHits.increment();
+            return xDoc;
+        }
+        if (redisEnabled) {
+            try {
+                json = redisTemplate.opsForValue().get(key);
+            } catch (DataAccessException e) {
+                logger.warn("Cannot read the LLM cache: {}", e.getMessage());
+                json = null;
+            }
+            xDoc = json != null ? read(key, json) : null;
+            if (xDoc != null) {
+                redisHits.increment();
+                putInMemory(key, json);
+                return xDoc;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Cache an extracted document in both tiers.
+     * @param key Cache key, from {@link #key}
+     * @param xDoc The document extracted by the LLM
+     */
+    public void put(String key, XDoc xDoc) {
+        if (!enabled) {
+            return;
+        }
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(xDoc);
+        } catch (JsonProcessingException e) {
+            logger.warn("Cannot cache the LLM extraction {}: {}", key, e.getMessage());
+            return;
+        }
+        putInMemory(key, json);
+        if (redisEnabled) {
+            try {
+                redisTemplate.opsForValue().set(key, json, Duration.ofHours(ttlHours));
+            } catch (DataAccessException e) {
+                logger.warn("Cannot write the LLM cache: {}", e.getMessage());
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return size of the JSON cached in this node, in bytes
+     */
+    public synchronized long getMemoryBytes() {
+        return memoryChars * Character.BYTES;
+    }
+
+    private synchronized String getFromMemory(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt() <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        return entry.json();
+    }
+
+    private synchronized void putInMemory(String key, String json) {
+        long maxChars = memoryMb * 1024L * 1024L / Character.BYTES;
+        if (json.length() > maxChars) {
+            // larger than the whole tier
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(json, System.currentTimeMillis() + Duration.ofHours(ttlHours).toMillis()));
+        memoryChars += json.length();
+        // evict the least recently used entries
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (memoryChars > maxChars && eldest.hasNext()) {
+            memoryChars -= eldest.next().getValue().json().length();
+            eldest.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            memoryChars -= removed.json().length();
+        }
+    }
+
+    private XDoc read(String key, String json) {
+        try {
+            return objectMapper.readValue(json, XDoc.class);
+        } catch (JsonProcessingException e) {
+            logger.warn("Cannot read the cached LLM extraction {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    private record Entry(String json, long expiresAt) {
+    }
+}
@@ -1,9 +1,11 @@
 package one.cax.textractor.llm;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.annotation.PreDestroy;
+import one.cax.textractor.datamodel.DocumentFormat;
 import one.cax.textractor.datamodel.FileProcessing;
+import one.cax.textractor.datamodel.OcrMode;
 import one.cax.textractor.datamodel.XDoc;
+import one.cax.textractor.datamodel.XPage;
 import one.cax.textractor.db.ProcessedFiles;
 
 import org.springframework.ai.chat.messages.UserMessage;
@@ -14,28 +16,44 @@ import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.ai.model.Media;
 import org.springframework.ai.openai.OpenAiChatOptions;
 import org.springframework.ai.openai.api.OpenAiApi;
+import org.springframework.ai.retry.NonTransientAiException;
+import org.springframework.ai.retry.TransientAiException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.listener.RedisMessageListenerContainer;
-import org.springframework.data.redis.listener.adapter.MessageListenerAdapter;
-import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.http.HttpStatusCode;
 import org.springframework.stereotype.Service;
 
+import one.cax.textractor.messaging.RedisStreamWorkQueue;
 import one.cax.textractor.service.ProcessedFilesService;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.MimeType;
 import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.client.RestClientResponseException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 /**
  * Service for extracting text from documents using LLMs technology
@@ -52,16 +70,25 @@ public class OpenAIService {
     
     private final ChatModel chatModel;
     private final ProcessedFilesService processedFilesService;
-    private final RedisMessageListenerContainer container;
-    private MessageListenerAdapter listenerAdapter;
-    private final RedisTemplate<String, FileProcessing> redisTemplate;
+    private final RedisStreamWorkQueue workQueue;
     private volatile boolean running = true;
 
     private ExecutorService executorService;
-    private final BlockingQueue<FileProcessing> requestQueue;
+    /** Parses and saves the streamed responses, off the HTTP client threads */
+    private Scheduler responseScheduler;
+    /** Chunks waiting for room under the concurrency limit, retries included */
+    private final BlockingQueue<Chunk> requestQueue;
+    /** Completion of each queued request, keyed by file id */
+    private final Map<UUID, CompletableFuture<Void>> completions = new ConcurrentHashMap<>();
+
+    /**
+     * Version of the prompts, part of the cache key: change it whenever they change, and whenever
+     * textractor.llm.chunk-pages or textractor.llm.render-dpi change, as they change what the model is sent
+     */
+    static final String PROMPT_VERSION = "1";
 
     @Value("${openai.model:gpt-4o}")
-    private String model;
+    private String model = OpenAiApi.ChatModel.GPT_4_O.getValue();
     
     @Value("${openai.temperature:0.1}")
     private double temperature;
@@ -71,51 +98,119 @@ public class OpenAIService {
 
     @Value("${textractor.redis.llm.topic:llm-processing-topic}")
     private String llmTopic;
+
+    /** Requests in flight to start with, before the limit adapts to the provider */
+    @Value("${textractor.llm.concurrency.initial:4}")
+    private int initialConcurrency = 4;
+
+    @Value("${textractor.llm.concurrency.min:1}")
+    private int minConcurrency = 1;
+
+    /** Highest limit, also the number of requests this node takes from the LLM stream */
+    @Value("${textractor.llm.concurrency.max:64}")
+    private int maxConcurrency = 64;
+
+    /** Factor applied to the limit when a request is throttled or times out */
+    @Value("${textractor.llm.concurrency.backoff:0.5}")
+    private double concurrencyBackoff = 0.5;
+
+    /** Latency up to which completed requests raise the limit */
+    @Value("${textractor.llm.concurrency.latency-target-ms:60000}")
+    private long latencyTargetMillis = 60_000;
+
+    /** Time allowed to an LLM request before its first token, and between tokens, past which it counts as dropped */
+    @Value("${textractor.llm.timeout-ms:120000}")
+    private long timeoutMillis = 120_000;
+
+    /** Pages of a PDF sent in one request; 0 to send every file whole */
+    @Value("${textractor.llm.chunk-pages:5}")
+    private int chunkPages = 5;
+
+    /** Times a failed chunk is sent again before its document fails */
+    @Value("${textractor.llm.chunk-retries:2}")
+    private int chunkRetries = 2;
+
+    /** Wait before a failed chunk is sent again, doubled at each retry, and again when it was throttled or timed out */
+    @Value("${textractor.llm.retry-delay-ms:1000}")
+    private long retryDelayMillis = 1000;
+
+    /** Shortest time between two saves of the pages of a file as they stream in; each save writes all of them */
+    @Value("${textractor.llm.save-interval-ms:1000}")
+    private long saveIntervalMillis = 1000;
+
+    /** Resolution of the page images of the chunks */
+    @Value("${textractor.llm.render-dpi:150}")
+    private float renderDpi = 150;
+
+    /** Mean OCR confidence, 0 to 100, below which a page of a text-first file is sent as an image */
+    @Value("${textractor.llm.input.min-confidence:80}")
+    private double textMinConfidence = 80;
+
+    /** OCR mode of the files whose application did not choose one, which the text of a text-first file comes from */
+    @Value("${textractor.ocr.profile.default-mode:ACCURATE}")
+    private OcrMode defaultOcrMode = OcrMode.ACCURATE;
+
+    /** Documents already extracted, by content, model and prompt; null if not available */
+    private LlmResponseCache responseCache;
+
+    /** Limits the requests in flight to the provider; null until initialized */
+    private volatile AimdLimiter limiter;
     
     @Autowired
-    public OpenAIService(@Autowired ChatModel chatModel, RedisMessageListenerContainer container,
-                         RedisTemplate<String, FileProcessing> redisTemplate,
+    public OpenAIService(@Autowired ChatModel chatModel, @Autowired RedisStreamWorkQueue workQueue,
                          @Autowired ProcessedFilesService processedFilesService) {
         this.chatModel = chatModel;
         this.processedFilesService = processedFilesService;
-        this.container = container;
-        this.redisTemplate = redisTemplate;
+        this.workQueue = workQueue;
         this.requestQueue = new LinkedBlockingQueue<>();
     }
 
+    /**
+     * Set the cache of the documents already extracted
+     * @param responseCache The LLM response cache
+     */
+    @Autowired
+    public void setResponseCache(LlmResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
     public void initialize() {
 
         int cores = Runtime.getRuntime().availableProcessors();
         logger.info("Using {} cores", cores);
+        // parses and saves the responses; the requests themselves hold no thread while in flight
         executorService = Executors.newFixedThreadPool(cores);
+        responseScheduler = Schedulers.fromExecutorService(executorService);
+        limiter = new AimdLimiter(initialConcurrency, minConcurrency, maxConcurrency, concurrencyBackoff,
+                latencyTargetMillis);
+        logger.info("LLM concurrency limit {} ({} to {})", limiter.getLimit(), minConcurrency, maxConcurrency);
 
-
-        listenerAdapter = new MessageListenerAdapter(this, "handleMessage");
-        ObjectMapper objectMapper = new ObjectMapper();
-        Jackson2JsonRedisSerializer<FileProcessing> serializer = new Jackson2JsonRedisSerializer<>(objectMapper, FileProcessing.class);
-        listenerAdapter.setSerializer(serializer);
-        container.addMessageListener(listenerAdapter, new org.springframework.data.redis.listener.ChannelTopic(llmTopic));
-        logger.info("Subscribed to Redis topic: {}", llmTopic);
+        workQueue.subscribe(llmTopic, this::handleMessage, maxConcurrency);
+        logger.info("Subscribed to Redis stream: {}", llmTopic);
         
         // Start the task processor thread
         startTaskProcessor();
     }
 
     /**
-     *
-     * @param fileProcessing
-     * @return
+     * Handle an LLM request taken from the stream.
+     * @param fileProcessing The file processing request
+     * @return future completed once the file has been processed
      */
-    public void handleMessage(FileProcessing fileProcessing) {
+    public CompletableFuture<Void> handleMessage(FileProcessing fileProcessing) {
         try {
 
             UUID fileId = fileProcessing.getFileId();
-            requestQueue.offer(fileProcessing);
+            CompletableFuture<Void> completion = new CompletableFuture<>();
+            completions.put(fileId, completion);
+            // the page count is read on the executor, not on the stream consumer
+            executorService.execute(() -> split(fileProcessing));
             logger.info("Message received for file: {}", fileId);
+            return completion;
 
         } catch (Exception e) {
             logger.error("Error extracting information from document: {}", e.getMessage(), e);
-
+            return CompletableFuture.failedFuture(e);
         }
     }
 
@@ -123,8 +218,10 @@ public class OpenAIService {
         Thread processorThread = new Thread(() -> {
             while (running) {
                 try {
-                    FileProcessing task = requestQueue.take(); // This will block if the queue is empty
-                    processFileTask(task);
+                    Chunk chunk = requestQueue.take(); // This will block if the queue is empty
+                    // wait for room under the concurrency limit
+                    limiter.acquire();
+                    processChunk(chunk);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -138,78 +235,473 @@ public class OpenAIService {
         logger.info("LLM Task processor started");
     }
 
-    private void processFileTask(FileProcessing fileProcessing) {
-        executorService.submit(() -> {
+    /**
+     * Queue the requests of a file: one per chunk of pages for a PDF longer than a chunk,
+     * otherwise one for the whole file. A text-first file is always sent in chunks of pages,
+     * with its saved text.
+     */
+    private void split(FileProcessing fileProcessing) {
+        if (completeFromCache(fileProcessing)) {
+            return;
+        }
+        XDoc text = fileProcessing.isLlmTextFirst() ? savedText(fileProcessing) : null;
+        int pageCount = 0;
+        if (chunkPages > 0 && fileProcessing.getDocumentFormat() == DocumentFormat.PDF) {
+            try {
+                pageCount = PdfPages.count(Path.of(fileProcessing.getFilePath()));
+            } catch (Exception e) {
+                // the model may still read it
+                logger.warn("Cannot count the pages of file {}: {}", fileProcessing.getFileHash(), e.getMessage());
+            }
+        }
+        if (text == null && pageCount <= chunkPages) {
+            LlmJob job = new LlmJob(fileProcessing, 1, null);
+            requestQueue.offer(new Chunk(job, 0, 0, 0, 0));
+            return;
+        }
+        if (text != null && pageCount == 0) {
+            // not a PDF, or unreadable as one: the pages the text was read from
+            for (XPage page : text.getPages()) {
+                pageCount = Math.max(pageCount, page.getPageNumber());
+            }
+            pageCount = Math.max(1, pageCount);
+        }
+        int pagesPerChunk = chunkPages > 0 ? chunkPages : pageCount;
+        LlmJob job = new LlmJob(fileProcessing, (pageCount + pagesPerChunk - 1) / pagesPerChunk, text);
+        for (int i = 0; i < job.chunkResults.length; i++) {
+            requestQueue.offer(new Chunk(job, i, i * pagesPerChunk + 1, Math.min(pageCount, (i + 1) * pagesPerChunk), 0));
+        }
+        logger.info("Split file {} into {} chunks of up to {} pages{}", fileProcessing.getFileHash(),
+                job.chunkResults.length, pagesPerChunk, text != null ? ", sent as text" : "");
+    }
+
+    /**
+     * @return the OCR or text layer text saved for a text-first file, null if there is none
+     * and the model must read the file itself
+     */
+    private XDoc savedText(FileProcessing fileProcessing) {
+        try {
+            XDoc text = processedFilesService.findById(fileProcessing.getFileId().toString())
+                    .map(ProcessedFiles::getOcrContent)
+                    .orElse(null);
+            if (text != null && !text.getPages().isEmpty()) {
+                return text;
+            }
+            logger.warn("No text saved for file {}, sending the file itself", fileProcessing.getFileHash());
+        } catch (Exception e) {
+            logger.warn("Cannot read the text of file {}, sending the file itself: {}", fileProcessing.getFileHash(),
+                    e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Send a chunk to the LLM, without blocking a thread while it is in flight. The caller
+     * holds a limiter slot, released once the response is received.
+     */
+    private void processChunk(Chunk chunk) {
+        // the page images are rendered on the executor
+        CompletableFuture.supplyAsync(() -> prompt(chunk), executorService)
+                .handle((prompt, error) -> {
+                    if (error != null) {
+                        limiter.release(AimdLimiter.Outcome.IGNORED, 0);
+                        return CompletableFuture.<List<XPage>>failedFuture(error);
+                    }
+                    return call(prompt, chunk);
+                })
+                .thenCompose(response -> response)
+                .whenCompleteAsync((pages, error) -> finishChunk(chunk, pages, error), executorService);
+    }
+
+    /**
+     * Stream the response of a prompt, parsing and saving each page as soon as the model
+     * closes it, and release its limiter slot with how it ended.
+     * @return future of the pages of the response, failed if it is not the expected JSON
+     * or misses pages of the chunk
+     */
+    private CompletableFuture<List<XPage>> call(Prompt prompt, Chunk chunk) {
+        long start = System.currentTimeMillis();
+        List<XPage> pages = new ArrayList<>();
+        StreamingPageParser parser = new StreamingPageParser(page -> savePage(chunk, page, pages));
+        CompletableFuture<List<XPage>> response;
+        try {
+            response = chatModel.stream(prompt)
+                    .timeout(Duration.ofMillis(timeoutMillis))
+                    .publishOn(responseScheduler)
+                    .mapNotNull(OpenAIService::text)
+                    .doOnNext(parser::feed)
+                    .then(Mono.fromCallable(() -> {
+                        parser.end();
+                        if (!chunk.isWholeFile() && pages.size() < chunk.lastPage() - chunk.firstPage() + 1) {
+                            throw new IllegalStateException("Response has " + pages.size() + " pages, expected pages "
+                                    + chunk.describe());
+                        }
+                        return pages;
+                    }))
+                    .toFuture();
+        } catch (Exception e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.whenComplete((result, error) -> {
+            AimdLimiter.Outcome outcome = error == null ? AimdLimiter.Outcome.SUCCESS : outcome(error);
+            limiter.release(outcome, System.currentTimeMillis() - start);
+            if (outcome == AimdLimiter.Outcome.DROPPED) {
+                logger.warn("LLM request dropped ({}), concurrency limit now {}", error.getMessage(),
+                        limiter.getLimit());
+            }
+        });
+    }
+
+    /**
+     * Save the pages of a chunk not saved yet, and record them, or send the chunk again
+     * after a delay if it failed and has retries left, so that a throttled provider is not
+     * sent the same load at once. Whoever finishes the last chunk completes the document.
+     */
+    private void finishChunk(Chunk chunk, List<XPage> pages, Throwable error) {
+        LlmJob job = chunk.job();
+        try {
+            // the pages of the chunk not saved yet, even those of a failed attempt
+            saveProgress(job, true);
+        } catch (Exception e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            if (chunk.attempt() < chunkRetries && running) {
+                long delay = retryDelayMillis << chunk.attempt();
+                if (outcome(error) == AimdLimiter.Outcome.DROPPED) {
+                    delay *= 2;
+                }
+                logger.warn("Retrying pages {} of file {} in {} ms: {}", chunk.describe(),
+                        job.fileProcessing.getFileHash(), delay, error.getMessage());
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executorService)
+                        .execute(() -> requestQueue.offer(chunk.retry()));
+                return;
+            }
+            logger.error("Error processing pages {} of file {}: {}", chunk.describe(),
+                    job.fileProcessing.getFileHash(), error.getMessage(), error);
+            job.failures.add("Pages " + chunk.describe() + ": LLM failed: " + error.getMessage());
+        } else {
+            job.chunkResults[chunk.index()] = pages;
+        }
+        // the decrement publishes the chunk result to the thread that sees the last one
+        if (job.remainingChunks.decrementAndGet() == 0) {
+            completeJob(job);
+        }
+    }
+
+    /**
+     * Cache the pages of the chunks, in page order, once they are all saved, or mark the
+     * file FAILED with the pages that failed.
+     */
+    private void completeJob(LlmJob job) {
+        try {
+            if (!job.failures.isEmpty()) {
+                String reason = String.join("; ", job.failures);
+                logger.error("Error processing file: {}, {}", job.fileProcessing.getFileHash(), reason);
+                processedFilesService.markFailed(job.fileProcessing.getFileId().toString(), reason);
+                return;
+            }
+            List<XPage> xPages = new ArrayList<>();
+            for (List<XPage> pages : job.chunkResults) {
+                xPages.addAll(pages);
+            }
+            logger.info("Extracted {} pages of file {}", xPages.size(), job.fileProcessing.getFileHash());
+            if (responseCache != null && job.fileProcessing.getFileHash() != null) {
+                XDoc extracted = new XDoc();
+                extracted.setPages(xPages);
+                responseCache.put(cacheKey(job.fileProcessing), extracted);
+            }
+        } catch (Exception e) {
+            logger.error("Error processing file: {}", e.getMessage(), e);
+        } finally {
+            completeRequest(job.fileProcessing);
+        }
+    }
+
+    /**
+     * Save the document extracted before from the same content, model and prompt, if any,
+     * instead of calling the LLM.
+     * @return true if the file was found in the cache and is done
+     */
+    private boolean completeFromCache(FileProcessing fileProcessing) {
+        if (responseCache == null || !responseCache.isEnabled() || fileProcessing.getFileHash() == null) {
+            return false;
+        }
+        XDoc cached = responseCache.get(cacheKey(fileProcessing));
+        if (cached == null) {
+            return false;
+        }
+        logger.info("File {} found in the LLM cache", fileProcessing.getFileHash());
+        try {
+            saveResult(fileProcessing, cached.getPages());
+        } catch (Exception e) {
+            logger.error("Error processing file: {}", e.getMessage(), e);
+        } finally {
+            completeRequest(fileProcessing);
+        }
+        return true;
+    }
+
+    /**
+     * Complete the request of a file, so that its stream entry is acknowledged.
+     */
+    private void completeRequest(FileProcessing fileProcessing) {
+        CompletableFuture<Void> completion = completions.remove(fileProcessing.getFileId());
+        if (completion != null) {
+            completion.complete(null);
+        }
+    }
+
+    private String cacheKey(FileProcessing fileProcessing) {
+        if (!fileProcessing.isLlmTextFirst()) {
+            return LlmResponseCache.key(fileProcessing.getFileHash(), model, PROMPT_VERSION);
+        }
+        // the text-first prompt is a different prompt, and it is sent the text of the OCR mode of the app
+        OcrMode ocrMode = fileProcessing.getOcrMode() != null ? fileProcessing.getOcrMode() : defaultOcrMode;
+        return LlmResponseCache.key(fileProcessing.getFileHash(), model, PROMPT_VERSION + "-text-" + ocrMode);
+    }
+
+    private Prompt prompt(Chunk chunk) {
+        FileProcessing fileProcessing = chunk.job().fileProcessing;
+        String format = "Return the result as a JSON object with the following structure: " +
+                "{ \"numberPages\": number-of-pages, \"pages\": [ " +
+                "{ \"page_number\": page-number-value, \"content\": \"text content of the page\" }, " +
+                "{ \"page_number\": page-number-value, \"content\": \"text content of the page\" }, ... ] }";
+        UserMessage userMessage;
+        if (chunk.job().text != null) {
+            userMessage = textMessage(chunk, format);
+        } else if (chunk.isWholeFile()) {
+            MimeType mimeType = MimeTypeUtils.parseMimeType(mimeType(fileProcessing));
+            // The message only carries the file reference, the content is read from the filestore
+            Resource resource = new FileSystemResource(fileProcessing.getFilePath());
+            userMessage = new UserMessage("Extract all text from this file. " + format, new Media(mimeType, resource));
+        } else {
+            List<byte[]> images;
             try {
-                UUID fileId = fileProcessing.getFileId();
-                String base64Image = Base64.getEncoder().encodeToString(fileProcessing.getFileContent());
-
-                // Create a message with image data
-                Map<String, Object> mediaContent = new HashMap<>();
-                mediaContent.put("type", "image_url");
-
-                Map<String, String> imageData = new HashMap<>();
-                imageData.put("url", "data:" + determineMimeType(fileProcessing.getContentType()) + ";base64," + base64Image);
-                mediaContent.put("image_url", imageData);
-
-                MimeType mimeType = MimeTypeUtils.parseMimeType(determineMimeType(fileProcessing.getContentType()));
-                Resource resource = new ByteArrayResource(Base64.getDecoder().decode(base64Image));
-                // Create a user message with the prompt text
-                UserMessage userMessage = new UserMessage(
-                        "Extract all text from this file. Return the result as a JSON object with the following structure: " +
-                                "{ \"numberPages\": number-of-pages, \"pages\": [ " +
-                                "{ \"page_number\": page-number-value, \"content\": \"text content of the page\" }, " +
-                                "{ \"page_number\": page-number-value, \"content\": \"text content of the page\" }, ... ] }",
-                        new Media(mimeType, resource));
-
-                ;
-                // Create options with the GPT-4 model
-                OpenAiChatOptions options = OpenAiChatOptions.builder()
-                        .model(OpenAiApi.ChatModel.GPT_4_O.getValue())
-                        .build();
-
-                // Create prompt with message and options
-                Prompt prompt = new Prompt(List.of(userMessage), options);
-
-                // Call the model
-                ChatResponse response = chatModel.call(prompt);
-
-                logger.info("Response: {}", response);
-                // Process the response
-                String returnedText = response.getResult().getOutput().getText();
-                ObjectMapper objectMapper = new ObjectMapper();
+                images = PdfPages.render(Path.of(fileProcessing.getFilePath()), chunk.firstPage(), chunk.lastPage(),
+                        renderDpi);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            List<Media> media = new ArrayList<>(images.size());
+            for (byte[] image : images) {
+                media.add(new Media(MimeTypeUtils.IMAGE_PNG, new ByteArrayResource(image)));
+            }
+            userMessage = new UserMessage("Extract all text from these images, pages " + chunk.describe() +
+                    " of a document, one image per page in order. Number the pages as in the document. " + format, media);
+        }
+
+        // Create options with the GPT-4 model
+        OpenAiChatOptions options = OpenAiChatOptions.builder()
+                .model(model)
+                .build();
+
+        // Create prompt with message and options
+        return new Prompt(List.of(userMessage), options);
+    }
+
+    /**
+     * Message of a chunk of a text-first file: the saved text of its pages, which costs far
+     * fewer tokens than their images, and the images of the pages whose text is missing or
+     * was recognized with low confidence.
+     */
+    private UserMessage textMessage(Chunk chunk, String format) {
+        FileProcessing fileProcessing = chunk.job().fileProcessing;
+        Map<Integer, XPage> textPages = new HashMap<>();
+        for (XPage page : chunk.job().text.getPages()) {
+            textPages.put(page.getPageNumber(), page);
+        }
+        StringBuilder pagesText = new StringBuilder();
+        List<Integer> imagePages = new ArrayList<>();
+        for (int pageNumber = chunk.firstPage(); pageNumber <= chunk.lastPage(); pageNumber++) {
+            XPage page = textPages.get(pageNumber);
+            pagesText.append("\n--- Page ").append(pageNumber).append(" ---\n");
+            // pages of the text layer have no confidence, and are trusted
+            if (page == null || page.getText() == null
+                    || page.getConfidence() != null && page.getConfidence() < textMinConfidence) {
+                imagePages.add(pageNumber);
+                pagesText.append("[image]\n");
+            } else {
+                pagesText.append(page.getText()).append('\n');
+            }
+        }
+        List<Media> media = new ArrayList<>();
+        String imageInstruction = "";
+        if (!imagePages.isEmpty()) {
+            if (fileProcessing.getDocumentFormat() == DocumentFormat.PDF) {
                 try {
-                    // Parse the returned JSON into an XDoc object
-                    XDoc xdoc = objectMapper.readValue(returnedText, XDoc.class);
-                    
-                    // Set the correct fileId from the original request
-                    // Note: We'll need to create a new XDoc with the correct fileId since fileId is final
-                    XDoc processedDoc = new XDoc();
-                    processedDoc.setId(fileId);
-
-                    // Convert to JSON for logging
-                    String processedJson = processedDoc.toJSON().toString();
-                    logger.info("Processed XDoc: {}", processedJson);
-                    ProcessedFiles processedFiles = new ProcessedFiles();
-                    processedFiles.setFileId(fileId);
-                    processedFiles.setLlmContent(processedDoc);
-                    processedFiles.setFileName(fileProcessing.getFileName());
-                    processedFiles.setFileSize(fileProcessing.getFileSize());
-                    processedFiles.setFileHash(fileProcessing.getFileHash());
-                    var filePath = processedFilesService.saveFile(fileProcessing.getFileContent());
-                    processedFiles.setFilePath(filePath);
-                    processedFiles.setAppId(UUID.fromString(fileProcessing.getAppId()));
-                
-                    processedFilesService.addProcessedFile(processedFiles); 
-                    
-                } catch (Exception e) {
-                    logger.error("Error parsing response to XDoc: {}", e.getMessage(), e);
+                    for (byte[] image : PdfPages.render(Path.of(fileProcessing.getFilePath()), imagePages, renderDpi)) {
+                        media.add(new Media(MimeTypeUtils.IMAGE_PNG, new ByteArrayResource(image)));
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
+                imageInstruction = "The text of the pages marked [image] is missing or unreliable: read them from " +
+                        "the attached images, one image per marked page in order. ";
+            } else {
+                media.add(new Media(MimeTypeUtils.parseMimeType(mimeType(fileProcessing)),
+                        new FileSystemResource(fileProcessing.getFilePath())));
+                imageInstruction = "The text of the pages marked [image] is missing or unreliable: read them from " +
+                        "the attached file. ";
             }
-            catch (Exception e) {
-                logger.error("Error processing file: {}", e.getMessage(), e);
+        }
+        logger.info("Sending pages {} of file {} as text, {} of them as images", chunk.describe(),
+                fileProcessing.getFileHash(), imagePages.size());
+        return new UserMessage("Structure the text of pages " + chunk.describe() + " of a document, read by OCR. " +
+                "Correct the recognition errors you are sure of, without adding content. " + imageInstruction +
+                "Number the pages as in the document. " + format + "\n" + pagesText, media);
+    }
+
+    /**
+     * @return text of a streamed response chunk, null if it carries none
+     */
+    private static String text(ChatResponse response) {
+        if (response == null || response.getResult() == null || response.getResult().getOutput() == null) {
+            return null;
+        }
+        return response.getResult().getOutput().getText();
+    }
+
+    /**
+     * Save a page as soon as it is parsed, so that it can be read before the rest of the
+     * document. The pages of a chunk keep the numbers of their range, in order, whatever
+     * numbers the model gave them; pages past the range are dropped.
+     */
+    private void savePage(Chunk chunk, XPage page, List<XPage> pages) {
+        if (!chunk.isWholeFile()) {
+            int pageNumber = chunk.firstPage() + pages.size();
+            if (pageNumber > chunk.lastPage()) {
+                return;
             }
-        });
+            page.setPageNumber(pageNumber);
+        }
+        pages.add(page);
+        LlmJob job = chunk.job();
+        // chunks of a file stream concurrently
+        synchronized (job) {
+            job.pages.put(page.getPageNumber(), page);
+            job.unsaved = true;
+        }
+        saveProgress(job, false);
+    }
+
+    /**
+     * Save the pages of a file extracted so far. Each save writes all of them, so pages
+     * streaming in are saved together at most once per save interval, unless forced.
+     */
+    private void saveProgress(LlmJob job, boolean force) {
+        synchronized (job) {
+            long now = System.currentTimeMillis();
+            if (!job.unsaved || !force && now - job.savedAt < saveIntervalMillis) {
+                return;
+            }
+            saveResult(job.fileProcessing, new ArrayList<>(job.pages.values()));
+            job.unsaved = false;
+            job.savedAt = now;
+        }
+    }
+
+    private void saveResult(FileProcessing fileProcessing, List<XPage> xPages) {
+        XDoc processedDoc = new XDoc();
+        processedDoc.setId(fileProcessing.getFileId());
+        processedDoc.setPages(xPages);
+        processedFilesService.saveLlmPages(fileProcessing.getFileId().toString(), processedDoc);
+    }
+
+    /**
+     * A file sent to the LLM in chunks of pages, possibly concurrently.
+     */
+    private static class LlmJob {
+        private final FileProcessing fileProcessing;
+        /** Saved text of a text-first file, sent instead of the file; null to send the file */
+        private final XDoc text;
+        /** Pages of each chunk, set by the thread that finished it */
+        private final List<XPage>[] chunkResults;
+        private final AtomicInteger remainingChunks;
+        /** Pages extracted so far by page number, retried pages replacing their earlier attempt; guarded by the job */
+        private final TreeMap<Integer, XPage> pages = new TreeMap<>();
+        /** Whether pages were extracted since the last save; guarded by the job */
+        private boolean unsaved;
+        /** Time of the last save; guarded by the job */
+        private long savedAt;
+        /** Why the chunks that ran out of retries failed */
+        private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+        @SuppressWarnings("unchecked")
+        LlmJob(FileProcessing fileProcessing, int chunks, XDoc text) {
+            this.fileProcessing = fileProcessing;
+            this.text = text;
+            this.chunkResults = new List[chunks];
+            this.remainingChunks = new AtomicInteger(chunks);
+        }
+    }
+
+    /**
+     * One request of a file: a range of pages of a PDF, or the whole file.
+     * @param index Position of the chunk in the file
+     * @param firstPage 1-based number of the first page; 0 for the whole file
+     * @param lastPage 1-based number of the last page, included; 0 for the whole file
+     * @param attempt Times the chunk was sent before
+     */
+    private record Chunk(LlmJob job, int index, int firstPage, int lastPage, int attempt) {
+
+        boolean isWholeFile() {
+            return firstPage == 0;
+        }
+
+        Chunk retry() {
+            return new Chunk(job, index, firstPage, lastPage, attempt + 1);
+        }
+
+        String describe() {
+            return isWholeFile() ? "all" : firstPage + " to " + lastPage;
+        }
+    }
+
+    /**
+     * Whether a failed request tells that the provider is overloaded: throttled with 429
+     * (or 503), or timed out.
+     */
+    static AimdLimiter.Outcome outcome(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException) {
+                return AimdLimiter.Outcome.DROPPED;
+            }
+            HttpStatusCode status = null;
+            if (cause instanceof WebClientResponseException responseException) {
+                status = responseException.getStatusCode();
+            } else if (cause instanceof RestClientResponseException responseException) {
+                status = responseException.getStatusCode();
+            }
+            if (status != null && (status.value() == 429 || status.value() == 503)) {
+                return AimdLimiter.Outcome.DROPPED;
+            }
+            if ((cause instanceof TransientAiException || cause instanceof NonTransientAiException)
+                    && cause.getMessage() != null
+                    && (cause.getMessage().startsWith("429 ") || cause.getMessage().startsWith("503 "))) {
+                // Spring AI's error handler keeps only "status - body"
+                return AimdLimiter.Outcome.DROPPED;
+            }
+        }
+        return AimdLimiter.Outcome.IGNORED;
+    }
+
+    /**
+     * @return number of LLM requests in flight on this node
+     */
+    public int getInFlight() {
+        AimdLimiter current = limiter;
+        return current == null ? 0 : current.getInFlight();
+    }
+
+    /**
+     * @return number of LLM requests allowed in flight on this node, 0 until initialized
+     */
+    public int getConcurrencyLimit() {
+        AimdLimiter current = limiter;
+        return current == null ? 0 : current.getLimit();
     }
 
     @PreDestroy
@@ -220,22 +712,17 @@ public class OpenAIService {
         }
     }
 
-    private String determineMimeType(String filePath) {
-        String lowerPath = filePath.toLowerCase();
-        if (lowerPath.endsWith(".pdf")) {
-            return "application/pdf";
-        } else if (lowerPath.endsWith(".png")) {
-            return MimeTypeUtils.IMAGE_PNG_VALUE;
-        } else if (lowerPath.endsWith(".jpg") || lowerPath.endsWith(".jpeg")) {
-            return MimeTypeUtils.IMAGE_JPEG_VALUE;
-        } else if (lowerPath.endsWith(".gif")) {
-            return MimeTypeUtils.IMAGE_GIF_VALUE;
-        } else if (lowerPath.endsWith(".tiff") || lowerPath.endsWith(".tif")) {
-            return "image/tiff";
-        } else {
-            // Default to octet-stream for unknown types
-            return MimeTypeUtils.APPLICATION_OCTET_STREAM_VALUE;
+    /**
+     * The MIME type of the file, from the format detected in its content by the orchestrator,
+     * falling back to the content type declared at upload.
+     */
+    private String mimeType(FileProcessing fileProcessing) {
+        DocumentFormat format = fileProcessing.getDocumentFormat();
+        if (format != null && format != DocumentFormat.UNKNOWN) {
+            return format.getMimeType();
         }
+        String contentType = fileProcessing.getContentType();
+        return contentType != null && !contentType.isBlank() ? contentType : MimeTypeUtils.APPLICATION_OCTET_STREAM_VALUE;
     }
 
 }
\ No newline at end of file
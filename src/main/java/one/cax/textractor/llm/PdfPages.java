@@ -0,0 +1,77 @@
+package one.cax.textractor.llm;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Pages of a stored PDF, counted and rendered to images for the LLM. Documents are loaded
+ * with their buffers in temp files, so that rendering a few pages of a long document does
+ * not hold it in the heap.
+ */
+final class PdfPages {
+
+    private PdfPages() {
+    }
+
+    /**
+     * @param file The PDF file
+     * @return number of pages of the file
+     * @throws IOException if the file cannot be read as a PDF
+     */
+    static int count(Path file) throws IOException {
+        try (PDDocument document = load(file)) {
+            return document.getNumberOfPages();
+        }
+    }
+
+    /**
+     * Render a range of pages to grayscale PNG images.
+     * @param file The PDF file
+     * @param firstPage 1-based number of the first page
+     * @param lastPage 1-based number of the last page, included
+     * @param dpi Resolution of the images
+     * @return The PNG image of each page, in page order
+     * @throws IOException if the file cannot be read or rendered
+     */
+    static List<byte[]> render(Path file, int firstPage, int lastPage, float dpi) throws IOException {
+        return render(file, IntStream.rangeClosed(firstPage, lastPage).boxed().toList(), dpi);
+    }
+
+    /**
+     * Render pages to grayscale PNG images.
+     * @param file The PDF file
+     * @param pageNumbers 1-based numbers of the pages
+     * @param dpi Resolution of the images
+     * @return The PNG image of each page, in the order of the numbers
+     * @throws IOException if the file cannot be read or rendered
+     */
+    static List<byte[]> render(Path file, List<Integer> pageNumbers, float dpi) throws IOException {
+        try (PDDocument document = load(file)) {
+            PDFRenderer renderer = new PDFRenderer(document);
+            List<byte[]> images = new ArrayList<>(pageNumbers.size());
+            for (int pageNumber : pageNumbers) {
+                BufferedImage image = renderer.renderImageWithDPI(pageNumber - 1, dpi, ImageType.GRAY);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(image, "png", out);
+                images.add(out.toByteArray());
+            }
+            return images;
+        }
+    }
+
+    private static PDDocument load(Path file) throws IOException {
+        return Loader.loadPDF(file.toFile(), MemoryUsageSetting.setupTempFileOnly().streamCache);
+    }
+}
@@ -0,0 +1,161 @@
+package one.cax.textractor.llm;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import one.cax.textractor.datamodel.XPage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Parses the pages of an LLM response as it streams in, with Jackson's non-blocking parser,
+ * and hands each page over as soon as its JSON object closes, so that the response text is
+ * never held whole.
+ * <p>
+ * The response is expected as {@code { "pages": [ { "page_number": n, "content": "..." }, ... ] }}.
+ * Text before the first '{' (a code block opening) and after the object closes is skipped.
+ * Not thread-safe: feed it from one thread at a time.
+ */
+final class StreamingPageParser {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /** Depth of the objects of the pages: root object, pages array, page object */
+    private static final int PAGE_DEPTH = 3;
+
+    private final JsonParser parser;
+    private final ByteArrayFeeder feeder;
+    private final Consumer<XPage> pageConsumer;
+
+    private boolean started;
+    private boolean finished;
+    /** High surrogate ending the last text, held until its low surrogate arrives */
+    private String pendingSurrogate = "";
+
+    private int depth;
+    /** Root field whose value is being parsed */
+    private String rootField;
+    private boolean inPages;
+    private String pageField;
+    private XPage page;
+    private int pageCount;
+
+    /**
+     * @param pageConsumer Receives each page once parsed, in response order
+     */
+    StreamingPageParser(Consumer<XPage> pageConsumer) {
+        try {
+            this.parser = JSON_FACTORY.createNonBlockingByteArrayParser();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot create JSON parser", e);
+        }
+        this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+        this.pageConsumer = pageConsumer;
+    }
+
+    /**
+     * Parse the next text of the response, handing over the pages it completes.
+     * @param text Text streamed by the model
+     * @throws IllegalStateException if the response is not the expected JSON
+     */
+    void feed(String text) {
+        if (finished || text == null || text.isEmpty()) {
+            return;
+        }
+        text = pendingSurrogate + text;
+        pendingSurrogate = "";
+        if (Character.isHighSurrogate(text.charAt(text.length() - 1))) {
+            // UTF-8 cannot encode half of a pair
+            pendingSurrogate = text.substring(text.length() - 1);
+            text = text.substring(0, text.length() - 1);
+        }
+        if (!started) {
+            // the model may wrap the JSON object in a code block
+            int start = text.indexOf('{');
+            if (start < 0) {
+                return;
+            }
+            started = true;
+            text = text.substring(start);
+        }
+        if (text.isEmpty()) {
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        try {
+            feeder.feedInput(bytes, 0, bytes.length);
+            parseAvailable();
+        } catch (IOException e) {
+            throw new IllegalStateException("Response is not JSON: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * End of the response.
+     * @return number of pages parsed
+     * @throws IllegalStateException if the response held no JSON object, or an unclosed one
+     */
+    int end() {
+        if (!started) {
+            throw new IllegalStateException("Response is not JSON");
+        }
+        if (!finished) {
+            throw new IllegalStateException("Response JSON is incomplete after " + pageCount + " pages");
+        }
+        return pageCount;
+    }
+
+    private void parseAvailable() throws IOException {
+        JsonToken token;
+        while (!finished && (token = parser.nextToken()) != JsonToken.NOT_AVAILABLE && token != null) {
+            switch (token) {
+                case START_OBJECT, START_ARRAY -> {
+                    depth++;
+                    if (depth == 2 && token == JsonToken.START_ARRAY && "pages".equals(rootField)) {
+                        inPages = true;
+                    } else if (depth == PAGE_DEPTH && inPages && token == JsonToken.START_OBJECT) {
+                        page = new XPage();
+                        page.setPageNumber(pageCount + 1);
+                        page.setText("");
+                    }
+                }
+                case END_OBJECT, END_ARRAY -> {
+                    if (depth == PAGE_DEPTH && page != null) {
+                        pageCount++;
+                        XPage parsed = page;
+                        page = null;
+                        pageConsumer.accept(parsed);
+                    } else if (depth == 2) {
+                        inPages = false;
+                    }
+                    depth--;
+                    // nothing of interest follows the root object
+                    finished = depth == 0;
+                }
+                case FIELD_NAME -> {
+                    if (depth == 1) {
+                        rootField = parser.currentName();
+                    } else if (depth == PAGE_DEPTH) {
+                        pageField = parser.currentName();
+                    }
+                }
+                case VALUE_NUMBER_INT -> {
+                    if (depth == PAGE_DEPTH && page != null && "page_number".equals(pageField)) {
+                        page.setPageNumber(parser.getIntValue());
+                    }
+                }
+                case VALUE_STRING -> {
+                    if (depth == PAGE_DEPTH && page != null && "content".equals(pageField)) {
+                        page.setText(parser.getText());
+                    }
+                }
+                default -> {
+                    // other values are not part of the pages
+                }
+            }
+        }
+    }
+}
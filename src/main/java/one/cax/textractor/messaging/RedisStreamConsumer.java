@@ -0,0 +1,316 @@
+package one.cax.textractor.messaging;
+
+import one.cax.textractor.datamodel.FileProcessing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StreamOperations;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Consumer of one stage stream for one node.
+ * <p>
+ * Reads batches with XREADGROUP, never holding more than {@code maxInFlight} requests,
+ * acknowledges each entry once its handler completes, and periodically reclaims entries
+ * left pending by consumers that stopped responding. Entries it is still processing are
+ * re-claimed by itself on each cycle, so long-running work is not stolen by other nodes.
+ * An entry delivered {@code maxDeliveries} times is handed to the drop handler, then
+ * acknowledged.
+ */
+public class RedisStreamConsumer implements Runnable {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final RedisTemplate<String, FileProcessing> redisTemplate;
+    private final StreamOperations<String, String, FileProcessing> streamOperations;
+    private final String stream;
+    private final String group;
+    private final String consumerName;
+    private final Function<FileProcessing, CompletableFuture<?>> handler;
+    private final int batchSize;
+    private final Duration blockTimeout;
+    private final Duration reclaimMinIdle;
+    private final long reclaimIntervalMs;
+    private final int maxDeliveries;
+    /** Told of the requests dropped after too many deliveries, with the reason */
+    private final BiConsumer<FileProcessing, String> dropHandler;
+
+    /** Free processing slots on this node */
+    private final Semaphore slots;
+
+    /** Entries delivered to this node and not yet acknowledged */
+    private final Set<RecordId> inFlight = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running = true;
+    private Thread thread;
+    private long nextReclaim;
+
+    RedisStreamConsumer(RedisTemplate<String, FileProcessing> redisTemplate, String stream, String group, String consumerName,
+                        Function<FileProcessing, CompletableFuture<?>> handler, int maxInFlight, int batchSize,
+                        long blockTimeoutMs, long reclaimMinIdleMs, long reclaimIntervalMs, int maxDeliveries,
+                        BiConsumer<FileProcessing, String> dropHandler) {
+        this.redisTemplate = redisTemplate;
+        this.streamOperations = redisTemplate.opsForStream();
+        this.stream = stream;
+        this.group = group;
+        this.consumerName = consumerName;
+        this.handler = handler;
+        this.slots = new Semaphore(Math.max(1, maxInFlight));
+        this.batchSize = Math.max(1, batchSize);
+        this.blockTimeout = Duration.ofMillis(blockTimeoutMs);
+        this.reclaimMinIdle = Duration.ofMillis(reclaimMinIdleMs);
+        this.reclaimIntervalMs = reclaimIntervalMs;
+        this.maxDeliveries = maxDeliveries;
+        this.dropHandler = dropHandler;
+    }
+
+    void start() {
+        thread = new Thread(this, "stream-consumer-" + stream);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop reading new entries. Entries still in flight stay pending and are
+     * reclaimed by another node if this one does not finish them.
+     */
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        ensureGroup();
+        while (running) {
+            try {
+                long now = System.currentTimeMillis();
+                if (now >= nextReclaim) {
+                    nextReclaim = now + reclaimIntervalMs;
+                    refreshInFlight();
+                    reclaimStale();
+                }
+                poll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                logger.error("Error consuming stream {}", stream, e);
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        logger.info("Consumer {} stopped reading stream {}", consumerName, stream);
+    }
+
+    /**
+     * Create the consumer group, and the stream if needed. An existing group is kept.
+     */
+    void ensureGroup() {
+        try {
+            streamOperations.createGroup(stream, ReadOffset.from("0"), group);
+            logger.info("Created consumer group {} on stream {}", group, stream);
+        } catch (DataAccessException e) {
+            // BUSYGROUP: the group already exists
+            logger.debug("Consumer group {} on stream {} already exists", group, stream);
+        }
+    }
+
+    /**
+     * Read new entries for as many free slots as are available, up to the batch size.
+     */
+    void poll() throws InterruptedException {
+        if (!slots.tryAcquire(blockTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            return;
+        }
+        int count = 1;
+        while (count < batchSize && slots.tryAcquire()) {
+            count++;
+        }
+
+        List<MapRecord<String, String, FileProcessing>> records;
+        try {
+            records = streamOperations.read(
+                    Consumer.from(group, consumerName),
+                    StreamReadOptions.empty().count(count).block(blockTimeout),
+                    StreamOffset.create(stream, ReadOffset.lastConsumed()));
+        } catch (RuntimeException e) {
+            slots.release(count);
+            throw e;
+        }
+
+        int received = records == null ? 0 : records.size();
+        slots.release(count - received);
+        if (received > 0) {
+            records.forEach(this::dispatch);
+        }
+    }
+
+    /**
+     * Claim entries idle for longer than the reclaim time on other consumers, or left
+     * by a previous run of this consumer, and process them here. The pending list is read
+     * page by page: the entries other nodes are processing come first, since their idle
+     * time keeps being reset, and those left by a stopped consumer may be behind them.
+     */
+    void reclaimStale() {
+        List<RecordId> candidates = new ArrayList<>();
+        Range<String> range = Range.unbounded();
+        boolean full = false;
+        while (!full) {
+            PendingMessages pending = streamOperations.pending(stream, group, range, batchSize);
+            RecordId last = null;
+            for (PendingMessage message : pending) {
+                last = message.getId();
+                if (inFlight.contains(message.getId())
+                        || message.getElapsedTimeSinceLastDelivery().compareTo(reclaimMinIdle) < 0) {
+                    continue;
+                }
+                if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                    drop(message);
+                    continue;
+                }
+                if (!slots.tryAcquire()) {
+                    full = true;
+                    break;
+                }
+                candidates.add(message.getId());
+            }
+            if (last == null || pending.size() < batchSize) {
+                // end of the pending list
+                break;
+            }
+            range = Range.rightUnbounded(Range.Bound.inclusive(nextId(last)));
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        List<MapRecord<String, String, FileProcessing>> claimed = streamOperations.claim(stream, group, consumerName,
+                reclaimMinIdle, candidates.toArray(new RecordId[0]));
+        int received = claimed == null ? 0 : claimed.size();
+        slots.release(candidates.size() - received);
+        if (received > 0) {
+            logger.info("Reclaimed {} stale entries from stream {}", received, stream);
+            claimed.forEach(this::dispatch);
+        }
+    }
+
+    /**
+     * Give up an entry delivered too many times: tell the drop handler, so that the file
+     * does not stay in processing, then acknowledge it.
+     */
+    private void drop(PendingMessage message) {
+        RecordId recordId = message.getId();
+        String reason = "Dropped after " + message.getTotalDeliveryCount() + " deliveries";
+        logger.error("Dropping entry {} of stream {}: {}", recordId, stream, reason);
+        try {
+            List<MapRecord<String, String, FileProcessing>> records = streamOperations.range(stream,
+                    Range.closed(recordId.getValue(), recordId.getValue()));
+            FileProcessing fileProcessing = records == null || records.isEmpty() ? null
+                    : records.get(0).getValue().get(RedisStreamWorkQueue.PAYLOAD_FIELD);
+            if (fileProcessing != null && dropHandler != null) {
+                dropHandler.accept(fileProcessing, reason);
+            }
+        } catch (Exception e) {
+            // dropped anyway: it would fail again
+            logger.error("Error reporting dropped entry {} of stream {}", recordId, stream, e);
+        }
+        streamOperations.acknowledge(stream, group, recordId);
+    }
+
+    /**
+     * @return smallest entry id after the given one
+     */
+    static String nextId(RecordId recordId) {
+        return recordId.getTimestamp() + "-" + (recordId.getSequence() + 1);
+    }
+
+    /**
+     * Reset the idle time of the entries still being processed here, without
+     * counting it as a new delivery, so other nodes do not reclaim them.
+     */
+    void refreshInFlight() {
+        if (inFlight.isEmpty()) {
+            return;
+        }
+        byte[] rawStream = stream.getBytes(StandardCharsets.UTF_8);
+        RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions
+                .minIdle(Duration.ZERO)
+                .ids(new ArrayList<>(inFlight));
+        redisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                connection.streamCommands().xClaimJustId(rawStream, group, consumerName, options));
+    }
+
+    private void dispatch(MapRecord<String, String, FileProcessing> record) {
+        RecordId recordId = record.getId();
+        FileProcessing fileProcessing = record.getValue().get(RedisStreamWorkQueue.PAYLOAD_FIELD);
+        inFlight.add(recordId);
+
+        CompletableFuture<?> completion;
+        try {
+            completion = fileProcessing != null
+                    ? handler.apply(fileProcessing)
+                    : CompletableFuture.failedFuture(new IllegalArgumentException("Entry without payload"));
+        } catch (Exception e) {
+            completion = CompletableFuture.failedFuture(e);
+        }
+        if (completion == null) {
+            completion = CompletableFuture.completedFuture(null);
+        }
+
+        completion.whenComplete((result, error) -> {
+            inFlight.remove(recordId);
+            slots.release();
+            if (error != null) {
+                logger.warn("Entry {} of stream {} failed and stays pending for redelivery: {}", recordId, stream,
+                        error.getMessage());
+                return;
+            }
+            try {
+                streamOperations.acknowledge(stream, group, recordId);
+            } catch (Exception e) {
+                logger.error("Error acknowledging entry {} of stream {}", recordId, stream, e);
+            }
+        });
+    }
+
+    /**
+     * @return number of entries delivered to this node and not yet acknowledged
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public String getStream() {
+        return stream;
+    }
+}
@@ -0,0 +1,186 @@
+package one.cax.textractor.messaging;
+
+import jakarta.annotation.PreDestroy;
+import one.cax.textractor.datamodel.FileProcessing;
+import one.cax.textractor.service.ProcessedFilesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Durable work queue for the processing stages, built on Redis Streams.
+ * <p>
+ * Each stage (OCR, LLM) has its own stream. All nodes of a stage join the same
+ * consumer group, so every message is delivered to exactly one node and adding
+ * nodes adds capacity. Messages stay pending until the stage acknowledges them,
+ * and entries left pending by a crashed node are reclaimed by the others. An entry
+ * delivered too many times is dropped, and its file marked FAILED.
+ */
+@Service
+public class RedisStreamWorkQueue {
+
+    /** Field of the stream entry holding the FileProcessing message */
+    static final String PAYLOAD_FIELD = "payload";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final RedisTemplate<String, FileProcessing> redisTemplate;
+
+    private final List<RedisStreamConsumer> consumers = new CopyOnWriteArrayList<>();
+
+    /** Marks the files of the dropped entries FAILED; null if not available */
+    private ProcessedFilesService processedFilesService;
+
+    @Value("${textractor.redis.streams.consumer-group:textractor}")
+    private String consumerGroup;
+
+    @Value("${textractor.redis.streams.consumer-name:}")
+    private String consumerName;
+
+    @Value("${textractor.redis.streams.batch-size:10}")
+    private int batchSize;
+
+    @Value("${textractor.redis.streams.block-timeout-ms:2000}")
+    private long blockTimeoutMs;
+
+    @Value("${textractor.redis.streams.reclaim-min-idle-ms:600000}")
+    private long reclaimMinIdleMs;
+
+    @Value("${textractor.redis.streams.reclaim-interval-ms:30000}")
+    private long reclaimIntervalMs;
+
+    @Value("${textractor.redis.streams.max-deliveries:5}")
+    private int maxDeliveries;
+
+    @Value("${textractor.redis.streams.max-length:100000}")
+    private long maxLength;
+
+    public RedisStreamWorkQueue(RedisTemplate<String, FileProcessing> redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    /**
+     * Set the service marking the files of the dropped entries FAILED
+     * @param processedFilesService The processed files service
+     */
+    @Autowired
+    public void setProcessedFilesService(ProcessedFilesService processedFilesService) {
+        this.processedFilesService = processedFilesService;
+    }
+
+    /**
+     * Append a file processing request to a stage stream.
+     *
+     * @param stream Stream key of the stage
+     * @param fileProcessing File processing request
+     * @return Id of the stream entry
+     */
+    public RecordId publish(String stream, FileProcessing fileProcessing) {
+        MapRecord<String, String, FileProcessing> record = StreamRecords.newRecord()
+                .in(stream)
+                .ofMap(Map.of(PAYLOAD_FIELD, fileProcessing));
+        RecordId recordId = redisTemplate.opsForStream().add(record,
+                RedisStreamCommands.XAddOptions.maxlen(maxLength).approximateTrimming(true));
+        logger.info("Published file {} to stream {} as {}", fileProcessing.getFileId(), stream, recordId);
+        return recordId;
+    }
+
+    /**
+     * Start consuming a stage stream on this node.
+     * The handler's future must complete once the request has been fully processed;
+     * only then the entry is acknowledged. A failed future leaves the entry pending,
+     * so it is redelivered after the reclaim idle time.
+     *
+     * @param stream Stream key of the stage
+     * @param handler Stage entry point
+     * @param maxInFlight Maximum number of requests this node holds at a time
+     * @return The running consumer
+     */
+    public RedisStreamConsumer subscribe(String stream, Function<FileProcessing, CompletableFuture<?>> handler, int maxInFlight) {
+        RedisStreamConsumer consumer = new RedisStreamConsumer(redisTemplate, stream, consumerGroup, resolveConsumerName(),
+                handler, maxInFlight, batchSize, blockTimeoutMs, reclaimMinIdleMs, reclaimIntervalMs, maxDeliveries,
+                this::markDropped);
+        consumer.start();
+        consumers.add(consumer);
+        logger.info("Consuming stream {} in group {} with at most {} requests in flight", stream, consumerGroup, maxInFlight);
+        return consumer;
+    }
+
+    /**
+     * Number of requests of a stage stream not yet completed by the consumer group:
+     * the entries delivered and not acknowledged, plus the entries not delivered yet.
+     * Uses the group lag reported by Redis 7, and otherwise counts the undelivered
+     * entries, up to the limit.
+     *
+     * @param stream Stream key of the stage
+     * @param limit Count at most this many undelivered entries when Redis does not report the lag
+     * @return Backlog of the stage, across all the nodes
+     */
+    public long getBacklog(String stream, int limit) {
+        StreamOperations<String, String, FileProcessing> streamOperations = redisTemplate.opsForStream();
+        StreamInfo.XInfoGroups groups;
+        try {
+            groups = streamOperations.groups(stream);
+        } catch (DataAccessException e) {
+            // no stream yet: nothing published
+            return 0;
+        }
+        for (StreamInfo.XInfoGroup group : groups) {
+            if (!consumerGroup.equals(group.groupName())) {
+                continue;
+            }
+            long pending = group.pendingCount() == null ? 0 : group.pendingCount();
+            Object lag = group.getRaw().get("lag");
+            if (lag instanceof Number number) {
+                return pending + number.longValue();
+            }
+            List<MapRecord<String, String, FileProcessing>> undelivered = streamOperations.range(stream,
+                    Range.of(Range.Bound.exclusive(group.lastDeliveredId()), Range.Bound.unbounded()),
+                    Limit.limit().count(limit));
+            return pending + (undelivered == null ? 0 : undelivered.size());
+        }
+        // no consumer yet: every entry is waiting
+        Long size = streamOperations.size(stream);
+        return size == null ? 0 : size;
+    }
+
+    private void markDropped(FileProcessing fileProcessing, String reason) {
+        if (processedFilesService != null && fileProcessing.getFileId() != null) {
+            processedFilesService.markFailed(fileProcessing.getFileId().toString(), reason);
+        }
+    }
+
+    private String resolveConsumerName() {
+        if (consumerName == null || consumerName.isBlank()) {
+            consumerName = UUID.randomUUID().toString();
+        }
+        return consumerName;
+    }
+
+    @PreDestroy
+    public void cleanup() {
+        for (RedisStreamConsumer consumer : consumers) {
+            consumer.stop();
+        }
+        consumers.clear();
+    }
+}
@@ -4,21 +4,20 @@ import com.abbyy.FREngine.Engine;
 
 import one.cax.textractor.config.OcrConfig;
 import one.cax.textractor.datamodel.FileProcessing;
+import one.cax.textractor.datamodel.OcrMode;
 import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.listener.RedisMessageListenerContainer;
-import org.springframework.data.redis.listener.adapter.MessageListenerAdapter;
-import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
 
 import org.springframework.stereotype.Service;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
+import one.cax.textractor.messaging.RedisStreamWorkQueue;
 import one.cax.textractor.service.ProcessedFilesService;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -32,29 +31,112 @@ public class AbbyyEngine {
     @Value("${textractor.redis.ocr.topic}")
     private String ocrTopic;
 
+    @Value("${textractor.redis.llm.topic:llm-processing-topic}")
+    private String llmTopic;
+
+    /** Capacity of the local OCR task queue; 0 for the number of engines */
+    @Value("${textractor.ocr.queue-capacity:0}")
+    private int queueCapacity = 0;
+
+    /** Cap on the number of engines, otherwise the number of cores allowed by the license; 0 for no cap */
+    @Value("${textractor.ocr.pool.max-engines:0}")
+    private int maxEngines = 0;
+
+    /** Engines that must be up before startup continues; the others warm up in the background */
+    @Value("${textractor.ocr.pool.min-ready:1}")
+    private int minReadyEngines = 1;
+
+    /** Minimum number of engines of an elastic pool, which grows up to the pool size under load; 0 for a fixed pool */
+    @Value("${textractor.ocr.pool.min-engines:0}")
+    private int minEngines = 0;
+
+    /** Queue wait above which an elastic pool adds an engine */
+    @Value("${textractor.ocr.pool.scale-up-wait-ms:5000}")
+    private long scaleUpWaitMillis = 5000;
+
+    /** Idle time after which an elastic pool retires an engine */
+    @Value("${textractor.ocr.pool.keep-alive-ms:300000}")
+    private long keepAliveMillis = 300_000;
+
+    /** Documents after which an engine is recycled; 0 for no limit */
+    @Value("${textractor.ocr.recycle.after-documents:1000}")
+    private long recycleAfterDocuments = 1000;
+
+    /** Failures in a row after which an engine is replaced; 0 for no limit */
+    @Value("${textractor.ocr.recycle.after-failures:3}")
+    private int recycleAfterFailures = 3;
+
+    /** Slowdown of the time per page, compared with the first documents, above which an engine is recycled; 0 for no limit */
+    @Value("${textractor.ocr.recycle.after-drift:0}")
+    private double recycleAfterDrift = 0;
+
+    /** Idle time after which an engine processes the canary page; 0 for no canary */
+    @Value("${textractor.ocr.canary.interval-ms:60000}")
+    private long canaryIntervalMillis = 60_000;
+
+    /** Time allowed to process the canary page before the engine is replaced */
+    @Value("${textractor.ocr.canary.timeout-ms:30000}")
+    private long canaryTimeoutMillis = 30_000;
+
+    /** Time allowed to every document or page batch, on top of its pages */
+    @Value("${textractor.ocr.timeout.document-ms:60000}")
+    private long documentBudgetMillis = 60_000;
+
+    /** Time allowed to each page; with document-ms 0 for no limit */
+    @Value("${textractor.ocr.timeout.page-ms:30000}")
+    private long pageBudgetMillis = 30_000;
+
+    /** Time shutdown waits for the documents in progress; 0 to wait until they are done */
+    @Value("${textractor.ocr.shutdown.drain-ms:30000}")
+    private long drainMillis = 30_000;
+
+    /** Pages per batch of the documents OCRed on several engines; 0 to OCR each document on one engine */
+    @Value("${textractor.ocr.batch-pages:20}")
+    private int batchPages = 20;
+
+    /** Predefined profile of the FAST OCR mode; the ACCURATE mode uses ABBYY_ENGINE_PROFILE */
+    @Value("${textractor.ocr.profile.fast:TextExtraction_Speed}")
+    private String fastProfile = "TextExtraction_Speed";
+
+    /** OCR mode of the applications whose profile does not choose one */
+    @Value("${textractor.ocr.profile.default-mode:ACCURATE}")
+    private OcrMode defaultOcrMode = OcrMode.ACCURATE;
+
+    /** Mean character confidence, 0 to 100, below which the ADAPTIVE mode re-runs a page with the accurate profile */
+    @Value("${textractor.ocr.profile.min-confidence:80}")
+    private int minConfidence = 80;
+
     private final OcrConfig config;
 
     private AbbyyEnginePool enginesPool;
 
-    private final RedisMessageListenerContainer container;
-    private MessageListenerAdapter listenerAdapter;
-    private final RedisTemplate<String, FileProcessing> redisTemplate;
+    private final RedisStreamWorkQueue workQueue;
     
     private final ProcessedFilesService processedFilesService;
+
+    /** Shrinks images before OCR; null if not available */
+    private ImagePreprocessor imagePreprocessor;
     
     // Use AtomicBoolean for thread safety
     private final AtomicBoolean initialized = new AtomicBoolean(false);
 
 
-    public AbbyyEngine(@Autowired OcrConfig config, RedisMessageListenerContainer container,
-                       RedisTemplate<String, FileProcessing> redisTemplate,
+    public AbbyyEngine(@Autowired OcrConfig config, @Autowired RedisStreamWorkQueue workQueue,
                        @Autowired ProcessedFilesService processedFilesService) throws Exception {
         this.config = config;
-        this.container = container;
-        this.redisTemplate = redisTemplate;
+        this.workQueue = workQueue;
         this.processedFilesService = processedFilesService;
     }
 
+    /**
+     * Set the image pre-processing stage run before OCR
+     * @param imagePreprocessor The image pre-processor
+     */
+    @Autowired
+    public void setImagePreprocessor(ImagePreprocessor imagePreprocessor) {
+        this.imagePreprocessor = imagePreprocessor;
+    }
+
     public synchronized void initialize() throws Exception {
         // Check if already initialized
         if (initialized.get()) {
@@ -68,45 +150,162 @@ public class AbbyyEngine {
         logger.info("Initializing engines pool...");
         enginesPool = new AbbyyEnginePool(config);
         enginesPool.setProcessedFilesService(processedFilesService);
+        enginesPool.setMaxEngines(maxEngines);
+        enginesPool.setMinReadyEngines(minReadyEngines);
+        enginesPool.setElasticity(minEngines, scaleUpWaitMillis, keepAliveMillis);
+        enginesPool.setRecycling(recycleAfterDocuments, recycleAfterFailures, recycleAfterDrift);
+        enginesPool.setCanary(canaryIntervalMillis, canaryTimeoutMillis);
+        enginesPool.setTimeBudget(documentBudgetMillis, pageBudgetMillis);
+        enginesPool.setDrainTimeout(drainMillis);
+        enginesPool.setQueueCapacity(queueCapacity);
+        enginesPool.setBatchPages(batchPages);
+        enginesPool.setOcrProfiles(fastProfile, config.getProfile(), defaultOcrMode, minConfidence);
         enginesPool.initialize();
 
-        // subscribe to topic
-        this.listenerAdapter = new MessageListenerAdapter(this, "handleMessage");
-        ObjectMapper objectMapper = new ObjectMapper();
-        Jackson2JsonRedisSerializer<FileProcessing> serializer = new Jackson2JsonRedisSerializer<>(objectMapper, FileProcessing.class);
-        listenerAdapter.setSerializer(serializer);
-        container.addMessageListener(listenerAdapter, new org.springframework.data.redis.listener.ChannelTopic(ocrTopic));
-        logger.info("Subscribed to Redis topic: {}", ocrTopic);
+        // consume the OCR stream, never taking more requests than there are engines
+        workQueue.subscribe(ocrTopic, this::handleMessage, enginesPool.getPoolSize());
+        logger.info("Subscribed to Redis stream: {}", ocrTopic);
         
         // Mark as initialized
         initialized.set(true);
         logger.info("AbbyyEngine successfully initialized");
     }
 
-    public void handleMessage(FileProcessing fileProcessing) {
+    /**
+     * Handle an OCR request taken from the stream.
+     * @param fileProcessing The file processing request
+     * @return future completed once the file has been processed
+     */
+    public CompletableFuture<Void> handleMessage(FileProcessing fileProcessing) {
         logger.info("Received message: {}", fileProcessing);
         try {
-            enginesPool.submitTask(fileProcessing);
+            CompletableFuture<Void> ocr;
+            if (imagePreprocessor != null && imagePreprocessor.isEnabled()) {
+                // shrunk on the pre-processing threads, so that the engines only OCR the result
+                ocr = imagePreprocessor.preprocess(fileProcessing)
+                        .thenCompose(ignored -> enginesPool.submitTask(fileProcessing));
+            } else {
+                ocr = enginesPool.submitTask(fileProcessing);
+            }
+            if (fileProcessing.isLlmTextFirst()) {
+                // the text is saved, or the document failed and the LLM reads the pages without text
+                return ocr.thenRun(() -> requestLlm(fileProcessing));
+            }
+            return ocr;
         } catch (Exception e) {
             logger.error("Error processing message", e);
+            return CompletableFuture.failedFuture(e);
         }
     }
 
-    // private int getAllowedCoresNumber() throws Exception {
-    //     int cores = 0;
-    //     IEngine engine = null;
-    //     try {
-    //         engine = Engine.InitializeEngine(config.getLibFolder(), config.getCustomerProjectId(), config.getLicensePath(),
-    //                 config.getLicensePassword(), "", "", false);
-    //         cores = engine.getCurrentLicense().getAllowedCoresCount();
-
-    //     } finally {
-    //         if (engine != null) {
-    //             Engine.DeinitializeEngine();
-    //         }
-    //     }
-    //     return cores;
-    // }
+    /**
+     * Hand a text-first document over to the LLM stage, now that its OCR text is saved.
+     * The OCR request is acknowledged only once this succeeds.
+     * @param fileProcessing The file processing request
+     */
+    private void requestLlm(FileProcessing fileProcessing) {
+        workQueue.publish(llmTopic, fileProcessing);
+        logger.info("OCR text of file {} sent to LLM processing", fileProcessing.getFileId());
+    }
+
+    /**
+     * @return number of engines, 0 until initialized
+     */
+    public int getPoolSize() {
+        return enginesPool == null ? 0 : enginesPool.getPoolSize();
+    }
+
+    /**
+     * @return number of engines up and taking tasks, 0 until initialized
+     */
+    public int getReadyEngines() {
+        return enginesPool == null ? 0 : enginesPool.getReadyEngines();
+    }
+
+    /**
+     * @return number of engines started and not retired, including those still initializing
+     */
+    public int getActiveEngines() {
+        return enginesPool == null ? 0 : enginesPool.getActiveEngines();
+    }
+
+    /**
+     * @return number of engines the pool keeps even when idle
+     */
+    public int getMinEngines() {
+        return enginesPool == null ? 0 : enginesPool.getMinEngines();
+    }
+
+    /**
+     * @return time the oldest queued OCR work has been waiting for an engine, in milliseconds
+     */
+    public long getQueueWaitMillis() {
+        return enginesPool == null ? 0 : enginesPool.getQueueWaitMillis();
+    }
+
+    /**
+     * @return number of engines given up whose thread is still running them
+     */
+    public int getAbandonedEngines() {
+        return enginesPool == null ? 0 : enginesPool.getAbandonedEngines();
+    }
+
+    /**
+     * @return number of engines added because queued work waited too long
+     */
+    public long getScaleUps() {
+        return enginesPool == null ? 0 : enginesPool.getScaleUps();
+    }
+
+    /**
+     * @return number of engines retired because they were idle
+     */
+    public long getScaleDowns() {
+        return enginesPool == null ? 0 : enginesPool.getScaleDowns();
+    }
+
+    /**
+     * @param reason Why the engines were recycled
+     * @return number of engines recycled for this reason
+     */
+    public long getEngineRecycles(EngineHealth.RecycleReason reason) {
+        return enginesPool == null ? 0 : enginesPool.getRecycles(reason);
+    }
+
+    /**
+     * @return number of pages the ADAPTIVE OCR mode re-ran with the accurate profile
+     */
+    public long getAccurateReruns() {
+        return enginesPool == null ? 0 : enginesPool.getAccurateReruns();
+    }
+
+    /**
+     * @return bookkeeping of the engines up
+     */
+    public List<EngineHealth> getEngineHealth() {
+        return enginesPool == null ? List.of() : enginesPool.getEngineHealth();
+    }
+
+    /**
+     * @return number of engines that must be up for OCR to be ready
+     */
+    public int getMinReadyEngines() {
+        return enginesPool == null ? Math.max(1, minReadyEngines) : enginesPool.getMinReadyEngines();
+    }
+
+    /**
+     * @return number of tasks waiting for an engine on this node
+     */
+    public int getQueueDepth() {
+        return enginesPool == null ? 0 : enginesPool.getQueueDepth();
+    }
+
+    /**
+     * @return moving average of the time to OCR a document on this node, in milliseconds; 0 if unknown
+     */
+    public double getAverageProcessingMillis() {
+        return enginesPool == null ? 0 : enginesPool.getAverageProcessingMillis();
+    }
 
     @PreDestroy
     public void cleanup() {
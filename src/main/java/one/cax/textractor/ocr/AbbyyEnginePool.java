@@ -3,36 +3,172 @@ package one.cax.textractor.ocr;
 import com.abbyy.FREngine.*;
 import one.cax.textractor.config.OcrConfig;
 import one.cax.textractor.datamodel.FileProcessing;
+import one.cax.textractor.datamodel.OcrMode;
 import one.cax.textractor.datamodel.XDoc;
 import one.cax.textractor.datamodel.XPage;
-import one.cax.textractor.db.ProcessedFiles;
 import one.cax.textractor.service.ProcessedFilesService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
 
 /**
  * Pool of ABBYY OCR engines for processing documents.
+ * <p>
+ * Each worker thread initializes one engine and keeps it for its lifetime, taking tasks
+ * directly from the shared task queue: a task waits in that queue until a worker is free,
+ * and is processed on the thread that owns the engine.
+ * <p>
+ * Documents with more pages to OCR than the batch size are split into page batches, which
+ * the workers take before any new document, so that the batches of a large document are
+ * OCRed in parallel on several engines. The pages are put back in order once the last
+ * batch is done.
+ * <p>
+ * The pool is elastic when its minimum number of engines is below its size: it starts with
+ * the minimum, adds an engine whenever the oldest queued work has waited longer than the
+ * target, and retires engines idle for longer than the keep-alive, down to the minimum,
+ * releasing their native memory.
+ * <p>
+ * Engines are recycled: deinitialized and replaced by a new one after a number of documents,
+ * or when they get slower than they were. The replacement is initialized in the background
+ * while the old engine keeps working. An engine that fails several documents in a row, or
+ * fails the canary page processed while idle, is replaced at once; so is one stuck on the
+ * canary page, whose thread is given up.
+ * <p>
+ * Each document, or page batch, has a time budget growing with its number of pages. A
+ * watchdog gives up the engine of a document over its budget, as for a stuck canary page:
+ * the document is marked FAILED with the reason, and a new engine takes the place of the
+ * stuck one. A stuck engine keeps its licensed core until its thread returns from the
+ * engine, so the new engine starts only once there is room for it under the pool size.
  */
 @Service
 public class AbbyyEnginePool {
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private BlockingQueue<IEngine> enginePool;
+    /** How often an idle worker checks whether the pool is shutting down */
+    private static final long POLL_INTERVAL_MS = 500;
+
     private ExecutorService executorService;
     private BlockingQueue<FileProcessing> taskQueue;
+    /** Page batches of the documents being OCRed on several engines */
+    private final BlockingQueue<PageBatch> batchQueue = new LinkedBlockingQueue<>();
+    /** One permit per task or batch queued, so that idle workers wake up for either */
+    private final Semaphore queuedWork = new Semaphore(0);
+    /** Completion of each submitted task, keyed by file id */
+    private final Map<UUID, CompletableFuture<Void>> completions = new ConcurrentHashMap<>();
+    private int poolSize;
+    /** Cap on the number of engines; 0 for the license allowance */
+    private int maxEngines;
+    /** Engines that must be up before the pool is ready */
+    private int minReadyEngines = 1;
+    /** Engines initialized and not released */
+    private final AtomicInteger readyEngines = new AtomicInteger();
+    /** Engines whose initialization failed */
+    private int failedEngines;
+    /** Minimum number of engines of an elastic pool; 0 for a fixed pool */
+    private int minEngines;
+    /** Queue wait above which an engine is added, in milliseconds */
+    private long scaleUpWaitMillis = 5000;
+    /** Idle time after which an engine is retired, in milliseconds */
+    private long keepAliveMillis = 300_000;
+    /** Workers started and not retired, whether their engine is ready or still initializing */
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    /** Engines given up whose thread has not returned from the engine yet: they still hold a licensed core */
+    private final AtomicInteger abandonedEngines = new AtomicInteger();
+    /** New engines due for engines given up, waiting for a licensed core */
+    private int owedReplacements;
+    private final AtomicInteger nextWorkerIndex = new AtomicInteger();
+    private final AtomicLong scaleUps = new AtomicLong();
+    private final AtomicLong scaleDowns = new AtomicLong();
+    /** Time each queued task was submitted, keyed by file id */
+    private final Map<UUID, Long> submittedAt = new ConcurrentHashMap<>();
+    /** Documents after which an engine is recycled; 0 for no limit */
+    private long recycleAfterDocuments;
+    /** Failures in a row after which an engine is recycled; 0 for no limit */
+    private int recycleAfterFailures;
+    /** Drift of the time per page above which an engine is recycled; 0 for no limit */
+    private double recycleAfterDrift;
+    /** Idle time after which an engine processes the canary page; 0 for no canary */
+    private long canaryIntervalMillis;
+    /** Time allowed to process the canary page */
+    private long canaryTimeoutMillis = 30_000;
+    /** Image processed as canary page */
+    private byte[] canaryImage;
+    /** Time allowed to every document or batch, on top of its pages; 0 with no page budget for no limit */
+    private long documentBudgetMillis;
+    /** Time allowed to each page of a document or batch */
+    private long pageBudgetMillis;
+    /** Time shutdown waits for the documents in progress; 0 to wait until they are done */
+    private long drainMillis;
+    /** Document or batch each worker is processing, keyed by worker index */
+    private final Map<Integer, Work> inProgress = new ConcurrentHashMap<>();
+    /** Bookkeeping of the engines, keyed by worker index */
+    private final Map<Integer, EngineHealth> engineHealth = new ConcurrentHashMap<>();
+    /** Bookkeeping of the engine of the current worker thread */
+    private final ThreadLocal<EngineHealth> currentEngineHealth = new ThreadLocal<>();
+    private final Map<EngineHealth.RecycleReason, AtomicLong> recycles = new ConcurrentHashMap<>();
+    /** Scales an elastic pool, and watches the canary pages and time budgets */
+    private ScheduledExecutorService maintenance;
+    /** Guards readyEngines and failedEngines changes while the pool starts */
+    private final Object engineStartLock = new Object();
+    /** Capacity of the task queue; 0 for the number of engines */
+    private int queueCapacity;
+    /** Pages per batch of the documents split across engines; 0 to OCR every document on one engine */
+    private int batchPages;
+    /** Predefined profile of the FAST mode */
+    private String fastProfile = "TextExtraction_Speed";
+    /** Predefined profile of the ACCURATE mode; null for the configured profile */
+    private String accurateProfile;
+    /** Mode of the documents whose application did not choose one */
+    private OcrMode defaultMode = OcrMode.ACCURATE;
+    /** Mean character confidence, 0 to 100, below which ADAPTIVE re-runs a page with the accurate profile */
+    private int minConfidence = 80;
+    /** Pages re-run with the accurate profile by the ADAPTIVE mode */
+    private final AtomicLong accurateReruns = new AtomicLong();
+    /** Moving average of the time to process a task, in milliseconds; 0 until the first task */
+    private volatile double averageProcessingMillis;
     private final OcrConfig config;
     private volatile boolean running = true;
+    /** Set once shutdown stopped waiting for the documents in progress */
+    private volatile boolean drainTimedOut;
 
     private ProcessedFilesService processedFilesService;
-    
+
+    /** Creates the engine of each worker */
+    private EngineFactory engineFactory = new AbbyyEngineFactory();
+
+    /**
+     * Creates and releases the engines, on the worker thread that owns them.
+     */
+    interface EngineFactory {
+        IEngine create() throws Exception;
+
+        void release(IEngine engine) throws Exception;
+    }
+
     /**
      * Constructor for AbbyyEnginePool.
      * @param config OCR configuration
@@ -50,145 +186,1115 @@ public class AbbyyEnginePool {
     }
 
     /**
-     * Initialize the engine pool.
+     * Sets the capacity of the task queue. Tasks submitted while it is full are rejected.
+     * @param queueCapacity The capacity; 0 for the number of engines
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the cap on the number of engines, which otherwise is the number of cores allowed
+     * by the license.
+     * @param maxEngines The maximum number of engines; 0 for no cap
+     */
+    public void setMaxEngines(int maxEngines) {
+        this.maxEngines = maxEngines;
+    }
+
+    /**
+     * Sets the number of engines that must be up for the pool to be ready. The others are
+     * initialized in the background.
+     * @param minReadyEngines The minimum number of engines
+     */
+    public void setMinReadyEngines(int minReadyEngines) {
+        this.minReadyEngines = Math.max(1, minReadyEngines);
+    }
+
+    /**
+     * Makes the pool elastic: it keeps at least this many engines, adds engines up to its
+     * size while queued work waits longer than the target, and retires idle engines.
+     * @param minEngines The minimum number of engines; 0 for a fixed pool of its size
+     * @param scaleUpWaitMillis Queue wait above which an engine is added, in milliseconds
+     * @param keepAliveMillis Idle time after which an engine is retired, in milliseconds
+     */
+    public void setElasticity(int minEngines, long scaleUpWaitMillis, long keepAliveMillis) {
+        this.minEngines = minEngines;
+        this.scaleUpWaitMillis = scaleUpWaitMillis;
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * Sets when engines are recycled.
+     * @param afterDocuments Documents after which an engine is recycled; 0 for no limit
+     * @param afterFailures Failures in a row after which an engine is recycled; 0 for no limit
+     * @param afterDrift Recent time per page over the time per page of its first documents
+     *                   above which an engine is recycled; 0 for no limit
+     */
+    public void setRecycling(long afterDocuments, int afterFailures, double afterDrift) {
+        this.recycleAfterDocuments = afterDocuments;
+        this.recycleAfterFailures = afterFailures;
+        this.recycleAfterDrift = afterDrift;
+    }
+
+    /**
+     * Sets the canary page: idle engines process it regularly, and are recycled if they fail
+     * or do not finish it in time.
+     * @param intervalMillis Idle time after which an engine processes the canary page; 0 for no canary
+     * @param timeoutMillis Time allowed to process the canary page
+     */
+    public void setCanary(long intervalMillis, long timeoutMillis) {
+        this.canaryIntervalMillis = intervalMillis;
+        this.canaryTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets the time budget of each document or page batch: past it, the engine is given up
+     * and the document fails.
+     * @param documentMillis Time allowed to every document or batch, on top of its pages
+     * @param pageMillis Time allowed to each page; with documentMillis 0 for no limit
+     */
+    public void setTimeBudget(long documentMillis, long pageMillis) {
+        this.documentBudgetMillis = documentMillis;
+        this.pageBudgetMillis = pageMillis;
+    }
+
+    /**
+     * Sets how long shutdown waits for the documents in progress. Those still processing
+     * afterwards stay pending in the stream.
+     * @param drainMillis The time to wait; 0 to wait until they are done
+     */
+    public void setDrainTimeout(long drainMillis) {
+        this.drainMillis = drainMillis;
+    }
+
+    /**
+     * Sets the number of pages per batch. Documents with more pages to OCR are split into
+     * batches OCRed in parallel.
+     * @param batchPages Pages per batch; 0 to OCR every document on one engine
+     */
+    public void setBatchPages(int batchPages) {
+        this.batchPages = batchPages;
+    }
+
+    /**
+     * Sets the predefined processing profiles of the OCR modes.
+     * @param fastProfile Profile of the FAST mode
+     * @param accurateProfile Profile of the ACCURATE mode; null for the configured profile
+     * @param defaultMode Mode of the documents whose application did not choose one
+     * @param minConfidence Mean character confidence, 0 to 100, below which the ADAPTIVE
+     *                      mode re-runs a page with the accurate profile
+     */
+    public void setOcrProfiles(String fastProfile, String accurateProfile, OcrMode defaultMode, int minConfidence) {
+        this.fastProfile = fastProfile;
+        this.accurateProfile = accurateProfile;
+        this.defaultMode = defaultMode;
+        this.minConfidence = minConfidence;
+    }
+
+    /**
+     * Sets how the engines are created, instead of initializing ABBYY engines.
+     * @param engineFactory The engine factory
+     */
+    void setEngineFactory(EngineFactory engineFactory) {
+        this.engineFactory = engineFactory;
+    }
+
+    /**
+     * Initialize the engine pool. The first engine tells the number of cores allowed by the
+     * license, which is the number of engines unless capped by configuration; the other
+     * engines are then initialized concurrently, each by its own worker. Returns once the
+     * minimum number of engines is up: the rest warm up in the background, and their
+     * workers take tasks as soon as their engine is ready. An elastic pool only starts its
+     * minimum number of engines.
      */
     public void initialize() {
-        int coreCount = Runtime.getRuntime().availableProcessors();
-        this.enginePool = new ArrayBlockingQueue<>(coreCount);
-        this.taskQueue = new LinkedBlockingQueue<>();
-        this.executorService = Executors.newFixedThreadPool(coreCount);
+        this.executorService = Executors.newCachedThreadPool();
 
-        // Initialize the pool with Engine instances
-        for (int i = 0; i < coreCount; i++) {
-            try {
-                IEngine engine = Engine.InitializeEngine(
-                        config.getLibFolder(),
-                        config.getCustomerProjectId(),
-                        config.getLicensePath(),
-                        config.getLicensePassword(),
-                        "",
-                        "",
-                        false
-                );
-                enginePool.offer(engine);
-                logger.info("Engine {} initialized", i);
+        CompletableFuture<Integer> firstEngine = new CompletableFuture<>();
+        startWorker(firstEngine);
+        int allowedCores;
+        try {
+            allowedCores = firstEngine.join();
+        } catch (CompletionException e) {
+            // Handle initialization error
+            shutdown();
+            throw new RuntimeException("Failed to initialize engine", e.getCause());
+        }
+        int engineCount = allowedCores > 0 ? allowedCores : Runtime.getRuntime().availableProcessors();
+        if (maxEngines > 0) {
+            engineCount = Math.min(engineCount, maxEngines);
+        }
+        this.poolSize = engineCount;
+        this.taskQueue = new ArrayBlockingQueue<>(queueCapacity > 0 ? queueCapacity : engineCount);
+        int required = Math.min(minReadyEngines, engineCount);
+        int startCount = isElastic() ? getMinEngines() : engineCount;
+        logger.info("License allows {} cores, pool of {} engines, starting {}", allowedCores, engineCount, startCount);
 
-            } catch (Exception e) {
-                // Handle initialization error
-                throw new RuntimeException("Failed to initialize engine", e);
+        for (int i = 1; i < startCount; i++) {
+            startWorker(new CompletableFuture<>());
+        }
+        synchronized (engineStartLock) {
+            while (readyEngines.get() < required && failedEngines <= startCount - required) {
+                try {
+                    engineStartLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    shutdown();
+                    throw new RuntimeException("Interrupted while initializing engines", e);
+                }
+            }
+            if (readyEngines.get() < required) {
+                shutdown();
+                throw new RuntimeException("Failed to initialize engine: " + failedEngines + " of " + startCount
+                        + " engines failed, " + required + " required");
+            }
+        }
+        maintenance = Executors.newSingleThreadScheduledExecutor();
+        if (isElastic()) {
+            long interval = Math.max(100, Math.min(scaleUpWaitMillis, 1000));
+            maintenance.scheduleWithFixedDelay(this::scaleUpIfWaiting, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        if (canaryIntervalMillis > 0) {
+            canaryImage = createCanaryImage();
+        }
+        long timeout = Math.min(canaryIntervalMillis > 0 ? canaryTimeoutMillis : Long.MAX_VALUE,
+                hasTimeBudget() ? documentBudgetMillis + pageBudgetMillis : Long.MAX_VALUE);
+        if (timeout < Long.MAX_VALUE) {
+            long interval = Math.max(100, Math.min(timeout / 2, 1000));
+            maintenance.scheduleWithFixedDelay(this::replaceOverdueEngines, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        logger.info("Engine pool ready with {} of {} engines", readyEngines.get(), engineCount);
+    }
+
+    private boolean isElastic() {
+        return getMinEngines() < poolSize;
+    }
+
+    /**
+     * @return number of engines the pool keeps even when idle; never below the engines required to be ready
+     */
+    public int getMinEngines() {
+        if (minEngines <= 0) {
+            return poolSize;
+        }
+        return Math.min(poolSize, Math.max(minEngines, minReadyEngines));
+    }
+
+    private void startWorker(CompletableFuture<Integer> ready) {
+        activeWorkers.incrementAndGet();
+        int index = nextWorkerIndex.getAndIncrement();
+        executorService.submit(() -> runWorker(index, ready));
+    }
+
+    /**
+     * Add an engine when the oldest queued work has waited longer than the target and the
+     * pool is below its size.
+     */
+    private void scaleUpIfWaiting() {
+        try {
+            long waitMillis = getQueueWaitMillis();
+            if (!running || waitMillis <= scaleUpWaitMillis) {
+                return;
+            }
+            int active = activeWorkers.get();
+            // one engine at a time, once the previous one is ready
+            if (active + abandonedEngines.get() >= poolSize || readyEngines.get() < active) {
+                return;
             }
+            scaleUps.incrementAndGet();
+            logger.info("Queued work waited {} ms, adding engine {} of {}", waitMillis, active + 1, poolSize);
+            startWorker(new CompletableFuture<>());
+        } catch (Exception e) {
+            logger.error("Error scaling the engine pool", e);
         }
+    }
 
-        // Start the task processor
-        startTaskProcessor();
+    /**
+     * Retire the engine of an idle worker, unless the pool is at its minimum.
+     * @return true if the worker must stop
+     */
+    private boolean tryRetire() {
+        int min = getMinEngines();
+        while (true) {
+            int active = activeWorkers.get();
+            if (active <= min) {
+                return false;
+            }
+            if (activeWorkers.compareAndSet(active, active - 1)) {
+                scaleDowns.incrementAndGet();
+                logger.info("Engine idle for {} ms, retiring it: {} engines left", keepAliveMillis, active - 1);
+                return true;
+            }
+        }
     }
 
     /**
      * Submit a file processing task to the queue.
      * @param task The file processing task
+     * @return future completed once the task has been processed, or failed with a
+     * RejectedExecutionException if the queue is full
      */
-    public void submitTask(FileProcessing task) {
-        taskQueue.offer(task);
+    public CompletableFuture<Void> submitTask(FileProcessing task) {
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        completions.put(task.getFileId(), completion);
+        submittedAt.put(task.getFileId(), System.currentTimeMillis());
+        if (!taskQueue.offer(task)) {
+            completions.remove(task.getFileId());
+            submittedAt.remove(task.getFileId());
+            logger.warn("OCR queue full, rejecting file: {}", task.getFileHash());
+            return CompletableFuture.failedFuture(new RejectedExecutionException("OCR queue full"));
+        }
+        queuedWork.release();
         logger.info("Task submitted for file: {}", task.getFileHash());
+        return completion;
     }
 
     /**
-     * Start the background thread that processes tasks from the queue.
+     * @return number of engines in the pool
      */
-    private void startTaskProcessor() {
-        Thread processorThread = new Thread(() -> {
-            while (running) {
-                try {
-                    FileProcessing task = taskQueue.take(); // This will block if the queue is empty
-                    processFileTask(task);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                } catch (Exception e) {
-                    logger.error("Error processing task", e);
-                }
-            }
-        });
-        processorThread.setDaemon(true);
-        processorThread.start();
-        logger.info("Task processor started");
+    public int getPoolSize() {
+        return poolSize;
     }
 
     /**
-     * Process a file task using an available engine.
-     * @param fileProcessing The file processing task
+     * @return number of engines up and taking tasks
      */
-    private void processFileTask(FileProcessing fileProcessing) {
-        executorService.submit(() -> {
-            IEngine engine = null;
-            try {
-                engine = enginePool.take(); // This will block if no engine is available
-                logger.info("Processing file: {}", fileProcessing.getFileHash());
-                IFRDocument frDocument = engine.CreateFRDocument();
-                frDocument.AddImageFileFromMemory(fileProcessing.getFileContent(), null, null, null, "");
-                frDocument.Process(null);
-                // Get the pages collection
-                IFRPages pages = frDocument.getPages();
-                // Process each page
-                XDoc xDoc = new XDoc();
-                xDoc.setId(fileProcessing.getFileId());
-                List<XPage> xPages = new ArrayList<>();
-                for (int i = 0; i < pages.getCount(); i++) {
-                    IFRPage page = pages.Item(i);
-                    IPlainText pageText = page.getPlainText();
-                    logger.info("Processed page {}", i + 1);
-                    XPage xPage = new XPage();
-                    xPage.setText(pageText.getText());
-                    xPage.setPageNumber(i + 1);
-                    xPages.add(xPage);
+    public int getReadyEngines() {
+        return readyEngines.get();
+    }
+
+    /**
+     * @return number of engines started and not retired, including those still initializing
+     */
+    public int getActiveEngines() {
+        return activeWorkers.get();
+    }
+
+    /**
+     * @return number of engines given up whose thread is still running them
+     */
+    public int getAbandonedEngines() {
+        return abandonedEngines.get();
+    }
+
+    /**
+     * @return number of engines added because queued work waited too long
+     */
+    public long getScaleUps() {
+        return scaleUps.get();
+    }
+
+    /**
+     * @return number of engines retired because they were idle
+     */
+    public long getScaleDowns() {
+        return scaleDowns.get();
+    }
+
+    /**
+     * @return time the oldest queued task or page batch has been waiting for an engine, in milliseconds
+     */
+    public long getQueueWaitMillis() {
+        long now = System.currentTimeMillis();
+        long oldest = now;
+        PageBatch batch = batchQueue.peek();
+        if (batch != null) {
+            oldest = Math.min(oldest, batch.queuedAt());
+        }
+        FileProcessing task = taskQueue == null ? null : taskQueue.peek();
+        if (task != null) {
+            oldest = Math.min(oldest, submittedAt.getOrDefault(task.getFileId(), now));
+        }
+        return now - oldest;
+    }
+
+    /**
+     * @param reason Why the engines were recycled
+     * @return number of engines recycled for this reason
+     */
+    public long getRecycles(EngineHealth.RecycleReason reason) {
+        AtomicLong count = recycles.get(reason);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return number of pages the ADAPTIVE mode re-ran with the accurate profile
+     */
+    public long getAccurateReruns() {
+        return accurateReruns.get();
+    }
+
+    /**
+     * @return bookkeeping of the engines up
+     */
+    public List<EngineHealth> getEngineHealth() {
+        List<EngineHealth> health = new ArrayList<>(engineHealth.values());
+        health.sort(Comparator.comparingInt(EngineHealth::getIndex));
+        return health;
+    }
+
+    /**
+     * @return number of engines that must be up for the pool to be ready
+     */
+    public int getMinReadyEngines() {
+        return Math.min(minReadyEngines, Math.max(1, poolSize));
+    }
+
+    /**
+     * @return number of tasks waiting for an engine
+     */
+    public int getQueueDepth() {
+        return taskQueue == null ? 0 : taskQueue.size();
+    }
+
+    /**
+     * @return moving average of the time to process a task, in milliseconds; 0 until the first task
+     */
+    public double getAverageProcessingMillis() {
+        return averageProcessingMillis;
+    }
+
+    private void recordProcessingTime(long millis) {
+        double average = averageProcessingMillis;
+        averageProcessingMillis = average == 0 ? millis : average + 0.2 * (millis - average);
+    }
+
+    /**
+     * Worker loop: initialize an engine, then process tasks with it until the pool shuts down.
+     * @param index Index of the worker
+     * @param ready Completed with the number of cores allowed by the license (0 if unknown)
+     *              once the engine is initialized, or with the initialization error
+     */
+    private void runWorker(int index, CompletableFuture<Integer> ready) {
+        IEngine engine;
+        try {
+            engine = engineFactory.create();
+        } catch (Exception e) {
+            logger.error("Failed to initialize engine {}", index, e);
+            activeWorkers.decrementAndGet();
+            synchronized (engineStartLock) {
+                failedEngines++;
+                engineStartLock.notifyAll();
+            }
+            ready.completeExceptionally(e);
+            return;
+        }
+        logger.info("Engine {} initialized", index);
+        synchronized (engineStartLock) {
+            readyEngines.incrementAndGet();
+            engineStartLock.notifyAll();
+        }
+        ready.complete(allowedCores(engine));
+        EngineHealth health = new EngineHealth(index, Thread.currentThread());
+        engineHealth.put(index, health);
+        currentEngineHealth.set(health);
+        CompletableFuture<Integer> replacement = null;
+        long idleSince = System.currentTimeMillis();
+        long canaryAt = idleSince;
+        try {
+            while (running && !health.isAbandoned()) {
+                if (replacement != null && replacement.isDone()) {
+                    if (!replacement.isCompletedExceptionally()) {
+                        // the new engine took over
+                        activeWorkers.decrementAndGet();
+                        break;
+                    }
+                    // could not be replaced: keep this engine, and try again later
+                    replacement = null;
+                    health.reset();
+                }
+                if (!queuedWork.tryAcquire(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    long now = System.currentTimeMillis();
+                    if (replacement == null && now - idleSince > keepAliveMillis && tryRetire()) {
+                        break;
+                    }
+                    if (canaryImage != null && replacement == null && now - Math.max(idleSince, canaryAt) > canaryIntervalMillis) {
+                        canaryAt = now;
+                        if (!processCanary(engine, health)) {
+                            if (!health.isAbandoned()) {
+                                // once abandoned, the engine was already replaced
+                                replaceNow(health, EngineHealth.RecycleReason.CANARY);
+                            }
+                            break;
+                        }
+                    }
+                    continue;
                 }
-                xDoc.setPages(xPages);
-                logger.info("Completed processing file: {}", fileProcessing.getFileHash());
-                
-                if (processedFilesService != null) {
-                    var filePath = processedFilesService.saveFile(fileProcessing.getFileContent());
-
-                    ProcessedFiles processedFile = new ProcessedFiles();
-                    processedFile.setFileHash(fileProcessing.getFileHash());
-                    processedFile.setFileName(fileProcessing.getFileName());
-                    processedFile.setFilePath(filePath);
-                    processedFile.setFileSize(fileProcessing.getFileSize());
-                    processedFile.setAppId(UUID.fromString(fileProcessing.getAppId()));
-                    processedFile.setOcrContent(xDoc);
-                    processedFilesService.addProcessedFile(processedFile);
+                // finish the documents already started before taking a new one
+                PageBatch batch = batchQueue.poll();
+                if (batch != null) {
+                    Work work = new Work(batch.job().fileProcessing, batch);
+                    inProgress.put(index, work);
+                    processBatch(engine, batch);
+                    if (!health.isAbandoned()) {
+                        // otherwise left to the watchdog
+                        inProgress.remove(index, work);
+                    }
                 } else {
-                    logger.warn("ProcessedFilesService is null, cannot save processed file");
+                    FileProcessing task = taskQueue.poll();
+                    if (task != null) {
+                        submittedAt.remove(task.getFileId());
+                        Work work = new Work(task, null);
+                        inProgress.put(index, work);
+                        processFileTask(engine, task);
+                        if (!health.isAbandoned()) {
+                            inProgress.remove(index, work);
+                        }
+                    }
+                }
+                idleSince = System.currentTimeMillis();
+
+                if (replacement == null && !health.isAbandoned()) {
+                    EngineHealth.RecycleReason reason = health.recycleReason(recycleAfterDocuments,
+                            recycleAfterFailures, recycleAfterDrift);
+                    if (reason == EngineHealth.RecycleReason.FAILURES) {
+                        // the engine is likely broken: stop using it
+                        replaceNow(health, reason);
+                        break;
+                    } else if (reason != null) {
+                        // keep working until the new engine is ready
+                        countRecycle(reason);
+                        logger.info("Recycling engine {} ({}): {} documents, drift {}", index, reason,
+                                health.getDocuments(), health.getDrift());
+                        replacement = new CompletableFuture<>();
+                        startWorker(replacement);
+                    }
                 }
-                
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                logger.error("Processing interrupted", e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            currentEngineHealth.remove();
+            if (!health.isAbandoned()) {
+                // an abandoned engine was already taken out of the pool
+                engineHealth.remove(index);
+                readyEngines.decrementAndGet();
+            }
+            try {
+                engineFactory.release(engine);
             } catch (Exception e) {
-                logger.error("Error processing file: {}", fileProcessing.getFileHash(), e);
+                logger.warn("Error releasing engine {}: {}", index, e.getMessage());
+            }
+            if (health.isAbandoned()) {
+                // its core is free again
+                abandonedEngines.decrementAndGet();
+                logger.info("Engine {} given up earlier returned and was released", index);
+                startOwedReplacements();
+            }
+        }
+    }
+
+    /**
+     * Take the engine of the current worker out of the pool, and start a new one.
+     */
+    private void replaceNow(EngineHealth health, EngineHealth.RecycleReason reason) {
+        countRecycle(reason);
+        logger.warn("Replacing engine {} ({}): {} failures in a row, {} documents", health.getIndex(), reason,
+                health.getConsecutiveFailures(), health.getDocuments());
+        activeWorkers.decrementAndGet();
+        if (running) {
+            startWorker(new CompletableFuture<>());
+        }
+    }
+
+    /**
+     * Give up the engines stuck on the canary page or over the time budget of a document,
+     * and start new ones. The documents they were processing fail.
+     */
+    private void replaceOverdueEngines() {
+        for (EngineHealth health : engineHealth.values()) {
+            if (!health.isOverdue()) {
+                continue;
+            }
+            boolean canary = health.isOnCanary();
+            long budgetMillis = health.getBudgetMillis();
+            // counted first, so that its thread returning at once cannot make the count negative
+            abandonedEngines.incrementAndGet();
+            if (!health.abandon()) {
+                abandonedEngines.decrementAndGet();
+                continue;
+            }
+            engineHealth.remove(health.getIndex());
+            readyEngines.decrementAndGet();
+            Work work = inProgress.remove(health.getIndex());
+            if (canary) {
+                countRecycle(EngineHealth.RecycleReason.CANARY);
+                logger.error("Engine {} did not process the canary page in {} ms, replacing it",
+                        health.getIndex(), budgetMillis);
+            } else {
+                countRecycle(EngineHealth.RecycleReason.TIMEOUT);
+                logger.error("Engine {} exceeded the time budget of {} ms, replacing it", health.getIndex(), budgetMillis);
+            }
+            activeWorkers.decrementAndGet();
+            synchronized (this) {
+                owedReplacements++;
+            }
+            startOwedReplacements();
+            if (work != null) {
+                timeOut(work, "OCR did not complete within its time budget of " + budgetMillis + " ms");
+            }
+        }
+    }
+
+    /**
+     * Start the new engines due for engines given up, as far as the engines still held by
+     * their threads leave room under the pool size. A thread stuck in the native engine
+     * ignores its interruption and keeps its engine, and the license allows no more
+     * engines than cores.
+     */
+    private synchronized void startOwedReplacements() {
+        while (running && owedReplacements > 0 && activeWorkers.get() + abandonedEngines.get() < poolSize) {
+            owedReplacements--;
+            startWorker(new CompletableFuture<>());
+        }
+        if (running && owedReplacements > 0) {
+            logger.warn("{} engines given up are still held by their threads, {} new engines wait for them",
+                    abandonedEngines.get(), owedReplacements);
+        }
+    }
+
+    /**
+     * Fail the document, or the batch, of an engine given up.
+     */
+    private void timeOut(Work work, String reason) {
+        if (work.batch() == null) {
+            failDocument(work.fileProcessing(), reason);
+            completeTask(work.fileProcessing(), null);
+        } else {
+            DocumentJob job = work.batch().job();
+            job.failure = "Pages " + describe(work.batch()) + ": " + reason;
+            finishBatch(work.batch());
+        }
+    }
+
+    private void countRecycle(EngineHealth.RecycleReason reason) {
+        recycles.computeIfAbsent(reason, r -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Process the canary page with an idle engine.
+     * @return true if the engine processed it
+     */
+    private boolean processCanary(IEngine engine, EngineHealth health) {
+        health.workStarted(canaryTimeoutMillis, true);
+        try {
+            IFRDocument frDocument = engine.CreateFRDocument();
+            try {
+                frDocument.AddImageFileFromMemory(canaryImage, null, null, null, "");
+                frDocument.Process(null);
+                return frDocument.getPages().getCount() > 0;
             } finally {
-                if (engine != null) {
-                    enginePool.offer(engine); // Return the engine to the pool
+                frDocument.Close();
+            }
+        } catch (Exception e) {
+            logger.warn("Engine {} failed the canary page: {}", health.getIndex(), e.getMessage());
+            return false;
+        } finally {
+            health.workEnded();
+        }
+    }
+
+    /**
+     * A small image with a few dark bars, enough for the engine to load and process a page.
+     */
+    private static byte[] createCanaryImage() {
+        BufferedImage image = new BufferedImage(200, 100, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, 200, 100);
+            graphics.setColor(Color.BLACK);
+            for (int x = 20; x < 180; x += 20) {
+                graphics.fillRect(x, 30, 10, 40);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "png", out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return number of cores allowed by the license of the engine, 0 if unknown
+     */
+    private int allowedCores(IEngine engine) {
+        try {
+            ILicense license = engine.getCurrentLicense();
+            return license == null ? 0 : license.getAllowedCoresCount();
+        } catch (Exception e) {
+            logger.warn("Cannot read the license allowance: {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Process a file task with the engine of the current worker, or split it into page
+     * batches if it has more pages to OCR than a batch.
+     * @param engine The engine owned by the worker
+     * @param fileProcessing The file processing task
+     */
+    void processFileTask(IEngine engine, FileProcessing fileProcessing) {
+        List<Integer> ocrPages = fileProcessing.getOcrPages();
+        if (batchPages > 0 && ocrPages != null && ocrPages.size() > batchPages) {
+            DocumentJob job = new DocumentJob(fileProcessing, (ocrPages.size() + batchPages - 1) / batchPages);
+            for (int i = 0; i < job.batchResults.length; i++) {
+                List<Integer> pageNumbers = ocrPages.subList(i * batchPages, Math.min(ocrPages.size(), (i + 1) * batchPages));
+                batchQueue.offer(new PageBatch(job, i, List.copyOf(pageNumbers), System.currentTimeMillis()));
+            }
+            queuedWork.release(job.batchResults.length);
+            logger.info("Split file {} into {} batches of up to {} pages", fileProcessing.getFileHash(),
+                    job.batchResults.length, batchPages);
+            // this worker and the idle ones take the batches
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        Throwable error = null;
+        try {
+            logger.info("Processing file: {}", fileProcessing.getFileHash());
+            // only the pages without a usable text layer, when triage selected some
+            List<XPage> xPages = ocrPages(engine, fileProcessing, ocrPages != null && !ocrPages.isEmpty() ? ocrPages : null);
+            logger.info("Completed processing file: {}", fileProcessing.getFileHash());
+            saveResult(fileProcessing, xPages);
+        } catch (Exception e) {
+            logger.error("Error processing file: {}", fileProcessing.getFileHash(), e);
+            if (drainTimedOut) {
+                // interrupted by shutdown: leave it pending
+                error = new RejectedExecutionException("OCR engine pool shut down");
+            } else if (!isAbandoned()) {
+                // otherwise the watchdog already failed it
+                failDocument(fileProcessing, "OCR failed: " + e.getMessage());
+            }
+        } finally {
+            recordProcessingTime(System.currentTimeMillis() - start);
+            if (!isGivenUp()) {
+                // otherwise the watchdog completes it, once failed
+                completeTask(fileProcessing, error);
+            }
+        }
+    }
+
+    /**
+     * OCR one batch of pages of a document. The worker that completes the last batch saves
+     * the document.
+     * @param engine The engine owned by the worker
+     * @param batch The page batch
+     */
+    private void processBatch(IEngine engine, PageBatch batch) {
+        DocumentJob job = batch.job();
+        long start = System.currentTimeMillis();
+        try {
+            job.batchResults[batch.index()] = ocrPages(engine, job.fileProcessing, batch.pageNumbers());
+        } catch (Exception e) {
+            logger.error("Error processing pages {} of file: {}", describe(batch), job.fileProcessing.getFileHash(), e);
+            if (!isAbandoned()) {
+                job.failure = "Pages " + describe(batch) + ": OCR failed: " + e.getMessage();
+            }
+        } finally {
+            job.engineMillis.addAndGet(System.currentTimeMillis() - start);
+            if (!isGivenUp()) {
+                // otherwise the watchdog finishes it, once failed
+                finishBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * Count a batch as done, once whether by its worker or by the watchdog. Whoever counts
+     * the last one completes the document.
+     */
+    private void finishBatch(PageBatch batch) {
+        DocumentJob job = batch.job();
+        // the decrement publishes the batch result to the worker that sees the last one
+        if (job.finishedBatches.compareAndSet(batch.index(), 0, 1) && job.remainingBatches.decrementAndGet() == 0) {
+            completeJob(job);
+        }
+    }
+
+    private static String describe(PageBatch batch) {
+        return batch.pageNumbers().get(0) + " to " + batch.pageNumbers().get(batch.pageNumbers().size() - 1);
+    }
+
+    /**
+     * Reassemble the pages of a split document in page order and save them.
+     * @param job The document whose batches are all done
+     */
+    private void completeJob(DocumentJob job) {
+        Throwable error = null;
+        try {
+            if (job.failure != null) {
+                logger.error("Error processing file: {}, some pages failed", job.fileProcessing.getFileHash());
+                failDocument(job.fileProcessing, job.failure);
+                return;
+            }
+            List<XPage> xPages = new ArrayList<>();
+            for (List<XPage> pages : job.batchResults) {
+                if (pages == null) {
+                    // a batch interrupted by shutdown: leave the document pending
+                    error = new RejectedExecutionException("OCR engine pool shut down");
+                    return;
                 }
+                xPages.addAll(pages);
             }
-        });
+            logger.info("Completed processing file: {} in {} batches", job.fileProcessing.getFileHash(),
+                    job.batchResults.length);
+            saveResult(job.fileProcessing, xPages);
+        } catch (Exception e) {
+            logger.error("Error processing file: {}", job.fileProcessing.getFileHash(), e);
+        } finally {
+            // engine time, comparable with documents OCRed on one engine
+            recordProcessingTime(job.engineMillis.get());
+            completeTask(job.fileProcessing, error);
+        }
     }
 
     /**
-     * Shutdown the engine pool and executor service.
+     * OCR pages of a file.
+     * @param engine The engine owned by the worker
+     * @param fileProcessing The file processing task
+     * @param pageNumbers 1-based numbers of the pages to OCR, or null for the whole file
+     * @return The OCRed pages, numbered as in the file
+     */
+    private List<XPage> ocrPages(IEngine engine, FileProcessing fileProcessing, List<Integer> pageNumbers) throws Exception {
+        EngineHealth health = currentEngineHealth.get();
+        // checked here, so that a missing file does not count as an engine failure
+        Path file = Path.of(fileProcessing.getOcrFilePath());
+        if (!Files.isReadable(file)) {
+            throw new NoSuchFileException(file.toString());
+        }
+        OcrMode mode = fileProcessing.getOcrMode() != null ? fileProcessing.getOcrMode() : defaultMode;
+        long start = System.currentTimeMillis();
+        List<XPage> xPages;
+        try {
+            if (mode == OcrMode.ADAPTIVE) {
+                xPages = ocrAdaptive(engine, file, pageNumbers, health);
+            } else {
+                xPages = ocrPages(engine, file, pageNumbers, profile(mode), health, null);
+            }
+        } catch (Exception e) {
+            if (health != null) {
+                health.failed();
+            }
+            throw e;
+        } finally {
+            if (health != null) {
+                health.workEnded();
+            }
+        }
+        if (health != null) {
+            if (health.isAbandoned()) {
+                // finished after the watchdog gave up the engine: the document already failed
+                throw new TimeoutException("OCR exceeded its time budget");
+            }
+            health.succeeded(xPages.size(), System.currentTimeMillis() - start);
+        }
+        return xPages;
+    }
+
+    /**
+     * OCR pages with the fast profile, then again with the accurate profile those recognized
+     * with low confidence, keeping the text of the second pass.
+     */
+    private List<XPage> ocrAdaptive(IEngine engine, Path file, List<Integer> pageNumbers, EngineHealth health) {
+        List<Integer> lowConfidencePages = new ArrayList<>();
+        List<XPage> xPages = ocrPages(engine, file, pageNumbers, profile(OcrMode.FAST), health, lowConfidencePages);
+        if (lowConfidencePages.isEmpty()) {
+            return xPages;
+        }
+        logger.info("Re-running {} of {} pages with the accurate profile", lowConfidencePages.size(), xPages.size());
+        accurateReruns.addAndGet(lowConfidencePages.size());
+        // with a time budget of its own
+        Map<Integer, XPage> reruns = new HashMap<>();
+        for (XPage xPage : ocrPages(engine, file, lowConfidencePages, profile(OcrMode.ACCURATE), health, null)) {
+            reruns.put(xPage.getPageNumber(), xPage);
+        }
+        List<XPage> merged = new ArrayList<>(xPages.size());
+        for (XPage xPage : xPages) {
+            merged.add(reruns.getOrDefault(xPage.getPageNumber(), xPage));
+        }
+        return merged;
+    }
+
+    /**
+     * @return predefined profile of the mode, null to keep the engine settings
+     */
+    private String profile(OcrMode mode) {
+        if (mode == OcrMode.FAST) {
+            return fastProfile;
+        }
+        return accurateProfile != null ? accurateProfile : config.getProfile();
+    }
+
+    /**
+     * Load a predefined profile into the engine, unless it is already loaded.
+     */
+    private void loadProfile(IEngine engine, String profile, EngineHealth health) {
+        if (profile == null || profile.isBlank()) {
+            return;
+        }
+        if (health != null && profile.equals(health.getLoadedProfile())) {
+            return;
+        }
+        engine.LoadPredefinedProfile(profile);
+        if (health != null) {
+            health.setLoadedProfile(profile);
+        }
+    }
+
+    /**
+     * OCR pages of a stored file. The engine reads the file itself, so its content is never
+     * copied into the Java heap.
+     * @param profile Predefined profile to process them with, null to keep the engine settings
+     * @param lowConfidencePages Collects the numbers of the pages recognized with a mean
+     *                           character confidence below the minimum; null not to check it
+     */
+    private List<XPage> ocrPages(IEngine engine, Path file, List<Integer> pageNumbers, String profile,
+                                 EngineHealth health, List<Integer> lowConfidencePages) {
+        if (health != null) {
+            // until the number of pages of the whole file is known
+            health.workStarted(timeBudget(pageNumbers != null ? pageNumbers.size() : 1), false);
+        }
+        loadProfile(engine, profile, health);
+        IFRDocument frDocument = engine.CreateFRDocument();
+        IIntsCollection pageIndices = null;
+        if (pageNumbers != null) {
+            pageIndices = engine.CreateIntsCollection();
+            for (Integer pageNumber : pageNumbers) {
+                pageIndices.Add(pageNumber - 1);
+            }
+        }
+        try {
+            frDocument.AddImageFile(file.toString(), null, pageIndices);
+            if (health != null && pageNumbers == null) {
+                health.setBudget(timeBudget(frDocument.getPages().getCount()));
+            }
+            frDocument.Process(null);
+            // Get the pages collection
+            IFRPages pages = frDocument.getPages();
+            // Process each page
+            List<XPage> xPages = new ArrayList<>();
+            for (int i = 0; i < pages.getCount(); i++) {
+                IFRPage page = pages.Item(i);
+                IPlainText pageText = page.getPlainText();
+                // map back to the page number in the original file
+                int pageNumber = pageNumbers != null ? pageNumbers.get(i) : i + 1;
+                logger.info("Processed page {}", pageNumber);
+                XPage xPage = new XPage();
+                xPage.setText(pageText.getText());
+                xPage.setPageNumber(pageNumber);
+                // kept with the page, so that later stages know which text to trust
+                xPage.setConfidence(meanConfidence(pageText));
+                xPages.add(xPage);
+                if (lowConfidencePages != null && xPage.getConfidence() < minConfidence) {
+                    lowConfidencePages.add(pageNumber);
+                }
+            }
+            return xPages;
+        } finally {
+            // free the page images held by the engine
+            frDocument.Close();
+        }
+    }
+
+    /**
+     * @return mean confidence, 0 to 100, of the characters of a page; 100 if it has none
+     */
+    private static double meanConfidence(IPlainText pageText) {
+        IIntsCollection confidences = pageText.getCharConfidence();
+        long sum = 0;
+        int count = 0;
+        for (int i = 0; confidences != null && i < confidences.getCount(); i++) {
+            int confidence = confidences.Item(i);
+            // out of range for characters that carry no confidence
+            if (confidence >= 0 && confidence <= 100) {
+                sum += confidence;
+                count++;
+            }
+        }
+        return count == 0 ? 100 : (double) sum / count;
+    }
+
+    private boolean hasTimeBudget() {
+        return documentBudgetMillis > 0 || pageBudgetMillis > 0;
+    }
+
+    /**
+     * @param pages Number of pages to OCR
+     * @return time allowed to OCR them, 0 for no limit
+     */
+    private long timeBudget(int pages) {
+        return hasTimeBudget() ? documentBudgetMillis + pageBudgetMillis * Math.max(1, pages) : 0;
+    }
+
+    /**
+     * @return true if the current worker's document was taken from it, by the watchdog or
+     * by shutdown
+     */
+    private boolean isAbandoned() {
+        EngineHealth health = currentEngineHealth.get();
+        return drainTimedOut || health != null && health.isAbandoned();
+    }
+
+    /**
+     * @return true if the watchdog gave up the current worker's engine, and so took over
+     * its document or batch
+     */
+    private boolean isGivenUp() {
+        EngineHealth health = currentEngineHealth.get();
+        return health != null && health.isAbandoned();
+    }
+
+    /**
+     * Mark a document FAILED with the reason.
+     */
+    private void failDocument(FileProcessing fileProcessing, String reason) {
+        logger.error("OCR of file {} failed: {}", fileProcessing.getFileHash(), reason);
+        if (processedFilesService != null) {
+            processedFilesService.markFailed(fileProcessing.getFileId().toString(), reason);
+        }
+    }
+
+    private void saveResult(FileProcessing fileProcessing, List<XPage> xPages) {
+        XDoc xDoc = new XDoc();
+        xDoc.setId(fileProcessing.getFileId());
+        xDoc.setPages(xPages);
+        if (processedFilesService != null) {
+            // merged with the text layer pages stored by the triage
+            processedFilesService.mergeOcrOutput(fileProcessing.getFileId().toString(), xDoc);
+        } else {
+            logger.warn("ProcessedFilesService is null, cannot save processed file");
+        }
+    }
+
+    /**
+     * A document OCRed in page batches on several engines.
+     */
+    private static class DocumentJob {
+        private final FileProcessing fileProcessing;
+        /** Pages of each batch, by batch index */
+        private final List<XPage>[] batchResults;
+        /** 1 for each batch done, so that a batch given up and its late result count once */
+        private final AtomicIntegerArray finishedBatches;
+        private final AtomicInteger remainingBatches;
+        /** Time spent by the engines on the batches */
+        private final AtomicLong engineMillis = new AtomicLong();
+        /** Why some pages failed, null while none did */
+        private volatile String failure;
+
+        @SuppressWarnings("unchecked")
+        DocumentJob(FileProcessing fileProcessing, int batchCount) {
+            this.fileProcessing = fileProcessing;
+            this.batchResults = new List[batchCount];
+            this.finishedBatches = new AtomicIntegerArray(batchCount);
+            this.remainingBatches = new AtomicInteger(batchCount);
+        }
+    }
+
+    /**
+     * Pages of a document to OCR on one engine.
+     * @param job The document
+     * @param index Index of the batch in the document
+     * @param pageNumbers 1-based numbers of the pages in the file
+     * @param queuedAt Time the batch was queued
+     */
+    private record PageBatch(DocumentJob job, int index, List<Integer> pageNumbers, long queuedAt) {
+    }
+
+    /**
+     * Document, or batch of a document, a worker is processing.
+     * @param fileProcessing The document
+     * @param batch The batch, or null for the whole document
+     */
+    private record Work(FileProcessing fileProcessing, PageBatch batch) {
+    }
+
+    /**
+     * Signal the end of a task to whoever submitted it.
+     * @param fileProcessing The file processing task
+     * @param error The reason the task was not processed, or null
+     */
+    private void completeTask(FileProcessing fileProcessing, Throwable error) {
+        CompletableFuture<Void> completion = completions.remove(fileProcessing.getFileId());
+        if (completion == null) {
+            return;
+        }
+        if (error != null) {
+            completion.completeExceptionally(error);
+        } else {
+            completion.complete(null);
+        }
+    }
+
+    /**
+     * Shutdown the engine pool: the workers finish their current task or batch and release
+     * their engine, within the drain timeout. Tasks still queued or still processing after
+     * the timeout, and split documents with batches still queued, are not saved, and stay
+     * pending in the stream.
      */
     public void shutdown() {
         running = false;
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
         executorService.shutdown();
         try {
-            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
-            // deinitialize engines
-            for (IEngine engine : enginePool) {
-                Engine.DeinitializeEngine();
+            if (executorService.awaitTermination(drainMillis > 0 ? drainMillis : Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                logger.info("Engine pool shutdown complete");
+            } else {
+                logger.warn("{} documents still processing after {} ms, leaving them pending", inProgress.size(), drainMillis);
+                drainTimedOut = true;
+                executorService.shutdownNow();
             }
-            logger.info("Engine pool shutdown complete");
         } catch (Exception e) {
             logger.error("Error during shutdown", e);
             Thread.currentThread().interrupt();
         }
+        List<FileProcessing> unprocessed = new ArrayList<>();
+        for (Work work : inProgress.values()) {
+            unprocessed.add(work.fileProcessing());
+        }
+        inProgress.clear();
+        if (taskQueue != null) {
+            taskQueue.drainTo(unprocessed);
+        }
+        List<PageBatch> unprocessedBatches = new ArrayList<>();
+        batchQueue.drainTo(unprocessedBatches);
+        for (PageBatch batch : unprocessedBatches) {
+            unprocessed.add(batch.job().fileProcessing);
+        }
+        for (FileProcessing task : unprocessed) {
+            completeTask(task, new RejectedExecutionException("OCR engine pool shut down"));
+        }
+        submittedAt.clear();
+    }
+
+    /**
+     * Initializes ABBYY engines from the OCR configuration.
+     */
+    private class AbbyyEngineFactory implements EngineFactory {
+
+        @Override
+        public IEngine create() throws Exception {
+            return Engine.InitializeEngine(
+                    config.getLibFolder(),
+                    config.getCustomerProjectId(),
+                    config.getLicensePath(),
+                    config.getLicensePassword(),
+                    "",
+                    "",
+                    false
+            );
+        }
+
+        @Override
+        public void release(IEngine engine) throws Exception {
+            Engine.DeinitializeEngine();
+        }
     }
 }
@@ -0,0 +1,216 @@
+package one.cax.textractor.ocr;
+
+/**
+ * Bookkeeping of one OCR engine: documents processed, failures and drift of the time to
+ * process a page, from which the pool decides to recycle the engine.
+ * <p>
+ * The drift is the recent time per page over the time per page of the first documents of
+ * the engine: a long-lived engine leaking native memory gets slower.
+ */
+public class EngineHealth {
+
+    /** Why an engine is recycled */
+    public enum RecycleReason {
+        /** Processed the maximum number of documents */
+        DOCUMENTS,
+        /** Failed too many documents in a row */
+        FAILURES,
+        /** Got too slow compared with its first documents */
+        DRIFT,
+        /** Did not process the canary page, or not in time */
+        CANARY,
+        /** Did not process a document within its time budget */
+        TIMEOUT
+    }
+
+    /** Documents that set the baseline time per page */
+    static final int BASELINE_DOCUMENTS = 20;
+
+    private static final double RECENT_WEIGHT = 0.1;
+
+    private final int index;
+    private final Thread thread;
+    private long documents;
+    private long failures;
+    private int consecutiveFailures;
+    private double baselineMillisPerPage;
+    private int baselineDocuments;
+    private double recentMillisPerPage;
+    /** Start of the document, batch or canary page being processed */
+    private volatile long workStartedAt;
+    /** Time by which the work in progress must be done, 0 if none or no limit */
+    private volatile long deadline;
+    /** Whether the work in progress is the canary page */
+    private volatile boolean onCanary;
+    /** Set when the engine is given up while its thread is stuck in it */
+    private volatile boolean abandoned;
+    /** Predefined profile loaded into the engine, null if none yet; only used by its worker */
+    private String loadedProfile;
+
+    /**
+     * @param index Index of the worker owning the engine
+     * @param thread Thread of the worker
+     */
+    EngineHealth(int index, Thread thread) {
+        this.index = index;
+        this.thread = thread;
+    }
+
+    /**
+     * Record a document, or a page batch, processed.
+     * @param pages Number of pages processed
+     * @param millis Time to process them
+     */
+    synchronized void succeeded(int pages, long millis) {
+        documents++;
+        consecutiveFailures = 0;
+        if (pages <= 0) {
+            return;
+        }
+        double millisPerPage = (double) millis / pages;
+        if (baselineDocuments < BASELINE_DOCUMENTS) {
+            baselineMillisPerPage += (millisPerPage - baselineMillisPerPage) / ++baselineDocuments;
+            recentMillisPerPage = baselineMillisPerPage;
+        } else {
+            recentMillisPerPage += RECENT_WEIGHT * (millisPerPage - recentMillisPerPage);
+        }
+    }
+
+    /**
+     * Record a document, or a page batch, the engine failed to process.
+     */
+    synchronized void failed() {
+        documents++;
+        failures++;
+        consecutiveFailures++;
+    }
+
+    /**
+     * Whether the engine must be recycled.
+     * @param maxDocuments Documents after which it is recycled; 0 for no limit
+     * @param maxConsecutiveFailures Failures in a row after which it is recycled; 0 for no limit
+     * @param maxDrift Drift above which it is recycled; 0 for no limit
+     * @return The reason to recycle the engine, or null to keep it
+     */
+    synchronized RecycleReason recycleReason(long maxDocuments, int maxConsecutiveFailures, double maxDrift) {
+        if (maxConsecutiveFailures > 0 && consecutiveFailures >= maxConsecutiveFailures) {
+            return RecycleReason.FAILURES;
+        }
+        if (maxDocuments > 0 && documents >= maxDocuments) {
+            return RecycleReason.DOCUMENTS;
+        }
+        if (maxDrift > 0 && getDrift() > maxDrift) {
+            return RecycleReason.DRIFT;
+        }
+        return null;
+    }
+
+    /**
+     * Start over, when the engine could not be replaced and is kept.
+     */
+    synchronized void reset() {
+        documents = 0;
+        consecutiveFailures = 0;
+        baselineDocuments = 0;
+        baselineMillisPerPage = 0;
+        recentMillisPerPage = 0;
+    }
+
+    /**
+     * Record the start of a document, batch or canary page.
+     * @param budgetMillis Time allowed to process it; 0 for no limit
+     * @param canary Whether it is the canary page
+     */
+    void workStarted(long budgetMillis, boolean canary) {
+        onCanary = canary;
+        workStartedAt = System.currentTimeMillis();
+        setBudget(budgetMillis);
+    }
+
+    /**
+     * Change the time allowed to the work in progress, once its number of pages is known.
+     * @param budgetMillis Time allowed since the work started; 0 for no limit
+     */
+    void setBudget(long budgetMillis) {
+        deadline = budgetMillis > 0 ? workStartedAt + budgetMillis : 0;
+    }
+
+    void workEnded() {
+        deadline = 0;
+        onCanary = false;
+    }
+
+    /**
+     * @return true if the work in progress has been processing for longer than allowed
+     */
+    boolean isOverdue() {
+        long until = deadline;
+        return until > 0 && System.currentTimeMillis() > until;
+    }
+
+    /**
+     * @return true if the work in progress is the canary page
+     */
+    boolean isOnCanary() {
+        return onCanary;
+    }
+
+    /**
+     * @return time allowed to the work in progress, 0 if none or no limit
+     */
+    long getBudgetMillis() {
+        long until = deadline;
+        return until > 0 ? until - workStartedAt : 0;
+    }
+
+    /**
+     * Give up the engine: its worker stops once its thread returns from the engine.
+     * @return false if it was already given up
+     */
+    synchronized boolean abandon() {
+        if (abandoned) {
+            return false;
+        }
+        abandoned = true;
+        thread.interrupt();
+        return true;
+    }
+
+    boolean isAbandoned() {
+        return abandoned;
+    }
+
+    String getLoadedProfile() {
+        return loadedProfile;
+    }
+
+    void setLoadedProfile(String loadedProfile) {
+        this.loadedProfile = loadedProfile;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public synchronized long getDocuments() {
+        return documents;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return recent time per page over the baseline time per page; 1 until the baseline is set
+     */
+    public synchronized double getDrift() {
+        if (baselineDocuments < BASELINE_DOCUMENTS || baselineMillisPerPage <= 0) {
+            return 1;
+        }
+        return recentMillisPerPage / baselineMillisPerPage;
+    }
+}
@@ -0,0 +1,426 @@
+package one.cax.textractor.ocr;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import one.cax.textractor.datamodel.DocumentFormat;
+import one.cax.textractor.datamodel.FileProcessing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shrinks raster images before OCR, on its own threads so that the engines only see cheap
+ * inputs.
+ * <p>
+ * OCR time grows with the number of pixels, and phone photos or 600 dpi scans have far more
+ * than the engine needs. Each image is downscaled to the target resolution, or to the
+ * maximum size when it does not tell its resolution, converted to grayscale or bilevel,
+ * cropped of its uniform borders and written as PNG. The result is kept in the filestore
+ * under the hash of the stored file and the settings, so the same image is processed once.
+ * <p>
+ * PDFs, multi-page images and images that cannot be read are OCRed as stored.
+ */
+@Service
+public class ImagePreprocessor {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /** Pixels of gray levels within this range count as uniform, when cropping borders */
+    private static final int UNIFORM_RANGE = 24;
+
+    /** Pixels kept around the content when cropping borders */
+    private static final int CROP_MARGIN = 16;
+
+    /** Color of the OCR input */
+    public enum ColorMode {
+        GRAY,
+        BILEVEL
+    }
+
+    @Value("${textractor.ocr.preprocess.enabled:false}")
+    private boolean enabled = false;
+
+    /** Threads pre-processing images; 0 for half the cores */
+    @Value("${textractor.ocr.preprocess.threads:0}")
+    private int threads = 0;
+
+    /** Resolution images are downscaled to */
+    @Value("${textractor.ocr.preprocess.target-dpi:300}")
+    private int targetDpi = 300;
+
+    /** Longest side, in pixels, of the images that do not tell their resolution */
+    @Value("${textractor.ocr.preprocess.max-side:3500}")
+    private int maxSide = 3500;
+
+    @Value("${textractor.ocr.preprocess.color:GRAY}")
+    private ColorMode colorMode = ColorMode.GRAY;
+
+    @Value("${textractor.ocr.preprocess.crop-borders:true}")
+    private boolean cropBorders = true;
+
+    @Value("${textractor.filestore.path}")
+    private String fileStorePath;
+
+    private ExecutorService preprocessPool;
+
+    private final Counter processedCounter;
+    private final Counter cachedCounter;
+    private final Counter skippedCounter;
+
+    /**
+     * @param meterRegistry The meter registry to register metrics with
+     */
+    public ImagePreprocessor(MeterRegistry meterRegistry) {
+        this.processedCounter = counter(meterRegistry, "processed", "Images pre-processed before OCR");
+        this.cachedCounter = counter(meterRegistry, "cached", "Images whose pre-processed version was already stored");
+        this.skippedCounter = counter(meterRegistry, "skipped", "Images OCRed as stored");
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String result, String description) {
+        return Counter.builder("ocrPreprocessing")
+                .tag("result", result)
+                .description(description)
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return true if images are pre-processed
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Pre-process the image of a request on the pre-processing threads, and point the request
+     * to the result. Completes normally even if the image could not be processed: it is then
+     * OCRed as stored.
+     * @param fileProcessing The OCR request
+     * @return future completed once the request is ready for OCR
+     */
+    public CompletableFuture<Void> preprocess(FileProcessing fileProcessing) {
+        DocumentFormat format = fileProcessing.getDocumentFormat();
+        if (!enabled || format == null || !format.isImage()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> {
+            try {
+                Path output = preprocess(Path.of(fileProcessing.getFilePath()), fileProcessing.getFileHash());
+                if (output != null) {
+                    fileProcessing.setOcrFilePath(output.toString());
+                }
+            } catch (Exception e) {
+                skippedCounter.increment();
+                logger.warn("Cannot pre-process image {}, OCR as stored: {}", fileProcessing.getFileHash(), e.getMessage());
+            }
+        }, getPreprocessPool());
+    }
+
+    /**
+     * Pre-process an image, or reuse the result stored for the same content and settings.
+     * @param input The stored image
+     * @param fileHash Hash of its content
+     * @return The pre-processed image, or null to OCR the image as stored
+     * @throws IOException if the image cannot be read or the result written
+     */
+    Path preprocess(Path input, String fileHash) throws IOException {
+        Path output = Paths.get(fileStorePath, "preprocessed", fileHash + "-" + settingsKey() + ".png");
+        if (Files.exists(output)) {
+            cachedCounter.increment();
+            return output;
+        }
+        BufferedImage image = read(input);
+        if (image == null) {
+            skippedCounter.increment();
+            return null;
+        }
+        Files.createDirectories(output.getParent());
+        // written aside then moved, so that a concurrent request never reads a partial file
+        Path partial = Files.createTempFile(output.getParent(), fileHash, ".tmp");
+        try {
+            ImageIO.write(image, "png", partial.toFile());
+            Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+        processedCounter.increment();
+        logger.info("Pre-processed image {} to {}x{} {}", fileHash, image.getWidth(), image.getHeight(), colorMode);
+        return output;
+    }
+
+    /**
+     * Read a single-image file at the target resolution, in grayscale, cropped.
+     * @return the image, or null if it cannot be read or has several pages
+     */
+    private BufferedImage read(Path input) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(input.toFile())) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                if (reader.getNumImages(true) != 1) {
+                    return null;
+                }
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                double scale = scale(width, height, dpi(reader.getImageMetadata(0)));
+                // whole pixels are skipped while reading, so that a large image never sits in memory
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, (int) Math.floor(1 / scale));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage image = reader.read(0, param);
+                int targetWidth = Math.max(1, (int) Math.round(width * scale));
+                int targetHeight = Math.max(1, (int) Math.round(height * scale));
+                BufferedImage gray = toGray(image, targetWidth, targetHeight);
+                if (cropBorders) {
+                    gray = crop(gray);
+                }
+                return colorMode == ColorMode.BILEVEL ? toBilevel(gray) : gray;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @param dpi Resolution of the image, 0 if unknown
+     * @return the factor to scale the image by, never above 1
+     */
+    double scale(int width, int height, double dpi) {
+        double scale = dpi > 0 ? targetDpi / dpi : 1;
+        int longest = Math.max(width, height);
+        if (maxSide > 0 && longest * scale > maxSide) {
+            scale = (double) maxSide / longest;
+        }
+        return Math.min(1, scale);
+    }
+
+    /**
+     * @return horizontal resolution of the image, 0 if it does not tell
+     */
+    private static double dpi(IIOMetadata metadata) {
+        if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+            return 0;
+        }
+        Node root = metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+        for (Node dimension = root.getFirstChild(); dimension != null; dimension = dimension.getNextSibling()) {
+            if (!"Dimension".equals(dimension.getNodeName())) {
+                continue;
+            }
+            for (Node child = dimension.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if ("HorizontalPixelSize".equals(child.getNodeName())) {
+                    NamedNodeMap attributes = child.getAttributes();
+                    Node value = attributes == null ? null : attributes.getNamedItem("value");
+                    if (value != null) {
+                        // millimeters per pixel, but the JDK PNG plugin reports pixels per millimeter:
+                        // no document is scanned below 25.4 dpi, so a value above 1 is the latter
+                        double size = Double.parseDouble(value.getNodeValue());
+                        if (size <= 0) {
+                            return 0;
+                        }
+                        return size > 1 ? size * 25.4 : 25.4 / size;
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static BufferedImage toGray(BufferedImage image, int width, int height) {
+        BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = gray.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return gray;
+    }
+
+    /**
+     * Crop the rows and columns of uniform color around the content, such as the table
+     * around a photographed page or the white margins of a scan. The color of each border is
+     * that of the outermost row or column on its side.
+     */
+    static BufferedImage crop(BufferedImage gray) {
+        Raster raster = gray.getRaster();
+        int width = gray.getWidth();
+        int height = gray.getHeight();
+        int top = 0;
+        int level = uniformLevel(raster, 0, 0, width, 1);
+        while (top < height && isLevel(raster, 0, top, width, 1, level)) {
+            top++;
+        }
+        if (top == height) {
+            // blank image: nothing to crop to
+            return gray;
+        }
+        int bottom = height - 1;
+        level = uniformLevel(raster, 0, bottom, width, 1);
+        while (bottom > top && isLevel(raster, 0, bottom, width, 1, level)) {
+            bottom--;
+        }
+        int rows = bottom - top + 1;
+        int left = 0;
+        level = uniformLevel(raster, 0, top, 1, rows);
+        while (left < width && isLevel(raster, left, top, 1, rows, level)) {
+            left++;
+        }
+        int right = width - 1;
+        level = uniformLevel(raster, right, top, 1, rows);
+        while (right > left && isLevel(raster, right, top, 1, rows, level)) {
+            right--;
+        }
+        if (left > right) {
+            return gray;
+        }
+        Rectangle content = new Rectangle(left, top, right - left + 1, rows);
+        content.grow(CROP_MARGIN, CROP_MARGIN);
+        content = content.intersection(new Rectangle(0, 0, width, height));
+        if (content.width == width && content.height == height) {
+            return gray;
+        }
+        BufferedImage cropped = new BufferedImage(content.width, content.height, BufferedImage.TYPE_BYTE_GRAY);
+        cropped.setData(raster.createChild(content.x, content.y, content.width, content.height, 0, 0, null));
+        return cropped;
+    }
+
+    /**
+     * @return the gray level of the area if it is uniform, otherwise -1
+     */
+    private static int uniformLevel(Raster raster, int x, int y, int width, int height) {
+        int[] samples = raster.getSamples(x, y, width, height, 0, (int[]) null);
+        int min = 255;
+        int max = 0;
+        for (int sample : samples) {
+            min = Math.min(min, sample);
+            max = Math.max(max, sample);
+        }
+        return max - min < UNIFORM_RANGE ? (min + max) / 2 : -1;
+    }
+
+    /**
+     * @return true if all the pixels of the area are close to the gray level
+     */
+    private static boolean isLevel(Raster raster, int x, int y, int width, int height, int level) {
+        if (level < 0) {
+            return false;
+        }
+        int[] samples = raster.getSamples(x, y, width, height, 0, (int[]) null);
+        for (int sample : samples) {
+            if (Math.abs(sample - level) >= UNIFORM_RANGE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Threshold a grayscale image at the level that best separates ink from paper (Otsu).
+     */
+    static BufferedImage toBilevel(BufferedImage gray) {
+        int width = gray.getWidth();
+        int height = gray.getHeight();
+        int[] samples = gray.getRaster().getSamples(0, 0, width, height, 0, (int[]) null);
+        int[] histogram = new int[256];
+        for (int sample : samples) {
+            histogram[sample]++;
+        }
+        int threshold = otsuThreshold(histogram, samples.length);
+        BufferedImage bilevel = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        WritableRaster raster = bilevel.getRaster();
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = samples[i] > threshold ? 1 : 0;
+        }
+        raster.setSamples(0, 0, width, height, 0, samples);
+        return bilevel;
+    }
+
+    private static int otsuThreshold(int[] histogram, int total) {
+        long sum = 0;
+        for (int level = 0; level < 256; level++) {
+            sum += (long) level * histogram[level];
+        }
+        long sumBackground = 0;
+        int background = 0;
+        double bestVariance = -1;
+        int threshold = 127;
+        for (int level = 0; level < 256; level++) {
+            background += histogram[level];
+            if (background == 0) {
+                continue;
+            }
+            int foreground = total - background;
+            if (foreground == 0) {
+                break;
+            }
+            sumBackground += (long) level * histogram[level];
+            double meanBackground = (double) sumBackground / background;
+            double meanForeground = (double) (sum - sumBackground) / foreground;
+            double variance = (double) background * foreground * (meanBackground - meanForeground) * (meanBackground - meanForeground);
+            if (variance > bestVariance) {
+                bestVariance = variance;
+                threshold = level;
+            }
+        }
+        return threshold;
+    }
+
+    /**
+     * @return the settings the pre-processed images depend on, part of their cache key
+     */
+    private String settingsKey() {
+        return targetDpi + "dpi-" + maxSide + "-" + colorMode.name().toLowerCase(Locale.ROOT) + (cropBorders ? "-crop" : "");
+    }
+
+    private synchronized ExecutorService getPreprocessPool() {
+        if (preprocessPool == null) {
+            int count = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            AtomicInteger threadNumber = new AtomicInteger();
+            preprocessPool = Executors.newFixedThreadPool(count, runnable -> {
+                Thread thread = new Thread(runnable, "ocr-preprocess-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return preprocessPool;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (preprocessPool != null) {
+            preprocessPool.shutdownNow();
+        }
+    }
+}
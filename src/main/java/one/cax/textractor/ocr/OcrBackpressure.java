@@ -0,0 +1,121 @@
+package one.cax.textractor.ocr;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import one.cax.textractor.messaging.RedisStreamWorkQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for new documents, based on the OCR backlog.
+ * <p>
+ * Every OCR node takes at most as many requests from the OCR stream as it has engines, so
+ * the work waiting for OCR across the cluster is the backlog of the stream: the requests
+ * delivered and not yet acknowledged plus the requests not yet delivered. Once it reaches
+ * the configured maximum, new documents are refused with a retry delay estimated from the
+ * excess backlog and the time it takes to OCR a document.
+ */
+@Service
+public class OcrBackpressure {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${textractor.redis.ocr.topic}")
+    private String ocrTopic;
+
+    @Value("${textractor.ocr.admission.enabled:true}")
+    private boolean enabled = true;
+
+    /** Backlog of the OCR stream from which new documents are refused */
+    @Value("${textractor.ocr.admission.max-backlog:1000}")
+    private int maxBacklog = 1000;
+
+    /** Time to OCR a document until this node has measured it */
+    @Value("${textractor.ocr.admission.default-document-seconds:30}")
+    private int defaultDocumentSeconds = 30;
+
+    @Value("${textractor.ocr.admission.max-retry-after-seconds:300}")
+    private int maxRetryAfterSeconds = 300;
+
+    private final RedisStreamWorkQueue workQueue;
+
+    private final AbbyyEngine abbyyEngine;
+
+    /** Backlog of the OCR stream at the last admission check */
+    private final AtomicLong lastBacklog = new AtomicLong();
+
+    private final Counter rejectionsCounter;
+
+    /**
+     * @param workQueue Redis Streams work queue of the processing stages
+     * @param abbyyEngine OCR engines of this node
+     * @param meterRegistry The meter registry to register metrics with
+     */
+    public OcrBackpressure(RedisStreamWorkQueue workQueue, AbbyyEngine abbyyEngine, MeterRegistry meterRegistry) {
+        this.workQueue = workQueue;
+        this.abbyyEngine = abbyyEngine;
+
+        Gauge.builder("ocrQueueDepth", abbyyEngine, AbbyyEngine::getQueueDepth)
+                .description("Number of OCR tasks waiting for an engine on this node")
+                .register(meterRegistry);
+        Gauge.builder("ocrBacklog", lastBacklog, AtomicLong::get)
+                .description("Backlog of the OCR stream at the last admission check")
+                .register(meterRegistry);
+        this.rejectionsCounter = Counter
+                .builder("ocrAdmissionRejections")
+                .description("Number of documents refused because the OCR backlog is full")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Check whether a new document can be accepted.
+     *
+     * @return Empty if the document is accepted, otherwise the delay after which the client should retry
+     */
+    public Optional<Duration> admit() {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        long backlog;
+        try {
+            // no need to count past the limit
+            backlog = workQueue.getBacklog(ocrTopic, maxBacklog + 1);
+        } catch (DataAccessException e) {
+            // do not refuse documents because the backlog cannot be read; publishing will report Redis errors
+            logger.warn("Cannot read the OCR backlog: {}", e.getMessage());
+            return Optional.empty();
+        }
+        lastBacklog.set(backlog);
+        if (backlog < maxBacklog) {
+            return Optional.empty();
+        }
+        rejectionsCounter.increment();
+        Duration retryAfter = retryAfter(backlog);
+        logger.warn("OCR backlog {} reached the maximum of {}, retry after {}s", backlog, maxBacklog,
+                retryAfter.toSeconds());
+        return Optional.of(retryAfter);
+    }
+
+    /**
+     * Time for the engines to work the backlog back under the maximum, assuming the other
+     * nodes run as many engines as this one.
+     */
+    Duration retryAfter(long backlog) {
+        double documentMillis = abbyyEngine.getAverageProcessingMillis();
+        if (documentMillis <= 0) {
+            documentMillis = defaultDocumentSeconds * 1000.0;
+        }
+        int engines = Math.max(1, abbyyEngine.getPoolSize());
+        long excess = backlog - maxBacklog + 1;
+        long seconds = (long) Math.ceil(excess * documentMillis / engines / 1000);
+        return Duration.ofSeconds(Math.max(1, Math.min(seconds, maxRetryAfterSeconds)));
+    }
+}
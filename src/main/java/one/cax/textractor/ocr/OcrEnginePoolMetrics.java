@@ -0,0 +1,61 @@
+package one.cax.textractor.ocr;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+/**
+ * Size and scaling of the OCR engine pool: the engines ready, started and given up against
+ * the pool bounds, the queue wait that drives scaling up, the scaling events, the engines
+ * recycled and the pages OCRed again by the adaptive mode.
+ */
+@Component
+public class OcrEnginePoolMetrics {
+
+    /**
+     * @param abbyyEngine OCR engines of this node
+     * @param meterRegistry The meter registry to register metrics with
+     */
+    public OcrEnginePoolMetrics(AbbyyEngine abbyyEngine, MeterRegistry meterRegistry) {
+        Gauge.builder("ocrEngines", abbyyEngine, AbbyyEngine::getReadyEngines)
+                .tag("state", "ready")
+                .description("Number of OCR engines taking tasks")
+                .register(meterRegistry);
+        Gauge.builder("ocrEngines", abbyyEngine, AbbyyEngine::getActiveEngines)
+                .tag("state", "active")
+                .description("Number of OCR engines started, including those still initializing")
+                .register(meterRegistry);
+        Gauge.builder("ocrEngines", abbyyEngine, AbbyyEngine::getAbandonedEngines)
+                .tag("state", "abandoned")
+                .description("Number of OCR engines given up and still held by their stuck thread, waiting to be replaced")
+                .register(meterRegistry);
+        Gauge.builder("ocrEnginesMin", abbyyEngine, AbbyyEngine::getMinEngines)
+                .description("Number of OCR engines kept when idle")
+                .register(meterRegistry);
+        Gauge.builder("ocrEnginesMax", abbyyEngine, AbbyyEngine::getPoolSize)
+                .description("Maximum number of OCR engines")
+                .register(meterRegistry);
+        Gauge.builder("ocrQueueWait", abbyyEngine, AbbyyEngine::getQueueWaitMillis)
+                .baseUnit("milliseconds")
+                .description("Time the oldest queued OCR work has been waiting for an engine")
+                .register(meterRegistry);
+        FunctionCounter.builder("ocrEngineScaling", abbyyEngine, AbbyyEngine::getScaleUps)
+                .tag("direction", "up")
+                .description("Number of OCR engines added because queued work waited too long")
+                .register(meterRegistry);
+        FunctionCounter.builder("ocrEngineScaling", abbyyEngine, AbbyyEngine::getScaleDowns)
+                .tag("direction", "down")
+                .description("Number of idle OCR engines retired")
+                .register(meterRegistry);
+        FunctionCounter.builder("ocrAccurateReruns", abbyyEngine, AbbyyEngine::getAccurateReruns)
+                .description("Number of pages OCRed again with the accurate profile for their low confidence")
+                .register(meterRegistry);
+        for (EngineHealth.RecycleReason reason : EngineHealth.RecycleReason.values()) {
+            FunctionCounter.builder("ocrEngineRecycling", abbyyEngine, engine -> engine.getEngineRecycles(reason))
+                    .tag("reason", reason.name().toLowerCase())
+                    .description("Number of OCR engines replaced by a new one")
+                    .register(meterRegistry);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package one.cax.textractor.ocr;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Reports OCR as up once the minimum number of engines is initialized, while the other
+ * engines of the pool may still be warming up. Part of the readiness group. The details
+ * include the bookkeeping of each engine.
+ */
+@Component
+public class OcrEnginesHealthIndicator implements HealthIndicator {
+
+    private final AbbyyEngine abbyyEngine;
+
+    /**
+     * @param abbyyEngine OCR engines of this node
+     */
+    public OcrEnginesHealthIndicator(AbbyyEngine abbyyEngine) {
+        this.abbyyEngine = abbyyEngine;
+    }
+
+    @Override
+    public Health health() {
+        int readyEngines = abbyyEngine.getReadyEngines();
+        Health.Builder builder = abbyyEngine.isInitialized() && readyEngines >= abbyyEngine.getMinReadyEngines()
+                ? Health.up()
+                : Health.down();
+        return builder
+                .withDetail("readyEngines", readyEngines)
+                .withDetail("minReadyEngines", abbyyEngine.getMinReadyEngines())
+                .withDetail("poolSize", abbyyEngine.getPoolSize())
+                .withDetail("engines", abbyyEngine.getEngineHealth().stream()
+                        .map(engine -> Map.of(
+                                "index", engine.getIndex(),
+                                "documents", engine.getDocuments(),
+                                "failures", engine.getFailures(),
+                                "consecutiveFailures", engine.getConsecutiveFailures(),
+                                "drift", engine.getDrift()))
+                        .toList())
+                .build();
+    }
+}
@@ -1,6 +1,8 @@
 package one.cax.textractor.service;
 
 
+import one.cax.textractor.datamodel.ProcessingStatus;
+import one.cax.textractor.datamodel.StoredFile;
 import one.cax.textractor.datamodel.XDoc;
 import one.cax.textractor.db.ProcessedFiles;
 import one.cax.textractor.db.ProcessedFilesRepository;
@@ -10,15 +12,27 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.Optional;
 import java.util.UUID;
 
 @Service
 public class ProcessedFilesService {
 
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /** Length of the failure_reason column */
+    private static final int MAX_FAILURE_REASON_LENGTH = 1000;
+
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     @Value("${textractor.filestore.path}")
@@ -83,11 +97,49 @@ public class ProcessedFilesService {
             return null;
         }
     }
-    
-    
-    
-    
-    
+
+    /**
+     * Stream content into the file system, hashing it on the way.
+     * The content is copied through a fixed-size buffer, so memory use does not
+     * depend on the file size, and the SHA-256 hash comes out of the same pass.
+     *
+     * @param content The stream to store; it is closed once consumed
+     * @return Reference to the stored file with its hash and size
+     * @throws IOException if the content cannot be read or written
+     */
+    public StoredFile storeFile(InputStream content) throws IOException {
+        Path directoryPath = Paths.get(fileStorePath);
+        Files.createDirectories(directoryPath);
+        Path filePath = directoryPath.resolve(UUID.randomUUID().toString());
+
+        MessageDigest digest = newSha256Digest();
+        long size = 0;
+        try (DigestInputStream in = new DigestInputStream(content, digest);
+             OutputStream out = Files.newOutputStream(filePath)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                size += read;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(filePath);
+            throw e;
+        }
+
+        String fileHash = HexFormat.of().formatHex(digest.digest());
+        logger.info("Stored file {} ({} bytes, hash {})", filePath, size, fileHash);
+        return new StoredFile(filePath.toString(), fileHash, size);
+    }
+
+    private MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
     /**
      * Update the processing status for a processed file
      * 
@@ -98,12 +150,8 @@ public class ProcessedFilesService {
     public boolean updateProcessingStatus(String fileId, String status) {
         try {
             UUID uuid = UUID.fromString(fileId);
-            Optional<ProcessedFiles> fileOpt = processedFilesRepository.findById(uuid);
-            
-            if (fileOpt.isPresent()) {
-                ProcessedFiles file = fileOpt.get();
-                file.setProcessingStatus(status);
-                processedFilesRepository.save(file);
+            // the status only: the stages may be writing their content meanwhile
+            if (processedFilesRepository.updateProcessingStatus(uuid, status) > 0) {
                 logger.info("Updated processing status for file {} to {}", fileId, status);
                 return true;
             } else {
@@ -117,24 +165,80 @@ public class ProcessedFilesService {
     }
     
     /**
-     * Update the LLM output for a processed file
-     * 
+     * Mark a processed file as failed
+     *
      * @param fileId The ID of the file to update
-     * @param llmOutput The LLM output to set
+     * @param reason Why the processing failed
      * @return True if the update was successful, false otherwise
      */
-    public boolean updateLlmOutput(String fileId, XDoc llmOutput) {
+    public boolean markFailed(String fileId, String reason) {
+        try {
+            UUID uuid = UUID.fromString(fileId);
+            String failureReason = reason != null && reason.length() > MAX_FAILURE_REASON_LENGTH
+                    ? reason.substring(0, MAX_FAILURE_REASON_LENGTH) : reason;
+
+            if (processedFilesRepository.updateFailure(uuid, ProcessingStatus.FAILED.name(), failureReason) > 0) {
+                logger.warn("Marked file {} as failed: {}", fileId, reason);
+                return true;
+            } else {
+                logger.error("File with ID {} not found", fileId);
+                return false;
+            }
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid file ID format: {}", fileId, e);
+            return false;
+        }
+    }
+
+    /**
+     * Merge OCR output into a processed file.
+     * Pages already stored (e.g. taken from the PDF text layer) are kept,
+     * pages with the same number are replaced by the new ones. Only the OCR content is written.
+     *
+     * @param fileId The ID of the file to update
+     * @param ocrOutput The OCR output to merge
+     * @return True if the update was successful, false otherwise
+     */
+    public boolean mergeOcrOutput(String fileId, XDoc ocrOutput) {
         try {
             UUID uuid = UUID.fromString(fileId);
             Optional<ProcessedFiles> fileOpt = processedFilesRepository.findById(uuid);
-            
-            if (fileOpt.isPresent()) {
 
+            if (fileOpt.isPresent()) {
                 ProcessedFiles file = fileOpt.get();
-                file.setLlmContent(llmOutput);
-                processedFilesRepository.save(file);
-                logger.info("Updated LLM output for file {}", fileId);
-                
+                XDoc ocrContent = file.getOcrContent();
+                if (ocrContent == null) {
+                    ocrContent = ocrOutput;
+                } else {
+                    ocrContent.mergePages(ocrOutput.getPages());
+                }
+                processedFilesRepository.updateOcrContent(uuid, ocrContent);
+                logger.info("Merged {} OCR pages for file {}", ocrOutput.getTotalPages(), fileId);
+                return true;
+            } else {
+                logger.error("File with ID {} not found", fileId);
+                return false;
+            }
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid file ID format: {}", fileId, e);
+            return false;
+        }
+    }
+
+    /**
+     * Save the LLM pages of a processed file extracted so far, and their number, so that
+     * they can be read before the whole document is extracted. Only the LLM content is
+     * written, without reading the file.
+     *
+     * @param fileId The ID of the file to update
+     * @param llmOutput All the LLM pages extracted so far
+     * @return True if the update was successful, false otherwise
+     */
+    public boolean saveLlmPages(String fileId, XDoc llmOutput) {
+        try {
+            UUID uuid = UUID.fromString(fileId);
+            if (processedFilesRepository.updateLlmContent(uuid, llmOutput, llmOutput.getTotalPages()) > 0) {
+                logger.info("Saved {} LLM pages for file {}", llmOutput.getTotalPages(), fileId);
                 return true;
             } else {
                 logger.error("File with ID {} not found", fileId);
@@ -0,0 +1,28 @@
+package one.cax.textractor.text;
+
+import one.cax.textractor.datamodel.DocumentFormat;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Extracts the text of the documents of some formats, page by page, without OCR.
+ * Implementations are Spring beans collected by the {@link DocumentExtractorRegistry}.
+ */
+public interface DocumentExtractor {
+
+    /**
+     * @return the formats this extractor reads
+     */
+    Set<DocumentFormat> getFormats();
+
+    /**
+     * Extract the text of a document.
+     *
+     * @param file The document
+     * @param format The detected format of the document, one of {@link #getFormats()}
+     * @param sink Receives the pages, in page order
+     * @throws DocumentExtractionException If the document cannot be read
+     */
+    void extract(Path file, DocumentFormat format, PageSink sink) throws DocumentExtractionException;
+}
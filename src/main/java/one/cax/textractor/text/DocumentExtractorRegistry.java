@@ -0,0 +1,97 @@
+package one.cax.textractor.text;
+
+import one.cax.textractor.datamodel.DocumentFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Routes each document to the extractor of its format, detected from the file content.
+ * Formats without an extractor (images, unknown files) have no text to read and go to OCR.
+ */
+@Service
+public class DocumentExtractorRegistry {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final DocumentFormatDetector formatDetector;
+    private final Map<DocumentFormat, DocumentExtractor> extractors = new EnumMap<>(DocumentFormat.class);
+
+    /**
+     * @param formatDetector Detects the format of the files
+     * @param documentExtractors All the extractors; the first one registered for a format wins
+     */
+    public DocumentExtractorRegistry(DocumentFormatDetector formatDetector, List<DocumentExtractor> documentExtractors) {
+        this.formatDetector = formatDetector;
+        for (DocumentExtractor extractor : documentExtractors) {
+            for (DocumentFormat format : extractor.getFormats()) {
+                extractors.putIfAbsent(format, extractor);
+            }
+        }
+        logger.info("Document extractors registered for {}", extractors.keySet());
+    }
+
+    /**
+     * Detect the format of a file.
+     *
+     * @param file The file
+     * @return The detected format, UNKNOWN if the file is not recognized or cannot be read
+     */
+    public DocumentFormat detect(Path file) {
+        try {
+            return formatDetector.detect(file);
+        } catch (IOException e) {
+            logger.warn("Cannot detect the format of {}: {}", file, e.getMessage());
+            return DocumentFormat.UNKNOWN;
+        }
+    }
+
+    /**
+     * Tell whether an upload may need OCR, from its leading bytes, before it is stored.
+     * Office containers have their own text; PDFs, images and unknown files may need OCR.
+     * A container that turns out to be unreadable still falls back to OCR once stored.
+     *
+     * @param content The content of the upload; only its first bytes are read
+     * @return true unless the upload is an office document
+     */
+    public boolean mayNeedOcr(InputStream content) {
+        try {
+            return !formatDetector.isOfficeContainer(content);
+        } catch (IOException e) {
+            logger.warn("Cannot read the header of an upload: {}", e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * @param format A document format
+     * @return the extractor of the format, empty if documents of this format need OCR
+     */
+    public Optional<DocumentExtractor> find(DocumentFormat format) {
+        return Optional.ofNullable(extractors.get(format));
+    }
+
+    /**
+     * Extract a document with the extractor of its format.
+     *
+     * @param file The document
+     * @param format The detected format of the document
+     * @param sink Receives the pages, in page order
+     * @throws DocumentExtractionException If no extractor reads the format, or the document cannot be read
+     */
+    public void extract(Path file, DocumentFormat format, PageSink sink) throws DocumentExtractionException {
+        DocumentExtractor extractor = extractors.get(format);
+        if (extractor == null) {
+            throw new DocumentExtractionException("No extractor for format " + format);
+        }
+        extractor.extract(file, format, sink);
+    }
+}
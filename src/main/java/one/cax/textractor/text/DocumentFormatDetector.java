@@ -0,0 +1,137 @@
+package one.cax.textractor.text;
+
+import one.cax.textractor.datamodel.DocumentFormat;
+import org.apache.poi.poifs.filesystem.DirectoryNode;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Detects the format of a file from its leading bytes (magic numbers), not from its name
+ * or the content type sent by the client.
+ * <p>
+ * ZIP and OLE2 containers are told apart by their content: the OOXML part directories
+ * (word/, xl/, ppt/) and the OLE2 streams (WordDocument, Workbook, PowerPoint Document).
+ */
+@Component
+public class DocumentFormatDetector {
+
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * Detect the format of a file.
+     *
+     * @param file The file
+     * @return The detected format, UNKNOWN if not recognized
+     * @throws IOException If the file cannot be read
+     */
+    public DocumentFormat detect(Path file) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int length;
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            length = inputStream.readNBytes(header, 0, HEADER_LENGTH);
+        }
+
+        if (startsWith(header, length, '%', 'P', 'D', 'F')) {
+            return DocumentFormat.PDF;
+        }
+        if (startsWith(header, length, 'P', 'K', 3, 4)) {
+            return detectOoxml(file);
+        }
+        if (startsWith(header, length, 0xD0, 0xCF, 0x11, 0xE0, 0xA1, 0xB1, 0x1A, 0xE1)) {
+            return detectOle2(file);
+        }
+        if (startsWith(header, length, 0x89, 'P', 'N', 'G')) {
+            return DocumentFormat.PNG;
+        }
+        if (startsWith(header, length, 0xFF, 0xD8, 0xFF)) {
+            return DocumentFormat.JPEG;
+        }
+        if (startsWith(header, length, 'G', 'I', 'F', '8')) {
+            return DocumentFormat.GIF;
+        }
+        if (startsWith(header, length, 'I', 'I', 0x2A, 0x00) || startsWith(header, length, 'M', 'M', 0x00, 0x2A)) {
+            return DocumentFormat.TIFF;
+        }
+        if (startsWith(header, length, 'B', 'M')) {
+            return DocumentFormat.BMP;
+        }
+        return DocumentFormat.UNKNOWN;
+    }
+
+    /**
+     * Tell from the leading bytes of an upload, before it is stored, whether it is a ZIP or OLE2 container:
+     * the office formats, which have their own text and do not need OCR.
+     *
+     * @param content The content; only its first bytes are read
+     * @return true for a ZIP or OLE2 container
+     * @throws IOException If the content cannot be read
+     */
+    public boolean isOfficeContainer(InputStream content) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int length = content.readNBytes(header, 0, HEADER_LENGTH);
+        return startsWith(header, length, 'P', 'K', 3, 4)
+                || startsWith(header, length, 0xD0, 0xCF, 0x11, 0xE0, 0xA1, 0xB1, 0x1A, 0xE1);
+    }
+
+    private DocumentFormat detectOoxml(Path file) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.startsWith("word/")) {
+                    return DocumentFormat.DOCX;
+                }
+                if (name.startsWith("xl/")) {
+                    return DocumentFormat.XLSX;
+                }
+                if (name.startsWith("ppt/")) {
+                    return DocumentFormat.PPTX;
+                }
+            }
+        } catch (ZipException e) {
+            // corrupt archive
+            return DocumentFormat.UNKNOWN;
+        }
+        return DocumentFormat.UNKNOWN;
+    }
+
+    private DocumentFormat detectOle2(Path file) throws IOException {
+        try (POIFSFileSystem fileSystem = new POIFSFileSystem(file.toFile(), true)) {
+            DirectoryNode root = fileSystem.getRoot();
+            if (root.hasEntry("WordDocument")) {
+                return DocumentFormat.DOC;
+            }
+            if (root.hasEntry("Workbook") || root.hasEntry("WORKBOOK") || root.hasEntry("Book")) {
+                return DocumentFormat.XLS;
+            }
+            if (root.hasEntry("PowerPoint Document")) {
+                return DocumentFormat.PPT;
+            }
+        } catch (IOException | RuntimeException e) {
+            // not a readable OLE2 file
+            return DocumentFormat.UNKNOWN;
+        }
+        return DocumentFormat.UNKNOWN;
+    }
+
+    private static boolean startsWith(byte[] header, int length, int... magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((header[i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,30 @@
+package one.cax.textractor.text;
+
+import one.cax.textractor.datamodel.DocumentFormat;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Reads DOCX files in logical pages with the {@link ExtractorEngine}.
+ */
+@Component
+public class DocxDocumentExtractor implements DocumentExtractor {
+
+    private final ExtractorEngine extractorEngine;
+
+    public DocxDocumentExtractor(ExtractorEngine extractorEngine) {
+        this.extractorEngine = extractorEngine;
+    }
+
+    @Override
+    public Set<DocumentFormat> getFormats() {
+        return Set.of(DocumentFormat.DOCX);
+    }
+
+    @Override
+    public void extract(Path file, DocumentFormat format, PageSink sink) throws DocumentExtractionException {
+        extractorEngine.extractTextFromDocx(file.toString(), sink);
+    }
+}
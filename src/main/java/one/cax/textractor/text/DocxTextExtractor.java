@@ -0,0 +1,209 @@
+package one.cax.textractor.text;
+
+import org.docx4j.XmlUtils;
+import org.docx4j.docProps.core.CoreProperties;
+import org.docx4j.docProps.core.dc.elements.SimpleLiteral;
+import org.docx4j.model.structure.HeaderFooterPolicy;
+import org.docx4j.model.structure.SectionWrapper;
+import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
+import org.docx4j.openpackaging.parts.JaxbXmlPart;
+import org.docx4j.wml.Br;
+import org.docx4j.wml.ContentAccessor;
+import org.docx4j.wml.P;
+import org.docx4j.wml.PPr;
+import org.docx4j.wml.R;
+import org.docx4j.wml.STBrType;
+import org.docx4j.wml.SdtElement;
+import org.docx4j.wml.SectPr;
+import org.docx4j.wml.Tbl;
+import org.docx4j.wml.Tc;
+import org.docx4j.wml.Text;
+import org.docx4j.wml.Tr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the text of a DOCX document straight from its WordprocessingML, without
+ * rendering it.
+ * <p>
+ * A DOCX file has no pages until it is laid out, so the document is split into logical
+ * pages at explicit page breaks, paragraphs with "page break before" and section breaks
+ * that start a new page. Paragraphs, tables (cells separated by tabs, rows by new lines)
+ * and content controls are walked in document order. The default header and footer of
+ * each section are added around each of its pages, as they would be on a rendered page.
+ */
+class DocxTextExtractor {
+
+    private static final String CONTINUOUS_SECTION = "continuous";
+
+    /**
+     * Extract the logical pages of a document into a page sink.
+     *
+     * @param wordMLPackage The loaded document
+     * @param fileName The name of the file, or null if unknown
+     * @param sink Receives the pages, in page order
+     * @throws IOException If the sink cannot be written
+     */
+    void extract(WordprocessingMLPackage wordMLPackage, String fileName, PageSink sink) throws IOException {
+        BodyWalker body = new BodyWalker();
+        body.walk(wordMLPackage.getMainDocumentPart().getContent());
+        body.endPage();
+
+        List<SectionWrapper> sections = wordMLPackage.getDocumentModel().getSections();
+        List<String> headers = new ArrayList<>();
+        List<String> footers = new ArrayList<>();
+        for (SectionWrapper section : sections) {
+            HeaderFooterPolicy policy = section.getHeaderFooterPolicy();
+            headers.add(policy == null ? "" : partText(policy.getDefaultHeader()));
+            footers.add(policy == null ? "" : partText(policy.getDefaultFooter()));
+        }
+
+        sink.start(fileName, body.pages.size());
+        String firstPageText = "";
+        for (int i = 0; i < body.pages.size(); i++) {
+            int section = Math.min(body.pageSections.get(i), sections.size() - 1);
+            String pageText = section < 0
+                    ? body.pages.get(i)
+                    : headers.get(section) + body.pages.get(i) + footers.get(section);
+            if (i == 0) {
+                firstPageText = pageText;
+            }
+            sink.page(i + 1, pageText);
+        }
+        sink.end(getTitle(wordMLPackage, firstPageText));
+    }
+
+    /**
+     * The title from the document properties, otherwise the text of the first page.
+     */
+    private String getTitle(WordprocessingMLPackage wordMLPackage, String firstPageText) {
+        if (wordMLPackage.getDocPropsCorePart() != null) {
+            CoreProperties coreProperties = wordMLPackage.getDocPropsCorePart().getJaxbElement();
+            if (coreProperties != null && coreProperties.getTitle() != null) {
+                SimpleLiteral title = coreProperties.getTitle().getValue();
+                if (title != null && !title.getContent().isEmpty()) {
+                    String value = String.join(" ", title.getContent());
+                    if (!value.isEmpty()) {
+                        return value.replace("\n", "");
+                    }
+                }
+            }
+        }
+        return firstPageText.replace("\n", " ").replace("\r", " ");
+    }
+
+    private String partText(JaxbXmlPart<?> part) {
+        if (part == null || !(part.getJaxbElement() instanceof ContentAccessor content)) {
+            return "";
+        }
+        BodyWalker walker = new BodyWalker();
+        walker.walk(content.getContent());
+        return walker.current.toString();
+    }
+
+    /**
+     * Walks the body in document order, cutting it into logical pages.
+     */
+    private static class BodyWalker {
+
+        private final List<String> pages = new ArrayList<>();
+        /** Section of each page, by index */
+        private final List<Integer> pageSections = new ArrayList<>();
+        private StringBuilder current = new StringBuilder();
+        private int section;
+
+        void walk(List<Object> content) {
+            for (Object item : content) {
+                visit(XmlUtils.unwrap(item));
+            }
+        }
+
+        private void visit(Object item) {
+            if (item instanceof P paragraph) {
+                paragraph(paragraph);
+            } else if (item instanceof Tbl table) {
+                table(table);
+            } else if (item instanceof Text text) {
+                current.append(text.getValue());
+            } else if (item instanceof R.Tab) {
+                current.append('\t');
+            } else if (item instanceof R.Cr) {
+                current.append('\n');
+            } else if (item instanceof Br br) {
+                if (br.getType() == STBrType.PAGE) {
+                    endPage();
+                } else {
+                    current.append('\n');
+                }
+            } else if (item instanceof SdtElement sdt) {
+                if (sdt.getSdtContent() != null) {
+                    walk(sdt.getSdtContent().getContent());
+                }
+            } else if (item instanceof ContentAccessor container) {
+                // runs, hyperlinks, smart tags...
+                walk(container.getContent());
+            }
+        }
+
+        private void paragraph(P paragraph) {
+            PPr pPr = paragraph.getPPr();
+            if (pPr != null && pPr.getPageBreakBefore() != null && pPr.getPageBreakBefore().isVal()
+                    && !current.isEmpty()) {
+                endPage();
+            }
+            walk(paragraph.getContent());
+            if (!current.isEmpty()) {
+                current.append('\n');
+            }
+            if (pPr != null && pPr.getSectPr() != null) {
+                // the paragraph closes its section
+                SectPr.Type type = pPr.getSectPr().getType();
+                boolean newPage = type == null || !CONTINUOUS_SECTION.equals(type.getVal());
+                if (newPage) {
+                    endPage();
+                }
+                section++;
+            }
+        }
+
+        private void table(Tbl table) {
+            for (Object rowItem : table.getContent()) {
+                if (!(XmlUtils.unwrap(rowItem) instanceof Tr row)) {
+                    continue;
+                }
+                for (Object cellItem : row.getContent()) {
+                    if (XmlUtils.unwrap(cellItem) instanceof Tc cell) {
+                        walk(cell.getContent());
+                        trimTrailingNewLine();
+                        current.append('\t');
+                    }
+                }
+                if (!current.isEmpty() && current.charAt(current.length() - 1) == '\t') {
+                    current.setLength(current.length() - 1);
+                }
+                current.append('\n');
+            }
+        }
+
+        private void trimTrailingNewLine() {
+            if (!current.isEmpty() && current.charAt(current.length() - 1) == '\n') {
+                current.setLength(current.length() - 1);
+            }
+        }
+
+        /**
+         * Close the current page. A page break at the very end of the document does not
+         * add an empty page, but a document without text still has one page.
+         */
+        void endPage() {
+            if (current.isEmpty() && !pages.isEmpty()) {
+                return;
+            }
+            pages.add(current.toString());
+            pageSections.add(section);
+            current = new StringBuilder();
+        }
+    }
+}
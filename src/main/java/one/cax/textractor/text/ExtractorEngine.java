@@ -3,19 +3,31 @@ package one.cax.textractor.text;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
+import one.cax.textractor.datamodel.XDoc;
 import one.cax.textractor.utilities.NameUtils;
 import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessStreamCache;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.text.PDFTextStripper;
 import org.docx4j.Docx4J;
 import org.docx4j.openpackaging.exceptions.Docx4JException;
 import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import jakarta.annotation.PreDestroy;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * ExtractorEngine is responsible for extracting text from PDF documents.
@@ -30,14 +42,56 @@ import java.io.*;
  * - Measuring extraction time and success rate using Micrometer metrics
  * <p>
  * The extracted text is returned as either a JSONObject or an XDoc object,
- * depending on the method used.
+ * depending on the method used, or streamed page by page to a {@link PageSink}.
  */
 @Service
 public class ExtractorEngine {
 
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
     private final Timer extractTextFromTimer;
     private final Counter successfulExtractsCounter;
 
+    /** Extract large documents by page ranges on several threads */
+    @Value("${textractor.extraction.parallel.enabled:false}")
+    private boolean parallelEnabled;
+
+    /** Number of extraction threads, 0 for one per core */
+    @Value("${textractor.extraction.parallel.workers:0}")
+    private int parallelWorkers;
+
+    /** Documents with fewer pages are extracted on the calling thread */
+    @Value("${textractor.extraction.parallel.min-pages:50}")
+    private int parallelMinPages = 50;
+
+    private ExecutorService extractionPool;
+
+    /** Main memory a document may use before PDFBox spills its buffers to temp files */
+    @Value("${textractor.extraction.memory.max-per-document-mb:64}")
+    private int maxMemoryPerDocumentMb = 64;
+
+    /** Main memory shared by all the documents being extracted at the same time */
+    @Value("${textractor.extraction.memory.max-total-mb:512}")
+    private int maxTotalMemoryMb = 512;
+
+    /** Directory of the spill files, blank for the system temp directory */
+    @Value("${textractor.extraction.memory.temp-dir:}")
+    private String memoryTempDir = "";
+
+    private PdfMemoryBudget memoryBudget;
+
+    /** Render DOCX files to PDF before extraction, for page fidelity */
+    @Value("${textractor.extraction.docx.render-pdf:false}")
+    private boolean docxRenderPdf;
+
+    /**
+     * Opens a new, independent instance of the document being extracted.
+     * PDDocument is not thread safe, so each page range worker loads its own.
+     */
+    @FunctionalInterface
+    private interface DocumentSource {
+        PDDocument load(long maxMainMemoryBytes) throws IOException;
+    }
 
     /**
      * Create a new ExtractorEngine.
@@ -64,11 +118,49 @@ public class ExtractorEngine {
      * @throws DocumentExtractionException If an error occurs while reading the document.
      */
     public JSONObject extractTextFromPDF(String inputFile) throws DocumentExtractionException {
+        JsonObjectPageSink sink = new JsonObjectPageSink();
+        extractTextFromPDF(inputFile, sink);
+        return sink.getDocument();
+    }
+
+    /**
+     * Extracts text from a PDF file provided as a byte array
+     * @param inputInBytes - the input in bytes
+     * @return - the extracted text
+     * @throws DocumentExtractionException - throws an exception if an error occurs
+     */
+    public JSONObject extractTextFromPDF(byte[] inputInBytes) throws DocumentExtractionException {
+        JsonObjectPageSink sink = new JsonObjectPageSink();
+        extractTextFromPDF(inputInBytes, sink);
+        return sink.getDocument();
+    }
+
+    /**
+     * Extract text from a PDF file into an XDoc.
+     *
+     * @param inputFile The path to the PDF file to extract text from.
+     * @return The extracted document.
+     * @throws DocumentExtractionException If an error occurs while reading the document.
+     */
+    public XDoc extractXDocFromPDF(String inputFile) throws DocumentExtractionException {
+        XDocPageSink sink = new XDocPageSink();
+        extractTextFromPDF(inputFile, sink);
+        return sink.getXDoc();
+    }
+
+    /**
+     * Extract text from a PDF file, handing each page to the sink as soon as it is extracted.
+     *
+     * @param inputFile The path to the PDF file to extract text from.
+     * @param sink Receives the pages, in page order.
+     * @throws DocumentExtractionException If an error occurs while reading the document or writing the sink.
+     */
+    public void extractTextFromPDF(String inputFile, PageSink sink) throws DocumentExtractionException {
         try {
-            return extractTextFromTimer.recordCallable(() -> {
-                JSONObject result = doExtractTextFromPDF(inputFile);
+            extractTextFromTimer.recordCallable(() -> {
+                doExtractTextFromPDF(inputFile, sink);
                 successfulExtractsCounter.increment();
-                return result;
+                return null;
             });
         } catch (Exception e) {
             throw new DocumentExtractionException("Error extracting text from PDF", e);
@@ -76,17 +168,19 @@ public class ExtractorEngine {
     }
 
     /**
-     * Extracts text from a PDF file provided as a byte array
-     * @param inputInBytes - the input in bytes
-     * @return - the extracted text
-     * @throws DocumentExtractionException - throws an exception if an error occurs
+     * Extract text from a PDF file provided as a byte array, handing each page to the
+     * sink as soon as it is extracted.
+     *
+     * @param inputInBytes The PDF file content.
+     * @param sink Receives the pages, in page order.
+     * @throws DocumentExtractionException If an error occurs while reading the document or writing the sink.
      */
-    public JSONObject extractTextFromPDF(byte[] inputInBytes) throws DocumentExtractionException {
+    public void extractTextFromPDF(byte[] inputInBytes, PageSink sink) throws DocumentExtractionException {
         try {
-            return extractTextFromTimer.recordCallable(() -> {
-                JSONObject result = doExtractTextFromPDF(inputInBytes);
+            extractTextFromTimer.recordCallable(() -> {
+                doExtractTextFromPDF(inputInBytes, sink);
                 successfulExtractsCounter.increment();
-                return result;
+                return null;
             });
         } catch (Exception e) {
             throw new DocumentExtractionException("Error extracting text from PDF", e);
@@ -94,98 +188,326 @@ public class ExtractorEngine {
     }
 
     /**
-     * Extracts text from office docs
+     * Measure the text layer of each page of a PDF file: the embedded text and
+     * how much of the page is covered by images. Used to decide which pages need OCR.
+     *
+     * @param inputFile The path to the PDF file.
+     * @return The measurements of each page, in page order.
+     * @throws DocumentExtractionException If an error occurs while reading the document.
+     */
+    public List<PageCoverage> analyzeTextLayer(String inputFile) throws DocumentExtractionException {
+        File f = new File(inputFile);
+        long documentMemory = documentMemoryBytes();
+        try (var reservation = getMemoryBudget().reserve(documentMemory);
+             PDDocument pdDocument = Loader.loadPDF(f, streamCache(documentMemory))) {
+            ImageCoverageEngine imageCoverageEngine = new ImageCoverageEngine();
+            List<PageCoverage> pages = new ArrayList<>(pdDocument.getNumberOfPages());
+            new PageTextCollector().extract(pdDocument, (pageNumber, page, pageText) ->
+                    pages.add(new PageCoverage(pageNumber, pageText, imageCoverageEngine.coverage(page))));
+            return pages;
+        } catch (IOException e) {
+            throw new DocumentExtractionException("Error analyzing PDF text layer", e);
+        }
+    }
+
+    /**
+     * Extracts text from office docs.
+     * DOCX files are read directly from their WordprocessingML, split into logical pages.
+     * When page fidelity is required, they can instead be rendered to PDF first
+     * ({@code textractor.extraction.docx.render-pdf}), which is much slower.
      * @param inputFile - the path to the office doc
      * @return the extracted text in json format.
      * @throws DocumentExtractionException throws an exception if an error occurs
      */
     public JSONObject extractTextFromOfficeDocs(String inputFile) throws DocumentExtractionException {
+        if (docxRenderPdf) {
+            return extractTextFromDocxAsPdf(inputFile);
+        }
+        JsonObjectPageSink sink = new JsonObjectPageSink();
+        extractTextFromDocx(inputFile, sink);
+        return sink.getDocument();
+    }
+
+    /**
+     * Extract text from a DOCX file, handing each logical page to the sink.
+     * Pages are cut at explicit page breaks and section breaks, since the document is not laid out.
+     *
+     * @param inputFile The path to the DOCX file.
+     * @param sink Receives the pages, in page order.
+     * @throws DocumentExtractionException If an error occurs while reading the document or writing the sink.
+     */
+    public void extractTextFromDocx(String inputFile, PageSink sink) throws DocumentExtractionException {
+        try {
+            extractTextFromTimer.recordCallable(() -> {
+                File f = new File(inputFile);
+                WordprocessingMLPackage wordMLPackage = WordprocessingMLPackage.load(f);
+                new DocxTextExtractor().extract(wordMLPackage, f.getName(), sink);
+                successfulExtractsCounter.increment();
+                return null;
+            });
+        } catch (Exception e) {
+            throw new DocumentExtractionException("Failed to extract text from DOCX", e);
+        }
+    }
+
+    /**
+     * Render a DOCX file to a temporary PDF and extract the PDF pages.
+     */
+    private JSONObject extractTextFromDocxAsPdf(String inputFile) throws DocumentExtractionException {
+        File pdfFile = null;
         try {
             File f = new File(inputFile);
             WordprocessingMLPackage wordMLPackage = WordprocessingMLPackage.load(f);
 
-            File pdfFile = new File(f.getParent(), f.getName().replace(".docx", ".pdf"));
+            pdfFile = File.createTempFile("textractor-", ".pdf");
             try (FileOutputStream fos = new FileOutputStream(pdfFile)) {
                 Docx4J.toPDF(wordMLPackage, fos);
             }
-            return extractTextFromPDF(pdfFile.getPath());
+            JSONObject result = extractTextFromPDF(pdfFile.getPath());
+            result.put(NameUtils.DOC_FILENAME, f.getName());
+            return result;
 
         } catch (Docx4JException | IOException e) {
             throw new DocumentExtractionException("Failed to convert DOCX to PDF", e);
+        } finally {
+            if (pdfFile != null && !pdfFile.delete()) {
+                pdfFile.deleteOnExit();
+            }
         }
     }
 
     /**
-     * Extract text from a PDF file. The extracted text is returned as a JSON object.
-     * The JSON object contains the following fields:
-     * - doc_title: The title of the document.
-     * - filename: The name of the file.
+     * Extract text from a PDF file into a page sink.
+     * The sink receives the following fields:
+     * - the name of the file and the number of pages,
+     * - the text of each page,
+     * - the title of the document.
      *
      * @param inputFile The path to the PDF file to extract text from.
-     * @return A JSON object containing the extracted text.
+     * @param sink Receives the pages, in page order.
      * @throws IOException If an error occurs while reading the document.
      */
-    private JSONObject doExtractTextFromPDF(String inputFile) throws IOException, JSONException {
+    private void doExtractTextFromPDF(String inputFile, PageSink sink) throws IOException {
 
         File f = new File(inputFile);
         String fileName = f.getName();
-        PDDocument pdDocument = Loader.loadPDF(f);
-        var jsonOBject = processPDocument(pdDocument);
-        jsonOBject.put(NameUtils.DOC_FILENAME, fileName);
-        return jsonOBject;
+        long documentMemory = documentMemoryBytes();
+        try (var reservation = getMemoryBudget().reserve(documentMemory);
+             PDDocument pdDocument = Loader.loadPDF(f, streamCache(documentMemory))) {
+            processPDocument(pdDocument, maxMainMemoryBytes -> Loader.loadPDF(f, streamCache(maxMainMemoryBytes)),
+                    fileName, sink);
+        }
     }
 
-    private JSONObject doExtractTextFromPDF(byte[] inputInBytes) throws IOException, JSONException {
-        JSONObject doc = new JSONObject();
+    private void doExtractTextFromPDF(byte[] inputInBytes, PageSink sink) throws IOException {
+        // the input bytes are already on the heap, they count against the budget too
+        long documentMemory = documentMemoryBytes() + (inputInBytes == null ? 0 : inputInBytes.length);
+        try (var reservation = getMemoryBudget().reserve(documentMemory);
+             PDDocument pdDocument = loadPdf(inputInBytes, documentMemoryBytes())) {
+            //doc.put("filename", fileName);// TODO  FIX
+            processPDocument(pdDocument, maxMainMemoryBytes -> loadPdf(inputInBytes, maxMainMemoryBytes), null, sink);
+        }
+    }
 
-        PDDocument pdDocument = Loader.loadPDF(inputInBytes);
-        doc.put(NameUtils.DOC_TITLE, getTitle(pdDocument));
-        //doc.put("filename", fileName);// TODO  FIX
-        return processPDocument(pdDocument);
+    private PDDocument loadPdf(byte[] inputInBytes, long maxMainMemoryBytes) throws IOException {
+        return Loader.loadPDF(inputInBytes, "", null, null, streamCache(maxMainMemoryBytes));
+    }
 
+    /**
+     * Buffers of a loaded document: in memory up to the given size, then in temp files.
+     *
+     * @param maxMainMemoryBytes Main memory the document may use.
+     * @return The stream cache factory to load the document with.
+     */
+    private RandomAccessStreamCache.StreamCacheCreateFunction streamCache(long maxMainMemoryBytes) {
+        MemoryUsageSetting memoryUsageSetting = MemoryUsageSetting.setupMixed(maxMainMemoryBytes);
+        if (memoryTempDir != null && !memoryTempDir.isBlank()) {
+            memoryUsageSetting = memoryUsageSetting.setTempDir(new File(memoryTempDir));
+        }
+        return memoryUsageSetting.streamCache;
     }
 
-    private JSONObject processPDocument(PDDocument pdDocument) throws IOException, JSONException {
-        JSONObject doc = new JSONObject();
-        doc.put(NameUtils.DOC_TITLE, getTitle(pdDocument));
+    private long documentMemoryBytes() {
+        return Math.max(1, maxMemoryPerDocumentMb) * 1024L * 1024L;
+    }
 
-        PDFTextStripper pdfStripper = new PDFTextStripper();
+    private synchronized PdfMemoryBudget getMemoryBudget() {
+        if (memoryBudget == null) {
+            memoryBudget = new PdfMemoryBudget(maxTotalMemoryMb);
+        }
+        return memoryBudget;
+    }
+
+    /**
+     * Extract the pages of a PDF document in a single pass over the document, or by
+     * page ranges in parallel when enabled and the document is large enough.
+     * Pages go to the sink as they are extracted.
+     *
+     * @param pdDocument The PDF document.
+     * @param source Opens further instances of the document for the parallel workers.
+     * @param fileName The name of the file, or null if unknown.
+     * @param sink Receives the pages, in page order.
+     * @throws IOException If an error occurs while reading the document.
+     */
+    private void processPDocument(PDDocument pdDocument, DocumentSource source, String fileName, PageSink sink) throws IOException {
         int nPages = pdDocument.getNumberOfPages();
-        doc.put(NameUtils.DOC_TOTAL_PAGES, String.valueOf(nPages));
-        JSONArray pages = new JSONArray();
+        sink.start(fileName, nPages);
+        StringBuilder firstPageText = new StringBuilder();
+        PageSink pageSink = (pageNumber, pageText) -> {
+            if (pageNumber == 1) {
+                firstPageText.append(pageText);
+            }
+            sink.page(pageNumber, pageText);
+        };
 
+        if (parallelEnabled && nPages >= Math.max(2, parallelMinPages)) {
+            extractPageRanges(source, nPages, pageSink);
+        } else {
+            new PageTextCollector().extract(pdDocument, (pageNumber, page, pageText) -> pageSink.page(pageNumber, pageText));
+        }
+        sink.end(getTitle(pdDocument, firstPageText.toString()));
+    }
 
-        for (int i = 1; i <= nPages; i++) {
-            pdfStripper.setStartPage(i);
-            pdfStripper.setEndPage(i);
-            String pageText = pdfStripper.getText(pdDocument);
-            JSONObject page = new JSONObject();
-            page.put(NameUtils.PAGE_NUMBER, String.valueOf(i));
-            page.put(NameUtils.PAGE_TEXT, pageText);
-            pages.put(page);
+    /**
+     * Split the document into contiguous page ranges and extract them concurrently,
+     * each worker on its own instance of the document. The ranges are handed to the
+     * sink in order as they complete, so only the ranges not yet written are held.
+     *
+     * @param source Opens an instance of the document for each worker.
+     * @param nPages Number of pages of the document.
+     * @param sink Receives the pages, in page order.
+     * @throws IOException If an error occurs while reading the document.
+     */
+    private void extractPageRanges(DocumentSource source, int nPages, PageSink sink) throws IOException {
+        int workers = resolveParallelWorkers();
+        int rangeSize = (nPages + workers - 1) / workers;
+        int rangeCount = (nPages + rangeSize - 1) / rangeSize;
+        // the workers share the memory reserved for the document
+        long workerMemory = Math.max(1024L * 1024L, documentMemoryBytes() / rangeCount);
+
+        List<Future<List<String>>> ranges = new ArrayList<>();
+        List<Integer> firstPages = new ArrayList<>();
+        for (int start = 1; start <= nPages; start += rangeSize) {
+            int first = start;
+            int last = Math.min(nPages, start + rangeSize - 1);
+            firstPages.add(first);
+            ranges.add(getExtractionPool().submit(() -> {
+                List<String> pageTexts = new ArrayList<>(last - first + 1);
+                try (PDDocument rangeDocument = source.load(workerMemory)) {
+                    PageTextCollector collector = new PageTextCollector();
+                    collector.setStartPage(first);
+                    collector.setEndPage(last);
+                    collector.extract(rangeDocument, (pageNumber, page, pageText) -> pageTexts.add(pageText));
+                }
+                return pageTexts;
+            }));
         }
-        doc.put(NameUtils.DOC_PAGES, pages);
+        logger.debug("Extracting {} pages in {} ranges", nPages, ranges.size());
 
-        return doc;
+        try {
+            for (int i = 0; i < ranges.size(); i++) {
+                List<String> pageTexts = ranges.get(i).get();
+                ranges.set(i, null);
+                int pageNumber = firstPages.get(i);
+                for (String pageText : pageTexts) {
+                    sink.page(pageNumber++, pageText);
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelRanges(ranges);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting page ranges");
+        } catch (ExecutionException e) {
+            cancelRanges(ranges);
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Error extracting page range", e.getCause());
+        } catch (IOException | RuntimeException e) {
+            cancelRanges(ranges);
+            throw e;
+        }
+    }
+
+    private void cancelRanges(List<Future<List<String>>> ranges) {
+        for (Future<List<String>> range : ranges) {
+            if (range != null) {
+                range.cancel(true);
+            }
+        }
+    }
+
+    private int resolveParallelWorkers() {
+        return parallelWorkers > 0 ? parallelWorkers : Runtime.getRuntime().availableProcessors();
+    }
+
+    private synchronized ExecutorService getExtractionPool() {
+        if (extractionPool == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            extractionPool = Executors.newFixedThreadPool(resolveParallelWorkers(), runnable -> {
+                Thread thread = new Thread(runnable, "pdf-extraction-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return extractionPool;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (extractionPool != null) {
+            extractionPool.shutdownNow();
+        }
     }
 
     /**
      * Get the title of a PDF document.
-     * If the document has a title, it is returned. Otherwise, the title of the first page is returned.
+     * If the document has a title, it is returned. Otherwise, the text of the first page is returned.
      *
      * @param pdDocument The PDF document to get the title from.
+     * @param firstPageText The text already extracted from the first page.
      * @return The title of the PDF document.
-     * @throws IOException If an error occurs while reading the document.
      */
-    private String getTitle(PDDocument pdDocument) throws IOException {
+    private String getTitle(PDDocument pdDocument, String firstPageText) {
         String title = pdDocument.getDocumentInformation().getTitle();
         if (title != null && !title.isEmpty()) {
             return title.replace("\n", "");
         }
-        PDFTextStripper pdfTextStripper = new PDFTextStripper();
-        pdfTextStripper.setStartPage(1);
-        pdfTextStripper.setEndPage(1);
-        String pageText = pdfTextStripper.getText(pdDocument);
-        return pageText.replace("\n", " ").replace("\r", " ");
+        return firstPageText.replace("\n", " ").replace("\r", " ");
+    }
+
+    /**
+     * Builds the JSON document returned by the JSONObject extraction methods.
+     */
+    private static class JsonObjectPageSink implements PageSink {
+
+        private final JSONObject doc = new JSONObject();
+        private final JSONArray pages = new JSONArray();
+
+        @Override
+        public void start(String fileName, int totalPages) {
+            if (fileName != null) {
+                doc.put(NameUtils.DOC_FILENAME, fileName);
+            }
+            doc.put(NameUtils.DOC_TOTAL_PAGES, String.valueOf(totalPages));
+        }
+
+        @Override
+        public void page(int pageNumber, String text) {
+            JSONObject jsonPage = new JSONObject();
+            jsonPage.put(NameUtils.PAGE_NUMBER, String.valueOf(pageNumber));
+            jsonPage.put(NameUtils.PAGE_TEXT, text);
+            pages.put(jsonPage);
+        }
+
+        @Override
+        public void end(String title) {
+            doc.put(NameUtils.DOC_TITLE, title);
+            doc.put(NameUtils.DOC_PAGES, pages);
+        }
+
+        JSONObject getDocument() {
+            return doc;
+        }
     }
 }
@@ -0,0 +1,82 @@
+package one.cax.textractor.text;
+
+import org.apache.pdfbox.contentstream.PDFStreamEngine;
+import org.apache.pdfbox.contentstream.operator.DrawObject;
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.contentstream.operator.OperatorName;
+import org.apache.pdfbox.contentstream.operator.state.Concatenate;
+import org.apache.pdfbox.contentstream.operator.state.Restore;
+import org.apache.pdfbox.contentstream.operator.state.Save;
+import org.apache.pdfbox.contentstream.operator.state.SetGraphicsStateParameters;
+import org.apache.pdfbox.contentstream.operator.state.SetMatrix;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.util.Matrix;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Measures how much of a page is covered by raster images.
+ * Only the graphics state operators are processed, text and paths are skipped,
+ * so this is much cheaper than rendering the page.
+ */
+class ImageCoverageEngine extends PDFStreamEngine {
+
+    private double imageArea;
+
+    ImageCoverageEngine() {
+        addOperator(new Concatenate(this));
+        addOperator(new DrawObject(this));
+        addOperator(new SetGraphicsStateParameters(this));
+        addOperator(new Save(this));
+        addOperator(new Restore(this));
+        addOperator(new SetMatrix(this));
+    }
+
+    /**
+     * @param page The page to measure
+     * @return fraction of the page area covered by images, between 0 and 1
+     * @throws IOException If an error occurs while reading the page content
+     */
+    double coverage(PDPage page) throws IOException {
+        imageArea = 0;
+        processPage(page);
+        PDRectangle box = page.getCropBox();
+        double pageArea = (double) box.getWidth() * box.getHeight();
+        if (pageArea <= 0) {
+            return 0;
+        }
+        return Math.min(1.0, imageArea / pageArea);
+    }
+
+    @Override
+    protected void processOperator(Operator operator, List<COSBase> operands) throws IOException {
+        String name = operator.getName();
+        if (OperatorName.BEGIN_INLINE_IMAGE.equals(name)) {
+            addImageArea();
+            return;
+        }
+        if (OperatorName.DRAW_OBJECT.equals(name) && !operands.isEmpty() && operands.get(0) instanceof COSName objectName) {
+            PDResources resources = getResources();
+            PDXObject xObject = resources != null ? resources.getXObject(objectName) : null;
+            if (xObject instanceof PDImageXObject) {
+                addImageArea();
+                return;
+            }
+        }
+        // forms are walked by DrawObject, so images nested in them are counted too
+        super.processOperator(operator, operands);
+    }
+
+    private void addImageArea() {
+        // images are drawn in the unit square, scaled by the current transformation
+        Matrix ctm = getGraphicsState().getCurrentTransformationMatrix();
+        imageArea += Math.abs((double) ctm.getScalingFactorX() * ctm.getScalingFactorY());
+    }
+}
@@ -0,0 +1,46 @@
+package one.cax.textractor.text;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import one.cax.textractor.utilities.NameUtils;
+
+import java.io.IOException;
+
+/**
+ * Writes the extracted pages to a Jackson JsonGenerator as they arrive, with the same
+ * fields as the JSON document returned by {@link ExtractorEngine#extractTextFromPDF(String)}.
+ * Only the current page is held in memory. The generator is flushed but not closed.
+ */
+public class JsonPageSink implements PageSink {
+
+    private final JsonGenerator generator;
+
+    public JsonPageSink(JsonGenerator generator) {
+        this.generator = generator;
+    }
+
+    @Override
+    public void start(String fileName, int totalPages) throws IOException {
+        generator.writeStartObject();
+        if (fileName != null) {
+            generator.writeStringField(NameUtils.DOC_FILENAME, fileName);
+        }
+        generator.writeStringField(NameUtils.DOC_TOTAL_PAGES, String.valueOf(totalPages));
+        generator.writeArrayFieldStart(NameUtils.DOC_PAGES);
+    }
+
+    @Override
+    public void page(int pageNumber, String text) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField(NameUtils.PAGE_NUMBER, String.valueOf(pageNumber));
+        generator.writeStringField(NameUtils.PAGE_TEXT, text);
+        generator.writeEndObject();
+    }
+
+    @Override
+    public void end(String title) throws IOException {
+        generator.writeEndArray();
+        generator.writeStringField(NameUtils.DOC_TITLE, title);
+        generator.writeEndObject();
+        generator.flush();
+    }
+}
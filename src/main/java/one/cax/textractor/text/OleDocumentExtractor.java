@@ -0,0 +1,223 @@
+package one.cax.textractor.text;
+
+import one.cax.textractor.datamodel.DocumentFormat;
+import org.apache.poi.hslf.usermodel.HSLFSlide;
+import org.apache.poi.hslf.usermodel.HSLFSlideShow;
+import org.apache.poi.hslf.usermodel.HSLFTextParagraph;
+import org.apache.poi.hssf.eventusermodel.FormatTrackingHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.CellRecord;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.hwpf.extractor.WordExtractor;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the legacy binary Office formats with Apache POI: DOC (split into pages at
+ * hard page breaks), XLS (one page per sheet, streamed with the HSSF event API) and PPT
+ * (one page per slide).
+ */
+@Component
+public class OleDocumentExtractor implements DocumentExtractor {
+
+    /** Hard page break in the text of a Word binary document */
+    private static final String PAGE_BREAK = "\f";
+
+    @Override
+    public Set<DocumentFormat> getFormats() {
+        return Set.of(DocumentFormat.DOC, DocumentFormat.XLS, DocumentFormat.PPT);
+    }
+
+    @Override
+    public void extract(Path file, DocumentFormat format, PageSink sink) throws DocumentExtractionException {
+        List<String> pages;
+        try (POIFSFileSystem fileSystem = new POIFSFileSystem(file.toFile(), true)) {
+            pages = switch (format) {
+                case DOC -> wordPages(fileSystem);
+                case XLS -> workbookPages(fileSystem);
+                case PPT -> slidePages(fileSystem);
+                default -> throw new DocumentExtractionException("Unsupported format " + format);
+            };
+        } catch (IOException | RuntimeException e) {
+            throw new DocumentExtractionException("Failed to extract text from " + format, e);
+        }
+
+        try {
+            String fileName = file.getFileName().toString();
+            sink.start(fileName, pages.size());
+            for (int i = 0; i < pages.size(); i++) {
+                sink.page(i + 1, pages.get(i));
+            }
+            sink.end(pages.isEmpty() ? "" : pages.get(0).replace("\n", " ").replace("\r", " "));
+        } catch (IOException e) {
+            throw new DocumentExtractionException("Failed to write the pages of " + format, e);
+        }
+    }
+
+    private List<String> wordPages(POIFSFileSystem fileSystem) throws IOException {
+        try (WordExtractor extractor = new WordExtractor(fileSystem)) {
+            extractor.setCloseFilesystem(false);
+            String text = extractor.getText().replace("\r\n", "\n").replace('\r', '\n');
+            List<String> pages = new ArrayList<>(List.of(text.split(PAGE_BREAK, -1)));
+            if (pages.size() > 1 && pages.get(pages.size() - 1).isBlank()) {
+                pages.remove(pages.size() - 1);
+            }
+            return pages;
+        }
+    }
+
+    /**
+     * Read the sheets with the HSSF event API, record by record, without building the
+     * workbook model.
+     */
+    private List<String> workbookPages(POIFSFileSystem fileSystem) throws IOException {
+        SheetTextListener sheetText = new SheetTextListener();
+        FormatTrackingHSSFListener formatTracking = new FormatTrackingHSSFListener(sheetText);
+        sheetText.formatTracking = formatTracking;
+        HSSFRequest request = new HSSFRequest();
+        request.addListenerForAllRecords(formatTracking);
+        new HSSFEventFactory().processWorkbookEvents(request, fileSystem);
+        sheetText.endSheet();
+        return sheetText.pages;
+    }
+
+    /**
+     * Text of the sheets of an XLS workbook as its records go by: cells separated by tabs,
+     * at their column, rows by new lines. Formulas give their cached result, they are not
+     * evaluated.
+     */
+    private static class SheetTextListener implements HSSFListener {
+
+        private final List<String> pages = new ArrayList<>();
+        /** Formats the numbers as displayed */
+        private FormatTrackingHSSFListener formatTracking;
+        private SSTRecord sharedStrings;
+        private StringBuilder sheet;
+        private final List<String> row = new ArrayList<>();
+        private int rowIndex = -1;
+        /** Nesting of the substreams, each opened by a BOF record and closed by an EOF record */
+        private int depth;
+        /** Cell of a formula whose string result is in the next record */
+        private CellRecord pendingFormula;
+
+        @Override
+        public void processRecord(Record record) {
+            if (record instanceof BOFRecord bof) {
+                // charts embedded in a sheet are substreams of their own
+                if (++depth == 1 && bof.getType() == BOFRecord.TYPE_WORKSHEET) {
+                    sheet = new StringBuilder();
+                }
+            } else if (record instanceof EOFRecord) {
+                if (--depth == 0) {
+                    endSheet();
+                }
+            } else if (depth > 1) {
+                // not a cell of the sheet
+            } else if (record instanceof SSTRecord sst) {
+                sharedStrings = sst;
+            } else if (record instanceof LabelSSTRecord label) {
+                cell(label, sharedStrings == null ? "" : sharedStrings.getString(label.getSSTIndex()).getString());
+            } else if (record instanceof LabelRecord label) {
+                cell(label.getRow(), label.getColumn(), label.getValue());
+            } else if (record instanceof NumberRecord number) {
+                cell(number, formatTracking.formatNumberDateCell(number));
+            } else if (record instanceof BoolErrRecord boolErr) {
+                cell(boolErr, boolErr.isBoolean() ? (boolErr.getBooleanValue() ? "TRUE" : "FALSE")
+                        : FormulaError.forInt(boolErr.getErrorValue()).getString());
+            } else if (record instanceof FormulaRecord formula) {
+                if (formula.hasCachedResultString()) {
+                    pendingFormula = formula;
+                } else {
+                    cell(formula, formulaText(formula));
+                }
+            } else if (record instanceof StringRecord string && pendingFormula != null) {
+                cell(pendingFormula, string.getString());
+                pendingFormula = null;
+            }
+        }
+
+        private String formulaText(FormulaRecord formula) {
+            return switch (formula.getCachedResultTypeEnum()) {
+                case NUMERIC -> formatTracking.formatNumberDateCell(formula);
+                case BOOLEAN -> formula.getCachedBooleanValue() ? "TRUE" : "FALSE";
+                default -> "";
+            };
+        }
+
+        private void cell(CellRecord cell, String text) {
+            cell(cell.getRow(), cell.getColumn(), text);
+        }
+
+        private void cell(int rowNumber, int column, String text) {
+            if (sheet == null) {
+                return;
+            }
+            if (rowNumber != rowIndex) {
+                endRow();
+                rowIndex = rowNumber;
+            }
+            // the missing cells of a sparse row are empty
+            while (row.size() < column) {
+                row.add("");
+            }
+            if (column < row.size()) {
+                row.set(column, text);
+            } else {
+                row.add(text);
+            }
+        }
+
+        private void endRow() {
+            if (rowIndex >= 0) {
+                sheet.append(String.join("\t", row)).append('\n');
+            }
+            row.clear();
+            rowIndex = -1;
+        }
+
+        private void endSheet() {
+            if (sheet == null) {
+                return;
+            }
+            endRow();
+            pages.add(sheet.toString());
+            sheet = null;
+            pendingFormula = null;
+        }
+    }
+
+    private List<String> slidePages(POIFSFileSystem fileSystem) throws IOException {
+        List<String> pages = new ArrayList<>();
+        try (HSLFSlideShow slideShow = new HSLFSlideShow(fileSystem)) {
+            for (HSLFSlide slide : slideShow.getSlides()) {
+                StringBuilder text = new StringBuilder();
+                for (List<HSLFTextParagraph> paragraphs : slide.getTextParagraphs()) {
+                    String shapeText = HSLFTextParagraph.getText(paragraphs).replace('\r', '\n');
+                    if (!shapeText.isEmpty()) {
+                        text.append(shapeText).append('\n');
+                    }
+                }
+                pages.add(text.toString());
+            }
+        }
+        return pages;
+    }
+}
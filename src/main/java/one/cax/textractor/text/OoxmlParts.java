@@ -0,0 +1,146 @@
+package one.cax.textractor.text;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Streaming access to the XML parts of an Office Open XML package (XLSX, PPTX).
+ * Parts are read with StAX straight from the ZIP entries, one event at a time,
+ * so a large sheet or presentation is never loaded as a whole.
+ */
+final class OoxmlParts {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = newInputFactory();
+
+    private OoxmlParts() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // no DTDs nor external entities in untrusted documents
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * A part being read. Closes both the XML reader and the entry stream.
+     */
+    static final class Part implements AutoCloseable {
+        private final InputStream inputStream;
+        private final XMLStreamReader reader;
+
+        private Part(InputStream inputStream, XMLStreamReader reader) {
+            this.inputStream = inputStream;
+            this.reader = reader;
+        }
+
+        XMLStreamReader reader() {
+            return reader;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    /**
+     * Open a part of the package.
+     *
+     * @param zipFile The package
+     * @param partName The part name, without leading slash
+     * @return The part, or null if the package does not have it
+     * @throws IOException If the part cannot be read
+     */
+    static Part open(ZipFile zipFile, String partName) throws IOException {
+        ZipEntry entry = zipFile.getEntry(partName);
+        if (entry == null) {
+            return null;
+        }
+        InputStream inputStream = zipFile.getInputStream(entry);
+        try {
+            return new Part(inputStream, XML_INPUT_FACTORY.createXMLStreamReader(inputStream));
+        } catch (XMLStreamException e) {
+            inputStream.close();
+            throw new IOException("Cannot read part " + partName, e);
+        }
+    }
+
+    /**
+     * Read the relationships of a part: relationship id to target part name.
+     *
+     * @param zipFile The package
+     * @param partName The source part name, e.g. xl/workbook.xml
+     * @return The target part names, by relationship id
+     * @throws IOException If the relationships cannot be read
+     */
+    static Map<String, String> relationships(ZipFile zipFile, String partName) throws IOException {
+        int slash = partName.lastIndexOf('/');
+        String directory = slash < 0 ? "" : partName.substring(0, slash + 1);
+        String relsName = directory + "_rels/" + partName.substring(slash + 1) + ".rels";
+        Map<String, String> targets = new HashMap<>();
+        try (Part part = open(zipFile, relsName)) {
+            if (part == null) {
+                return targets;
+            }
+            XMLStreamReader reader = part.reader();
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && "Relationship".equals(reader.getLocalName())) {
+                    String id = reader.getAttributeValue(null, "Id");
+                    String target = reader.getAttributeValue(null, "Target");
+                    if (id != null && target != null) {
+                        targets.put(id, resolve(directory, target));
+                    }
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot read relationships of " + partName, e);
+        }
+        return targets;
+    }
+
+    /**
+     * @return the value of an attribute in the relationships namespace (r:id), whatever its prefix
+     */
+    static String relationshipId(XMLStreamReader reader) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if ("id".equals(reader.getAttributeLocalName(i))
+                    && reader.getAttributeNamespace(i) != null
+                    && reader.getAttributeNamespace(i).endsWith("/relationships")) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    private static String resolve(String directory, String target) {
+        if (target.startsWith("/")) {
+            return target.substring(1);
+        }
+        String path = directory + target;
+        // normalize "../"
+        while (path.contains("../")) {
+            int up = path.indexOf("../");
+            int parent = path.lastIndexOf('/', up - 2);
+            path = path.substring(0, parent + 1) + path.substring(up + 3);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,66 @@
+package one.cax.textractor.text;
+
+/**
+ * Text layer measurements of a single PDF page, used to decide whether the page
+ * needs OCR or whether its embedded text can be used as is.
+ */
+public class PageCoverage {
+
+    private final int pageNumber;
+    private final String text;
+    private final int charCount;
+    private final double imageCoverage;
+
+    /**
+     * @param pageNumber 1-based page number
+     * @param text text extracted from the page text layer
+     * @param imageCoverage fraction of the page area covered by images, between 0 and 1
+     */
+    public PageCoverage(int pageNumber, String text, double imageCoverage) {
+        this.pageNumber = pageNumber;
+        this.text = text;
+        this.charCount = countVisibleChars(text);
+        this.imageCoverage = imageCoverage;
+    }
+
+    public int getPageNumber() {
+        return pageNumber;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return number of non-whitespace characters in the text layer
+     */
+    public int getCharCount() {
+        return charCount;
+    }
+
+    public double getImageCoverage() {
+        return imageCoverage;
+    }
+
+    private static int countVisibleChars(String text) {
+        if (text == null) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "PageCoverage{" +
+                "pageNumber=" + pageNumber +
+                ", charCount=" + charCount +
+                ", imageCoverage=" + imageCoverage +
+                '}';
+    }
+}
@@ -0,0 +1,41 @@
+package one.cax.textractor.text;
+
+import java.io.IOException;
+
+/**
+ * Receives the pages of a document one at a time, in page order, as they are extracted.
+ * <p>
+ * Lets callers write each page out (to a JSON stream, a database batch, an XDoc...)
+ * without the extractor holding the whole document in memory.
+ */
+public interface PageSink {
+
+    /**
+     * Called once, before the first page.
+     *
+     * @param fileName The name of the file, or null if unknown
+     * @param totalPages The number of pages of the document
+     * @throws IOException If the sink cannot be written
+     */
+    default void start(String fileName, int totalPages) throws IOException {
+    }
+
+    /**
+     * Called for each page, in page order.
+     *
+     * @param pageNumber 1-based page number
+     * @param text The text of the page
+     * @throws IOException If the sink cannot be written
+     */
+    void page(int pageNumber, String text) throws IOException;
+
+    /**
+     * Called once, after the last page. The title is only known at the end, since it
+     * falls back to the text of the first page when the document has none.
+     *
+     * @param title The title of the document
+     * @throws IOException If the sink cannot be written
+     */
+    default void end(String title) throws IOException {
+    }
+}
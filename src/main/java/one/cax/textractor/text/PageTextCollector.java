@@ -0,0 +1,67 @@
+package one.cax.textractor.text;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Extracts the text of every page of a document in a single traversal.
+ * <p>
+ * {@link PDFTextStripper#getText(PDDocument)} called once per page with a new page
+ * range walks the page tree again on every call. This stripper runs once over the
+ * whole document and cuts the output at the page boundaries reported by the
+ * stripper's page callbacks, handing each page over as soon as it is done.
+ * Only the text of the current page is buffered.
+ */
+class PageTextCollector extends PDFTextStripper {
+
+    /**
+     * Receives the text of each page, in page order.
+     */
+    @FunctionalInterface
+    interface PageTextHandler {
+        /**
+         * @param pageNumber 1-based page number
+         * @param page The page
+         * @param text The text of the page
+         * @throws IOException If the page cannot be handled
+         */
+        void onPage(int pageNumber, PDPage page, String text) throws IOException;
+    }
+
+    private final StringWriter pageBuffer = new StringWriter();
+    private PageTextHandler handler;
+
+    PageTextCollector() {
+        super();
+    }
+
+    /**
+     * Extract the text of the document pages within the current page range.
+     *
+     * @param pdDocument The document
+     * @param handler Receives the text of each page
+     * @throws IOException If an error occurs while reading the document
+     */
+    void extract(PDDocument pdDocument, PageTextHandler handler) throws IOException {
+        this.handler = handler;
+        pageBuffer.getBuffer().setLength(0);
+        try {
+            writeText(pdDocument, pageBuffer);
+        } finally {
+            this.handler = null;
+        }
+    }
+
+    @Override
+    protected void endPage(PDPage page) throws IOException {
+        super.endPage(page);
+        StringBuffer buffer = pageBuffer.getBuffer();
+        String text = buffer.toString();
+        buffer.setLength(0);
+        handler.onPage(getCurrentPageNo(), page, text);
+    }
+}
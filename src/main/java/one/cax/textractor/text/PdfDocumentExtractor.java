@@ -0,0 +1,30 @@
+package one.cax.textractor.text;
+
+import one.cax.textractor.datamodel.DocumentFormat;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Reads the text layer of PDF files with the {@link ExtractorEngine}.
+ */
+@Component
+public class PdfDocumentExtractor implements DocumentExtractor {
+
+    private final ExtractorEngine extractorEngine;
+
+    public PdfDocumentExtractor(ExtractorEngine extractorEngine) {
+        this.extractorEngine = extractorEngine;
+    }
+
+    @Override
+    public Set<DocumentFormat> getFormats() {
+        return Set.of(DocumentFormat.PDF);
+    }
+
+    @Override
+    public void extract(Path file, DocumentFormat format, PageSink sink) throws DocumentExtractionException {
+        extractorEngine.extractTextFromPDF(file.toString(), sink);
+    }
+}
@@ -0,0 +1,72 @@
+package one.cax.textractor.text;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps the memory held by all the PDF documents being extracted at the same time.
+ * <p>
+ * Each open document reserves its main memory budget before it is loaded and
+ * releases it when it is closed. Once the cap is reached, further extractions
+ * wait for a running one to finish instead of growing the heap.
+ */
+class PdfMemoryBudget {
+
+    private static final long MB = 1024L * 1024L;
+
+    private final Semaphore permits;
+    private final int maxTotalMb;
+
+    /**
+     * @param maxTotalMb Memory shared by all the documents in flight, in MB
+     */
+    PdfMemoryBudget(int maxTotalMb) {
+        this.maxTotalMb = Math.max(1, maxTotalMb);
+        this.permits = new Semaphore(this.maxTotalMb, true);
+    }
+
+    /**
+     * Reserve memory for one document, waiting until enough is free.
+     *
+     * @param documentBytes Main memory budget of the document
+     * @return The reservation, to close when the document is closed
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    Reservation reserve(long documentBytes) throws InterruptedIOException {
+        int mb = (int) Math.min(maxTotalMb, Math.max(1, (documentBytes + MB - 1) / MB));
+        try {
+            permits.acquire(mb);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for PDF memory budget");
+        }
+        return new Reservation(mb);
+    }
+
+    /**
+     * @return memory not reserved by any document, in MB
+     */
+    int getAvailableMb() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * Memory reserved for one document.
+     */
+    class Reservation implements AutoCloseable {
+
+        private int mb;
+
+        private Reservation(int mb) {
+            this.mb = mb;
+        }
+
+        @Override
+        public void close() {
+            if (mb > 0) {
+                permits.release(mb);
+                mb = 0;
+            }
+        }
+    }
+}
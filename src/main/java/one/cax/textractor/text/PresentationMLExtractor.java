@@ -0,0 +1,105 @@
+package one.cax.textractor.text;
+
+import one.cax.textractor.datamodel.DocumentFormat;
+import org.springframework.stereotype.Component;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads PPTX presentations as one page per slide, one line per text paragraph.
+ * Slides are streamed with StAX straight from the package.
+ */
+@Component
+public class PresentationMLExtractor implements DocumentExtractor {
+
+    private static final String PRESENTATION = "ppt/presentation.xml";
+
+    @Override
+    public Set<DocumentFormat> getFormats() {
+        return Set.of(DocumentFormat.PPTX);
+    }
+
+    @Override
+    public void extract(Path file, DocumentFormat format, PageSink sink) throws DocumentExtractionException {
+        try (ZipFile zipFile = new ZipFile(file.toFile())) {
+            List<String> slides = readSlides(zipFile);
+
+            sink.start(file.getFileName().toString(), slides.size());
+            String firstSlideText = "";
+            for (int i = 0; i < slides.size(); i++) {
+                String slideText = readSlide(zipFile, slides.get(i));
+                if (i == 0) {
+                    firstSlideText = slideText;
+                }
+                sink.page(i + 1, slideText);
+            }
+            sink.end(firstLine(firstSlideText));
+        } catch (IOException | XMLStreamException e) {
+            throw new DocumentExtractionException("Failed to extract text from PPTX", e);
+        }
+    }
+
+    /**
+     * @return part names of the slides, in presentation order
+     */
+    private List<String> readSlides(ZipFile zipFile) throws IOException, XMLStreamException {
+        Map<String, String> relationships = OoxmlParts.relationships(zipFile, PRESENTATION);
+        List<String> slides = new ArrayList<>();
+        try (OoxmlParts.Part part = OoxmlParts.open(zipFile, PRESENTATION)) {
+            if (part == null) {
+                throw new IOException("Not a presentation: missing " + PRESENTATION);
+            }
+            XMLStreamReader reader = part.reader();
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && "sldId".equals(reader.getLocalName())) {
+                    String target = relationships.get(OoxmlParts.relationshipId(reader));
+                    if (target != null) {
+                        slides.add(target);
+                    }
+                }
+            }
+        }
+        return slides;
+    }
+
+    private String readSlide(ZipFile zipFile, String partName) throws IOException, XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        try (OoxmlParts.Part part = OoxmlParts.open(zipFile, partName)) {
+            if (part == null) {
+                return "";
+            }
+            XMLStreamReader reader = part.reader();
+            StringBuilder paragraph = new StringBuilder();
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "p" -> paragraph.setLength(0);
+                        case "t" -> paragraph.append(reader.getElementText());
+                        case "br" -> paragraph.append('\n');
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "p".equals(reader.getLocalName())
+                        && !paragraph.isEmpty()) {
+                    text.append(paragraph).append('\n');
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    private String firstLine(String text) {
+        int end = text.indexOf('\n');
+        return end < 0 ? text : text.substring(0, end);
+    }
+}
@@ -0,0 +1,194 @@
+package one.cax.textractor.text;
+
+import one.cax.textractor.datamodel.DocumentFormat;
+import org.springframework.stereotype.Component;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads XLSX workbooks as one page per sheet: cells separated by tabs, rows by new lines.
+ * <p>
+ * Sheets are streamed with StAX, like POI's event-based XSSF reader, so only the shared
+ * strings table and the current row are held in memory. Cached formula results are read,
+ * formulas are not evaluated.
+ */
+@Component
+public class SpreadsheetMLExtractor implements DocumentExtractor {
+
+    private static final String WORKBOOK = "xl/workbook.xml";
+    private static final String SHARED_STRINGS = "xl/sharedStrings.xml";
+
+    @Override
+    public Set<DocumentFormat> getFormats() {
+        return Set.of(DocumentFormat.XLSX);
+    }
+
+    @Override
+    public void extract(Path file, DocumentFormat format, PageSink sink) throws DocumentExtractionException {
+        try (ZipFile zipFile = new ZipFile(file.toFile())) {
+            Map<String, String> relationships = OoxmlParts.relationships(zipFile, WORKBOOK);
+            List<String[]> sheets = readSheets(zipFile, relationships);
+            List<String> sharedStrings = readSharedStrings(zipFile);
+
+            sink.start(file.getFileName().toString(), sheets.size());
+            for (int i = 0; i < sheets.size(); i++) {
+                sink.page(i + 1, readSheet(zipFile, sheets.get(i)[1], sharedStrings));
+            }
+            sink.end(sheets.isEmpty() ? "" : sheets.get(0)[0]);
+        } catch (IOException | XMLStreamException e) {
+            throw new DocumentExtractionException("Failed to extract text from XLSX", e);
+        }
+    }
+
+    /**
+     * @return name and part name of each sheet, in workbook order
+     */
+    private List<String[]> readSheets(ZipFile zipFile, Map<String, String> relationships) throws IOException, XMLStreamException {
+        List<String[]> sheets = new ArrayList<>();
+        try (OoxmlParts.Part part = OoxmlParts.open(zipFile, WORKBOOK)) {
+            if (part == null) {
+                throw new IOException("Not a workbook: missing " + WORKBOOK);
+            }
+            XMLStreamReader reader = part.reader();
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && "sheet".equals(reader.getLocalName())) {
+                    String target = relationships.get(OoxmlParts.relationshipId(reader));
+                    if (target != null) {
+                        sheets.add(new String[]{reader.getAttributeValue(null, "name"), target});
+                    }
+                }
+            }
+        }
+        return sheets;
+    }
+
+    private List<String> readSharedStrings(ZipFile zipFile) throws IOException, XMLStreamException {
+        List<String> sharedStrings = new ArrayList<>();
+        try (OoxmlParts.Part part = OoxmlParts.open(zipFile, SHARED_STRINGS)) {
+            if (part == null) {
+                return sharedStrings;
+            }
+            XMLStreamReader reader = part.reader();
+            StringBuilder item = null;
+            boolean phonetic = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "si" -> item = new StringBuilder();
+                        case "rPh" -> phonetic = true;
+                        case "t" -> {
+                            // the phonetic guide of East Asian text is not part of the value
+                            String text = reader.getElementText();
+                            if (item != null && !phonetic) {
+                                item.append(text);
+                            }
+                        }
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if ("rPh".equals(reader.getLocalName())) {
+                        phonetic = false;
+                    } else if ("si".equals(reader.getLocalName()) && item != null) {
+                        sharedStrings.add(item.toString());
+                        item = null;
+                    }
+                }
+            }
+        }
+        return sharedStrings;
+    }
+
+    private String readSheet(ZipFile zipFile, String partName, List<String> sharedStrings) throws IOException, XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        try (OoxmlParts.Part part = OoxmlParts.open(zipFile, partName)) {
+            if (part == null) {
+                return "";
+            }
+            XMLStreamReader reader = part.reader();
+            List<String> row = new ArrayList<>();
+            String cellType = null;
+            String cellValue = null;
+            int column = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "row" -> row.clear();
+                        case "c" -> {
+                            cellType = reader.getAttributeValue(null, "t");
+                            cellValue = null;
+                            // empty cells are left out: place the cell at its column
+                            column = columnIndex(reader.getAttributeValue(null, "r"), row.size());
+                        }
+                        case "v" -> cellValue = reader.getElementText();
+                        case "t" -> cellValue = cellValue == null ? reader.getElementText() : cellValue + reader.getElementText();
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if ("c".equals(reader.getLocalName())) {
+                        while (row.size() < column) {
+                            row.add("");
+                        }
+                        String value = cellText(cellType, cellValue, sharedStrings);
+                        if (column < row.size()) {
+                            row.set(column, value);
+                        } else {
+                            row.add(value);
+                        }
+                    } else if ("row".equals(reader.getLocalName())) {
+                        text.append(String.join("\t", row)).append('\n');
+                    }
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param reference Reference of a cell, such as "D7"; null when left out
+     * @param next Column following the previous cell of the row
+     * @return 0-based column of the cell
+     */
+    static int columnIndex(String reference, int next) {
+        if (reference == null) {
+            return next;
+        }
+        int column = 0;
+        int i = 0;
+        while (i < reference.length() && Character.isLetter(reference.charAt(i))) {
+            column = column * 26 + Character.toUpperCase(reference.charAt(i)) - 'A' + 1;
+            i++;
+        }
+        return i == 0 ? next : column - 1;
+    }
+
+    private String cellText(String cellType, String cellValue, List<String> sharedStrings) {
+        if (cellValue == null) {
+            return "";
+        }
+        if ("s".equals(cellType)) {
+            try {
+                int index = Integer.parseInt(cellValue.trim());
+                return index >= 0 && index < sharedStrings.size() ? sharedStrings.get(index) : "";
+            } catch (NumberFormatException e) {
+                return "";
+            }
+        }
+        if ("b".equals(cellType)) {
+            return "1".equals(cellValue) ? "TRUE" : "FALSE";
+        }
+        return cellValue;
+    }
+}
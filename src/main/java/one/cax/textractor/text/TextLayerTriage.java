@@ -0,0 +1,56 @@
+package one.cax.textractor.text;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+/**
+ * Decides which PDF pages need OCR.
+ * <p>
+ * A page can skip OCR when its text layer has enough characters. Pages mostly covered
+ * by images (scans with a stamp or a header in the text layer, for instance) must
+ * carry noticeably more text to be trusted, otherwise the image content would be lost.
+ */
+@Service
+public class TextLayerTriage {
+
+    @Value("${textractor.triage.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${textractor.triage.min-chars-per-page:50}")
+    private int minCharsPerPage = 50;
+
+    @Value("${textractor.triage.image-coverage-threshold:0.5}")
+    private double imageCoverageThreshold = 0.5;
+
+    @Value("${textractor.triage.min-chars-on-image-pages:200}")
+    private int minCharsOnImagePages = 200;
+
+    /**
+     * @return true if the text layer should be checked before sending a PDF to OCR
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param page Text layer measurements of the page
+     * @return true if the page text layer is not good enough and the page must be OCRed
+     */
+    public boolean needsOcr(PageCoverage page) {
+        int required = page.getImageCoverage() >= imageCoverageThreshold ? minCharsOnImagePages : minCharsPerPage;
+        return page.getCharCount() < required;
+    }
+
+    /**
+     * @param pages Text layer measurements of the document pages
+     * @return 1-based numbers of the pages that must be OCRed
+     */
+    public List<Integer> pagesNeedingOcr(List<PageCoverage> pages) {
+        return pages.stream()
+                .filter(this::needsOcr)
+                .map(PageCoverage::getPageNumber)
+                .toList();
+    }
+}
@@ -0,0 +1,43 @@
+package one.cax.textractor.text;
+
+import one.cax.textractor.datamodel.XDoc;
+import one.cax.textractor.datamodel.XPage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds an XDoc from the extracted pages, without an intermediate JSON document.
+ */
+public class XDocPageSink implements PageSink {
+
+    private final XDoc xDoc = new XDoc();
+    private List<XPage> pages = new ArrayList<>();
+
+    @Override
+    public void start(String fileName, int totalPages) {
+        xDoc.setFilename(fileName);
+        pages = new ArrayList<>(totalPages);
+    }
+
+    @Override
+    public void page(int pageNumber, String text) {
+        XPage xPage = new XPage();
+        xPage.setPageNumber(pageNumber);
+        xPage.setText(text);
+        pages.add(xPage);
+    }
+
+    @Override
+    public void end(String title) {
+        xDoc.setDocTitle(title);
+        xDoc.setPages(pages);
+    }
+
+    /**
+     * @return the document built from the pages received so far
+     */
+    public XDoc getXDoc() {
+        return xDoc;
+    }
+}
@@ -11,6 +11,7 @@ public class NameUtils {
     public static final String PAGE_NUMBER = "pageNumber";
     public static final String PAGE_TEXT = "pageText";
     public static final String PAGE_VECTOR = "pageVector";
+    public static final String PAGE_CONFIDENCE = "pageConfidence";
 
     public static final String APPLICATION_PDF = "application/pdf";
 
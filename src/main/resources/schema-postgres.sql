@@ -11,17 +11,26 @@ CREATE TABLE IF NOT EXISTS processed_files (
     ocr_content JSONB,
     llm_content TEXT,
     processing_status VARCHAR(50),
+    failure_reason VARCHAR(1000),
+    llm_pages INTEGER,
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
 );
 
+-- Columns added after the first release: CREATE TABLE IF NOT EXISTS leaves existing tables as they are
+ALTER TABLE processed_files ADD COLUMN IF NOT EXISTS failure_reason VARCHAR(1000);
+ALTER TABLE processed_files ADD COLUMN IF NOT EXISTS llm_pages INTEGER;
+
 -- Create app_profiles table
 CREATE TABLE IF NOT EXISTS app_profiles (
     id UUID PRIMARY KEY,
     profile_name VARCHAR(255) NOT NULL UNIQUE,
     profile_description TEXT,
+    ocr_mode VARCHAR(20),
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
 );
 
+ALTER TABLE app_profiles ADD COLUMN IF NOT EXISTS ocr_mode VARCHAR(20);
+
 -- Create indexes for faster lookups
 CREATE INDEX IF NOT EXISTS idx_processed_files_file_hash ON processed_files(file_hash);
 CREATE INDEX IF NOT EXISTS idx_processed_files_app_id ON processed_files(app_id);
@@ -0,0 +1,200 @@
+package one.cax.textractor;
+
+import one.cax.textractor.datamodel.DocumentFormat;
+import one.cax.textractor.datamodel.FileProcessing;
+import one.cax.textractor.datamodel.ProcessingStatus;
+import one.cax.textractor.datamodel.XDoc;
+import one.cax.textractor.datamodel.XPage;
+import one.cax.textractor.llm.OpenAIService;
+import one.cax.textractor.messaging.RedisStreamWorkQueue;
+import one.cax.textractor.ocr.AbbyyEngine;
+import one.cax.textractor.service.AppProfileService;
+import one.cax.textractor.service.ProcessedFilesService;
+import one.cax.textractor.text.DocumentExtractionException;
+import one.cax.textractor.text.DocumentExtractor;
+import one.cax.textractor.text.DocumentExtractorRegistry;
+import one.cax.textractor.text.ExtractorEngine;
+import one.cax.textractor.text.PageCoverage;
+import one.cax.textractor.text.TextLayerTriage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class OrchestratorTest {
+
+    private static final String OCR_TOPIC = "test-ocr-topic";
+    private static final String LLM_TOPIC = "test-llm-topic";
+
+    @Mock
+    private RedisStreamWorkQueue mockWorkQueue;
+
+    @Mock
+    private AbbyyEngine mockAbbyyEngine;
+
+    @Mock
+    private OpenAIService mockOpenAIService;
+
+    @Mock
+    private ExtractorEngine mockExtractorEngine;
+
+    @Mock
+    private AppProfileService mockAppProfileService;
+
+    @Mock
+    private ProcessedFilesService mockProcessedFilesService;
+
+    @Mock
+    private TextLayerTriage mockTextLayerTriage;
+
+    @Mock
+    private DocumentExtractorRegistry mockDocumentExtractorRegistry;
+
+    private Orchestrator orchestrator;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        orchestrator = new Orchestrator(mockWorkQueue, mockAbbyyEngine, mockOpenAIService, mockExtractorEngine);
+        orchestrator.setAppProfileService(mockAppProfileService);
+        orchestrator.setProcessedFilesService(mockProcessedFilesService);
+        orchestrator.setTextLayerTriage(mockTextLayerTriage);
+        orchestrator.setDocumentExtractorRegistry(mockDocumentExtractorRegistry);
+        ReflectionTestUtils.setField(orchestrator, "ocrTopic", OCR_TOPIC);
+        ReflectionTestUtils.setField(orchestrator, "llmTopic", LLM_TOPIC);
+    }
+
+    @Test
+    void testPdfWithTextLayerOnEveryPageSkipsOcr() throws Exception {
+        // Arrange
+        FileProcessing fileProcessing = fileProcessing("report.pdf", DocumentFormat.PDF);
+        List<PageCoverage> coverage = List.of(new PageCoverage(1, "first page", 0.0), new PageCoverage(2, "second page", 0.0));
+        when(mockTextLayerTriage.isEnabled()).thenReturn(true);
+        when(mockExtractorEngine.analyzeTextLayer(fileProcessing.getFilePath())).thenReturn(coverage);
+        when(mockTextLayerTriage.pagesNeedingOcr(coverage)).thenReturn(List.of());
+
+        // Act
+        UUID fileId = orchestrator.process(fileProcessing);
+
+        // Assert
+        verify(mockWorkQueue, never()).publish(eq(OCR_TOPIC), any());
+        verify(mockWorkQueue).publish(LLM_TOPIC, fileProcessing);
+        XDoc textLayer = captureOcrOutput(fileId);
+        assertEquals(List.of(1, 2), textLayer.getPages().stream().map(XPage::getPageNumber).toList());
+        assertEquals("second page", textLayer.getPages().get(1).getText());
+        assertNull(fileProcessing.getOcrPages());
+    }
+
+    @Test
+    void testPartlyCoveredPdfOcrsOnlyWeakPages() throws Exception {
+        // Arrange
+        FileProcessing fileProcessing = fileProcessing("scan.pdf", DocumentFormat.PDF);
+        List<PageCoverage> coverage = List.of(new PageCoverage(1, "text", 0.0),
+                new PageCoverage(2, "", 1.0), new PageCoverage(3, "more text", 0.0), new PageCoverage(4, "", 0.9));
+        when(mockTextLayerTriage.isEnabled()).thenReturn(true);
+        when(mockExtractorEngine.analyzeTextLayer(fileProcessing.getFilePath())).thenReturn(coverage);
+        when(mockTextLayerTriage.pagesNeedingOcr(coverage)).thenReturn(List.of(2, 4));
+
+        // Act
+        UUID fileId = orchestrator.process(fileProcessing);
+
+        // Assert
+        assertEquals(List.of(2, 4), fileProcessing.getOcrPages());
+        verify(mockWorkQueue).publish(OCR_TOPIC, fileProcessing);
+        XDoc textLayer = captureOcrOutput(fileId);
+        assertEquals(List.of(1, 3), textLayer.getPages().stream().map(XPage::getPageNumber).toList());
+    }
+
+    @Test
+    void testOfficeDocumentExtractedWithoutOcr() throws Exception {
+        // Arrange
+        FileProcessing fileProcessing = fileProcessing("report.docx", DocumentFormat.DOCX);
+        when(mockDocumentExtractorRegistry.find(DocumentFormat.DOCX)).thenReturn(Optional.of(mock(DocumentExtractor.class)));
+
+        // Act
+        UUID fileId = orchestrator.process(fileProcessing);
+
+        // Assert
+        verify(mockWorkQueue, never()).publish(anyString(), any());
+        verify(mockProcessedFilesService).mergeOcrOutput(eq(fileId.toString()), any(XDoc.class));
+        verify(mockProcessedFilesService).updateProcessingStatus(fileId.toString(), ProcessingStatus.PROCESSED.name());
+    }
+
+    @Test
+    void testUnreadableOfficeDocumentFallsBackToOcr() throws Exception {
+        // Arrange
+        FileProcessing fileProcessing = fileProcessing("report.docx", DocumentFormat.DOCX);
+        when(mockDocumentExtractorRegistry.find(DocumentFormat.DOCX)).thenReturn(Optional.of(mock(DocumentExtractor.class)));
+        doThrow(new DocumentExtractionException("corrupt document"))
+                .when(mockDocumentExtractorRegistry).extract(any(Path.class), eq(DocumentFormat.DOCX), any());
+
+        // Act
+        UUID fileId = orchestrator.process(fileProcessing);
+
+        // Assert
+        verify(mockWorkQueue).publish(OCR_TOPIC, fileProcessing);
+        verify(mockWorkQueue, never()).publish(eq(LLM_TOPIC), any());
+        verify(mockProcessedFilesService, never()).mergeOcrOutput(anyString(), any());
+        verify(mockProcessedFilesService, never()).updateProcessingStatus(fileId.toString(), ProcessingStatus.PROCESSED.name());
+    }
+
+    @Test
+    void testTextFirstLlmRequestedByOcrStage() {
+        // Arrange
+        ReflectionTestUtils.setField(orchestrator, "llmTextFirst", true);
+        FileProcessing fileProcessing = fileProcessing("photo.png", DocumentFormat.PNG);
+
+        // Act
+        orchestrator.process(fileProcessing);
+
+        // Assert - the OCR stage publishes to the LLM stream once the text is saved
+        assertTrue(fileProcessing.isLlmTextFirst());
+        verify(mockWorkQueue).publish(OCR_TOPIC, fileProcessing);
+        verify(mockWorkQueue, never()).publish(eq(LLM_TOPIC), any());
+    }
+
+    @Test
+    void testTextFirstLlmRequestedAtOnceWithoutOcr() throws Exception {
+        // Arrange
+        ReflectionTestUtils.setField(orchestrator, "llmTextFirst", true);
+        FileProcessing fileProcessing = fileProcessing("report.pdf", DocumentFormat.PDF);
+        List<PageCoverage> coverage = List.of(new PageCoverage(1, "first page", 0.0));
+        when(mockTextLayerTriage.isEnabled()).thenReturn(true);
+        when(mockExtractorEngine.analyzeTextLayer(fileProcessing.getFilePath())).thenReturn(coverage);
+        when(mockTextLayerTriage.pagesNeedingOcr(coverage)).thenReturn(List.of());
+
+        // Act
+        orchestrator.process(fileProcessing);
+
+        // Assert - no OCR stage to wait for: the text layer is already saved
+        verify(mockWorkQueue, never()).publish(eq(OCR_TOPIC), any());
+        verify(mockWorkQueue).publish(LLM_TOPIC, fileProcessing);
+    }
+
+    private FileProcessing fileProcessing(String fileName, DocumentFormat format) {
+        FileProcessing fileProcessing = new FileProcessing(fileName, 100L, format.getMimeType(),
+                "/filestore/" + UUID.randomUUID(), "hash", null);
+        when(mockDocumentExtractorRegistry.detect(Path.of(fileProcessing.getFilePath()))).thenReturn(format);
+        return fileProcessing;
+    }
+
+    private XDoc captureOcrOutput(UUID fileId) {
+        ArgumentCaptor<XDoc> captor = ArgumentCaptor.forClass(XDoc.class);
+        verify(mockProcessedFilesService).mergeOcrOutput(eq(fileId.toString()), captor.capture());
+        return captor.getValue();
+    }
+}
@@ -0,0 +1,99 @@
+package one.cax.textractor.api;
+
+import one.cax.textractor.Orchestrator;
+import one.cax.textractor.api.dto.ApiResponse;
+import one.cax.textractor.datamodel.FileProcessing;
+import one.cax.textractor.datamodel.StoredFile;
+import one.cax.textractor.ocr.OcrBackpressure;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class TeXtractorControllerTest {
+
+    private static final String APP_ID = UUID.randomUUID().toString();
+
+    @Mock
+    private Orchestrator mockOrchestrator;
+
+    @Mock
+    private OcrBackpressure mockOcrBackpressure;
+
+    private TeXtractorController controller;
+
+    @BeforeEach
+    void setUp() {
+        controller = new TeXtractorController(mockOrchestrator, mockOcrBackpressure);
+        when(mockOrchestrator.appIdIsValid(APP_ID)).thenReturn(true);
+    }
+
+    @Test
+    void testUploadRefusedWhileOcrBacklogFull() throws Exception {
+        // Arrange
+        MockMultipartFile file = new MockMultipartFile("file", "scan.pdf", "application/pdf", "%PDF-1.7".getBytes());
+        when(mockOrchestrator.mayNeedOcr(any(InputStream.class))).thenReturn(true);
+        when(mockOcrBackpressure.admit()).thenReturn(Optional.of(Duration.ofSeconds(42)));
+
+        // Act
+        ResponseEntity<ApiResponse<String>> response = controller.process(APP_ID, file);
+
+        // Assert
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+        assertEquals("42", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        assertEquals("OCR_QUEUE_FULL", response.getBody().getErrorCode());
+        verify(mockOrchestrator, never()).storeFile(any());
+        verify(mockOrchestrator, never()).process(any());
+    }
+
+    @Test
+    void testUploadAcceptedWhenOcrAdmitted() throws Exception {
+        // Arrange
+        UUID fileId = UUID.randomUUID();
+        MockMultipartFile file = new MockMultipartFile("file", "scan.pdf", "application/pdf", "%PDF-1.7".getBytes());
+        when(mockOrchestrator.mayNeedOcr(any(InputStream.class))).thenReturn(true);
+        when(mockOcrBackpressure.admit()).thenReturn(Optional.empty());
+        when(mockOrchestrator.storeFile(any())).thenReturn(new StoredFile("/tmp/stored", "hash", 8));
+        when(mockOrchestrator.process(any(FileProcessing.class))).thenReturn(fileId);
+
+        // Act
+        ResponseEntity<ApiResponse<String>> response = controller.process(APP_ID, file);
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(fileId.toString(), response.getBody().getData());
+    }
+
+    @Test
+    void testOfficeDocumentAcceptedWhileOcrBacklogFull() throws Exception {
+        // Arrange
+        UUID fileId = UUID.randomUUID();
+        MockMultipartFile file = new MockMultipartFile("file", "report.docx", null, new byte[]{'P', 'K', 3, 4});
+        when(mockOrchestrator.mayNeedOcr(any(InputStream.class))).thenReturn(false);
+        when(mockOrchestrator.storeFile(any())).thenReturn(new StoredFile("/tmp/stored", "hash", 4));
+        when(mockOrchestrator.process(any(FileProcessing.class))).thenReturn(fileId);
+
+        // Act
+        ResponseEntity<ApiResponse<String>> response = controller.process(APP_ID, file);
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(fileId.toString(), response.getBody().getData());
+        verify(mockOcrBackpressure, never()).admit();
+    }
+}
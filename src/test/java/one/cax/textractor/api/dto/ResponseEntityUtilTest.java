@@ -1,6 +1,7 @@
 package one.cax.textractor.api.dto;
 
 import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 
@@ -41,6 +42,22 @@ class ResponseEntityUtilTest {
         assertEquals(errorCode, responseEntity.getBody().getErrorCode());
     }
 
+    @Test
+    void testFailedResponseWithHeaders() {
+        // Arrange
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, "30");
+
+        // Act
+        ResponseEntity<ApiResponse<String>> responseEntity = ResponseEntityUtil.failedResponse(
+                "OCR queue is full, retry later", "OCR_QUEUE_FULL", HttpStatus.TOO_MANY_REQUESTS, headers);
+
+        // Assert
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, responseEntity.getStatusCode());
+        assertEquals("30", responseEntity.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        assertEquals("OCR_QUEUE_FULL", responseEntity.getBody().getErrorCode());
+    }
+
     @Test
     void testSuccessResponseWithNullData() {
         // Act
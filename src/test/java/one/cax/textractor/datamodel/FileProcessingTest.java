@@ -1,22 +1,33 @@
 package one.cax.textractor.datamodel;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class FileProcessingTest {
 
+    @TempDir
+    Path tempDir;
+
+    private FileProcessing newFileProcessing(String fileName, byte[] fileContent, String appId) throws IOException {
+        Path filePath = Files.write(tempDir.resolve(UUID.randomUUID().toString()), fileContent);
+        return new FileProcessing(fileName, fileContent.length, "text/plain", filePath.toString(), "hash-" + fileName, appId);
+    }
+
     @Test
-    void testInitialize() {
+    void testInitialize() throws IOException {
         // Arrange
-        byte[] fileContent = "Test file content".getBytes();
-        String fileName = "test.txt";
-        long fileSize = fileContent.length;
-        String contentType = "text/plain";
-        String appId = "app123";
-        FileProcessing fileProcessing = new FileProcessing(fileName, fileSize, contentType, fileContent, appId);
+        FileProcessing fileProcessing = newFileProcessing("test.txt", "Test file content".getBytes(), "app123");
         
         // Act
         UUID fileId = fileProcessing.initialize();
@@ -28,34 +39,56 @@ class FileProcessingTest {
     }
 
     @Test
-    void testGetters() {
+    void testGetters() throws IOException {
         // Arrange
         byte[] fileContent = "Test file content".getBytes();
         String fileName = "test.txt";
-        long fileSize = fileContent.length;
-        String contentType = "text/plain";
         String appId = "app123";
-        FileProcessing fileProcessing = new FileProcessing(fileName, fileSize, contentType, fileContent, appId);
+        FileProcessing fileProcessing = newFileProcessing(fileName, fileContent, appId);
         fileProcessing.initialize();
         
         // Act & Assert
         assertEquals(fileName, fileProcessing.getFileName());
         assertEquals(appId, fileProcessing.getAppId());
-        assertEquals(fileSize, fileProcessing.getFileSize());
+        assertEquals(fileContent.length, fileProcessing.getFileSize());
+        assertEquals("text/plain", fileProcessing.getContentType());
         assertNotNull(fileProcessing.getFileId());
-        assertNotNull(fileProcessing.getFileHash());
-        assertArrayEquals(fileContent, fileProcessing.getFileContent());
+        assertNotNull(fileProcessing.getFilePath());
+        assertEquals("hash-" + fileName, fileProcessing.getFileHash());
     }
 
     @Test
-    void testSetStatus() {
+    void testCreateFromStoredFile() {
+        // Arrange
+        StoredFile storedFile = new StoredFile("/filestore/abc", "abc123", 42L);
+
+        // Act
+        FileProcessing fileProcessing = new FileProcessing("test.pdf", "application/pdf", storedFile, "app123");
+
+        // Assert
+        assertEquals("/filestore/abc", fileProcessing.getFilePath());
+        assertEquals("abc123", fileProcessing.getFileHash());
+        assertEquals(42L, fileProcessing.getFileSize());
+        assertEquals("application/pdf", fileProcessing.getContentType());
+    }
+
+    @Test
+    void testReadFileContent() throws IOException {
         // Arrange
         byte[] fileContent = "Test file content".getBytes();
-        String fileName = "test.txt";
-        long fileSize = fileContent.length;
-        String contentType = "text/plain";
-        String appId = "app123";
-        FileProcessing fileProcessing = new FileProcessing(fileName, fileSize, contentType, fileContent, appId);
+        FileProcessing fileProcessing = newFileProcessing("test.txt", fileContent, "app123");
+
+        // Act & Assert
+        assertArrayEquals(fileContent, fileProcessing.readFileContent());
+        try (InputStream in = fileProcessing.openFileContent()) {
+            assertArrayEquals(fileContent, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void testSetStatus() throws IOException {
+        // Arrange
+        FileProcessing fileProcessing = newFileProcessing("test.txt", "Test file content".getBytes(), "app123");
         fileProcessing.initialize();
         
         // Act
@@ -72,14 +105,9 @@ class FileProcessingTest {
     }
 
     @Test
-    void testSetMessage() {
+    void testSetMessage() throws IOException {
         // Arrange
-        byte[] fileContent = "Test file content".getBytes();
-        String fileName = "test.txt";
-        long fileSize = fileContent.length;
-        String contentType = "text/plain";
-        String appId = "app123";
-        FileProcessing fileProcessing = new FileProcessing(fileName, fileSize, contentType, fileContent, appId);
+        FileProcessing fileProcessing = newFileProcessing("test.txt", "Test file content".getBytes(), "app123");
         
         // Act
         fileProcessing.setMessage("Processing completed successfully");
@@ -89,37 +117,11 @@ class FileProcessingTest {
     }
 
     @Test
-    void testCalculateHash() {
+    void testToString() throws IOException {
         // Arrange
-        byte[] fileContent1 = "Test file content".getBytes();
-        byte[] fileContent2 = "Different content".getBytes();
-        
-        FileProcessing fileProcessing1 = new FileProcessing("test1.txt", fileContent1.length, "text/plain", fileContent1, "app123");
-        FileProcessing fileProcessing2 = new FileProcessing("test2.txt", fileContent1.length, "text/plain", fileContent1, "app456"); // Same content, different name/appId
-        FileProcessing fileProcessing3 = new FileProcessing("test3.txt", fileContent2.length, "text/plain", fileContent2, "app123"); // Different content
-        
-        // Act
-        fileProcessing1.initialize();
-        fileProcessing2.initialize();
-        fileProcessing3.initialize();
-        
-        // Assert
-        // Same content should produce same hash regardless of filename or appId
-        assertEquals(fileProcessing1.getFileHash(), fileProcessing2.getFileHash());
-        
-        // Different content should produce different hash
-        assertNotEquals(fileProcessing1.getFileHash(), fileProcessing3.getFileHash());
-    }
-
-    @Test
-    void testToString() {
-        // Arrange
-        byte[] fileContent = "Test file content".getBytes();
         String fileName = "test.txt";
-        long fileSize = fileContent.length;
-        String contentType = "text/plain";
         String appId = "app123";
-        FileProcessing fileProcessing = new FileProcessing(fileName, fileSize, contentType, fileContent, appId);
+        FileProcessing fileProcessing = newFileProcessing(fileName, "Test file content".getBytes(), appId);
         UUID fileId = fileProcessing.initialize();
         fileProcessing.setStatus(ProcessingStatus.PROCESSED);
         fileProcessing.setMessage("Success");
@@ -134,4 +136,30 @@ class FileProcessingTest {
         assertTrue(toString.contains("PROCESSED"));
         assertTrue(toString.contains("Success"));
     }
+
+    @Test
+    void testClaimCheckMessageRoundTrip() throws IOException {
+        // Arrange
+        byte[] fileContent = "Test file content".getBytes();
+        FileProcessing fileProcessing = newFileProcessing("test.txt", fileContent, "app123");
+        UUID fileId = fileProcessing.initialize();
+        fileProcessing.setLlmTextFirst(true);
+        Jackson2JsonRedisSerializer<FileProcessing> serializer =
+                new Jackson2JsonRedisSerializer<>(new ObjectMapper(), FileProcessing.class);
+
+        // Act
+        byte[] message = serializer.serialize(fileProcessing);
+        FileProcessing received = serializer.deserialize(message);
+
+        // Assert - the message carries the reference, not the content
+        assertFalse(new String(message, StandardCharsets.UTF_8).contains("Test file content"));
+        assertEquals(fileId, received.getFileId());
+        assertEquals(fileProcessing.getFilePath(), received.getFilePath());
+        assertEquals(fileProcessing.getFileHash(), received.getFileHash());
+        assertEquals(fileProcessing.getFileSize(), received.getFileSize());
+        assertEquals(fileProcessing.getContentType(), received.getContentType());
+        assertEquals(ProcessingStatus.PROCESSING, received.getStatus());
+        assertTrue(received.isLlmTextFirst());
+        assertArrayEquals(fileContent, received.readFileContent());
+    }
 }
@@ -73,4 +73,31 @@ void testGetPages() {
     assertEquals("Page 1 text", pages.get(0).getText());
     assertEquals("Page 2 text", pages.get(1).getText());
 }
-}
\ No newline at end of file
+
+@Test
+void testMergePages() {
+    XDoc xDoc = new XDoc();
+    XPage page1 = new XPage();
+    page1.setPageNumber(1);
+    page1.setText("Text layer page 1");
+    XPage page3 = new XPage();
+    page3.setPageNumber(3);
+    page3.setText("Text layer page 3");
+    xDoc.setPages(List.of(page1, page3));
+
+    XPage ocrPage2 = new XPage();
+    ocrPage2.setPageNumber(2);
+    ocrPage2.setText("OCR page 2");
+    XPage ocrPage3 = new XPage();
+    ocrPage3.setPageNumber(3);
+    ocrPage3.setText("OCR page 3");
+
+    xDoc.mergePages(List.of(ocrPage3, ocrPage2));
+
+    List<XPage> pages = xDoc.getPages();
+    assertEquals(3, pages.size());
+    assertEquals("Text layer page 1", pages.get(0).getText());
+    assertEquals("OCR page 2", pages.get(1).getText());
+    assertEquals("OCR page 3", pages.get(2).getText());
+}
+}
@@ -0,0 +1,115 @@
+package one.cax.textractor.llm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AimdLimiterTest {
+
+    @Test
+    void testLimitGrowsWithHealthyLatencyWhileInUse() {
+        // Arrange
+        AimdLimiter limiter = new AimdLimiter(2, 1, 10, 0.5, 1000);
+
+        // Act - keep the window full: about one more request per round trip of the window
+        for (int i = 0; i < 6; i++) {
+            while (limiter.tryAcquire()) {
+                // fill the window
+            }
+            limiter.release(AimdLimiter.Outcome.SUCCESS, 100);
+        }
+
+        // Assert
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    void testLimitKeptWhenIdleOrSlow() {
+        // Arrange
+        AimdLimiter limiter = new AimdLimiter(4, 1, 10, 0.5, 1000);
+
+        // Act - one request at a time, then requests over the latency target
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(AimdLimiter.Outcome.SUCCESS, 100);
+        }
+        for (int i = 0; i < 10; i++) {
+            while (limiter.tryAcquire()) {
+                // fill the window
+            }
+            limiter.release(AimdLimiter.Outcome.SUCCESS, 5000);
+        }
+
+        // Assert
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    void testLimitBacksOffOnDroppedRequestsDownToMinimum() {
+        // Arrange
+        AimdLimiter limiter = new AimdLimiter(8, 2, 10, 0.5, 1000);
+
+        // Act - each request sent after the previous one was dropped
+        assertTrue(limiter.tryAcquire());
+        limiter.release(AimdLimiter.Outcome.DROPPED, 0);
+        int afterOneDrop = limiter.getLimit();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(AimdLimiter.Outcome.DROPPED, 0);
+        }
+
+        // Assert
+        assertEquals(4, afterOneDrop);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testBurstOfDropsBacksOffOnce() throws Exception {
+        // Arrange - a full window sent, then throttled at once
+        AimdLimiter limiter = new AimdLimiter(8, 1, 10, 0.5, 1000);
+        while (limiter.tryAcquire()) {
+            // fill the window
+        }
+        Thread.sleep(20);
+
+        // Act
+        for (int i = 0; i < 8; i++) {
+            limiter.release(AimdLimiter.Outcome.DROPPED, 20);
+        }
+        int afterBurst = limiter.getLimit();
+        assertTrue(limiter.tryAcquire());
+        limiter.release(AimdLimiter.Outcome.DROPPED, 0);
+
+        // Assert - the burst is one overload; a request sent after the cut may cut again
+        assertEquals(4, afterBurst);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testAcquireWaitsForARelease() throws Exception {
+        // Arrange
+        AimdLimiter limiter = new AimdLimiter(1, 1, 1, 0.5, 1000);
+        limiter.acquire();
+        Thread waiting = new Thread(() -> {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // Act
+        waiting.start();
+        waiting.join(200);
+        boolean blocked = waiting.isAlive();
+        limiter.release(AimdLimiter.Outcome.IGNORED, 0);
+        waiting.join(5000);
+
+        // Assert
+        assertTrue(blocked);
+        assertFalse(waiting.isAlive());
+        assertEquals(1, limiter.getInFlight());
+    }
+}
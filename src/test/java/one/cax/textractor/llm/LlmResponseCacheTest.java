@@ -0,0 +1,140 @@
+package one.cax.textractor.llm;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.textractor.datamodel.XDoc;
+import one.cax.textractor.datamodel.XPage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class LlmResponseCacheTest {
+
+    @Mock
+    private StringRedisTemplate redisTemplate;
+
+    @Mock
+    private ValueOperations<String, String> valueOperations;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private LlmResponseCache cache;
+
+    @BeforeEach
+    void setUp() {
+        lenient().when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new LlmResponseCache(redisTemplate, new ObjectMapper(), meterRegistry);
+    }
+
+    @Test
+    void testHitInMemorySkipsRedis() {
+        // Arrange
+        String key = LlmResponseCache.key("hash1", "gpt-4o", "1");
+        cache.put(key, doc("invoice"));
+
+        // Act
+        XDoc cached = cache.get(key);
+
+        // Assert
+        assertEquals("invoice", cached.getPages().get(0).getText());
+        verify(valueOperations).set(eq(key), anyString(), eq(Duration.ofHours(168)));
+        verify(valueOperations, never()).get(anyString());
+        assertEquals(1.0, meterRegistry.get("llmCache").tag("tier", "memory").counter().count());
+    }
+
+    @Test
+    void testHitInRedisKeptInMemory() throws Exception {
+        // Arrange - cached by another node
+        String key = LlmResponseCache.key("hash1", "gpt-4o", "1");
+        when(valueOperations.get(key)).thenReturn(new ObjectMapper().writeValueAsString(doc("form")));
+
+        // Act
+        XDoc first = cache.get(key);
+        XDoc second = cache.get(key);
+
+        // Assert
+        assertEquals("form", first.getPages().get(0).getText());
+        assertEquals("form", second.getPages().get(0).getText());
+        verify(valueOperations, times(1)).get(key);
+        assertEquals(1.0, meterRegistry.get("llmCache").tag("tier", "redis").counter().count());
+        assertEquals(1.0, meterRegistry.get("llmCache").tag("tier", "memory").counter().count());
+    }
+
+    @Test
+    void testKeyedByModelAndPromptVersion() {
+        // Arrange
+        cache.put(LlmResponseCache.key("hash1", "gpt-4o", "1"), doc("invoice"));
+
+        // Act & Assert
+        assertNull(cache.get(LlmResponseCache.key("hash1", "gpt-4o-mini", "1")));
+        assertNull(cache.get(LlmResponseCache.key("hash1", "gpt-4o", "2")));
+        assertEquals(2.0, meterRegistry.get("llmCache").tag("result", "miss").counter().count());
+    }
+
+    @Test
+    void testLeastRecentlyUsedEvictedBySize() {
+        // Arrange - room for two documents of about 0.4 MB
+        ReflectionTestUtils.setField(cache, "memoryMb", 1);
+        ReflectionTestUtils.setField(cache, "redisEnabled", false);
+        String text = "x".repeat(200_000);
+        cache.put("a", doc(text));
+        cache.put("b", doc(text));
+        cache.get("a");
+
+        // Act
+        cache.put("c", doc(text));
+
+        // Assert
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertTrue(cache.getMemoryBytes() <= 1024 * 1024);
+    }
+
+    @Test
+    void testExpiredEntryMissed() {
+        // Arrange
+        ReflectionTestUtils.setField(cache, "ttlHours", 0L);
+        ReflectionTestUtils.setField(cache, "redisEnabled", false);
+        cache.put("a", doc("invoice"));
+
+        // Act & Assert
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getMemoryBytes());
+    }
+
+    @Test
+    void testRedisFailureIsAMiss() {
+        // Arrange
+        when(valueOperations.get(anyString())).thenThrow(new RedisConnectionFailureException("down"));
+
+        // Act & Assert
+        assertNull(cache.get("a"));
+        assertEquals(1.0, meterRegistry.get("llmCache").tag("result", "miss").counter().count());
+    }
+
+    private static XDoc doc(String text) {
+        XPage page = new XPage();
+        page.setPageNumber(1);
+        page.setText(text);
+        XDoc xDoc = new XDoc();
+        xDoc.setPages(List.of(page));
+        return xDoc;
+    }
+}
@@ -0,0 +1,375 @@
+package one.cax.textractor.llm;
+
+import one.cax.textractor.datamodel.DocumentFormat;
+import one.cax.textractor.datamodel.FileProcessing;
+import one.cax.textractor.datamodel.OcrMode;
+import one.cax.textractor.datamodel.XDoc;
+import one.cax.textractor.datamodel.XPage;
+import one.cax.textractor.db.ProcessedFiles;
+import one.cax.textractor.messaging.RedisStreamWorkQueue;
+import one.cax.textractor.service.ProcessedFilesService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.retry.NonTransientAiException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class OpenAIServiceTest {
+
+    @Mock
+    private ChatModel chatModel;
+
+    @Mock
+    private RedisStreamWorkQueue workQueue;
+
+    @Mock
+    private ProcessedFilesService processedFilesService;
+
+    @TempDir
+    Path tempDir;
+
+    private OpenAIService openAIService;
+
+    @BeforeEach
+    void setUp() {
+        openAIService = new OpenAIService(chatModel, workQueue, processedFilesService);
+        ReflectionTestUtils.setField(openAIService, "llmTopic", "llm-topic");
+        ReflectionTestUtils.setField(openAIService, "initialConcurrency", 4);
+        ReflectionTestUtils.setField(openAIService, "maxConcurrency", 8);
+        ReflectionTestUtils.setField(openAIService, "retryDelayMillis", 10L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        openAIService.cleanup();
+    }
+
+    @Test
+    void testInitializeTakesUpToMaxConcurrencyFromStream() {
+        // Act
+        openAIService.initialize();
+
+        // Assert
+        verify(workQueue).subscribe(eq("llm-topic"), any(), eq(8));
+        assertEquals(4, openAIService.getConcurrencyLimit());
+        assertEquals(0, openAIService.getInFlight());
+    }
+
+    @Test
+    void testStreamedResponseSavedAndSlotReleased() throws Exception {
+        // Arrange
+        when(chatModel.stream(any(Prompt.class))).thenReturn(Flux.just(chunk("{\"pages\": "), chunk("[]}")));
+        openAIService.initialize();
+
+        // Act
+        openAIService.handleMessage(request()).get(10, TimeUnit.SECONDS);
+
+        // Assert - an empty document has no page to save
+        verify(processedFilesService, never()).saveLlmPages(anyString(), any(XDoc.class));
+        verify(chatModel, never()).call(any(Prompt.class));
+        assertEquals(0, openAIService.getInFlight());
+    }
+
+    @Test
+    void testThrottledRequestBacksOffLimit() throws Exception {
+        // Arrange
+        when(chatModel.stream(any(Prompt.class))).thenReturn(Flux.error(
+                WebClientResponseException.create(429, "Too Many Requests", null, null, null)));
+        ReflectionTestUtils.setField(openAIService, "retryDelayMillis", 50L);
+        openAIService.initialize();
+
+        // Act
+        long start = System.currentTimeMillis();
+        openAIService.handleMessage(request()).get(10, TimeUnit.SECONDS);
+        long elapsed = System.currentTimeMillis() - start;
+
+        // Assert - halved by the first attempt and each of its two retries, down to the minimum
+        verify(chatModel, times(3)).stream(any(Prompt.class));
+        // retried after 2 x 50 ms, then 2 x 100 ms
+        assertTrue(elapsed >= 300, "retried after " + elapsed + " ms");
+        assertEquals(1, openAIService.getConcurrencyLimit());
+        verify(processedFilesService, never()).saveLlmPages(anyString(), any(XDoc.class));
+    }
+
+    @Test
+    void testLongPdfSentInChunksAndFailedChunkRetriedAlone() throws Exception {
+        // Arrange - 5 pages in chunks of 2, the chunk of pages 3 to 4 failing once
+        ReflectionTestUtils.setField(openAIService, "chunkPages", 2);
+        ReflectionTestUtils.setField(openAIService, "renderDpi", 20f);
+        AtomicInteger failures = new AtomicInteger();
+        when(chatModel.stream(any(Prompt.class))).thenAnswer(invocation -> {
+            int[] pages = pages(invocation.getArgument(0));
+            if (pages[0] == 3 && failures.getAndIncrement() == 0) {
+                return Flux.error(new IllegalStateException("connection reset"));
+            }
+            // numbered from 1 by the model, whatever the chunk
+            StringBuilder json = new StringBuilder("{\"pages\": [");
+            for (int page = pages[0]; page <= pages[1]; page++) {
+                json.append(page > pages[0] ? "," : "").append("{\"page_number\": ").append(page - pages[0] + 1)
+                        .append(", \"content\": \"text of page ").append(page).append("\"}");
+            }
+            return Flux.just(chunk("```json\n"), chunk(json + "]}"), chunk("\n```"));
+        });
+        openAIService.initialize();
+
+        // Act
+        openAIService.handleMessage(pdfRequest(5)).get(10, TimeUnit.SECONDS);
+
+        // Assert - every page saved with its number, after one retry of the failed chunk only
+        verify(chatModel, times(4)).stream(any(Prompt.class));
+        ArgumentCaptor<XDoc> saved = ArgumentCaptor.forClass(XDoc.class);
+        verify(processedFilesService, atLeastOnce()).saveLlmPages(anyString(), saved.capture());
+        // each save holds all the pages so far, in order
+        List<XPage> pages = saved.getValue().getPages();
+        assertEquals(List.of(1, 2, 3, 4, 5), pages.stream().map(XPage::getPageNumber).toList());
+        assertEquals("text of page 3", pages.get(2).getText());
+        verify(processedFilesService, never()).markFailed(anyString(), anyString());
+        assertEquals(0, openAIService.getInFlight());
+    }
+
+    @Test
+    void testPagesSavedAsTheyStream() throws Exception {
+        // Arrange - the first page closes before the second starts streaming
+        Sinks.Many<ChatResponse> response = Sinks.many().unicast().onBackpressureBuffer();
+        when(chatModel.stream(any(Prompt.class))).thenReturn(response.asFlux());
+        openAIService.initialize();
+
+        // Act
+        CompletableFuture<Void> completion = openAIService.handleMessage(request());
+        response.tryEmitNext(chunk("{\"pages\": [{\"page_number\": 1, \"content\": \"first\"}"));
+        response.tryEmitNext(chunk(", {\"page_number\": 2, \"content\": \"sec"));
+
+        // Assert - the first page saved while the response is still streaming
+        ArgumentCaptor<XDoc> saved = ArgumentCaptor.forClass(XDoc.class);
+        verify(processedFilesService, timeout(10_000)).saveLlmPages(anyString(), saved.capture());
+        assertEquals(List.of("first"), saved.getValue().getPages().stream().map(XPage::getText).toList());
+        assertFalse(completion.isDone());
+
+        response.tryEmitNext(chunk("ond\"}]}"));
+        response.tryEmitComplete();
+        completion.get(10, TimeUnit.SECONDS);
+        // the second page closed within the save interval: saved with the first once the response ended
+        verify(processedFilesService, times(2)).saveLlmPages(anyString(), saved.capture());
+        assertEquals(List.of("first", "second"), saved.getValue().getPages().stream().map(XPage::getText).toList());
+    }
+
+    @Test
+    void testDocumentFailsWhenChunkKeepsFailing() throws Exception {
+        // Arrange
+        ReflectionTestUtils.setField(openAIService, "chunkPages", 2);
+        ReflectionTestUtils.setField(openAIService, "renderDpi", 20f);
+        when(chatModel.stream(any(Prompt.class))).thenAnswer(invocation -> {
+            int[] pages = pages(invocation.getArgument(0));
+            return pages[0] == 1 ? Flux.error(new IllegalStateException("bad gateway"))
+                    : Flux.just(chunk("{\"pages\": [{\"page_number\": 3, \"content\": \"text\"}]}"));
+        });
+        openAIService.initialize();
+
+        // Act
+        openAIService.handleMessage(pdfRequest(3)).get(10, TimeUnit.SECONDS);
+
+        // Assert - the first attempt and its two retries, plus the other chunk, whose page is saved
+        verify(chatModel, times(4)).stream(any(Prompt.class));
+        verify(processedFilesService, times(1)).saveLlmPages(anyString(), any(XDoc.class));
+        ArgumentCaptor<String> reason = ArgumentCaptor.forClass(String.class);
+        verify(processedFilesService).markFailed(anyString(), reason.capture());
+        assertTrue(reason.getValue().startsWith("Pages 1 to 2: LLM failed: "), reason.getValue());
+        assertTrue(reason.getValue().contains("bad gateway"), reason.getValue());
+    }
+
+    @Test
+    void testTextFirstSendsTextAndImagesOfLowConfidencePagesOnly() throws Exception {
+        // Arrange - page 1 OCRed with confidence, page 2 without, page 3 from the text layer
+        ReflectionTestUtils.setField(openAIService, "renderDpi", 20f);
+        FileProcessing fileProcessing = pdfRequest(3);
+        fileProcessing.setLlmTextFirst(true);
+        XDoc ocrContent = new XDoc();
+        ocrContent.setPages(List.of(page(1, "ocr text one", 95.0), page(2, "0cr t3xt", 30.0), page(3, "layer text", null)));
+        ProcessedFiles processedFile = new ProcessedFiles();
+        processedFile.setOcrContent(ocrContent);
+        when(processedFilesService.findById(fileProcessing.getFileId().toString())).thenReturn(Optional.of(processedFile));
+        when(chatModel.stream(any(Prompt.class))).thenReturn(Flux.just(chunk("{\"pages\": [" +
+                "{\"page_number\": 1, \"content\": \"one\"}, {\"page_number\": 2, \"content\": \"two\"}, " +
+                "{\"page_number\": 3, \"content\": \"three\"}]}")));
+        openAIService.initialize();
+
+        // Act
+        openAIService.handleMessage(fileProcessing).get(10, TimeUnit.SECONDS);
+
+        // Assert - one request with the trusted text, and the image of page 2 only
+        ArgumentCaptor<Prompt> prompt = ArgumentCaptor.forClass(Prompt.class);
+        verify(chatModel).stream(prompt.capture());
+        UserMessage message = (UserMessage) prompt.getValue().getInstructions().get(0);
+        assertTrue(message.getText().contains("ocr text one"));
+        assertTrue(message.getText().contains("layer text"));
+        assertFalse(message.getText().contains("0cr t3xt"));
+        assertEquals(1, message.getMedia().size());
+        ArgumentCaptor<XDoc> saved = ArgumentCaptor.forClass(XDoc.class);
+        verify(processedFilesService, atLeastOnce()).saveLlmPages(anyString(), saved.capture());
+        assertEquals(3, saved.getValue().getTotalPages());
+    }
+
+    @Test
+    void testCachedDocumentSkipsLlm() throws Exception {
+        // Arrange
+        LlmResponseCache responseCache = mock(LlmResponseCache.class);
+        XPage page = new XPage();
+        page.setPageNumber(1);
+        page.setText("cached text");
+        XDoc cached = new XDoc();
+        cached.setPages(List.of(page));
+        when(responseCache.isEnabled()).thenReturn(true);
+        when(responseCache.get(LlmResponseCache.key("hash123", "gpt-4o", OpenAIService.PROMPT_VERSION))).thenReturn(cached);
+        openAIService.setResponseCache(responseCache);
+        openAIService.initialize();
+
+        // Act
+        openAIService.handleMessage(request()).get(10, TimeUnit.SECONDS);
+
+        // Assert
+        verifyNoInteractions(chatModel);
+        ArgumentCaptor<XDoc> saved = ArgumentCaptor.forClass(XDoc.class);
+        verify(processedFilesService).saveLlmPages(anyString(), saved.capture());
+        assertEquals("cached text", saved.getValue().getPages().get(0).getText());
+        assertEquals(0, openAIService.getInFlight());
+    }
+
+    @Test
+    void testExtractedDocumentCached() throws Exception {
+        // Arrange
+        LlmResponseCache responseCache = mock(LlmResponseCache.class);
+        when(responseCache.isEnabled()).thenReturn(true);
+        when(chatModel.stream(any(Prompt.class))).thenReturn(
+                Flux.just(chunk("{\"pages\": [{\"page_number\": 1, \"content\": \"fresh text\"}]}")));
+        openAIService.setResponseCache(responseCache);
+        openAIService.initialize();
+
+        // Act
+        openAIService.handleMessage(request()).get(10, TimeUnit.SECONDS);
+
+        // Assert
+        ArgumentCaptor<XDoc> xDoc = ArgumentCaptor.forClass(XDoc.class);
+        verify(responseCache).put(eq(LlmResponseCache.key("hash123", "gpt-4o", OpenAIService.PROMPT_VERSION)),
+                xDoc.capture());
+        assertEquals("fresh text", xDoc.getValue().getPages().get(0).getText());
+    }
+
+    @Test
+    void testTextFirstDocumentCachedByOcrMode() throws Exception {
+        // Arrange - cached from the text of the fast OCR mode only
+        LlmResponseCache responseCache = mock(LlmResponseCache.class);
+        XDoc cached = new XDoc();
+        cached.setPages(List.of(page(1, "cached text", null)));
+        when(responseCache.isEnabled()).thenReturn(true);
+        when(responseCache.get(LlmResponseCache.key("hash123", "gpt-4o", OpenAIService.PROMPT_VERSION + "-text-FAST")))
+                .thenReturn(cached);
+        when(chatModel.stream(any(Prompt.class))).thenReturn(
+                Flux.just(chunk("{\"pages\": [{\"page_number\": 1, \"content\": \"fresh text\"}]}")));
+        openAIService.setResponseCache(responseCache);
+        openAIService.initialize();
+        FileProcessing fast = request();
+        fast.setLlmTextFirst(true);
+        fast.setOcrMode(OcrMode.FAST);
+        FileProcessing accurate = request();
+        accurate.setLlmTextFirst(true);
+        accurate.setOcrMode(OcrMode.ACCURATE);
+
+        // Act
+        openAIService.handleMessage(fast).get(10, TimeUnit.SECONDS);
+        openAIService.handleMessage(accurate).get(10, TimeUnit.SECONDS);
+
+        // Assert - the same file read with the accurate mode is sent to the LLM
+        verify(chatModel, times(1)).stream(any(Prompt.class));
+        verify(responseCache).put(eq(LlmResponseCache.key("hash123", "gpt-4o", OpenAIService.PROMPT_VERSION + "-text-ACCURATE")),
+                any(XDoc.class));
+    }
+
+    @Test
+    void testOutcome() {
+        assertEquals(AimdLimiter.Outcome.DROPPED, OpenAIService.outcome(new TimeoutException("timed out")));
+        assertEquals(AimdLimiter.Outcome.DROPPED,
+                OpenAIService.outcome(new RuntimeException(new NonTransientAiException("429 - rate limit"))));
+        assertEquals(AimdLimiter.Outcome.IGNORED,
+                OpenAIService.outcome(new NonTransientAiException("400 - bad request")));
+        assertEquals(AimdLimiter.Outcome.IGNORED, OpenAIService.outcome(new IllegalStateException("parse")));
+    }
+
+    /**
+     * @return first and last page asked by a chunk prompt
+     */
+    private static int[] pages(Prompt prompt) {
+        Matcher matcher = Pattern.compile("pages (\\d+) to (\\d+)").matcher(prompt.getInstructions().get(0).getText());
+        assertTrue(matcher.find());
+        return new int[]{Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))};
+    }
+
+    private FileProcessing pdfRequest(int pageCount) throws Exception {
+        Path file = tempDir.resolve("long.pdf");
+        try (PDDocument document = new PDDocument()) {
+            for (int i = 0; i < pageCount; i++) {
+                document.addPage(new PDPage());
+            }
+            document.save(file.toFile());
+        }
+        FileProcessing fileProcessing = new FileProcessing("long.pdf", Files.size(file), "application/pdf", file.toString(),
+                "hashPdf", UUID.randomUUID().toString());
+        fileProcessing.initialize();
+        fileProcessing.setDocumentFormat(DocumentFormat.PDF);
+        return fileProcessing;
+    }
+
+    private static XPage page(int pageNumber, String text, Double confidence) {
+        XPage page = new XPage();
+        page.setPageNumber(pageNumber);
+        page.setText(text);
+        page.setConfidence(confidence);
+        return page;
+    }
+
+    private static ChatResponse chunk(String text) {
+        return new ChatResponse(List.of(new Generation(new AssistantMessage(text))));
+    }
+
+    private FileProcessing request() throws Exception {
+        Path file = Files.write(tempDir.resolve("scan.png"), new byte[]{1, 2, 3});
+        FileProcessing fileProcessing = new FileProcessing("scan.png", 3L, "image/png", file.toString(), "hash123",
+                UUID.randomUUID().toString());
+        fileProcessing.initialize();
+        return fileProcessing;
+    }
+}
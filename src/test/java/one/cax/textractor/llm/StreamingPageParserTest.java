@@ -0,0 +1,72 @@
+package one.cax.textractor.llm;
+
+import one.cax.textractor.datamodel.XPage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingPageParserTest {
+
+    @Test
+    void testPagesSplitAcrossArbitraryChunks() {
+        // Arrange - the response in a code block, cut every 3 characters
+        String response = "```json\n{\"numberPages\": 2, \"pages\": [" +
+                "{\"page_number\": 1, \"content\": \"café \\\"one\\\" 😀\", \"tables\": [{\"content\": \"x\"}]}, " +
+                "{\"page_number\": 2, \"content\": \"two\"}]}\n```";
+        List<XPage> pages = new ArrayList<>();
+        StreamingPageParser parser = new StreamingPageParser(pages::add);
+
+        // Act
+        for (int i = 0; i < response.length(); i += 3) {
+            parser.feed(response.substring(i, Math.min(response.length(), i + 3)));
+        }
+        int count = parser.end();
+
+        // Assert - nested fields do not override the page content
+        assertEquals(2, count);
+        assertEquals(1, pages.get(0).getPageNumber());
+        assertEquals("café \"one\" 😀", pages.get(0).getText());
+        assertEquals(2, pages.get(1).getPageNumber());
+        assertEquals("two", pages.get(1).getText());
+    }
+
+    @Test
+    void testPageHandedOverWhenItsObjectCloses() {
+        // Arrange
+        List<XPage> pages = new ArrayList<>();
+        StreamingPageParser parser = new StreamingPageParser(pages::add);
+
+        // Act
+        parser.feed("{\"pages\": [{\"content\": \"first\"}, {\"content\": \"sec");
+
+        // Assert - numbered in order when the model gives no number
+        assertEquals(1, pages.size());
+        assertEquals(1, pages.get(0).getPageNumber());
+        assertEquals("first", pages.get(0).getText());
+    }
+
+    @Test
+    void testIncompleteResponseFails() {
+        // Arrange
+        StreamingPageParser parser = new StreamingPageParser(page -> { });
+        parser.feed("{\"pages\": [{\"content\": \"first\"}");
+
+        // Act & Assert
+        assertThrows(IllegalStateException.class, parser::end);
+    }
+
+    @Test
+    void testNonJsonResponseFails() {
+        // Arrange
+        StreamingPageParser textParser = new StreamingPageParser(page -> { });
+        StreamingPageParser brokenParser = new StreamingPageParser(page -> { });
+        textParser.feed("I cannot read this document.");
+
+        // Act & Assert
+        assertThrows(IllegalStateException.class, textParser::end);
+        assertThrows(IllegalStateException.class, () -> brokenParser.feed("{\"pages\": [}"));
+    }
+}
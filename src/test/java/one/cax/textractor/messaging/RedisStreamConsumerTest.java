@@ -0,0 +1,250 @@
+package one.cax.textractor.messaging;
+
+import one.cax.textractor.datamodel.FileProcessing;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.InOrder;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StreamOperations;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class RedisStreamConsumerTest {
+
+    private static final String STREAM = "test-stream";
+    private static final String GROUP = "test-group";
+    private static final String CONSUMER = "node-1";
+
+    @Mock
+    private RedisTemplate<String, FileProcessing> redisTemplate;
+
+    @Mock
+    private StreamOperations<String, String, FileProcessing> streamOperations;
+
+    @Mock
+    private BiConsumer<FileProcessing, String> dropHandler;
+
+    @BeforeEach
+    void setUp() {
+        doReturn(streamOperations).when(redisTemplate).opsForStream();
+    }
+
+    private RedisStreamConsumer newConsumer(Function<FileProcessing, CompletableFuture<?>> handler, int maxInFlight) {
+        return new RedisStreamConsumer(redisTemplate, STREAM, GROUP, CONSUMER, handler, maxInFlight,
+                10, 10, Duration.ofMinutes(10).toMillis(), 30000, 3, dropHandler);
+    }
+
+    private MapRecord<String, String, FileProcessing> newRecord(String id) {
+        FileProcessing fileProcessing = new FileProcessing("test.pdf", 10L, "application/pdf", "/filestore/" + id, "hash-" + id, "app123");
+        return StreamRecords.newRecord()
+                .in(STREAM)
+                .withId(RecordId.of(id))
+                .ofMap(Map.of(RedisStreamWorkQueue.PAYLOAD_FIELD, fileProcessing));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void stubRead(List<MapRecord<String, String, FileProcessing>> records) {
+        when(streamOperations.read(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class)))
+                .thenReturn(records);
+    }
+
+    @Test
+    void testPollAcknowledgesOnlyAfterCompletion() throws Exception {
+        // Arrange
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        RedisStreamConsumer consumer = newConsumer(fileProcessing -> completion, 4);
+        stubRead(List.of(newRecord("1-0")));
+
+        // Act
+        consumer.poll();
+
+        // Assert - still in flight, not acknowledged
+        assertEquals(1, consumer.getInFlightCount());
+        verify(streamOperations, never()).acknowledge(anyString(), anyString(), any(RecordId[].class));
+
+        // Act
+        completion.complete(null);
+
+        // Assert
+        assertEquals(0, consumer.getInFlightCount());
+        verify(streamOperations).acknowledge(STREAM, GROUP, RecordId.of("1-0"));
+    }
+
+    @Test
+    void testFailedProcessingIsNotAcknowledged() throws Exception {
+        // Arrange
+        RedisStreamConsumer consumer = newConsumer(
+                fileProcessing -> CompletableFuture.failedFuture(new RuntimeException("Test exception")), 4);
+        stubRead(List.of(newRecord("1-0")));
+
+        // Act
+        consumer.poll();
+
+        // Assert
+        assertEquals(0, consumer.getInFlightCount());
+        verify(streamOperations, never()).acknowledge(anyString(), anyString(), any(RecordId[].class));
+    }
+
+    @Test
+    void testPollReadsNoMoreThanFreeSlots() throws Exception {
+        // Arrange
+        RedisStreamConsumer consumer = newConsumer(fileProcessing -> new CompletableFuture<>(), 2);
+        stubRead(List.of(newRecord("1-0"), newRecord("2-0")));
+
+        // Act
+        consumer.poll();
+        consumer.poll();
+
+        // Assert - the first read asks for two entries, the second finds no free slot and does not read
+        ArgumentCaptor<StreamReadOptions> options = ArgumentCaptor.forClass(StreamReadOptions.class);
+        verify(streamOperations, times(1)).read(any(Consumer.class), options.capture(), any(StreamOffset.class));
+        assertEquals(2L, options.getValue().getCount());
+        assertEquals(2, consumer.getInFlightCount());
+    }
+
+    @Test
+    void testReclaimStaleEntries() {
+        // Arrange
+        RedisStreamConsumer consumer = newConsumer(fileProcessing -> CompletableFuture.completedFuture(null), 4);
+        Consumer other = Consumer.from(GROUP, "node-2");
+        PendingMessages pending = new PendingMessages(GROUP, List.of(
+                new PendingMessage(RecordId.of("1-0"), other, Duration.ofMinutes(20), 1),
+                new PendingMessage(RecordId.of("2-0"), other, Duration.ofSeconds(5), 1),
+                new PendingMessage(RecordId.of("3-0"), other, Duration.ofMinutes(20), 3)));
+        when(streamOperations.pending(eq(STREAM), eq(GROUP), any(Range.class), anyLong())).thenReturn(pending);
+        when(streamOperations.claim(eq(STREAM), eq(GROUP), eq(CONSUMER), any(Duration.class), any(RecordId[].class)))
+                .thenReturn(List.of(newRecord("1-0")));
+
+        // Act
+        consumer.reclaimStale();
+
+        // Assert - only the idle entry is claimed, the over-delivered one is dropped
+        verify(streamOperations).claim(STREAM, GROUP, CONSUMER, Duration.ofMinutes(10), RecordId.of("1-0"));
+        verify(streamOperations).acknowledge(STREAM, GROUP, RecordId.of("3-0"));
+        verify(streamOperations).acknowledge(STREAM, GROUP, RecordId.of("1-0"));
+        verify(streamOperations, never()).acknowledge(STREAM, GROUP, RecordId.of("2-0"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testReclaimReadsPendingListPastFreshEntries() {
+        // Arrange - a first page of entries other nodes are processing, a stale entry behind them
+        RedisStreamConsumer consumer = newConsumer(fileProcessing -> new CompletableFuture<>(), 4);
+        Consumer other = Consumer.from(GROUP, "node-2");
+        List<PendingMessage> fresh = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            fresh.add(new PendingMessage(RecordId.of(i + "-0"), other, Duration.ofSeconds(5), 1));
+        }
+        when(streamOperations.pending(eq(STREAM), eq(GROUP), any(Range.class), eq(10L))).thenAnswer(invocation -> {
+            Range<String> range = invocation.getArgument(2);
+            if (!range.getLowerBound().isBounded()) {
+                return new PendingMessages(GROUP, fresh);
+            }
+            assertEquals("10-1", range.getLowerBound().getValue().orElseThrow());
+            return new PendingMessages(GROUP, List.of(
+                    new PendingMessage(RecordId.of("11-0"), Consumer.from(GROUP, "node-3"), Duration.ofMinutes(20), 1)));
+        });
+        when(streamOperations.claim(eq(STREAM), eq(GROUP), eq(CONSUMER), any(Duration.class), any(RecordId[].class)))
+                .thenReturn(List.of(newRecord("11-0")));
+
+        // Act
+        consumer.reclaimStale();
+
+        // Assert
+        verify(streamOperations, times(2)).pending(eq(STREAM), eq(GROUP), any(Range.class), eq(10L));
+        verify(streamOperations).claim(STREAM, GROUP, CONSUMER, Duration.ofMinutes(10), RecordId.of("11-0"));
+        assertEquals(1, consumer.getInFlightCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testDroppedEntryReportedBeforeAcknowledged() {
+        // Arrange
+        RedisStreamConsumer consumer = newConsumer(fileProcessing -> CompletableFuture.completedFuture(null), 4);
+        MapRecord<String, String, FileProcessing> record = newRecord("1-0");
+        when(streamOperations.pending(eq(STREAM), eq(GROUP), any(Range.class), anyLong())).thenReturn(
+                new PendingMessages(GROUP, List.of(
+                        new PendingMessage(RecordId.of("1-0"), Consumer.from(GROUP, "node-2"), Duration.ofMinutes(20), 3))));
+        when(streamOperations.range(STREAM, Range.closed("1-0", "1-0"))).thenReturn(List.of(record));
+
+        // Act
+        consumer.reclaimStale();
+
+        // Assert - the file is marked failed with the reason, then the entry acknowledged, never claimed
+        InOrder inOrder = inOrder(dropHandler, streamOperations);
+        inOrder.verify(dropHandler).accept(record.getValue().get(RedisStreamWorkQueue.PAYLOAD_FIELD),
+                "Dropped after 3 deliveries");
+        inOrder.verify(streamOperations).acknowledge(STREAM, GROUP, RecordId.of("1-0"));
+        verify(streamOperations, never()).claim(anyString(), anyString(), anyString(), any(Duration.class),
+                any(RecordId[].class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testRefreshInFlightResetsIdleTimeOfEntriesInProgress() throws Exception {
+        // Arrange - one entry in progress, one done
+        CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
+        RedisStreamConsumer consumer = newConsumer(fileProcessing ->
+                fileProcessing.getFilePath().endsWith("1-0") ? new CompletableFuture<>() : done, 4);
+        stubRead(List.of(newRecord("1-0"), newRecord("2-0")));
+        consumer.poll();
+        RedisConnection connection = mock(RedisConnection.class);
+        RedisStreamCommands streamCommands = mock(RedisStreamCommands.class);
+        when(connection.streamCommands()).thenReturn(streamCommands);
+        when(redisTemplate.execute(any(RedisCallback.class))).thenAnswer(invocation ->
+                ((RedisCallback<?>) invocation.getArgument(0)).doInRedis(connection));
+
+        // Act
+        consumer.refreshInFlight();
+
+        // Assert - claimed again by this consumer without waiting for any idle time
+        ArgumentCaptor<RedisStreamCommands.XClaimOptions> options =
+                ArgumentCaptor.forClass(RedisStreamCommands.XClaimOptions.class);
+        verify(streamCommands).xClaimJustId(eq(STREAM.getBytes(StandardCharsets.UTF_8)), eq(GROUP), eq(CONSUMER),
+                options.capture());
+        assertEquals(List.of(RecordId.of("1-0")), options.getValue().getIds());
+        assertEquals(Duration.ZERO, options.getValue().getMinIdleTime());
+    }
+
+    @Test
+    void testRefreshInFlightWithNothingInProgress() {
+        // Arrange
+        RedisStreamConsumer consumer = newConsumer(fileProcessing -> CompletableFuture.completedFuture(null), 4);
+
+        // Act
+        consumer.refreshInFlight();
+
+        // Assert
+        verify(redisTemplate, never()).execute(any(RedisCallback.class));
+    }
+}
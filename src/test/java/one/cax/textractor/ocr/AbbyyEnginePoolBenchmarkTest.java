@@ -0,0 +1,251 @@
+package one.cax.textractor.ocr;
+
+import ch.qos.logback.classic.Level;
+import com.abbyy.FREngine.IEngine;
+import one.cax.textractor.config.OcrConfig;
+import one.cax.textractor.datamodel.FileProcessing;
+import one.cax.textractor.datamodel.XDoc;
+import one.cax.textractor.service.ProcessedFilesService;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Dispatch overhead of the engine pool, measured with fake engines that do no work, against
+ * the former dispatcher thread handing tasks to an executor that then waits for an engine:
+ * the time per task less the time to process the same tasks on the calling threads.
+ * Both process tasks with the same code, with the per-task logging of the pool turned off so
+ * that it does not hide the dispatch. Each scenario runs a number of concurrent submitters
+ * against a pool of several engines; the order of the modes rotates from round to round, and
+ * the median and range of the overhead over the rounds are logged, not asserted.
+ * Not part of the default build: run it with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class AbbyyEnginePoolBenchmarkTest {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int ENGINES = 4;
+    /** Concurrent submitters of each scenario: one at a time, then more than the engines */
+    private static final int[] SUBMITTERS = {1, 2 * ENGINES};
+    private static final int WARMUP_TASKS = 2000;
+    private static final int TASKS = 2000;
+    private static final int ROUNDS = 21;
+
+    @TempDir
+    Path tempDir;
+
+    /** Fake engines of the pool */
+    private final List<FakeEngine> poolEngines = new CopyOnWriteArrayList<>();
+
+    @Test
+    void testEngineAffineDispatch() throws Exception {
+        // Arrange
+        Path file = Files.write(tempDir.resolve("page.png"), new byte[]{1, 2, 3});
+        AbbyyEnginePool pool = new AbbyyEnginePool(mock(OcrConfig.class));
+        pool.setProcessedFilesService(new ProcessedFilesService(null) {
+            @Override
+            public boolean mergeOcrOutput(String fileId, XDoc ocrOutput) {
+                return true;
+            }
+        });
+        pool.setQueueCapacity(TASKS);
+        pool.setEngineFactory(new AbbyyEnginePool.EngineFactory() {
+            @Override
+            public IEngine create() {
+                FakeEngine engine = new FakeEngine(1, 0, ENGINES);
+                poolEngines.add(engine);
+                return engine.engine();
+            }
+
+            @Override
+            public void release(IEngine engine) {
+            }
+        });
+        pool.initialize();
+        TwoHopDispatcher twoHop = new TwoHopDispatcher(pool);
+        ch.qos.logback.classic.Logger poolLogger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(AbbyyEnginePool.class);
+        Level poolLogLevel = poolLogger.getLevel();
+        poolLogger.setLevel(Level.WARN);
+
+        try {
+            // one engine per submitter, used on the submitter's thread
+            int maxSubmitters = Arrays.stream(SUBMITTERS).max().orElse(1);
+            IEngine[] directEngines = new IEngine[maxSubmitters];
+            for (int i = 0; i < maxSubmitters; i++) {
+                directEngines[i] = new FakeEngine(1, 0).engine();
+            }
+            TaskSubmitter direct = (submitter, task) -> {
+                pool.processFileTask(directEngines[submitter], task);
+                return CompletableFuture.completedFuture(null);
+            };
+            TaskSubmitter affine = (submitter, task) -> pool.submitTask(task);
+            TaskSubmitter dispatcher = (submitter, task) -> twoHop.submit(task);
+            List<TaskSubmitter> modes = List.of(direct, affine, dispatcher);
+
+            for (int submitters : SUBMITTERS) {
+                for (TaskSubmitter mode : modes) {
+                    runTasks(mode, file, WARMUP_TASKS, submitters);
+                }
+
+                // Act
+                long[][] nanos = new long[modes.size()][ROUNDS];
+                for (int round = 0; round < ROUNDS; round++) {
+                    for (int i = 0; i < modes.size(); i++) {
+                        int mode = (round + i) % modes.size();
+                        nanos[mode][round] = runTasks(modes.get(mode), file, TASKS, submitters);
+                    }
+                }
+                double[] affineOverhead = new double[ROUNDS];
+                double[] dispatcherOverhead = new double[ROUNDS];
+                double[] processing = new double[ROUNDS];
+                for (int round = 0; round < ROUNDS; round++) {
+                    processing[round] = nanos[0][round] / 1000.0 / TASKS;
+                    affineOverhead[round] = (nanos[1][round] - nanos[0][round]) / 1000.0 / TASKS;
+                    dispatcherOverhead[round] = (nanos[2][round] - nanos[0][round]) / 1000.0 / TASKS;
+                }
+                logger.info("{} submitters, {} fake engines, {} tasks per round, median [range] of {} rounds, "
+                                + "dispatch overhead per task: engine-affine workers {} us, dispatcher and executor {} us "
+                                + "(processing {} us)",
+                        submitters, pool.getPoolSize(), TASKS, ROUNDS, summary(affineOverhead),
+                        summary(dispatcherOverhead), summary(processing));
+            }
+
+            // Assert - every engine of the pool stayed on the worker thread that created it
+            assertEquals(ENGINES, pool.getPoolSize());
+            assertEquals(pool.getPoolSize(), poolEngines.size());
+            poolEngines.forEach(engine -> assertEquals(1, engine.threads.size()));
+        } finally {
+            poolLogger.setLevel(poolLogLevel);
+            twoHop.close();
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * The previous pool: a dispatcher thread takes each task from the task queue and
+     * submits it to an executor, whose thread then takes an engine from the engine queue.
+     * Tasks are processed by the same code as in the pool.
+     */
+    private class TwoHopDispatcher {
+
+        private final BlockingQueue<IEngine> engineQueue;
+        private final BlockingQueue<FileProcessing> taskQueue = new LinkedBlockingQueue<>();
+        private final Map<FileProcessing, CompletableFuture<Void>> completions = new ConcurrentHashMap<>();
+        private final ExecutorService executor;
+        private final Thread dispatcher;
+
+        TwoHopDispatcher(AbbyyEnginePool pool) {
+            int poolSize = pool.getPoolSize();
+            engineQueue = new ArrayBlockingQueue<>(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                engineQueue.offer(new FakeEngine(1, 0).engine());
+            }
+            executor = Executors.newFixedThreadPool(poolSize);
+            dispatcher = new Thread(() -> {
+                try {
+                    while (true) {
+                        FileProcessing task = taskQueue.take();
+                        executor.submit(() -> {
+                            IEngine engine = null;
+                            try {
+                                engine = engineQueue.take();
+                                pool.processFileTask(engine, task);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            } finally {
+                                if (engine != null) {
+                                    engineQueue.offer(engine);
+                                }
+                                completions.remove(task).complete(null);
+                            }
+                        });
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+
+        CompletableFuture<Void> submit(FileProcessing task) {
+            CompletableFuture<Void> completion = new CompletableFuture<>();
+            completions.put(task, completion);
+            taskQueue.offer(task);
+            return completion;
+        }
+
+        void close() {
+            dispatcher.interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    private interface TaskSubmitter {
+        CompletableFuture<Void> submit(int submitter, FileProcessing task);
+    }
+
+    /**
+     * Submit the tasks from concurrent submitters, each submitting its share one at a time,
+     * once its previous task has completed, so that the time per task is the processing plus
+     * the hand-offs between threads.
+     */
+    private long runTasks(TaskSubmitter submitter, Path file, int count, int submitters) throws Exception {
+        List<List<FileProcessing>> shares = new ArrayList<>(submitters);
+        for (int s = 0; s < submitters; s++) {
+            shares.add(new ArrayList<>());
+        }
+        for (int i = 0; i < count; i++) {
+            FileProcessing task = new FileProcessing("page.png", 3L, "image/png", file.toString(), "hash" + i, "app123");
+            task.initialize();
+            shares.get(i % submitters).add(task);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<Void>> done = new ArrayList<>(submitters);
+        for (int s = 0; s < submitters; s++) {
+            int index = s;
+            CompletableFuture<Void> submitted = new CompletableFuture<>();
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (FileProcessing task : shares.get(index)) {
+                        submitter.submit(index, task).get(10, TimeUnit.SECONDS);
+                    }
+                    submitted.complete(null);
+                } catch (Exception e) {
+                    submitted.completeExceptionally(e);
+                }
+            });
+            thread.start();
+            done.add(submitted);
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        CompletableFuture.allOf(done.toArray(new CompletableFuture[0])).get(1, TimeUnit.MINUTES);
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return median and range of the values, in a log message
+     */
+    private static String summary(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "%.1f [%.1f to %.1f]", sorted[sorted.length / 2], sorted[0], sorted[sorted.length - 1]);
+    }
+}
@@ -1,24 +1,45 @@
 package one.cax.textractor.ocr;
 
+import com.abbyy.FREngine.IEngine;
 import one.cax.textractor.config.OcrConfig;
 import one.cax.textractor.datamodel.FileProcessing;
+import one.cax.textractor.datamodel.OcrMode;
 import one.cax.textractor.datamodel.ProcessingStatus;
+import one.cax.textractor.datamodel.XDoc;
+import one.cax.textractor.datamodel.XPage;
 import one.cax.textractor.db.ProcessedFiles;
 import one.cax.textractor.service.ProcessedFilesService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.test.context.ActiveProfiles;
 
 import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -78,8 +99,7 @@ class AbbyyEnginePoolTest {
         taskQueueField.set(testPool, mockQueue);
         
         // Create a test file processing task
-        byte[] fileContent = "Test content".getBytes();
-        FileProcessing testTask = new FileProcessing("test.pdf", fileContent.length, "application/pdf", fileContent, "app123");
+        FileProcessing testTask = new FileProcessing("test.pdf", 12L, "application/pdf", "/filestore/test.pdf", "hash123", "app123");
         testTask.initialize();
         
         // Act
@@ -89,6 +109,629 @@ class AbbyyEnginePoolTest {
         verify(mockQueue).offer(testTask);
     }
 
+    @Test
+    void testSubmitTaskRejectedWhenQueueFull() throws Exception {
+        // Arrange
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        Field taskQueueField = AbbyyEnginePool.class.getDeclaredField("taskQueue");
+        taskQueueField.setAccessible(true);
+        taskQueueField.set(testPool, new ArrayBlockingQueue<FileProcessing>(1));
+
+        FileProcessing first = new FileProcessing("first.pdf", 12L, "application/pdf", "/filestore/first.pdf", "hash1", "app123");
+        first.initialize();
+        FileProcessing second = new FileProcessing("second.pdf", 12L, "application/pdf", "/filestore/second.pdf", "hash2", "app123");
+        second.initialize();
+
+        // Act
+        CompletableFuture<Void> accepted = testPool.submitTask(first);
+        CompletableFuture<Void> rejected = testPool.submitTask(second);
+
+        // Assert
+        assertFalse(accepted.isDone());
+        assertEquals(1, testPool.getQueueDepth());
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+    }
+
+    @Test
+    void testInitializeFailsWhenAnEngineCannotBeCreated() {
+        // Arrange
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setEngineFactory(new AbbyyEnginePool.EngineFactory() {
+            @Override
+            public IEngine create() throws Exception {
+                throw new Exception("license error");
+            }
+
+            @Override
+            public void release(IEngine engine) {
+            }
+        });
+
+        // Act & Assert
+        RuntimeException e = assertThrows(RuntimeException.class, testPool::initialize);
+        assertEquals("license error", e.getCause().getMessage());
+    }
+
+    @Test
+    void testLargeDocumentSplitAcrossEngines(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        Path file = Files.write(tempDir.resolve("scan.pdf"), new byte[]{1, 2, 3});
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setBatchPages(3);
+        testPool.setEngineFactory(fakeEngines(engines, 10, 20, 3));
+        testPool.initialize();
+
+        FileProcessing task = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash123", "app123");
+        task.initialize();
+        task.setOcrPages(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+
+        try {
+            // Act
+            testPool.submitTask(task).get(10, TimeUnit.SECONDS);
+
+            // Assert - the pages come back in order, in one document
+            ArgumentCaptor<XDoc> xDoc = ArgumentCaptor.forClass(XDoc.class);
+            verify(mockProcessedFilesService).mergeOcrOutput(eq(task.getFileId().toString()), xDoc.capture());
+            assertEquals(10, xDoc.getValue().getPages().size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i + 1, xDoc.getValue().getPages().get(i).getPageNumber());
+                assertEquals("page " + (i + 1), xDoc.getValue().getPages().get(i).getText());
+            }
+            // OCRed in batches of 3 pages, on more than one engine
+            List<List<Integer>> batches = new ArrayList<>();
+            engines.forEach(engine -> batches.addAll(engine.documents));
+            batches.sort(Comparator.comparing(batch -> batch.get(0)));
+            assertEquals(List.of(List.of(1, 2, 3), List.of(4, 5, 6), List.of(7, 8, 9), List.of(10)), batches);
+            assertTrue(engines.stream().filter(engine -> !engine.documents.isEmpty()).count() > 1);
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testSmallDocumentOnOneEngine(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        Path file = Files.write(tempDir.resolve("scan.pdf"), new byte[]{1, 2, 3});
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setBatchPages(3);
+        testPool.setEngineFactory(fakeEngines(engines, 5, 0, 2));
+        testPool.initialize();
+
+        FileProcessing task = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash123", "app123");
+        task.initialize();
+        task.setOcrPages(List.of(2, 4));
+
+        try {
+            // Act
+            testPool.submitTask(task).get(10, TimeUnit.SECONDS);
+
+            // Assert
+            ArgumentCaptor<XDoc> xDoc = ArgumentCaptor.forClass(XDoc.class);
+            verify(mockProcessedFilesService).mergeOcrOutput(eq(task.getFileId().toString()), xDoc.capture());
+            assertEquals("page 4", xDoc.getValue().getPages().get(1).getText());
+            assertEquals(4, xDoc.getValue().getPages().get(1).getPageNumber());
+            assertEquals(1, engines.stream().mapToInt(engine -> engine.documents.size()).sum());
+            // the engine read the stored file itself
+            assertEquals(List.of(file.toString()), engines.stream().flatMap(engine -> engine.files.stream()).toList());
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testAdaptiveModeRerunsOnlyLowConfidencePages(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        Path file = Files.write(tempDir.resolve("scan.pdf"), new byte[]{1, 2, 3});
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setOcrProfiles("TextExtraction_Speed", "TextExtraction_Accuracy", OcrMode.ACCURATE, 80);
+        testPool.setEngineFactory(new AbbyyEnginePool.EngineFactory() {
+            @Override
+            public IEngine create() {
+                FakeEngine engine = new FakeEngine(4, 0, 1);
+                engine.hardPages.addAll(List.of(2, 4));
+                engines.add(engine);
+                return engine.engine();
+            }
+
+            @Override
+            public void release(IEngine engine) {
+            }
+        });
+        testPool.initialize();
+
+        FileProcessing task = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash123", "app123");
+        task.initialize();
+        task.setOcrMode(OcrMode.ADAPTIVE);
+
+        try {
+            // Act
+            testPool.submitTask(task).get(10, TimeUnit.SECONDS);
+
+            // Assert - the misread pages OCRed again with the accurate profile, in page order
+            ArgumentCaptor<XDoc> xDoc = ArgumentCaptor.forClass(XDoc.class);
+            verify(mockProcessedFilesService).mergeOcrOutput(eq(task.getFileId().toString()), xDoc.capture());
+            assertEquals(List.of("page 1", "page 2", "page 3", "page 4"),
+                    xDoc.getValue().getPages().stream().map(XPage::getText).toList());
+            // with the confidence of the pass kept
+            assertEquals(List.of(95.0, 95.0, 95.0, 95.0),
+                    xDoc.getValue().getPages().stream().map(XPage::getConfidence).toList());
+            FakeEngine engine = engines.get(0);
+            assertEquals(List.of("TextExtraction_Speed", "TextExtraction_Accuracy"), engine.profiles);
+            assertEquals(List.of(List.of(1, 2, 3, 4), List.of(2, 4)), engine.documents);
+            assertEquals(2, testPool.getAccurateReruns());
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testProfileLoadedOnlyWhenModeChanges(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        Path file = Files.write(tempDir.resolve("scan.pdf"), new byte[]{1, 2, 3});
+        when(mockConfig.getProfile()).thenReturn("TextExtraction_Accuracy");
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setEngineFactory(fakeEngines(engines, 1, 0, 1));
+        testPool.initialize();
+
+        try {
+            // Act - two documents of the default mode, then one of an application wanting speed
+            for (OcrMode mode : new OcrMode[]{null, null, OcrMode.FAST}) {
+                FileProcessing task = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash123", "app123");
+                task.initialize();
+                task.setOcrMode(mode);
+                testPool.submitTask(task).get(10, TimeUnit.SECONDS);
+            }
+
+            // Assert - the configured profile, and no re-run without the adaptive mode
+            assertEquals(List.of("TextExtraction_Accuracy", "TextExtraction_Speed"), engines.get(0).profiles);
+            assertEquals(3, engines.get(0).documents.size());
+            assertEquals(0, testPool.getAccurateReruns());
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testMissingFileFailsDocumentNotEngine(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setEngineFactory(fakeEngines(engines, 1, 0, 1));
+        testPool.initialize();
+
+        FileProcessing task = new FileProcessing("scan.pdf", 3L, "application/pdf",
+                tempDir.resolve("missing.pdf").toString(), "hash123", "app123");
+        task.initialize();
+
+        try {
+            // Act
+            testPool.submitTask(task).get(10, TimeUnit.SECONDS);
+
+            // Assert
+            verify(mockProcessedFilesService).markFailed(eq(task.getFileId().toString()), anyString());
+            assertTrue(engines.get(0).files.isEmpty());
+            assertEquals(0, testPool.getEngineHealth().get(0).getFailures());
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testPoolSizedFromLicenseCappedByConfiguration() {
+        // Arrange
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setEngineFactory(fakeEngines(engines, 1, 0, 8));
+        testPool.setMaxEngines(3);
+        testPool.setMinReadyEngines(3);
+
+        try {
+            // Act
+            testPool.initialize();
+
+            // Assert
+            assertEquals(3, testPool.getPoolSize());
+            assertEquals(3, testPool.getReadyEngines());
+            assertEquals(3, engines.size());
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testReadyOnceMinimumEnginesUp() throws Exception {
+        // Arrange - every engine but the first waits until released
+        CountDownLatch warmUp = new CountDownLatch(1);
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setMinReadyEngines(1);
+        testPool.setEngineFactory(new AbbyyEnginePool.EngineFactory() {
+            private final AtomicInteger created = new AtomicInteger();
+
+            @Override
+            public IEngine create() throws Exception {
+                if (created.getAndIncrement() > 0) {
+                    warmUp.await();
+                }
+                return new FakeEngine(1, 0, 4).engine();
+            }
+
+            @Override
+            public void release(IEngine engine) {
+            }
+        });
+
+        try {
+            // Act
+            testPool.initialize();
+
+            // Assert
+            assertEquals(4, testPool.getPoolSize());
+            assertEquals(1, testPool.getReadyEngines());
+            warmUp.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (testPool.getReadyEngines() < 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(4, testPool.getReadyEngines());
+        } finally {
+            warmUp.countDown();
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testElasticPoolGrowsUnderLoadAndRetiresIdleEngines(@TempDir Path tempDir) throws Exception {
+        // Arrange - 4 engines allowed, starting with 1
+        Path file = Files.write(tempDir.resolve("scan.pdf"), new byte[]{1, 2, 3});
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setEngineFactory(fakeEngines(engines, 10, 30, 4));
+        testPool.setElasticity(1, 50, 300);
+        testPool.initialize();
+        assertEquals(1, testPool.getActiveEngines());
+
+        try {
+            // Act
+            List<CompletableFuture<Void>> completions = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                FileProcessing task = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash" + i, "app123");
+                task.initialize();
+                completions.add(testPool.submitTask(task));
+            }
+            CompletableFuture.allOf(completions.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+            // Assert - engines were added while tasks waited, then retired once idle
+            assertTrue(testPool.getScaleUps() > 0);
+            assertTrue(engines.size() > 1);
+            assertEquals(0, testPool.getQueueWaitMillis());
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((testPool.getActiveEngines() > 1 || testPool.getReadyEngines() > 1) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, testPool.getActiveEngines());
+            assertEquals(testPool.getScaleUps(), testPool.getScaleDowns());
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testEngineRecycledAfterDocumentsWithoutStoppingWork(@TempDir Path tempDir) throws Exception {
+        // Arrange - one engine, recycled every 2 documents
+        Path file = Files.write(tempDir.resolve("scan.pdf"), new byte[]{1, 2, 3});
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setEngineFactory(fakeEngines(engines, 1, 0, 1));
+        testPool.setRecycling(2, 0, 0);
+        testPool.initialize();
+
+        try {
+            // Act
+            for (int i = 0; i < 6; i++) {
+                FileProcessing task = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash" + i, "app123");
+                task.initialize();
+                testPool.submitTask(task).get(10, TimeUnit.SECONDS);
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((testPool.getActiveEngines() > 1 || testPool.getReadyEngines() > 1) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+
+            // Assert - every document was processed, the old engines gave way to new ones
+            verify(mockProcessedFilesService, times(6)).mergeOcrOutput(anyString(), any(XDoc.class));
+            assertTrue(testPool.getRecycles(EngineHealth.RecycleReason.DOCUMENTS) >= 1);
+            assertTrue(engines.size() >= 2);
+            assertEquals(6, engines.stream().mapToInt(engine -> engine.documents.size()).sum());
+            assertEquals(1, testPool.getActiveEngines());
+            assertEquals(1, testPool.getReadyEngines());
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testFailingEngineReplaced(@TempDir Path tempDir) throws Exception {
+        // Arrange - the first engine fails every document
+        Path file = Files.write(tempDir.resolve("scan.pdf"), new byte[]{1, 2, 3});
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setEngineFactory(new AbbyyEnginePool.EngineFactory() {
+            @Override
+            public IEngine create() {
+                FakeEngine engine = new FakeEngine(1, 0, 1);
+                engine.failing = engines.isEmpty();
+                engines.add(engine);
+                return engine.engine();
+            }
+
+            @Override
+            public void release(IEngine engine) {
+            }
+        });
+        testPool.setRecycling(0, 2, 0);
+        testPool.initialize();
+
+        try {
+            // Act
+            for (int i = 0; i < 3; i++) {
+                FileProcessing task = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash" + i, "app123");
+                task.initialize();
+                testPool.submitTask(task).get(10, TimeUnit.SECONDS);
+            }
+
+            // Assert - replaced after 2 failures, the third document is OCRed by the new engine
+            assertEquals(1, testPool.getRecycles(EngineHealth.RecycleReason.FAILURES));
+            assertEquals(2, engines.size());
+            assertEquals(1, engines.get(1).documents.size());
+            verify(mockProcessedFilesService, times(1)).mergeOcrOutput(anyString(), any(XDoc.class));
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testEngineStuckOnCanaryReplaced() throws Exception {
+        // Arrange - the first engine hangs on the canary page
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setEngineFactory(new AbbyyEnginePool.EngineFactory() {
+            @Override
+            public IEngine create() {
+                FakeEngine engine = new FakeEngine(1, 0, 1);
+                engine.hanging = engines.isEmpty();
+                engines.add(engine);
+                return engine.engine();
+            }
+
+            @Override
+            public void release(IEngine engine) {
+            }
+        });
+        testPool.setCanary(200, 300);
+        testPool.initialize();
+
+        try {
+            // Act
+            long deadline = System.currentTimeMillis() + 5000;
+            while (testPool.getRecycles(EngineHealth.RecycleReason.CANARY) == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            while (testPool.getReadyEngines() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+
+            // Assert
+            assertEquals(1, testPool.getRecycles(EngineHealth.RecycleReason.CANARY));
+            assertEquals(2, engines.size());
+            assertEquals(1, testPool.getReadyEngines());
+            assertEquals(1, testPool.getActiveEngines());
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testDocumentOverTimeBudgetFailsAndEngineReplaced(@TempDir Path tempDir) throws Exception {
+        // Arrange - the first engine hangs on its document
+        Path file = Files.write(tempDir.resolve("scan.pdf"), new byte[]{1, 2, 3});
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setEngineFactory(hangingEngines(engines, 1, 1));
+        testPool.setTimeBudget(200, 100);
+        testPool.initialize();
+        FileProcessing stuck = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash1", "app123");
+        stuck.initialize();
+        FileProcessing next = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash2", "app123");
+        next.initialize();
+
+        try {
+            // Act
+            testPool.submitTask(stuck).get(5, TimeUnit.SECONDS);
+            testPool.submitTask(next).get(5, TimeUnit.SECONDS);
+
+            // Assert - the stuck document failed with the reason, the next one went to the new engine
+            ArgumentCaptor<String> reason = ArgumentCaptor.forClass(String.class);
+            verify(mockProcessedFilesService).markFailed(eq(stuck.getFileId().toString()), reason.capture());
+            assertTrue(reason.getValue().contains("time budget of 300 ms"));
+            verify(mockProcessedFilesService, never()).mergeOcrOutput(eq(stuck.getFileId().toString()), any(XDoc.class));
+            verify(mockProcessedFilesService).mergeOcrOutput(eq(next.getFileId().toString()), any(XDoc.class));
+            assertEquals(1, testPool.getRecycles(EngineHealth.RecycleReason.TIMEOUT));
+            assertEquals(2, engines.size());
+            assertEquals(1, testPool.getActiveEngines());
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testStuckEnginesReplacedOnlyOnceReleased(@TempDir Path tempDir) throws Exception {
+        // Arrange - a license of 2 cores, both engines stuck in the engine past the time budget
+        Path file = Files.write(tempDir.resolve("scan.pdf"), new byte[]{1, 2, 3});
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AtomicInteger liveEngines = new AtomicInteger();
+        AtomicInteger maxLiveEngines = new AtomicInteger();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setEngineFactory(new AbbyyEnginePool.EngineFactory() {
+            @Override
+            public IEngine create() {
+                FakeEngine engine = new FakeEngine(1, 0, 2);
+                engine.stuck = engines.size() < 2;
+                engines.add(engine);
+                maxLiveEngines.accumulateAndGet(liveEngines.incrementAndGet(), Math::max);
+                return engine.engine();
+            }
+
+            @Override
+            public void release(IEngine engine) {
+                liveEngines.decrementAndGet();
+            }
+        });
+        testPool.setTimeBudget(200, 0);
+        testPool.initialize();
+        List<FileProcessing> tasks = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            FileProcessing task = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash" + i, "app123");
+            task.initialize();
+            tasks.add(task);
+        }
+
+        try {
+            // Act
+            for (FileProcessing task : tasks) {
+                testPool.submitTask(task).get(5, TimeUnit.SECONDS);
+            }
+
+            // Assert - given up, but no new engine while the stuck ones hold the cores
+            Thread.sleep(300);
+            assertEquals(2, testPool.getAbandonedEngines());
+            assertEquals(2, engines.size());
+            assertEquals(0, testPool.getActiveEngines());
+
+            engines.forEach(engine -> engine.stuck = false);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (testPool.getReadyEngines() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, testPool.getAbandonedEngines());
+            assertEquals(2, testPool.getReadyEngines());
+            assertEquals(4, engines.size());
+            assertTrue(maxLiveEngines.get() <= 2);
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testSplitDocumentFailsOnceWhenBatchesTimeOut(@TempDir Path tempDir) throws Exception {
+        // Arrange - both engines hang on their batch, and so do their replacements, which may
+        // take the second batch first
+        Path file = Files.write(tempDir.resolve("scan.pdf"), new byte[]{1, 2, 3});
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setEngineFactory(hangingEngines(engines, Integer.MAX_VALUE, 2));
+        testPool.setBatchPages(2);
+        testPool.setTimeBudget(200, 0);
+        testPool.initialize();
+        FileProcessing task = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash1", "app123");
+        task.initialize();
+        task.setOcrPages(List.of(1, 2, 3, 4));
+
+        try {
+            // Act
+            testPool.submitTask(task).get(5, TimeUnit.SECONDS);
+
+            // Assert
+            ArgumentCaptor<String> reason = ArgumentCaptor.forClass(String.class);
+            verify(mockProcessedFilesService, times(1)).markFailed(eq(task.getFileId().toString()), reason.capture());
+            assertTrue(reason.getValue().startsWith("Pages "));
+            verify(mockProcessedFilesService, never()).mergeOcrOutput(anyString(), any(XDoc.class));
+            assertEquals(2, testPool.getRecycles(EngineHealth.RecycleReason.TIMEOUT));
+        } finally {
+            testPool.shutdown();
+        }
+    }
+
+    @Test
+    void testShutdownDrainIsBounded(@TempDir Path tempDir) throws Exception {
+        // Arrange - the engine hangs and there is no time budget
+        Path file = Files.write(tempDir.resolve("scan.pdf"), new byte[]{1, 2, 3});
+        List<FakeEngine> engines = new CopyOnWriteArrayList<>();
+        AbbyyEnginePool testPool = new AbbyyEnginePool(mockConfig);
+        testPool.setProcessedFilesService(mockProcessedFilesService);
+        testPool.setEngineFactory(hangingEngines(engines, 1, 1));
+        testPool.setDrainTimeout(300);
+        testPool.initialize();
+        FileProcessing task = new FileProcessing("scan.pdf", 3L, "application/pdf", file.toString(), "hash1", "app123");
+        task.initialize();
+        CompletableFuture<Void> completion = testPool.submitTask(task);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (engines.get(0).threads.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        // Act
+        long start = System.currentTimeMillis();
+        testPool.shutdown();
+
+        // Assert - the document stays pending for another node, it did not fail
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> completion.get(1, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, exception.getCause());
+        verify(mockProcessedFilesService, never()).markFailed(anyString(), anyString());
+    }
+
+    /**
+     * Engines of which the first ones hang on every document.
+     */
+    private AbbyyEnginePool.EngineFactory hangingEngines(List<FakeEngine> engines, int hanging, int allowedCores) {
+        return new AbbyyEnginePool.EngineFactory() {
+            @Override
+            public IEngine create() {
+                FakeEngine engine = new FakeEngine(1, 0, allowedCores);
+                engine.hanging = engines.size() < hanging;
+                engines.add(engine);
+                return engine.engine();
+            }
+
+            @Override
+            public void release(IEngine engine) {
+            }
+        };
+    }
+
+    private AbbyyEnginePool.EngineFactory fakeEngines(List<FakeEngine> engines, int pageCount, long millisPerPage,
+                                                      int allowedCores) {
+        return new AbbyyEnginePool.EngineFactory() {
+            @Override
+            public IEngine create() {
+                FakeEngine engine = new FakeEngine(pageCount, millisPerPage, allowedCores);
+                engines.add(engine);
+                return engine.engine();
+            }
+
+            @Override
+            public void release(IEngine engine) {
+            }
+        };
+    }
+
     @Test
     void testShutdown() throws Exception {
         // Arrange
@@ -3,6 +3,7 @@ package one.cax.textractor.ocr;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import one.cax.textractor.config.OcrConfig;
 import one.cax.textractor.datamodel.FileProcessing;
+import one.cax.textractor.messaging.RedisStreamWorkQueue;
 import one.cax.textractor.service.ProcessedFilesService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -10,13 +11,12 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.listener.RedisMessageListenerContainer;
-import org.springframework.data.redis.listener.Topic;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.util.ReflectionTestUtils;
 
 import java.lang.reflect.Field;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -31,10 +31,7 @@ class AbbyyEngineTest {
     private OcrConfig mockConfig;
 
     @Mock
-    private RedisMessageListenerContainer mockContainer;
-
-    @Mock
-    private RedisTemplate<String, FileProcessing> mockRedisTemplate;
+    private RedisStreamWorkQueue mockWorkQueue;
 
     @Mock
     private ProcessedFilesService mockProcessedFilesService;
@@ -47,7 +44,7 @@ class AbbyyEngineTest {
     @BeforeEach
     void setUp() throws Exception {
         // Create the AbbyyEngine instance with mocked dependencies
-        abbyyEngine = new AbbyyEngine(mockConfig, mockContainer, mockRedisTemplate, mockProcessedFilesService);
+        abbyyEngine = new AbbyyEngine(mockConfig, mockWorkQueue, mockProcessedFilesService);
         
         // Set the mocked engine pool using reflection
         ReflectionTestUtils.setField(abbyyEngine, "enginesPool", mockEnginePool);
@@ -112,6 +109,46 @@ class AbbyyEngineTest {
         verify(mockEnginePool).submitTask(testFileProcessing);
     }
 
+    @Test
+    void testHandleMessagePreprocessesBeforeOcr() throws Exception {
+        // Arrange
+        FileProcessing testFileProcessing = mock(FileProcessing.class);
+        ImagePreprocessor mockPreprocessor = mock(ImagePreprocessor.class);
+        CompletableFuture<Void> preprocessed = new CompletableFuture<>();
+        when(mockPreprocessor.isEnabled()).thenReturn(true);
+        when(mockPreprocessor.preprocess(testFileProcessing)).thenReturn(preprocessed);
+        when(mockEnginePool.submitTask(testFileProcessing)).thenReturn(CompletableFuture.completedFuture(null));
+        abbyyEngine.setImagePreprocessor(mockPreprocessor);
+
+        // Act
+        CompletableFuture<Void> completion = abbyyEngine.handleMessage(testFileProcessing);
+
+        // Assert - submitted to the engines once pre-processed
+        verify(mockEnginePool, never()).submitTask(any());
+        preprocessed.complete(null);
+        completion.get(1, TimeUnit.SECONDS);
+        verify(mockEnginePool).submitTask(testFileProcessing);
+    }
+
+    @Test
+    void testTextFirstDocumentSentToLlmAfterOcr() throws Exception {
+        // Arrange
+        ReflectionTestUtils.setField(abbyyEngine, "llmTopic", "test-llm-topic");
+        FileProcessing testFileProcessing = mock(FileProcessing.class);
+        CompletableFuture<Void> ocr = new CompletableFuture<>();
+        when(testFileProcessing.isLlmTextFirst()).thenReturn(true);
+        when(mockEnginePool.submitTask(testFileProcessing)).thenReturn(ocr);
+
+        // Act
+        CompletableFuture<Void> completion = abbyyEngine.handleMessage(testFileProcessing);
+
+        // Assert - requested once the OCR text is saved
+        verify(mockWorkQueue, never()).publish(any(), any());
+        ocr.complete(null);
+        completion.get(1, TimeUnit.SECONDS);
+        verify(mockWorkQueue).publish("test-llm-topic", testFileProcessing);
+    }
+
     @Test
     void testHandleMessageWithException() {
         // Arrange
@@ -120,6 +157,8 @@ class AbbyyEngineTest {
         
         // Act & Assert - should not throw exception
         assertDoesNotThrow(() -> abbyyEngine.handleMessage(testFileProcessing));
+        // the failure is reported so the stream entry stays pending
+        assertTrue(abbyyEngine.handleMessage(testFileProcessing).isCompletedExceptionally());
     }
 
     @Test
@@ -161,7 +200,7 @@ class AbbyyEngineTest {
         doThrow(new RuntimeException("Test exception")).when(mockPool).shutdown();
         
         // Create a new engine instance for this test to avoid interference
-        AbbyyEngine testEngine = new AbbyyEngine(mockConfig, mockContainer, mockRedisTemplate, mockProcessedFilesService);
+        AbbyyEngine testEngine = new AbbyyEngine(mockConfig, mockWorkQueue, mockProcessedFilesService);
         
         // Set the initialized field and engine pool using reflection
         ReflectionTestUtils.setField(testEngine, "initialized", testInitialized);
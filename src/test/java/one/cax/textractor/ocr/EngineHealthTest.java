@@ -0,0 +1,110 @@
+package one.cax.textractor.ocr;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EngineHealthTest {
+
+    @Test
+    void testRecycleAfterDocuments() {
+        // Arrange
+        EngineHealth health = new EngineHealth(0, Thread.currentThread());
+
+        // Act
+        health.succeeded(1, 100);
+        health.failed();
+
+        // Assert
+        assertNull(health.recycleReason(3, 0, 0));
+        health.succeeded(1, 100);
+        assertEquals(EngineHealth.RecycleReason.DOCUMENTS, health.recycleReason(3, 0, 0));
+        assertEquals(1, health.getFailures());
+    }
+
+    @Test
+    void testRecycleAfterConsecutiveFailures() {
+        // Arrange
+        EngineHealth health = new EngineHealth(0, Thread.currentThread());
+
+        // Act
+        health.failed();
+        health.succeeded(1, 100);
+        health.failed();
+        health.failed();
+
+        // Assert - the success in between reset the count
+        assertEquals(2, health.getConsecutiveFailures());
+        assertNull(health.recycleReason(0, 3, 0));
+        health.failed();
+        assertEquals(EngineHealth.RecycleReason.FAILURES, health.recycleReason(100, 3, 0));
+    }
+
+    @Test
+    void testDriftAgainstFirstDocuments() {
+        // Arrange
+        EngineHealth health = new EngineHealth(0, Thread.currentThread());
+        for (int i = 0; i < EngineHealth.BASELINE_DOCUMENTS; i++) {
+            health.succeeded(10, 1000);
+        }
+        assertEquals(1.0, health.getDrift(), 0.001);
+
+        // Act - pages now take 5 times as long
+        for (int i = 0; i < 50; i++) {
+            health.succeeded(10, 5000);
+        }
+
+        // Assert
+        assertTrue(health.getDrift() > 4);
+        assertEquals(EngineHealth.RecycleReason.DRIFT, health.recycleReason(0, 0, 3));
+        assertNull(health.recycleReason(0, 0, 0));
+    }
+
+    @Test
+    void testReset() {
+        // Arrange
+        EngineHealth health = new EngineHealth(0, Thread.currentThread());
+        health.failed();
+        health.failed();
+
+        // Act
+        health.reset();
+
+        // Assert
+        assertNull(health.recycleReason(1, 1, 0));
+        assertEquals(2, health.getFailures());
+    }
+
+    @Test
+    void testOverdueOnceBudgetSpent() throws Exception {
+        // Arrange
+        EngineHealth health = new EngineHealth(0, Thread.currentThread());
+
+        // Act
+        health.workStarted(50, false);
+
+        // Assert
+        assertFalse(health.isOverdue());
+        assertEquals(50, health.getBudgetMillis());
+        Thread.sleep(100);
+        assertTrue(health.isOverdue());
+        health.setBudget(10_000);
+        assertFalse(health.isOverdue());
+        health.workEnded();
+        assertEquals(0, health.getBudgetMillis());
+    }
+
+    @Test
+    void testNoBudgetNeverOverdue() throws Exception {
+        // Arrange
+        EngineHealth health = new EngineHealth(0, Thread.currentThread());
+
+        // Act
+        health.workStarted(0, true);
+        Thread.sleep(20);
+
+        // Assert
+        assertFalse(health.isOverdue());
+        assertTrue(health.isOnCanary());
+    }
+}
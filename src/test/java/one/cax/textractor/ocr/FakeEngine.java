@@ -0,0 +1,215 @@
+package one.cax.textractor.ocr;
+
+import com.abbyy.FREngine.IEngine;
+import com.abbyy.FREngine.IFRDocument;
+import com.abbyy.FREngine.IFRPage;
+import com.abbyy.FREngine.IFRPages;
+import com.abbyy.FREngine.IIntsCollection;
+import com.abbyy.FREngine.ILicense;
+import com.abbyy.FREngine.IPlainText;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stand-in for an ABBYY engine, built from proxies so that it costs next to nothing.
+ * Every file has {@code pageCount} pages, and the text of a page is "page N", N being
+ * its 1-based number in the file. Its license allows {@code allowedCores} cores. Records
+ * the threads it is used from, the files it loads, the profiles loaded and the pages of each document it
+ * processes. It can be made to fail, to hang until interrupted, or to be stuck whatever the
+ * interruptions. The speed profile misreads the {@code hardPages}, with a low confidence.
+ */
+class FakeEngine {
+
+    private final int pageCount;
+    private final long millisPerPage;
+    private final IEngine engine;
+    /** Threads that created documents on this engine */
+    final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    /** 1-based page numbers of each document processed, in processing order */
+    final List<List<Integer>> documents = Collections.synchronizedList(new ArrayList<>());
+    /** Paths of the files loaded, the engine reading them itself */
+    final List<String> files = Collections.synchronizedList(new ArrayList<>());
+    /** Predefined profiles loaded, in loading order */
+    final List<String> profiles = Collections.synchronizedList(new ArrayList<>());
+    /** 1-based numbers of the pages the speed profile misreads */
+    final Set<Integer> hardPages = ConcurrentHashMap.newKeySet();
+    /** Last profile loaded */
+    private volatile String profile;
+    /** Processing throws while set */
+    volatile boolean failing;
+    /** Processing blocks until the thread is interrupted while set */
+    volatile boolean hanging;
+    /** Processing blocks while set, ignoring interruptions as a native call does */
+    volatile boolean stuck;
+
+    /**
+     * @param pageCount Number of pages of every file
+     * @param millisPerPage Time to OCR each page
+     */
+    FakeEngine(int pageCount, long millisPerPage) {
+        this(pageCount, millisPerPage, 0);
+    }
+
+    /**
+     * @param pageCount Number of pages of every file
+     * @param millisPerPage Time to OCR each page
+     * @param allowedCores Cores allowed by the license, 0 if unknown
+     */
+    FakeEngine(int pageCount, long millisPerPage, int allowedCores) {
+        this.pageCount = pageCount;
+        this.millisPerPage = millisPerPage;
+        ILicense license = fake(ILicense.class, (method, args) -> allowedCores);
+        this.engine = fake(IEngine.class, (method, args) -> switch (method) {
+            case "CreateFRDocument" -> {
+                threads.add(Thread.currentThread());
+                yield document();
+            }
+            case "CreateIntsCollection" -> IntsCollection.created().proxy;
+            case "getCurrentLicense" -> license;
+            case "LoadPredefinedProfile" -> {
+                profile = (String) args[0];
+                profiles.add(profile);
+                yield null;
+            }
+            default -> null;
+        });
+    }
+
+    IEngine engine() {
+        return engine;
+    }
+
+    private IFRDocument document() {
+        List<Integer> pageNumbers = new ArrayList<>();
+        return fake(IFRDocument.class, (method, args) -> {
+            switch (method) {
+                case "AddImageFile" -> {
+                    files.add((String) args[0]);
+                    addPages(pageNumbers, args[2]);
+                }
+                case "AddImageFileFromMemory" -> addPages(pageNumbers, args[3]);
+                case "Process" -> {
+                    if (failing) {
+                        throw new IllegalStateException("engine failure");
+                    }
+                    while (stuck) {
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            // a native call does not see it
+                        }
+                    }
+                    if (hanging) {
+                        try {
+                            Thread.sleep(Long.MAX_VALUE);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException("engine interrupted");
+                        }
+                    }
+                    documents.add(List.copyOf(pageNumbers));
+                    if (millisPerPage > 0) {
+                        try {
+                            Thread.sleep(millisPerPage * pageNumbers.size());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+                case "getPages" -> {
+                    return pages(pageNumbers, profile != null && profile.contains("Speed"));
+                }
+                default -> {
+                }
+            }
+            return null;
+        });
+    }
+
+    private void addPages(List<Integer> pageNumbers, Object pageIndices) {
+        IntsCollection indices = pageIndices == null ? null : IntsCollection.of(pageIndices);
+        for (int i = 0; i < pageCount; i++) {
+            if (indices == null || indices.values.contains(i)) {
+                pageNumbers.add(i + 1);
+            }
+        }
+    }
+
+    private IFRPages pages(List<Integer> pageNumbers, boolean speed) {
+        return fake(IFRPages.class, (method, args) -> switch (method) {
+            case "getCount" -> pageNumbers.size();
+            case "Item" -> {
+                int pageNumber = pageNumbers.get((Integer) args[0]);
+                boolean misread = speed && hardPages.contains(pageNumber);
+                String text = (misread ? "pa9e " : "page ") + pageNumber;
+                IntsCollection confidences = new IntsCollection();
+                for (int i = 0; i < text.length(); i++) {
+                    confidences.values.add(misread ? 40 : 95);
+                }
+                IPlainText plainText = fake(IPlainText.class, (m, a) ->
+                        m.equals("getCharConfidence") ? confidences.proxy : text);
+                yield fake(IFRPage.class, (m, a) -> plainText);
+            }
+            default -> null;
+        });
+    }
+
+    /**
+     * Collection of ints, found back from its proxy when it is passed to the engine.
+     */
+    private static class IntsCollection {
+
+        private static final ConcurrentHashMap<Object, IntsCollection> COLLECTIONS = new ConcurrentHashMap<>();
+
+        private final List<Integer> values = new ArrayList<>();
+        private final IIntsCollection proxy;
+
+        IntsCollection() {
+            proxy = fake(IIntsCollection.class, (method, args) -> switch (method) {
+                case "Add" -> {
+                    values.add((Integer) args[0]);
+                    yield null;
+                }
+                case "getCount" -> values.size();
+                case "Item" -> values.get((Integer) args[0]);
+                default -> null;
+            });
+        }
+
+        /**
+         * @return a collection the pool creates to pass to the engine, found back with {@link #of}
+         */
+        static IntsCollection created() {
+            IntsCollection collection = new IntsCollection();
+            COLLECTIONS.put(collection.proxy, collection);
+            return collection;
+        }
+
+        static IntsCollection of(Object proxy) {
+            return COLLECTIONS.remove(proxy);
+        }
+    }
+
+    private interface FakeMethod {
+        Object invoke(String method, Object[] args);
+    }
+
+    private static <T> T fake(Class<T> type, FakeMethod handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                // identity, so that the fakes can be used as map keys
+                return switch (method.getName()) {
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> type.getSimpleName();
+                };
+            }
+            return handler.invoke(method.getName(), args);
+        }));
+    }
+}
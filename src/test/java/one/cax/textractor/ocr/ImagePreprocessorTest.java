@@ -0,0 +1,209 @@
+package one.cax.textractor.ocr;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.textractor.datamodel.DocumentFormat;
+import one.cax.textractor.datamodel.FileProcessing;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImagePreprocessorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private ImagePreprocessor preprocessor;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        preprocessor = new ImagePreprocessor(meterRegistry);
+        ReflectionTestUtils.setField(preprocessor, "enabled", true);
+        ReflectionTestUtils.setField(preprocessor, "threads", 1);
+        ReflectionTestUtils.setField(preprocessor, "fileStorePath", tempDir.toString());
+    }
+
+    @Test
+    void testDownscaledToTargetResolution() throws Exception {
+        // Arrange - a 600 dpi color scan
+        ReflectionTestUtils.setField(preprocessor, "cropBorders", false);
+        Path input = writePng(page(1200, 800, BufferedImage.TYPE_INT_RGB), 600);
+
+        // Act
+        Path output = preprocessor.preprocess(input, "hash600");
+
+        // Assert - halved to 300 dpi, in grayscale; PNG stores the resolution in whole pixels per meter
+        BufferedImage image = ImageIO.read(output.toFile());
+        assertEquals(600, image.getWidth(), 10);
+        assertEquals(400, image.getHeight(), 10);
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, image.getType());
+    }
+
+    @Test
+    void testImageWithoutResolutionCappedToMaxSide() throws Exception {
+        // Arrange - a photo that does not tell its resolution
+        ReflectionTestUtils.setField(preprocessor, "cropBorders", false);
+        ReflectionTestUtils.setField(preprocessor, "maxSide", 1000);
+        Path input = writePng(page(4000, 3000, BufferedImage.TYPE_INT_RGB), 0);
+
+        // Act
+        Path output = preprocessor.preprocess(input, "hashPhoto");
+
+        // Assert
+        BufferedImage image = ImageIO.read(output.toFile());
+        assertEquals(1000, image.getWidth());
+        assertEquals(750, image.getHeight());
+    }
+
+    @Test
+    void testUniformBordersCropped() {
+        // Arrange - dark content in the middle of a white page
+        BufferedImage gray = new BufferedImage(400, 300, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = gray.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, 400, 300);
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(100, 100, 50, 40);
+        graphics.dispose();
+
+        // Act
+        BufferedImage cropped = ImagePreprocessor.crop(gray);
+
+        // Assert - the content and its margin
+        assertEquals(50 + 2 * 16, cropped.getWidth());
+        assertEquals(40 + 2 * 16, cropped.getHeight());
+    }
+
+    @Test
+    void testBilevel() {
+        // Arrange
+        BufferedImage gray = new BufferedImage(10, 1, BufferedImage.TYPE_BYTE_GRAY);
+        for (int x = 0; x < 10; x++) {
+            gray.getRaster().setSample(x, 0, 0, x < 5 ? 40 : 220);
+        }
+
+        // Act
+        BufferedImage bilevel = ImagePreprocessor.toBilevel(gray);
+
+        // Assert
+        assertEquals(BufferedImage.TYPE_BYTE_BINARY, bilevel.getType());
+        assertEquals(0, bilevel.getRaster().getSample(0, 0, 0));
+        assertEquals(1, bilevel.getRaster().getSample(9, 0, 0));
+    }
+
+    @Test
+    void testResultCachedByHash() throws Exception {
+        // Arrange
+        Path input = writePng(page(800, 600, BufferedImage.TYPE_INT_RGB), 0);
+        FileProcessing first = request(input, "hashCached");
+        FileProcessing second = request(input, "hashCached");
+
+        // Act
+        preprocessor.preprocess(first).get(10, TimeUnit.SECONDS);
+        preprocessor.preprocess(second).get(10, TimeUnit.SECONDS);
+
+        // Assert
+        assertNotEquals(input.toString(), first.getOcrFilePath());
+        assertEquals(first.getOcrFilePath(), second.getOcrFilePath());
+        assertEquals(1.0, meterRegistry.get("ocrPreprocessing").tag("result", "processed").counter().count());
+        assertEquals(1.0, meterRegistry.get("ocrPreprocessing").tag("result", "cached").counter().count());
+    }
+
+    @Test
+    void testUnreadableImageOcredAsStored() throws Exception {
+        // Arrange
+        Path input = Files.write(tempDir.resolve("broken.png"), new byte[]{1, 2, 3});
+        FileProcessing fileProcessing = request(input, "hashBroken");
+
+        // Act
+        preprocessor.preprocess(fileProcessing).get(10, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals(input.toString(), fileProcessing.getOcrFilePath());
+        assertEquals(1.0, meterRegistry.get("ocrPreprocessing").tag("result", "skipped").counter().count());
+    }
+
+    @Test
+    void testPdfNotPreprocessed() throws Exception {
+        // Arrange
+        Path input = Files.write(tempDir.resolve("doc.pdf"), new byte[]{1, 2, 3});
+        FileProcessing fileProcessing = request(input, "hashPdf");
+        fileProcessing.setDocumentFormat(DocumentFormat.PDF);
+
+        // Act
+        preprocessor.preprocess(fileProcessing).get(10, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals(input.toString(), fileProcessing.getOcrFilePath());
+        assertFalse(Files.exists(tempDir.resolve("preprocessed")));
+    }
+
+    private FileProcessing request(Path input, String hash) {
+        FileProcessing fileProcessing = new FileProcessing("scan.png", 3L, "image/png", input.toString(), hash, "app123");
+        fileProcessing.setDocumentFormat(DocumentFormat.PNG);
+        return fileProcessing;
+    }
+
+    /**
+     * A white page with a few dark lines of "text".
+     */
+    private static BufferedImage page(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+        graphics.setColor(Color.DARK_GRAY);
+        for (int y = height / 10; y < height * 9 / 10; y += height / 10) {
+            graphics.fillRect(width / 10, y, width * 8 / 10, Math.max(1, height / 40));
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Write a PNG, with its resolution if dpi is positive.
+     */
+    private Path writePng(BufferedImage image, int dpi) throws Exception {
+        Path file = Files.createTempFile(tempDir, "image", ".png");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), writer.getDefaultWriteParam());
+        if (dpi > 0) {
+            IIOMetadataNode dimension = new IIOMetadataNode("Dimension");
+            for (String name : new String[]{"HorizontalPixelSize", "VerticalPixelSize"}) {
+                IIOMetadataNode pixelSize = new IIOMetadataNode(name);
+                pixelSize.setAttribute("value", Double.toString(25.4 / dpi));
+                dimension.appendChild(pixelSize);
+            }
+            IIOMetadataNode root = new IIOMetadataNode(IIOMetadataFormatImpl.standardMetadataFormatName);
+            root.appendChild(dimension);
+            metadata.mergeTree(IIOMetadataFormatImpl.standardMetadataFormatName, root);
+        }
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+            writer.setOutput(out);
+            writer.write(new IIOImage(image, null, metadata));
+        } finally {
+            writer.dispose();
+        }
+        return file;
+    }
+}
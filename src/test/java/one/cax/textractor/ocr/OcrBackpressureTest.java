@@ -0,0 +1,102 @@
+package one.cax.textractor.ocr;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.textractor.messaging.RedisStreamWorkQueue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class OcrBackpressureTest {
+
+    @Mock
+    private RedisStreamWorkQueue mockWorkQueue;
+
+    @Mock
+    private AbbyyEngine mockAbbyyEngine;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private OcrBackpressure ocrBackpressure;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        ocrBackpressure = new OcrBackpressure(mockWorkQueue, mockAbbyyEngine, meterRegistry);
+        ReflectionTestUtils.setField(ocrBackpressure, "ocrTopic", "test-ocr-topic");
+        ReflectionTestUtils.setField(ocrBackpressure, "maxBacklog", 10);
+    }
+
+    @Test
+    void testAdmitBelowMaxBacklog() {
+        // Arrange
+        when(mockWorkQueue.getBacklog("test-ocr-topic", 11)).thenReturn(9L);
+
+        // Act
+        Optional<Duration> retryAfter = ocrBackpressure.admit();
+
+        // Assert
+        assertTrue(retryAfter.isEmpty());
+        assertEquals(0, meterRegistry.counter("ocrAdmissionRejections").count());
+        assertEquals(9, meterRegistry.get("ocrBacklog").gauge().value());
+    }
+
+    @Test
+    void testAdmitRejectsWhenBacklogFull() {
+        // Arrange
+        when(mockWorkQueue.getBacklog(eq("test-ocr-topic"), anyInt())).thenReturn(13L);
+        when(mockAbbyyEngine.getAverageProcessingMillis()).thenReturn(10_000.0);
+        when(mockAbbyyEngine.getPoolSize()).thenReturn(4);
+
+        // Act
+        Optional<Duration> retryAfter = ocrBackpressure.admit();
+
+        // Assert - 4 documents over the limit, 10s each, on 4 engines
+        assertTrue(retryAfter.isPresent());
+        assertEquals(Duration.ofSeconds(10), retryAfter.get());
+        assertEquals(1, meterRegistry.counter("ocrAdmissionRejections").count());
+    }
+
+    @Test
+    void testRetryAfterUsesDefaultAndIsCapped() {
+        // Arrange - nothing measured yet and engines not initialized
+        when(mockAbbyyEngine.getAverageProcessingMillis()).thenReturn(0.0);
+        when(mockAbbyyEngine.getPoolSize()).thenReturn(0);
+
+        // Act & Assert
+        assertEquals(Duration.ofSeconds(30), ocrBackpressure.retryAfter(10));
+        assertEquals(Duration.ofSeconds(300), ocrBackpressure.retryAfter(1000));
+    }
+
+    @Test
+    void testAdmitWhenBacklogUnavailable() {
+        // Arrange
+        when(mockWorkQueue.getBacklog(eq("test-ocr-topic"), anyInt()))
+                .thenThrow(new RedisConnectionFailureException("down"));
+
+        // Act & Assert
+        assertTrue(ocrBackpressure.admit().isEmpty());
+    }
+
+    @Test
+    void testAdmitDisabled() {
+        // Arrange
+        ReflectionTestUtils.setField(ocrBackpressure, "enabled", false);
+
+        // Act & Assert
+        assertTrue(ocrBackpressure.admit().isEmpty());
+        verifyNoInteractions(mockWorkQueue);
+    }
+}
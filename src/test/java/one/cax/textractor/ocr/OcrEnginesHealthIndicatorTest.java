@@ -0,0 +1,49 @@
+package one.cax.textractor.ocr;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class OcrEnginesHealthIndicatorTest {
+
+    @Mock
+    private AbbyyEngine mockAbbyyEngine;
+
+    @Test
+    void testUpOnceMinimumEnginesReady() {
+        // Arrange
+        when(mockAbbyyEngine.isInitialized()).thenReturn(true);
+        when(mockAbbyyEngine.getReadyEngines()).thenReturn(2);
+        when(mockAbbyyEngine.getMinReadyEngines()).thenReturn(2);
+        when(mockAbbyyEngine.getPoolSize()).thenReturn(8);
+
+        // Act
+        Health health = new OcrEnginesHealthIndicator(mockAbbyyEngine).health();
+
+        // Assert
+        assertEquals(Status.UP, health.getStatus());
+        assertEquals(2, health.getDetails().get("readyEngines"));
+        assertEquals(8, health.getDetails().get("poolSize"));
+    }
+
+    @Test
+    void testDownBelowMinimumEngines() {
+        // Arrange
+        when(mockAbbyyEngine.isInitialized()).thenReturn(true);
+        when(mockAbbyyEngine.getReadyEngines()).thenReturn(1);
+        when(mockAbbyyEngine.getMinReadyEngines()).thenReturn(2);
+
+        // Act
+        Health health = new OcrEnginesHealthIndicator(mockAbbyyEngine).health();
+
+        // Assert
+        assertEquals(Status.DOWN, health.getStatus());
+    }
+}
@@ -1,5 +1,8 @@
 package one.cax.textractor.service;
 
+import one.cax.textractor.datamodel.StoredFile;
+import one.cax.textractor.datamodel.XDoc;
+import one.cax.textractor.datamodel.XPage;
 import one.cax.textractor.db.ProcessedFiles;
 import one.cax.textractor.db.ProcessedFilesRepository;
 import org.junit.jupiter.api.BeforeEach;
@@ -10,9 +13,12 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.ByteArrayInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -49,6 +55,72 @@ class ProcessedFilesServiceTest {
         assertEquals(fileId, captor.getValue().getFileId());
     }
 
+    @Test
+    void testMarkFailed() {
+        // Arrange
+        UUID fileId = UUID.randomUUID();
+        when(processedFilesRepository.updateFailure(eq(fileId), eq("FAILED"), anyString())).thenReturn(1);
+
+        // Act
+        boolean updated = processedFilesService.markFailed(fileId.toString(), "x".repeat(2000));
+
+        // Assert - the reason is cut to the column length, and the contents are left as they are
+        assertTrue(updated);
+        ArgumentCaptor<String> reason = ArgumentCaptor.forClass(String.class);
+        verify(processedFilesRepository).updateFailure(eq(fileId), eq("FAILED"), reason.capture());
+        assertEquals(1000, reason.getValue().length());
+        verify(processedFilesRepository, never()).save(any(ProcessedFiles.class));
+    }
+
+    @Test
+    void testMergeOcrOutputWritesOcrContentOnly() {
+        // Arrange - page 1 taken from the text layer
+        UUID fileId = UUID.randomUUID();
+        ProcessedFiles processedFile = new ProcessedFiles();
+        processedFile.setFileId(fileId);
+        processedFile.setOcrContent(doc(page(1, "layer")));
+        when(processedFilesRepository.findById(fileId)).thenReturn(Optional.of(processedFile));
+
+        // Act
+        boolean updated = processedFilesService.mergeOcrOutput(fileId.toString(), doc(page(2, "ocr")));
+
+        // Assert - merged, without writing the columns of the other stages
+        assertTrue(updated);
+        ArgumentCaptor<XDoc> saved = ArgumentCaptor.forClass(XDoc.class);
+        verify(processedFilesRepository).updateOcrContent(eq(fileId), saved.capture());
+        assertEquals(List.of("layer", "ocr"), saved.getValue().getPages().stream().map(XPage::getText).toList());
+        verify(processedFilesRepository, never()).save(any(ProcessedFiles.class));
+    }
+
+    @Test
+    void testSaveLlmPagesWritesLlmContentAndPageCountOnly() {
+        // Arrange
+        UUID fileId = UUID.randomUUID();
+        XDoc llmOutput = doc(page(1, "first"), page(2, "second"));
+        when(processedFilesRepository.updateLlmContent(fileId, llmOutput, 2)).thenReturn(1);
+
+        // Act
+        boolean updated = processedFilesService.saveLlmPages(fileId.toString(), llmOutput);
+
+        // Assert - the file is not read
+        assertTrue(updated);
+        verify(processedFilesRepository).updateLlmContent(fileId, llmOutput, 2);
+        verify(processedFilesRepository, never()).findById(any(UUID.class));
+        verify(processedFilesRepository, never()).save(any(ProcessedFiles.class));
+    }
+
+    @Test
+    void testSaveLlmPagesOfMissingFile() {
+        // Arrange
+        UUID fileId = UUID.randomUUID();
+
+        // Act
+        boolean updated = processedFilesService.saveLlmPages(fileId.toString(), doc(page(1, "first")));
+
+        // Assert
+        assertFalse(updated);
+    }
+
     @Test
     void testSaveFile() throws Exception {
         // Arrange
@@ -82,4 +154,58 @@ class ProcessedFilesServiceTest {
         // Assert
         assertNull(filePath);
     }
+
+    @Test
+    void testStoreFile() throws Exception {
+        // Arrange
+        byte[] fileContent = "Test file content".getBytes();
+
+        // Act
+        StoredFile storedFile = processedFilesService.storeFile(new ByteArrayInputStream(fileContent));
+
+        // Assert
+        Path path = Paths.get(storedFile.getFilePath());
+        assertTrue(Files.exists(path));
+        assertArrayEquals(fileContent, Files.readAllBytes(path));
+        assertEquals(fileContent.length, storedFile.getFileSize());
+        assertEquals("6c76f7bd4b84eb68c26d2e8f48ea76f90b9bdf8836e27235a0ca4325f8fe4ce5", storedFile.getFileHash());
+
+        // Cleanup
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    void testStoreFileHashDependsOnContentOnly() throws Exception {
+        // Arrange
+        byte[] fileContent1 = "Test file content".getBytes();
+        byte[] fileContent2 = "Different content".getBytes();
+
+        // Act
+        StoredFile storedFile1 = processedFilesService.storeFile(new ByteArrayInputStream(fileContent1));
+        StoredFile storedFile2 = processedFilesService.storeFile(new ByteArrayInputStream(fileContent1));
+        StoredFile storedFile3 = processedFilesService.storeFile(new ByteArrayInputStream(fileContent2));
+
+        // Assert
+        assertNotEquals(storedFile1.getFilePath(), storedFile2.getFilePath());
+        assertEquals(storedFile1.getFileHash(), storedFile2.getFileHash());
+        assertNotEquals(storedFile1.getFileHash(), storedFile3.getFileHash());
+
+        // Cleanup
+        Files.deleteIfExists(Paths.get(storedFile1.getFilePath()));
+        Files.deleteIfExists(Paths.get(storedFile2.getFilePath()));
+        Files.deleteIfExists(Paths.get(storedFile3.getFilePath()));
+    }
+
+    private static XDoc doc(XPage... pages) {
+        XDoc xDoc = new XDoc();
+        xDoc.setPages(List.of(pages));
+        return xDoc;
+    }
+
+    private static XPage page(int pageNumber, String text) {
+        XPage xPage = new XPage();
+        xPage.setPageNumber(pageNumber);
+        xPage.setText(text);
+        return xPage;
+    }
 }
@@ -0,0 +1,249 @@
+package one.cax.textractor.text;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.textractor.datamodel.DocumentFormat;
+import one.cax.textractor.datamodel.XDoc;
+import org.apache.poi.hslf.usermodel.HSLFSlide;
+import org.apache.poi.hslf.usermodel.HSLFSlideShow;
+import org.apache.poi.hslf.usermodel.HSLFTextBox;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentExtractorRegistryTest {
+
+    private DocumentExtractorRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        ExtractorEngine extractorEngine = new ExtractorEngine(new SimpleMeterRegistry());
+        registry = new DocumentExtractorRegistry(new DocumentFormatDetector(), List.of(
+                new PdfDocumentExtractor(extractorEngine),
+                new DocxDocumentExtractor(extractorEngine),
+                new SpreadsheetMLExtractor(),
+                new PresentationMLExtractor(),
+                new OleDocumentExtractor()));
+    }
+
+    private XDoc extract(Path file) throws DocumentExtractionException {
+        XDocPageSink sink = new XDocPageSink();
+        registry.extract(file, registry.detect(file), sink);
+        return sink.getXDoc();
+    }
+
+    @Test
+    void testImagesHaveNoExtractor() {
+        assertTrue(registry.find(DocumentFormat.PNG).isEmpty());
+        assertTrue(registry.find(DocumentFormat.UNKNOWN).isEmpty());
+        assertTrue(registry.find(DocumentFormat.XLSX).isPresent());
+        assertThrows(DocumentExtractionException.class,
+                () -> registry.extract(Path.of("image.png"), DocumentFormat.PNG, new XDocPageSink()));
+    }
+
+    @Test
+    void testExtractXlsx(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        Path xlsx = createXlsx(tempDir.resolve("budget.xlsx"));
+
+        // Act
+        XDoc xDoc = extract(xlsx);
+
+        // Assert - one page per sheet, shared and inline strings resolved
+        assertEquals(2, xDoc.getPages().size());
+        assertEquals("Item\tCost\nPaper\t12.5\n", xDoc.getPages().get(0).getText());
+        assertEquals("Total\tTRUE\n", xDoc.getPages().get(1).getText());
+        assertEquals("Costs", xDoc.getDocTitle());
+    }
+
+    @Test
+    void testExtractXlsxSparseRows(@TempDir Path tempDir) throws Exception {
+        // Arrange - empty cells are left out of the sheet
+        String sheet = "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>"
+                + "<row r=\"1\"><c r=\"A1\" t=\"inlineStr\"><is><t>Name</t></is></c>"
+                + "<c r=\"C1\" t=\"inlineStr\"><is><t>Total</t></is></c></row>"
+                + "<row r=\"2\"><c r=\"B2\"><v>7</v></c><c><v>8</v></c><c r=\"AA2\"><v>9</v></c></row>"
+                + "</sheetData></worksheet>";
+        Path xlsx = writeZip(tempDir.resolve("sparse.xlsx"), Map.of(
+                "xl/workbook.xml", "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\" "
+                        + "xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\"><sheets>"
+                        + "<sheet name=\"Sparse\" sheetId=\"1\" r:id=\"rId1\"/></sheets></workbook>",
+                "xl/_rels/workbook.xml.rels", "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                        + "<Relationship Id=\"rId1\" Type=\"worksheet\" Target=\"worksheets/sheet1.xml\"/></Relationships>",
+                "xl/worksheets/sheet1.xml", sheet));
+
+        // Act
+        XDoc xDoc = extract(xlsx);
+
+        // Assert - each value at its column, a cell without reference after the previous one
+        assertEquals("Name\t\tTotal\n\t7\t8" + "\t".repeat(24) + "9\n", xDoc.getPages().get(0).getText());
+    }
+
+    @Test
+    void testExtractPptx(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        Path pptx = createPptx(tempDir.resolve("deck.pptx"));
+
+        // Act
+        XDoc xDoc = extract(pptx);
+
+        // Assert - slides in presentation order, not part name order
+        assertEquals(2, xDoc.getPages().size());
+        assertEquals("Quarterly review\nRevenue up\n", xDoc.getPages().get(0).getText());
+        assertEquals("Next steps\n", xDoc.getPages().get(1).getText());
+        assertEquals("Quarterly review", xDoc.getDocTitle());
+    }
+
+    @Test
+    void testExtractXls(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        Path xls = tempDir.resolve("legacy.xls");
+        try (HSSFWorkbook workbook = new HSSFWorkbook(); OutputStream output = Files.newOutputStream(xls)) {
+            HSSFSheet sheet = workbook.createSheet("Data");
+            HSSFRow row = sheet.createRow(0);
+            row.createCell(0).setCellValue("Count");
+            row.createCell(1).setCellValue(3);
+            row.createCell(2).setCellFormula("B1*2");
+            workbook.getCreationHelper().createFormulaEvaluator().evaluateAll();
+            workbook.write(output);
+        }
+
+        // Act
+        XDoc xDoc = extract(xls);
+
+        // Assert
+        assertEquals(1, xDoc.getPages().size());
+        assertEquals("Count\t3\t6\n", xDoc.getPages().get(0).getText());
+    }
+
+    @Test
+    void testExtractXlsSparseRowsAndSheets(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        Path xls = tempDir.resolve("sparse.xls");
+        try (HSSFWorkbook workbook = new HSSFWorkbook(); OutputStream output = Files.newOutputStream(xls)) {
+            HSSFSheet sheet = workbook.createSheet("Data");
+            HSSFRow row = sheet.createRow(0);
+            row.createCell(0).setCellValue("Name");
+            row.createCell(2).setCellValue("Total");
+            row = sheet.createRow(1);
+            row.createCell(1).setCellValue(true);
+            row.createCell(3).setCellFormula("\"a\"&\"b\"");
+            workbook.createSheet("Empty");
+            workbook.getCreationHelper().createFormulaEvaluator().evaluateAll();
+            workbook.write(output);
+        }
+
+        // Act
+        XDoc xDoc = extract(xls);
+
+        // Assert - each value at its column, a page per sheet
+        assertEquals(2, xDoc.getPages().size());
+        assertEquals("Name\t\tTotal\n\tTRUE\t\tab\n", xDoc.getPages().get(0).getText());
+        assertEquals("", xDoc.getPages().get(1).getText());
+    }
+
+    @Test
+    void testExtractPpt(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        Path ppt = tempDir.resolve("legacy.ppt");
+        try (HSLFSlideShow slideShow = new HSLFSlideShow(); OutputStream output = Files.newOutputStream(ppt)) {
+            for (String content : List.of("First slide", "Second slide")) {
+                HSLFSlide slide = slideShow.createSlide();
+                HSLFTextBox textBox = slide.createTextBox();
+                textBox.setText(content);
+            }
+            slideShow.write(output);
+        }
+
+        // Act
+        XDoc xDoc = extract(ppt);
+
+        // Assert
+        assertEquals(2, xDoc.getPages().size());
+        assertEquals("First slide\n", xDoc.getPages().get(0).getText());
+        assertEquals("Second slide\n", xDoc.getPages().get(1).getText());
+    }
+
+    /**
+     * Creates an XLSX workbook with two sheets, written as raw SpreadsheetML.
+     */
+    static Path createXlsx(Path path) throws IOException {
+        String workbook = "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\" "
+                + "xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\"><sheets>"
+                + "<sheet name=\"Costs\" sheetId=\"1\" r:id=\"rId1\"/>"
+                + "<sheet name=\"Summary\" sheetId=\"2\" r:id=\"rId2\"/>"
+                + "</sheets></workbook>";
+        String workbookRels = "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                + "<Relationship Id=\"rId1\" Type=\"worksheet\" Target=\"worksheets/sheet1.xml\"/>"
+                + "<Relationship Id=\"rId2\" Type=\"worksheet\" Target=\"/xl/worksheets/sheet2.xml\"/>"
+                + "</Relationships>";
+        String sharedStrings = "<sst xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">"
+                + "<si><t>Item</t></si><si><t>Cost</t></si><si><r><t>Pa</t></r><r><t>per</t></r></si>"
+                + "</sst>";
+        String sheet1 = "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>"
+                + "<row r=\"1\"><c r=\"A1\" t=\"s\"><v>0</v></c><c r=\"B1\" t=\"s\"><v>1</v></c></row>"
+                + "<row r=\"2\"><c r=\"A2\" t=\"s\"><v>2</v></c><c r=\"B2\"><v>12.5</v></c></row>"
+                + "</sheetData></worksheet>";
+        String sheet2 = "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>"
+                + "<row r=\"1\"><c r=\"A1\" t=\"inlineStr\"><is><t>Total</t></is></c><c r=\"B1\" t=\"b\"><v>1</v></c></row>"
+                + "</sheetData></worksheet>";
+        return writeZip(path, Map.of(
+                "xl/workbook.xml", workbook,
+                "xl/_rels/workbook.xml.rels", workbookRels,
+                "xl/sharedStrings.xml", sharedStrings,
+                "xl/worksheets/sheet1.xml", sheet1,
+                "xl/worksheets/sheet2.xml", sheet2));
+    }
+
+    /**
+     * Creates a PPTX presentation whose slide order differs from its part names.
+     */
+    static Path createPptx(Path path) throws IOException {
+        String presentation = "<p:presentation xmlns:p=\"http://schemas.openxmlformats.org/presentationml/2006/main\" "
+                + "xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\"><p:sldIdLst>"
+                + "<p:sldId id=\"256\" r:id=\"rId3\"/><p:sldId id=\"257\" r:id=\"rId2\"/>"
+                + "</p:sldIdLst></p:presentation>";
+        String presentationRels = "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                + "<Relationship Id=\"rId2\" Type=\"slide\" Target=\"slides/slide1.xml\"/>"
+                + "<Relationship Id=\"rId3\" Type=\"slide\" Target=\"slides/slide2.xml\"/>"
+                + "</Relationships>";
+        return writeZip(path, Map.of(
+                "ppt/presentation.xml", presentation,
+                "ppt/_rels/presentation.xml.rels", presentationRels,
+                "ppt/slides/slide1.xml", slide("<a:p><a:r><a:t>Next steps</a:t></a:r></a:p>"),
+                "ppt/slides/slide2.xml", slide("<a:p><a:r><a:t>Quarterly </a:t></a:r><a:r><a:t>review</a:t></a:r></a:p>"
+                        + "<a:p><a:r><a:t>Revenue up</a:t></a:r></a:p>")));
+    }
+
+    private static String slide(String paragraphs) {
+        return "<p:sld xmlns:p=\"http://schemas.openxmlformats.org/presentationml/2006/main\" "
+                + "xmlns:a=\"http://schemas.openxmlformats.org/drawingml/2006/main\"><p:cSld><p:spTree><p:sp><p:txBody>"
+                + paragraphs
+                + "</p:txBody></p:sp></p:spTree></p:cSld></p:sld>";
+    }
+
+    private static Path writeZip(Path path, Map<String, String> entries) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(path))) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getKey()));
+                zip.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return path;
+    }
+}
@@ -0,0 +1,86 @@
+package one.cax.textractor.text;
+
+import one.cax.textractor.datamodel.DocumentFormat;
+import org.apache.poi.hslf.usermodel.HSLFSlideShow;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentFormatDetectorTest {
+
+    private final DocumentFormatDetector detector = new DocumentFormatDetector();
+
+    @Test
+    void testDetectFromMagicBytes(@TempDir Path tempDir) throws Exception {
+        // Arrange - names that do not match the content
+        Path pdf = Files.write(tempDir.resolve("scan.png"), ExtractorEngineTest.createPdf("text"));
+        Path png = Files.write(tempDir.resolve("image.pdf"), new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+        Path jpeg = Files.write(tempDir.resolve("photo"), new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0});
+        Path tiff = Files.write(tempDir.resolve("fax"), new byte[]{'I', 'I', 0x2A, 0x00, 8, 0, 0, 0});
+        Path text = Files.write(tempDir.resolve("notes.pdf"), "plain text".getBytes());
+        Path empty = Files.write(tempDir.resolve("empty"), new byte[0]);
+
+        // Act & Assert
+        assertEquals(DocumentFormat.PDF, detector.detect(pdf));
+        assertEquals(DocumentFormat.PNG, detector.detect(png));
+        assertEquals(DocumentFormat.JPEG, detector.detect(jpeg));
+        assertEquals(DocumentFormat.TIFF, detector.detect(tiff));
+        assertEquals(DocumentFormat.UNKNOWN, detector.detect(text));
+        assertEquals(DocumentFormat.UNKNOWN, detector.detect(empty));
+    }
+
+    @Test
+    void testDetectOfficeContainers(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        Path docx = tempDir.resolve("report.bin");
+        ExtractorEngineTest.createDocx(docx);
+        Path xlsx = DocumentExtractorRegistryTest.createXlsx(tempDir.resolve("sheet.bin"));
+        Path pptx = DocumentExtractorRegistryTest.createPptx(tempDir.resolve("slides.bin"));
+        Path xls = tempDir.resolve("legacy.bin");
+        try (HSSFWorkbook workbook = new HSSFWorkbook(); OutputStream output = Files.newOutputStream(xls)) {
+            workbook.createSheet("Sheet1");
+            workbook.write(output);
+        }
+        Path ppt = tempDir.resolve("legacy-slides.bin");
+        try (HSLFSlideShow slideShow = new HSLFSlideShow(); OutputStream output = Files.newOutputStream(ppt)) {
+            slideShow.createSlide();
+            slideShow.write(output);
+        }
+
+        // Act & Assert
+        assertEquals(DocumentFormat.DOCX, detector.detect(docx));
+        assertEquals(DocumentFormat.XLSX, detector.detect(xlsx));
+        assertEquals(DocumentFormat.PPTX, detector.detect(pptx));
+        assertEquals(DocumentFormat.XLS, detector.detect(xls));
+        assertEquals(DocumentFormat.PPT, detector.detect(ppt));
+    }
+
+    @Test
+    void testIsOfficeContainerFromLeadingBytes(@TempDir Path tempDir) throws Exception {
+        // Arrange
+        Path docx = tempDir.resolve("report.docx");
+        ExtractorEngineTest.createDocx(docx);
+        Path xls = tempDir.resolve("legacy.xls");
+        try (HSSFWorkbook workbook = new HSSFWorkbook(); OutputStream output = Files.newOutputStream(xls)) {
+            workbook.createSheet("Sheet1");
+            workbook.write(output);
+        }
+
+        // Act & Assert
+        try (InputStream docxContent = Files.newInputStream(docx); InputStream xlsContent = Files.newInputStream(xls)) {
+            assertTrue(detector.isOfficeContainer(docxContent));
+            assertTrue(detector.isOfficeContainer(xlsContent));
+        }
+        assertFalse(detector.isOfficeContainer(new ByteArrayInputStream(ExtractorEngineTest.createPdf("text"))));
+        assertFalse(detector.isOfficeContainer(new ByteArrayInputStream(new byte[]{(byte) 0x89, 'P', 'N', 'G'})));
+        assertFalse(detector.isOfficeContainer(new ByteArrayInputStream(new byte[0])));
+    }
+}
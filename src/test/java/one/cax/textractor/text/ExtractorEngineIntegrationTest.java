@@ -82,6 +82,6 @@ class ExtractorEngineIntegrationTest {
             () -> extractorEngine.extractTextFromOfficeDocs(invalidPath)
         );
         
-        assertTrue(exception.getMessage().contains("Failed to convert DOCX to PDF"));
+        assertTrue(exception.getMessage().contains("Failed to extract text from DOCX"));
     }
 }
@@ -8,11 +8,21 @@ import one.cax.textractor.text.ExtractorEngine;
 import one.cax.textractor.utilities.NameUtils;
 
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -20,12 +30,18 @@ import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
 
+import org.apache.pdfbox.Loader;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.font.PDFont;
 import org.apache.pdfbox.pdmodel.font.PDType1Font;
 import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
 
 class ExtractorEngineTest {
 
@@ -85,6 +101,265 @@ class ExtractorEngineTest {
         assertThrows(DocumentExtractionException.class, () -> extractorEngine.extractTextFromPDF(fileInBytes));
     }
 
+    @Test
+    void testExtractTextFromPDF_MultiPage() throws Exception {
+        ExtractorEngine extractorEngine = new ExtractorEngine(meterRegistry);
+        byte[] fileInBytes = createMultiPagePdf(List.of("First page", "Second page", "Third page"));
+
+        JSONObject jsonObject = extractorEngine.extractTextFromPDF(fileInBytes);
+
+        // same text as stripping each page on its own
+        JSONArray pages = jsonObject.getJSONArray(NameUtils.DOC_PAGES);
+        assertEquals("3", jsonObject.getString(NameUtils.DOC_TOTAL_PAGES));
+        assertEquals(3, pages.length());
+        try (PDDocument document = Loader.loadPDF(fileInBytes)) {
+            PDFTextStripper stripper = new PDFTextStripper();
+            for (int i = 1; i <= 3; i++) {
+                stripper.setStartPage(i);
+                stripper.setEndPage(i);
+                JSONObject page = pages.getJSONObject(i - 1);
+                assertEquals(String.valueOf(i), page.getString(NameUtils.PAGE_NUMBER));
+                assertEquals(stripper.getText(document), page.getString(NameUtils.PAGE_TEXT));
+            }
+        }
+        assertEquals("First page ", jsonObject.getString(NameUtils.DOC_TITLE));
+    }
+
+    @Test
+    void testExtractTextFromPDF_ParallelPageRanges(@TempDir Path tempDir) throws Exception {
+        ExtractorEngine sequentialEngine = new ExtractorEngine(meterRegistry);
+        ExtractorEngine parallelEngine = new ExtractorEngine(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(parallelEngine, "parallelEnabled", true);
+        ReflectionTestUtils.setField(parallelEngine, "parallelWorkers", 3);
+        ReflectionTestUtils.setField(parallelEngine, "parallelMinPages", 2);
+        List<String> contents = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            contents.add("Page number " + i);
+        }
+        Path pdf = Files.write(tempDir.resolve("large.pdf"), createMultiPagePdf(contents));
+
+        try {
+            JSONObject sequential = sequentialEngine.extractTextFromPDF(pdf.toString());
+            JSONObject parallel = parallelEngine.extractTextFromPDF(pdf.toString());
+
+            // pages reassembled in order, same output as the single pass
+            JSONArray pages = parallel.getJSONArray(NameUtils.DOC_PAGES);
+            assertEquals(10, pages.length());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(String.valueOf(i + 1), pages.getJSONObject(i).getString(NameUtils.PAGE_NUMBER));
+                assertTrue(pages.getJSONObject(i).getString(NameUtils.PAGE_TEXT).contains("Page number " + (i + 1)));
+            }
+            assertEquals(sequential.toString(), parallel.toString());
+        } finally {
+            parallelEngine.shutdown();
+        }
+    }
+
+    @Test
+    void testExtractTextFromPDF_SpillsToTempDir(@TempDir Path tempDir) throws Exception {
+        ExtractorEngine extractorEngine = new ExtractorEngine(meterRegistry);
+        ReflectionTestUtils.setField(extractorEngine, "maxMemoryPerDocumentMb", 1);
+        ReflectionTestUtils.setField(extractorEngine, "maxTotalMemoryMb", 1);
+        ReflectionTestUtils.setField(extractorEngine, "memoryTempDir", tempDir.toString());
+        byte[] fileInBytes = createPdf("Bounded memory");
+
+        // the budget is released after each document, so sequential extractions do not wait
+        for (int i = 0; i < 3; i++) {
+            JSONObject jsonObject = extractorEngine.extractTextFromPDF(fileInBytes);
+            assertTrue(jsonObject.getJSONArray(NameUtils.DOC_PAGES).getJSONObject(0)
+                    .getString(NameUtils.PAGE_TEXT).contains("Bounded memory"));
+        }
+    }
+
+    @Test
+    void testExtractTextFromPDF_PageSink() throws Exception {
+        ExtractorEngine extractorEngine = new ExtractorEngine(meterRegistry);
+        byte[] fileInBytes = createMultiPagePdf(List.of("First page", "Second page"));
+        List<String> events = new ArrayList<>();
+
+        extractorEngine.extractTextFromPDF(fileInBytes, new PageSink() {
+            @Override
+            public void start(String fileName, int totalPages) {
+                events.add("start " + totalPages);
+            }
+
+            @Override
+            public void page(int pageNumber, String text) {
+                events.add("page " + pageNumber + " " + text.trim());
+            }
+
+            @Override
+            public void end(String title) {
+                events.add("end " + title.trim());
+            }
+        });
+
+        assertEquals(List.of("start 2", "page 1 First page", "page 2 Second page", "end First page"), events);
+    }
+
+    @Test
+    void testExtractTextFromPDF_JsonPageSink(@TempDir Path tempDir) throws Exception {
+        ExtractorEngine extractorEngine = new ExtractorEngine(meterRegistry);
+        Path pdf = Files.write(tempDir.resolve("pages.pdf"), createMultiPagePdf(List.of("First page", "Second page")));
+        StringWriter output = new StringWriter();
+
+        try (JsonGenerator generator = new JsonFactory().createGenerator(output)) {
+            extractorEngine.extractTextFromPDF(pdf.toString(), new JsonPageSink(generator));
+        }
+
+        // same document as the JSONObject API
+        XDoc streamed = XDoc.fromText(output.toString());
+        XDoc built = XDoc.fromText(extractorEngine.extractTextFromPDF(pdf.toString()).toString());
+        assertEquals(built.getDocTitle(), streamed.getDocTitle());
+        assertEquals(2, streamed.getPages().size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(built.getPages().get(i).getPageNumber(), streamed.getPages().get(i).getPageNumber());
+            assertEquals(built.getPages().get(i).getText(), streamed.getPages().get(i).getText());
+        }
+        assertEquals("pages.pdf", new JSONObject(output.toString()).getString(NameUtils.DOC_FILENAME));
+    }
+
+    @Test
+    void testExtractXDocFromPDF(@TempDir Path tempDir) throws Exception {
+        ExtractorEngine extractorEngine = new ExtractorEngine(meterRegistry);
+        Path pdf = Files.write(tempDir.resolve("pages.pdf"), createMultiPagePdf(List.of("First page", "Second page")));
+
+        XDoc xDoc = extractorEngine.extractXDocFromPDF(pdf.toString());
+
+        assertEquals("pages.pdf", xDoc.getFilename());
+        assertEquals(2, xDoc.getPages().size());
+        assertEquals(2, xDoc.getPages().get(1).getPageNumber());
+        assertTrue(xDoc.getPages().get(1).getText().contains("Second page"));
+    }
+
+    @Test
+    void testExtractTextFromOfficeDocs(@TempDir Path tempDir) throws Exception {
+        ExtractorEngine extractorEngine = new ExtractorEngine(meterRegistry);
+        Path docx = tempDir.resolve("report.docx");
+        createDocx(docx);
+
+        JSONObject jsonObject = extractorEngine.extractTextFromOfficeDocs(docx.toString());
+
+        // logical pages cut at the page break, table cells separated by tabs
+        JSONArray pages = jsonObject.getJSONArray(NameUtils.DOC_PAGES);
+        assertEquals("2", jsonObject.getString(NameUtils.DOC_TOTAL_PAGES));
+        assertEquals(2, pages.length());
+        assertEquals("Introduction\nName\tValue\n", pages.getJSONObject(0).getString(NameUtils.PAGE_TEXT));
+        assertEquals("Conclusion\n", pages.getJSONObject(1).getString(NameUtils.PAGE_TEXT));
+        assertEquals("report.docx", jsonObject.getString(NameUtils.DOC_FILENAME));
+        assertEquals("Introduction Name\tValue ", jsonObject.getString(NameUtils.DOC_TITLE));
+        // no converted PDF left beside the input
+        try (var files = Files.list(tempDir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void testAnalyzeTextLayer(@TempDir Path tempDir) throws Exception {
+        ExtractorEngine extractorEngine = new ExtractorEngine(meterRegistry);
+        Path textPdf = Files.write(tempDir.resolve("text.pdf"), createPdf("Born digital text page"));
+        Path scanPdf = Files.write(tempDir.resolve("scan.pdf"), createScannedPdf());
+
+        List<PageCoverage> textPages = extractorEngine.analyzeTextLayer(textPdf.toString());
+        List<PageCoverage> scanPages = extractorEngine.analyzeTextLayer(scanPdf.toString());
+
+        assertEquals(1, textPages.size());
+        assertEquals(1, textPages.get(0).getPageNumber());
+        assertEquals("Borndigitaltextpage".length(), textPages.get(0).getCharCount());
+        assertEquals(0.0, textPages.get(0).getImageCoverage(), 0.001);
+
+        assertEquals(1, scanPages.size());
+        assertEquals(0, scanPages.get(0).getCharCount());
+        assertEquals(1.0, scanPages.get(0).getImageCoverage(), 0.001);
+    }
+
+    @Test
+    void testAnalyzeTextLayer_Invalid() {
+        ExtractorEngine extractorEngine = new ExtractorEngine(meterRegistry);
+        assertThrows(DocumentExtractionException.class, () -> extractorEngine.analyzeTextLayer("non-existent-file.pdf"));
+    }
+
+    /**
+     * Creates a single page PDF made of one full-page image and no text, like a scan.
+     */
+    public static byte[] createScannedPdf() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (PDDocument document = new PDDocument()) {
+            PDPage page = new PDPage();
+            document.addPage(page);
+            BufferedImage bufferedImage = new BufferedImage(85, 110, BufferedImage.TYPE_BYTE_GRAY);
+            PDImageXObject image = LosslessFactory.createFromImage(document, bufferedImage);
+            try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+                contentStream.drawImage(image, 0, 0, page.getMediaBox().getWidth(), page.getMediaBox().getHeight());
+            }
+            document.save(output);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return output.toByteArray();
+    }
+
+    public static byte[] createMultiPagePdf(List<String> contents) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (PDDocument document = new PDDocument()) {
+            PDFont font = new PDType1Font(Standard14Fonts.FontName.HELVETICA_BOLD);
+            for (String content : contents) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+                    contentStream.setFont(font, 12);
+                    contentStream.beginText();
+                    contentStream.newLineAtOffset(100, 700);
+                    contentStream.showText(content);
+                    contentStream.endText();
+                }
+            }
+            document.save(output);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Creates a DOCX file with a paragraph and a table on the first page, then a page break.
+     * Written as raw WordprocessingML, the minimal package Word and docx4j accept.
+     */
+    public static void createDocx(Path path) throws IOException {
+        String contentTypes = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+                + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+                + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+                + "<Override PartName=\"/word/document.xml\" "
+                + "ContentType=\"application/vnd.openxmlformats-officedocument.wordprocessingml.document.main+xml\"/>"
+                + "</Types>";
+        String rels = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                + "<Relationship Id=\"rId1\" "
+                + "Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" "
+                + "Target=\"word/document.xml\"/>"
+                + "</Relationships>";
+        String document = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                + "<w:document xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\"><w:body>"
+                + "<w:p><w:r><w:t>Introduction</w:t></w:r></w:p>"
+                + "<w:tbl><w:tr>"
+                + "<w:tc><w:p><w:r><w:t>Name</w:t></w:r></w:p></w:tc>"
+                + "<w:tc><w:p><w:r><w:t>Value</w:t></w:r></w:p></w:tc>"
+                + "</w:tr></w:tbl>"
+                + "<w:p><w:r><w:br w:type=\"page\"/></w:r></w:p>"
+                + "<w:p><w:r><w:t>Conclusion</w:t></w:r></w:p>"
+                + "<w:sectPr/>"
+                + "</w:body></w:document>";
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(path))) {
+            for (String[] entry : new String[][]{
+                    {"[Content_Types].xml", contentTypes}, {"_rels/.rels", rels}, {"word/document.xml", document}}) {
+                zip.putNextEntry(new ZipEntry(entry[0]));
+                zip.write(entry[1].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+    }
+
     public static byte[] createPdf(String content) {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         try (PDDocument document = new PDDocument()) {
@@ -0,0 +1,64 @@
+package one.cax.textractor.text;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PdfMemoryBudgetTest {
+
+    private static final long MB = 1024L * 1024L;
+
+    @Test
+    void testReserveAndRelease() throws Exception {
+        // Arrange
+        PdfMemoryBudget budget = new PdfMemoryBudget(100);
+
+        // Act
+        PdfMemoryBudget.Reservation reservation = budget.reserve(30 * MB + 1);
+
+        // Assert - rounded up to whole MB
+        assertEquals(69, budget.getAvailableMb());
+        reservation.close();
+        reservation.close();
+        assertEquals(100, budget.getAvailableMb());
+    }
+
+    @Test
+    void testReservationLargerThanTotalIsCapped() throws Exception {
+        // Arrange
+        PdfMemoryBudget budget = new PdfMemoryBudget(10);
+
+        // Act
+        try (PdfMemoryBudget.Reservation reservation = budget.reserve(50 * MB)) {
+            // Assert
+            assertEquals(0, budget.getAvailableMb());
+        }
+        assertEquals(10, budget.getAvailableMb());
+    }
+
+    @Test
+    void testReserveWaitsForRelease() throws Exception {
+        // Arrange
+        PdfMemoryBudget budget = new PdfMemoryBudget(10);
+        PdfMemoryBudget.Reservation first = budget.reserve(8 * MB);
+
+        // Act
+        CompletableFuture<PdfMemoryBudget.Reservation> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return budget.reserve(5 * MB);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        // Assert - blocked until the first document is released
+        assertThrows(TimeoutException.class, () -> second.get(200, TimeUnit.MILLISECONDS));
+        first.close();
+        second.get(5, TimeUnit.SECONDS).close();
+        assertEquals(10, budget.getAvailableMb());
+    }
+}
@@ -0,0 +1,60 @@
+package one.cax.textractor.text;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TextLayerTriageTest {
+
+    private TextLayerTriage textLayerTriage;
+
+    @BeforeEach
+    void setUp() {
+        textLayerTriage = new TextLayerTriage();
+        ReflectionTestUtils.setField(textLayerTriage, "minCharsPerPage", 50);
+        ReflectionTestUtils.setField(textLayerTriage, "imageCoverageThreshold", 0.5);
+        ReflectionTestUtils.setField(textLayerTriage, "minCharsOnImagePages", 200);
+    }
+
+    @Test
+    void testBornDigitalPageSkipsOcr() {
+        PageCoverage page = new PageCoverage(1, "word ".repeat(20), 0.0);
+        assertFalse(textLayerTriage.needsOcr(page));
+    }
+
+    @Test
+    void testEmptyTextLayerNeedsOcr() {
+        PageCoverage page = new PageCoverage(1, " \n \r\n", 0.0);
+        assertEquals(0, page.getCharCount());
+        assertTrue(textLayerTriage.needsOcr(page));
+    }
+
+    @Test
+    void testScannedPageWithLittleTextNeedsOcr() {
+        // e.g. a full-page scan with a header stamped in the text layer
+        PageCoverage page = new PageCoverage(1, "word ".repeat(20), 0.95);
+        assertTrue(textLayerTriage.needsOcr(page));
+    }
+
+    @Test
+    void testScannedPageWithFullTextLayerSkipsOcr() {
+        // e.g. a scan that already went through OCR and carries an invisible text layer
+        PageCoverage page = new PageCoverage(1, "word ".repeat(100), 0.95);
+        assertFalse(textLayerTriage.needsOcr(page));
+    }
+
+    @Test
+    void testPagesNeedingOcr() {
+        List<PageCoverage> pages = List.of(
+                new PageCoverage(1, "word ".repeat(20), 0.0),
+                new PageCoverage(2, "", 1.0),
+                new PageCoverage(3, "word ".repeat(20), 0.1),
+                new PageCoverage(4, "short", 0.0));
+
+        assertEquals(List.of(2, 4), textLayerTriage.pagesNeedingOcr(pages));
+    }
+}
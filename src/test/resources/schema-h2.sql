@@ -11,6 +11,8 @@ CREATE TABLE IF NOT EXISTS processed_files (
     ocr_content VARCHAR, -- Use VARCHAR for JSON in H2 (equivalent to JSONB in PostgreSQL)
     llm_content CLOB,
     processing_status VARCHAR(50),
+    failure_reason VARCHAR(1000),
+    llm_pages INTEGER,
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
 );
 
@@ -19,6 +21,7 @@ CREATE TABLE IF NOT EXISTS app_profiles (
     id UUID PRIMARY KEY,
     profile_name VARCHAR(255) NOT NULL UNIQUE,
     profile_description CLOB,
+    ocr_mode VARCHAR(20),
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
 );
 